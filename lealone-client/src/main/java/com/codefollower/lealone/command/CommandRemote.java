@@ -8,6 +8,8 @@ package com.codefollower.lealone.command;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import com.codefollower.lealone.constant.SysProperties;
 import com.codefollower.lealone.engine.SessionRemote;
 import com.codefollower.lealone.expression.ParameterInterface;
@@ -92,6 +94,10 @@ public class CommandRemote implements CommandInterface {
         return parameters;
     }
 
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
     private void prepareIfRequired() {
         if (session.getLastReconnect() != created) {
             // in this case we need to prepare again in every case
@@ -215,6 +221,85 @@ public class CommandRemote implements CommandInterface {
         }
     }
 
+    /**
+     * 把按region分组的记录以二进制格式一次发给服务器，由服务器端的INSERT/MERGE语句直接插入，
+     * 服务器端不需要再解析SQL。值为null的列表示DEFAULT。
+     *
+     * @param regions region名 -> 这个region中的记录
+     * @return 插入的记录数
+     */
+    public int executeBatchRows(Map<String, List<Value[]>> regions) {
+        if (!session.supportsBatchRows())
+            throw DbException.getUnsupportedException("batch rows");
+        synchronized (session) {
+            int updateCount = 0;
+            boolean autoCommit = false;
+            for (int i = 0, count = 0; i < transferList.size(); i++) {
+                prepareIfRequired();
+                Transfer transfer = transferList.get(i);
+                try {
+                    boolean distributed = session.getTransaction() != null && !session.getTransaction().isAutoCommit();
+                    session.traceOperation("COMMAND_EXECUTE_BATCH_ROWS", id);
+                    transfer.writeInt(SessionRemote.COMMAND_EXECUTE_BATCH_ROWS).writeInt(id).writeBoolean(distributed);
+                    transfer.writeInt(regions.size());
+                    for (Map.Entry<String, List<Value[]>> e : regions.entrySet()) {
+                        List<Value[]> rows = e.getValue();
+                        int size = rows.size();
+                        transfer.writeString(e.getKey()).writeInt(size);
+                        for (int j = 0; j < size; j++)
+                            writeRow(transfer, rows.get(j));
+                    }
+                    session.done(transfer);
+                    updateCount = transfer.readInt();
+                    autoCommit = transfer.readBoolean();
+                } catch (IOException e) {
+                    session.removeServer(e, i--, ++count);
+                }
+            }
+            session.setAutoCommitFromServer(autoCommit);
+            session.autoCommitIfCluster();
+            session.readSessionState();
+            return updateCount;
+        }
+    }
+
+    //先写DEFAULT列的个数和位置，再写其他列的值
+    private static void writeRow(Transfer transfer, Value[] row) throws IOException {
+        int len = row.length;
+        int defaultCount = 0;
+        for (int i = 0; i < len; i++)
+            if (row[i] == null)
+                defaultCount++;
+        transfer.writeInt(len).writeInt(defaultCount);
+        if (defaultCount > 0) {
+            for (int i = 0; i < len; i++)
+                if (row[i] == null)
+                    transfer.writeInt(i);
+        }
+        for (int i = 0; i < len; i++)
+            if (row[i] != null)
+                transfer.writeValue(row[i]);
+    }
+
+    /**
+     * 读取由executeBatchRows写入的一条记录
+     */
+    public static Value[] readRow(Transfer transfer) throws IOException {
+        int len = transfer.readInt();
+        int defaultCount = transfer.readInt();
+        Value[] row = new Value[len];
+        boolean[] isDefault = null;
+        if (defaultCount > 0) {
+            isDefault = new boolean[len];
+            for (int i = 0; i < defaultCount; i++)
+                isDefault[transfer.readInt()] = true;
+        }
+        for (int i = 0; i < len; i++)
+            if (isDefault == null || !isDefault[i])
+                row[i] = transfer.readValue();
+        return row;
+    }
+
     private void checkParameters() {
         for (ParameterInterface p : parameters) {
             p.checkSet();
@@ -88,6 +88,11 @@ public class Constants {
      */
     public static final int TCP_PROTOCOL_VERSION_12 = 12;
 
+    /**
+     * The TCP protocol version number 13, adds COMMAND_EXECUTE_BATCH_ROWS.
+     */
+    public static final int TCP_PROTOCOL_VERSION_13 = 13;
+
     /**
      * The major version of this database.
      */
@@ -75,6 +75,7 @@ public class SessionRemote extends SessionWithState implements DataHandler {
 
     public static final int COMMAND_EXECUTE_BATCH_UPDATE_STATEMENT = 120;
     public static final int COMMAND_EXECUTE_BATCH_UPDATE_PREPAREDSTATEMENT = 121;
+    public static final int COMMAND_EXECUTE_BATCH_ROWS = 122;
 
     public static final int STATUS_ERROR = 0;
     public static final int STATUS_OK = 1;
@@ -114,7 +115,7 @@ public class SessionRemote extends SessionWithState implements DataHandler {
         trans.setSSL(ci.isSSL());
         trans.init();
         trans.writeInt(Constants.TCP_PROTOCOL_VERSION_6);
-        trans.writeInt(Constants.TCP_PROTOCOL_VERSION_12);
+        trans.writeInt(Constants.TCP_PROTOCOL_VERSION_13);
         trans.writeString(db);
         trans.writeString(ci.getOriginalURL());
         trans.writeString(ci.getUserName());
@@ -140,6 +141,15 @@ public class SessionRemote extends SessionWithState implements DataHandler {
         return trans;
     }
 
+    /**
+     * 服务器是否支持COMMAND_EXECUTE_BATCH_ROWS，老版本的服务器只能接收SQL
+     *
+     * @return true if batch rows can be sent to the server
+     */
+    public boolean supportsBatchRows() {
+        return clientVersion >= Constants.TCP_PROTOCOL_VERSION_13;
+    }
+
     public int getUndoLogPos() {
         if (clientVersion < Constants.TCP_PROTOCOL_VERSION_10) {
             return 1;
@@ -22,13 +22,7 @@ package com.codefollower.lealone.hbase.command;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-
-import org.apache.hadoop.hbase.util.Threads;
+import java.util.concurrent.CompletionService;
 
 import com.codefollower.lealone.command.CommandInterface;
 import com.codefollower.lealone.command.CommandRemote;
@@ -41,32 +35,35 @@ import com.codefollower.lealone.hbase.command.merge.HBaseMergedResult;
 import com.codefollower.lealone.hbase.result.HBaseSerializedResult;
 import com.codefollower.lealone.hbase.result.HBaseSortedResult;
 import com.codefollower.lealone.hbase.util.HBaseUtils;
-import com.codefollower.lealone.message.DbException;
 import com.codefollower.lealone.result.ResultInterface;
 import com.codefollower.lealone.util.New;
 
 import static com.codefollower.lealone.hbase.engine.HBaseConstants.*;
 
 public class CommandParallel {
-    private final static ThreadPoolExecutor pool = initPool();
-
-    private static ThreadPoolExecutor initPool() {
-        int corePoolSize = HBaseUtils.getConfiguration().getInt(COMMAND_PARALLEL_CORE_POOL_SIZE,
-                DEFAULT_COMMAND_PARALLEL_CORE_POOL_SIZE);
-        int maxPoolSize = HBaseUtils.getConfiguration().getInt(COMMAND_PARALLEL_MAX_POOL_SIZE,
-                DEFAULT_COMMAND_PARALLEL_MAX_POOL_SIZE);
+    //短小的更新、索引维护、分布式提交走oltp通道，分布式查询走scan通道，长时间的扫描不会占满oltp通道的线程
+    private final static ParallelLane oltpLane = initLane("oltp", COMMAND_PARALLEL_MAX_POOL_SIZE,
+            DEFAULT_COMMAND_PARALLEL_MAX_POOL_SIZE);
+    private final static ParallelLane scanLane = initLane("scan", COMMAND_PARALLEL_SCAN_MAX_POOL_SIZE,
+            DEFAULT_COMMAND_PARALLEL_SCAN_MAX_POOL_SIZE);
+
+    private static ParallelLane initLane(String name, String maxPoolSizeKey, int defaultMaxPoolSize) {
+        int maxPoolSize = HBaseUtils.getConfiguration().getInt(maxPoolSizeKey, defaultMaxPoolSize);
+        int queueSize = HBaseUtils.getConfiguration().getInt(COMMAND_PARALLEL_QUEUE_SIZE, DEFAULT_COMMAND_PARALLEL_QUEUE_SIZE);
         int keepAliveTime = HBaseUtils.getConfiguration().getInt(COMMAND_PARALLEL_KEEP_ALIVE_TIME,
                 DEFAULT_COMMAND_PARALLEL_KEEP_ALIVE_TIME);
+        int maxParallelism = HBaseUtils.getConfiguration().getInt(COMMAND_PARALLEL_MAX_QUERY_PARALLELISM,
+                DEFAULT_COMMAND_PARALLEL_MAX_QUERY_PARALLELISM);
 
-        ThreadPoolExecutor pool = new ThreadPoolExecutor(corePoolSize, maxPoolSize, keepAliveTime, TimeUnit.SECONDS,
-                new SynchronousQueue<Runnable>(), Threads.newDaemonThreadFactory(CommandParallel.class.getSimpleName()));
-        pool.allowCoreThreadTimeOut(true);
+        return new ParallelLane(name, maxPoolSize, queueSize, keepAliveTime, maxParallelism);
+    }
 
-        return pool;
+    public static ParallelLane getOltpLane() {
+        return oltpLane;
     }
 
-    public static ThreadPoolExecutor getThreadPoolExecutor() {
-        return pool;
+    public static ParallelLane getScanLane() {
+        return scanLane;
     }
 
     public static ResultInterface executeQuery(Session session, SQLRoutingInfo sqlRoutingInfo, Select select, final int maxRows,
@@ -93,33 +90,45 @@ public class CommandParallel {
         if (!select.isGroupQuery() && select.getSortOrder() == null)
             return new HBaseSerializedResult(commands, maxRows, scrollable, select);
 
+        //排序查询中每个region最多只需要返回limit+offset条记录
+        final int regionMaxRows;
+        if (!select.isGroupQuery())
+            regionMaxRows = HBaseSortedResult.getRegionMaxRows(maxRows, session, select);
+        else
+            regionMaxRows = maxRows;
+
         int size = commands.size();
-        List<Future<ResultInterface>> futures = New.arrayList(size);
-        List<ResultInterface> results = New.arrayList(size);
+        if (select.isGroupQuery()) {
+            //聚合查询不用等所有region都返回，哪个region的结果先返回就先合并哪个
+            CompletionService<ResultInterface> completionService = scanLane.newCompletionService();
+            for (int i = 0; i < size; i++) {
+                final CommandInterface c = commands.get(i);
+                completionService.submit(new Callable<ResultInterface>() {
+                    public ResultInterface call() throws Exception {
+                        return c.executeQuery(regionMaxRows, scrollable);
+                    }
+                });
+            }
+
+            String newSQL = select.getPlanSQL(true);
+            Select newSelect = (Select) session.prepare(newSQL, true);
+            newSelect.setExecuteDirec(true);
+
+            return new HBaseMergedResult(session, completionService, size, newSelect, select);
+        }
+
+        List<Callable<ResultInterface>> calls = New.arrayList(size);
         for (int i = 0; i < size; i++) {
             final CommandInterface c = commands.get(i);
-            futures.add(pool.submit(new Callable<ResultInterface>() {
+            calls.add(new Callable<ResultInterface>() {
                 public ResultInterface call() throws Exception {
-                    return c.executeQuery(maxRows, scrollable);
+                    return c.executeQuery(regionMaxRows, scrollable);
                 }
-            }));
-        }
-        try {
-            for (int i = 0; i < size; i++) {
-                results.add(futures.get(i).get());
-            }
-        } catch (Exception e) {
-            throwException(e);
+            });
         }
+        List<ResultInterface> results = scanLane.invokeAll(calls);
 
-        if (!select.isGroupQuery() && select.getSortOrder() != null)
-            return new HBaseSortedResult(maxRows, session, select, results);
-
-        String newSQL = select.getPlanSQL(true);
-        Select newSelect = (Select) session.prepare(newSQL, true);
-        newSelect.setExecuteDirec(true);
-
-        return new HBaseMergedResult(results, newSelect, select);
+        return new HBaseSortedResult(maxRows, session, select, results);
     }
 
     public static int executeUpdate(List<CommandInterface> commands) {
@@ -127,69 +136,45 @@ public class CommandParallel {
             CommandInterface c = commands.get(0);
             return c.executeUpdate();
         }
-        int updateCount = 0;
         int size = commands.size();
-        List<Future<Integer>> futures = New.arrayList(size);
+        List<Callable<Integer>> calls = New.arrayList(size);
         for (int i = 0; i < size; i++) {
             final CommandInterface c = commands.get(i);
-            futures.add(pool.submit(new Callable<Integer>() {
+            calls.add(new Callable<Integer>() {
                 public Integer call() throws Exception {
                     return c.executeUpdate();
                 }
-            }));
+            });
         }
-        try {
-            for (int i = 0; i < size; i++) {
-                updateCount += futures.get(i).get();
-            }
-        } catch (Exception e) {
-            throwException(e);
-        }
-        return updateCount;
+        return sum(oltpLane.invokeAll(calls));
     }
 
     public static int executeUpdate(SQLRoutingInfo sqlRoutingInfo, Callable<Integer> call) {
-        int updateCount = 0;
         List<CommandRemote> commands = sqlRoutingInfo.remoteCommands;
         int size = commands.size() + 1;
-        List<Future<Integer>> futures = New.arrayList(size);
-        futures.add(pool.submit(call));
+        List<Callable<Integer>> calls = New.arrayList(size);
+        //本地的更新由调用者自己执行
+        calls.add(call);
         for (int i = 0; i < size - 1; i++) {
             final CommandInterface c = commands.get(i);
-            futures.add(pool.submit(new Callable<Integer>() {
+            calls.add(new Callable<Integer>() {
                 public Integer call() throws Exception {
                     return c.executeUpdate();
                 }
-            }));
+            });
         }
-        try {
-            for (int i = 0; i < size; i++) {
-                updateCount += futures.get(i).get();
-            }
-        } catch (Exception e) {
-            throwException(e);
-        }
-        return updateCount;
+        return sum(oltpLane.invokeAll(calls));
     }
 
-    public static <T> void execute(List<Callable<T>> calls) {
-        int size = calls.size();
-        List<Future<T>> futures = New.arrayList(size);
-        for (int i = 0; i < size; i++) {
-            futures.add(pool.submit(calls.get(i)));
-        }
-        try {
-            for (int i = 0; i < size; i++) {
-                futures.get(i).get();
-            }
-        } catch (Exception e) {
-            throwException(e);
-        }
+    public static <T> List<T> execute(List<Callable<T>> calls) {
+        return oltpLane.invokeAll(calls);
     }
 
-    private static void throwException(Throwable e) {
-        if (e instanceof ExecutionException)
-            e = ((ExecutionException) e).getCause();
-        throw DbException.convert(e);
+    private static int sum(List<Integer> updateCounts) {
+        int updateCount = 0;
+        for (int i = 0, size = updateCounts.size(); i < size; i++) {
+            updateCount += updateCounts.get(i);
+        }
+        return updateCount;
     }
 }
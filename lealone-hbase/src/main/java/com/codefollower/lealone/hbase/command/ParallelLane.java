@@ -0,0 +1,337 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.command;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hbase.util.Threads;
+
+import com.codefollower.lealone.message.DbException;
+import com.codefollower.lealone.result.ResultInterface;
+import com.codefollower.lealone.util.New;
+
+/**
+ * 
+ * CommandParallel的一条执行通道。<p>
+ * 
+ * 线程数和排队的任务数都是有界的，队列满时任务不再提交，而是由调用者自己执行，以此形成反压。
+ * 调用者等待结果时，如果任务还在队列中没有开始执行，也由调用者自己执行，
+ * 所以在通道的线程中再发起并行调用也不会因为线程用完而死锁。
+ *
+ */
+public class ParallelLane {
+    private final static ThreadLocal<Boolean> callerRuns = new ThreadLocal<Boolean>();
+
+    private final String name;
+    private final ThreadPoolExecutor pool;
+    private final int maxParallelism;
+
+    //统计信息
+    private final AtomicInteger activeTasks = new AtomicInteger();
+    private final AtomicLong startedTasks = new AtomicLong();
+    private final AtomicLong rejectedTasks = new AtomicLong();
+    private final AtomicLong callerRunsTasks = new AtomicLong();
+    private final AtomicLong totalWaitTime = new AtomicLong(); //纳秒
+
+    public ParallelLane(String name, int maxPoolSize, int queueSize, int keepAliveTime, int maxParallelism) {
+        this.name = name;
+        this.maxParallelism = Math.max(1, maxParallelism);
+        //核心线程数与最大线程数相同，这样线程数到达上限之前任务不会排队，空闲的线程超时后照样会退出
+        pool = new ThreadPoolExecutor(maxPoolSize, maxPoolSize, keepAliveTime, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), Threads.newDaemonThreadFactory(CommandParallel.class
+                        .getSimpleName() + "-" + name));
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMaxParallelism() {
+        return maxParallelism;
+    }
+
+    public int getQueueDepth() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * 正在执行的任务数，包括由调用者自己执行的任务
+     */
+    public int getActiveTasks() {
+        return activeTasks.get();
+    }
+
+    public int getPoolSize() {
+        return pool.getPoolSize();
+    }
+
+    public long getStartedTasks() {
+        return startedTasks.get();
+    }
+
+    public long getRejectedTasks() {
+        return rejectedTasks.get();
+    }
+
+    public long getCallerRunsTasks() {
+        return callerRunsTasks.get();
+    }
+
+    /**
+     * 任务从创建到开始执行的平均等待时间(毫秒)
+     */
+    public double getAverageWaitTime() {
+        long started = startedTasks.get();
+        if (started == 0)
+            return 0;
+        return totalWaitTime.get() / 1000000.0 / started;
+    }
+
+    @Override
+    public String toString() {
+        return name + "[queue=" + getQueueDepth() + ", active=" + getActiveTasks() + ", pool=" + getPoolSize()
+                + ", started=" + getStartedTasks() + ", rejected=" + getRejectedTasks() + ", callerRuns="
+                + getCallerRunsTasks() + ", avgWait=" + getAverageWaitTime() + "ms]";
+    }
+
+    public <T> Task<T> newTask(Callable<T> callable) {
+        return newTask(callable, null);
+    }
+
+    private <T> Task<T> newTask(final Callable<T> callable, BlockingQueue<Future<T>> completionQueue) {
+        final long createTime = System.nanoTime();
+        return new Task<T>(new Callable<T>() {
+            public T call() throws Exception {
+                startedTasks.incrementAndGet();
+                totalWaitTime.addAndGet(System.nanoTime() - createTime);
+                if (callerRuns.get() != null)
+                    callerRunsTasks.incrementAndGet();
+                activeTasks.incrementAndGet();
+                try {
+                    return callable.call();
+                } finally {
+                    activeTasks.decrementAndGet();
+                }
+            }
+        }, completionQueue);
+    }
+
+    /**
+     * 把任务放到通道中执行，线程和队列都满时返回false，此时任务需要由调用者自己执行
+     */
+    public boolean trySubmit(Runnable task) {
+        try {
+            pool.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejectedTasks.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * 并行执行所有任务，按任务的顺序返回结果。
+     * 调用者自己执行第一个任务，同时在执行的任务最多maxParallelism个。
+     */
+    public <T> List<T> invokeAll(List<? extends Callable<T>> calls) {
+        int size = calls.size();
+        List<Task<T>> tasks = New.arrayList(size);
+        for (int i = 0; i < size; i++)
+            tasks.add(newTask(calls.get(i)));
+
+        List<T> results = New.arrayList(size);
+        int next = 1;
+        try {
+            for (int i = 0; i < size; i++) {
+                for (; next < size && next < i + maxParallelism; next++)
+                    trySubmit(tasks.get(next));
+                Task<T> task = tasks.get(i);
+                task.runByCaller();
+                results.add(task.get());
+            }
+        } catch (Exception e) {
+            //还没开始的任务不再执行，已完成和正在执行的任务返回的结果集也要关闭
+            for (int i = 0; i < size; i++)
+                tasks.get(i).discard();
+            throw convert(e);
+        }
+        return results;
+    }
+
+    /**
+     * 返回的CompletionService只能在一个线程中使用
+     */
+    public <T> CompletionService<T> newCompletionService() {
+        return new LaneCompletionService<T>();
+    }
+
+    public static DbException convert(Throwable e) {
+        if (e instanceof ExecutionException)
+            e = ((ExecutionException) e).getCause();
+        return DbException.convert(e);
+    }
+
+    public static class Task<T> extends FutureTask<T> {
+        private final BlockingQueue<Future<T>> completionQueue;
+        private final AtomicBoolean resultClosed = new AtomicBoolean();
+        private volatile boolean discarded;
+
+        Task(Callable<T> callable, BlockingQueue<Future<T>> completionQueue) {
+            super(callable);
+            this.completionQueue = completionQueue;
+        }
+
+        /**
+         * 如果任务还没有开始执行就由调用者自己执行，如果已经在别的线程中执行了则直接返回
+         */
+        public void runByCaller() {
+            if (isDone())
+                return;
+            Boolean old = callerRuns.get();
+            callerRuns.set(Boolean.TRUE);
+            try {
+                run();
+            } finally {
+                callerRuns.set(old);
+            }
+        }
+
+        /**
+         * 调用者不再需要这个任务的结果了: 还没开始的任务不再执行，
+         * 已完成的任务马上关闭它返回的结果集，正在执行的任务在完成时关闭
+         */
+        public void discard() {
+            discarded = true;
+            cancel(false);
+            if (isDone())
+                closeResult();
+        }
+
+        private void closeResult() {
+            if (isCancelled() || !resultClosed.compareAndSet(false, true))
+                return;
+            try {
+                Object result = get();
+                if (result instanceof ResultInterface)
+                    ((ResultInterface) result).close();
+            } catch (Exception e) {
+                //任务本身失败了，没有结果集需要关闭
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (discarded)
+                closeResult();
+            if (completionQueue != null)
+                completionQueue.add(this);
+        }
+    }
+
+    //按任务完成的先后顺序返回结果，同时在执行的任务最多maxParallelism个，
+    //等待时如果还有没开始的任务就由调用者自己执行
+    private class LaneCompletionService<T> implements CompletionService<T> {
+        private final BlockingQueue<Future<T>> completionQueue = new LinkedBlockingQueue<Future<T>>();
+        private final ArrayList<Task<T>> tasks = New.arrayList();
+        private int submitted;
+        private int taken;
+        private int callerRunsIndex;
+
+        @Override
+        public Future<T> submit(Callable<T> callable) {
+            Task<T> task = newTask(callable, completionQueue);
+            tasks.add(task);
+            submitMore();
+            return task;
+        }
+
+        @Override
+        public Future<T> submit(Runnable runnable, T result) {
+            return submit(Executors.callable(runnable, result));
+        }
+
+        private void submitMore() {
+            for (; submitted < tasks.size() && submitted - taken < maxParallelism; submitted++) {
+                Task<T> task = tasks.get(submitted);
+                if (!task.isDone())
+                    trySubmit(task);
+            }
+        }
+
+        private boolean runNextByCaller() {
+            while (callerRunsIndex < tasks.size()) {
+                Task<T> task = tasks.get(callerRunsIndex++);
+                if (!task.isDone()) {
+                    task.runByCaller();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private Future<T> taken(Future<T> f) {
+            if (f != null) {
+                taken++;
+                submitMore();
+            }
+            return f;
+        }
+
+        @Override
+        public Future<T> take() throws InterruptedException {
+            Future<T> f = completionQueue.poll();
+            while (f == null) {
+                if (!runNextByCaller()) {
+                    f = completionQueue.take();
+                    break;
+                }
+                f = completionQueue.poll();
+            }
+            return taken(f);
+        }
+
+        @Override
+        public Future<T> poll() {
+            return taken(completionQueue.poll());
+        }
+
+        @Override
+        public Future<T> poll(long timeout, TimeUnit unit) throws InterruptedException {
+            return taken(completionQueue.poll(timeout, unit));
+        }
+    }
+}
@@ -9,6 +9,7 @@ import com.codefollower.lealone.command.Parser;
 import com.codefollower.lealone.command.Prepared;
 import com.codefollower.lealone.constant.ErrorCode;
 import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.hbase.util.RegionLocationCache;
 import com.codefollower.lealone.jdbc.JdbcSQLException;
 import com.codefollower.lealone.message.DbException;
 import com.codefollower.lealone.result.ResultInterface;
@@ -62,6 +63,7 @@ public class RetryableCommand extends CommandContainer {
                     }
                 }
                 session.rollback();
+                RegionLocationCache.clear();
                 try {
                     HBaseUtils.getConnection().clearRegionCache();
                 } catch (IOException e) {
@@ -31,6 +31,9 @@ import com.codefollower.lealone.engine.Session;
 public class Options extends DefineCommand {
     public static final String ON_DEFAULT_COLUMN_FAMILY_NAME = "DEFAULT_COLUMN_FAMILY_NAME";
     public static final String ON_ROW_KEY_NAME = "ROW_KEY_NAME";
+    //静态表rowKey的编码方式，建表时自动设置，没有这个选项的是以前建立的表，rowKey是字符串的UTF-8编码
+    public static final String ON_ROW_KEY_ENCODING = "ROW_KEY_ENCODING";
+    public static final String ROW_KEY_ENCODING_ORDERED = "ORDERED";
 
     public static final String DEFAULT_ROW_KEY_NAME = "_ROWKEY_";
 
@@ -20,18 +20,24 @@
 package com.codefollower.lealone.hbase.command.dml;
 
 import java.util.Arrays;
+import java.util.List;
+
 import com.codefollower.lealone.command.dml.Select;
 import com.codefollower.lealone.engine.Session;
+import com.codefollower.lealone.expression.Expression;
 import com.codefollower.lealone.hbase.command.CommandParallel;
 import com.codefollower.lealone.hbase.engine.HBaseSession;
 import com.codefollower.lealone.hbase.util.HBaseUtils;
 import com.codefollower.lealone.message.DbException;
+import com.codefollower.lealone.result.LocalResult;
 import com.codefollower.lealone.result.ResultInterface;
 import com.codefollower.lealone.result.ResultTarget;
+import com.codefollower.lealone.value.Value;
 
 public class HBaseSelect extends Select implements WithWhereClause {
     private final WhereClauseSupport whereClauseSupport = new WhereClauseSupport();
     private SQLRoutingInfo sqlRoutingInfo;
+    private RegionAggregate regionAggregate;
 
     public HBaseSelect(Session session) {
         super(session);
@@ -40,9 +46,10 @@ public class HBaseSelect extends Select implements WithWhereClause {
     @Override
     public void prepare() {
         super.prepare();
-        if (topTableFilter.getTable().isDistributed())
+        if (topTableFilter.getTable().isDistributed()) {
             whereClauseSupport.setTableFilter(topTableFilter);
-        else
+            regionAggregate = RegionAggregate.create(this);
+        } else
             setExecuteDirec(true);
     }
 
@@ -66,6 +73,7 @@ public class HBaseSelect extends Select implements WithWhereClause {
             }
         } else {
             try {
+                whereClauseSupport.resetIndexConditions();
                 sqlRoutingInfo = HBaseUtils.getSQLRoutingInfo((HBaseSession) session, whereClauseSupport, this);
             } catch (Exception e) {
                 throw DbException.convert(e);
@@ -91,6 +99,34 @@ public class HBaseSelect extends Select implements WithWhereClause {
         return result;
     }
 
+    //在本地region上执行时，简单的聚合查询直接在region内部计算
+    @Override
+    protected LocalResult queryWithoutCache(int maxRows, ResultTarget target) {
+        if (regionAggregate == null || whereClauseSupport.getRegionName() == null)
+            return super.queryWithoutCache(maxRows, target);
+
+        Value[] row = regionAggregate.execute((HBaseSession) session, whereClauseSupport.getRegionName());
+        if (target != null) {
+            target.addRow(row);
+            return null;
+        }
+        List<Expression> expressions = getExpressions();
+        LocalResult result = new LocalResult(session, expressions.toArray(new Expression[expressions.size()]),
+                getColumnCount());
+        result.addRow(row);
+        result.done();
+        return result;
+    }
+
+    //EXPLAIN时标出在region内部直接计算的聚合，发给其他region的SQL不需要
+    @Override
+    public String getPlanSQL(boolean isDistributed) {
+        String planSQL = super.getPlanSQL(isDistributed);
+        if (regionAggregate != null && !isDistributed)
+            planSQL += "\n/* region aggregate */";
+        return planSQL;
+    }
+
     @Override
     public WhereClauseSupport getWhereClauseSupport() {
         return whereClauseSupport;
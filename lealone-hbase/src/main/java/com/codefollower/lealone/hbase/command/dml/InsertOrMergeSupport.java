@@ -22,7 +22,7 @@ package com.codefollower.lealone.hbase.command.dml;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
 
 import org.apache.hadoop.hbase.client.Put;
 
@@ -30,12 +30,16 @@ import com.codefollower.lealone.command.CommandInterface;
 import com.codefollower.lealone.command.CommandRemote;
 import com.codefollower.lealone.command.Prepared;
 import com.codefollower.lealone.command.dml.Query;
+import com.codefollower.lealone.constant.ErrorCode;
 import com.codefollower.lealone.dbobject.table.Column;
+import com.codefollower.lealone.dbobject.table.IndexColumn;
 import com.codefollower.lealone.dbobject.table.Table;
 import com.codefollower.lealone.engine.Session;
 import com.codefollower.lealone.engine.SessionInterface;
+import com.codefollower.lealone.engine.SessionRemote;
 import com.codefollower.lealone.expression.Expression;
 import com.codefollower.lealone.hbase.command.CommandParallel;
+import com.codefollower.lealone.hbase.dbobject.index.HBaseDelegateIndex;
 import com.codefollower.lealone.hbase.dbobject.table.HBaseTable;
 import com.codefollower.lealone.hbase.engine.HBaseSession;
 import com.codefollower.lealone.hbase.engine.SessionRemotePool;
@@ -49,11 +53,10 @@ import com.codefollower.lealone.util.StatementBuilder;
 import com.codefollower.lealone.util.StringUtils;
 import com.codefollower.lealone.value.Value;
 import com.codefollower.lealone.value.ValueNull;
-import com.codefollower.lealone.value.ValueString;
 import com.codefollower.lealone.value.ValueUuid;
 
 public class InsertOrMergeSupport {
-    private final Map<String, Map<String, List<String>>> servers = New.hashMap();
+    private final Map<String, Map<String, List<Value[]>>> servers = New.hashMap();
     private final HBaseSession session;
     private final InsertOrMerge iom;
     private final boolean isInsert;
@@ -62,6 +65,8 @@ public class InsertOrMergeSupport {
     private StatementBuilder alterTable;
     private ArrayList<Column> alterColumns;
     private int rowKeyColumnIndex = -1;
+    //复合主键各列在columns中的位置，没有出现的列是-1
+    private int[] rowKeyColumnIndexes;
 
     private HBaseTable table;
     private ArrayList<Expression[]> list;
@@ -81,7 +86,19 @@ public class InsertOrMergeSupport {
         this.keys = keys;
         this.query = query;
 
-        if (query != null) {
+        if (this.table.isCompositeRowKey()) {
+            IndexColumn[] rowKeyColumns = this.table.getRowKeyColumns();
+            rowKeyColumnIndexes = new int[rowKeyColumns.length];
+            for (int i = 0; i < rowKeyColumns.length; i++) {
+                rowKeyColumnIndexes[i] = -1;
+                for (int j = 0; j < columns.length; j++) {
+                    if (columns[j] == rowKeyColumns[i].column) {
+                        rowKeyColumnIndexes[i] = j;
+                        break;
+                    }
+                }
+            }
+        } else if (query != null) {
             int index = -1;
             for (Column c : columns) {
                 index++;
@@ -93,7 +110,7 @@ public class InsertOrMergeSupport {
         }
     }
 
-    public int update(boolean insertFromSelect, boolean sortedInsertMode, Prepared prepared) {
+    public int update(Prepared prepared) {
 
         boolean isTopTransaction = false;
         boolean isNestedTransaction = false;
@@ -121,18 +138,44 @@ public class InsertOrMergeSupport {
         try {
             int updateCount = iom.internalUpdate();
 
+            //发往其他服务器的记录按region分组，以二进制格式发送，对方不需要再解析SQL，
+            //老版本的服务器不支持COMMAND_EXECUTE_BATCH_ROWS，还是把记录转成SQL发过去
             if (!servers.isEmpty()) {
-                List<CommandInterface> commands = New.arrayList(servers.size());
-                for (Map.Entry<String, Map<String, List<String>>> e : servers.entrySet()) {
-                    CommandRemote c = SessionRemotePool.getCommandRemote(session, prepared, e.getKey(), //
-                            getPlanSQL(insertFromSelect, sortedInsertMode, e.getValue().entrySet()));
-
-                    commands.add(c);
+                String sql = getBatchSQL();
+                List<Callable<Integer>> calls = New.arrayList(servers.size());
+                for (Map.Entry<String, Map<String, List<Value[]>>> e : servers.entrySet()) {
+                    SessionRemote sr = SessionRemotePool.getSessionRemote(session, e.getKey());
+                    final Map<String, List<Value[]>> regions = e.getValue();
+                    if (sr.supportsBatchRows()) {
+                        final CommandRemote c = SessionRemotePool.getCachedCommandRemote(session, sr, sql, null,
+                                prepared.getFetchSize());
+                        calls.add(new Callable<Integer>() {
+                            public Integer call() throws Exception {
+                                return c.executeBatchRows(regions);
+                            }
+                        });
+                    } else {
+                        final CommandRemote c = SessionRemotePool.getCommandRemote(sr, getPlanSQL(sql, regions), null,
+                                prepared.getFetchSize());
+                        calls.add(new Callable<Integer>() {
+                            public Integer call() throws Exception {
+                                try {
+                                    return c.executeUpdate();
+                                } finally {
+                                    c.close();
+                                }
+                            }
+                        });
+                    }
                 }
 
-                updateCount += CommandParallel.executeUpdate(commands);
+                for (Integer count : CommandParallel.execute(calls))
+                    updateCount += count;
             }
 
+            //二级索引的修改在语句结束时一次性批量写入
+            session.getSecondaryIndexBuffer().flush(session, prepared.getFetchSize());
+
             if (table.isColumnsModified()) {
                 table.setColumnsModified(false);
                 SessionInterface si = SessionRemotePool.getMasterSessionRemote(session.getOriginalProperties());
@@ -148,6 +191,7 @@ public class InsertOrMergeSupport {
             //    session.commitNestedTransaction();
             return updateCount;
         } catch (Exception e) {
+            session.getSecondaryIndexBuffer().clear();
             if (isTopTransaction)
                 session.rollback();
 
@@ -165,10 +209,50 @@ public class InsertOrMergeSupport {
         }
     }
 
-    private String getPlanSQL(boolean insertFromSelect, boolean sortedInsertMode, Set<Map.Entry<String, List<String>>> regions) {
+    //VALUES子句中的记录会被executeBatchRows发过去的记录替换，所以这里只需要用DEFAULT占位
+    private String getBatchSQL() {
+        StatementBuilder buff = new StatementBuilder();
+        if (isInsert)
+            buff.append("INSERT INTO ");
+        else
+            buff.append("MERGE INTO ");
+        buff.append(table.getSQL()).append('(');
+        for (Column c : columns) {
+            buff.appendExceptFirst(", ");
+            buff.append(c.getSQL());
+        }
+        buff.append(')');
+        if (!isInsert && keys != null) {
+            buff.append(" KEY(");
+            buff.resetCount();
+            for (Column c : keys) {
+                buff.appendExceptFirst(", ");
+                buff.append(c.getSQL());
+            }
+            buff.append(')');
+        }
+        buff.append(" VALUES(");
+        buff.resetCount();
+        for (int i = 0; i < columns.length; i++) {
+            buff.appendExceptFirst(", ");
+            buff.append("DEFAULT");
+        }
+        buff.append(')');
+        return buff.toString();
+    }
+
+    /**
+     * 老版本的服务器不支持COMMAND_EXECUTE_BATCH_ROWS时，把按region分组的记录转成SQL
+     *
+     * @param batchSQL 用于executeBatchRows的SQL，VALUES子句中只有DEFAULT
+     * @param regions region名 -> 这个region中的记录
+     */
+    public static String getPlanSQL(String batchSQL, Map<String, List<Value[]>> regions) {
+        //去掉VALUES(DEFAULT, ...)
+        String insertOrMerge = batchSQL.substring(0, batchSQL.toUpperCase().lastIndexOf(" VALUES("));
         StatementBuilder buff = new StatementBuilder();
         boolean first = true;
-        for (Map.Entry<String, List<String>> entry : regions) {
+        for (Map.Entry<String, List<Value[]>> entry : regions.entrySet()) {
             if (!first) {
                 buff.append(";");
                 buff.append('\n');
@@ -178,119 +262,83 @@ public class InsertOrMergeSupport {
             buff.append("IN THE REGION ");
             buff.append(StringUtils.quoteStringSQL(entry.getKey()));
             buff.append('\n');
-            if (isInsert)
-                buff.append("INSERT INTO ");
-            else
-                buff.append("MERGE INTO ");
-            buff.append(table.getSQL()).append('(');
-            buff.resetCount();
-            for (Column c : columns) {
-                buff.appendExceptFirst(", ");
-                buff.append(c.getSQL());
-            }
-            buff.append(")\n");
-
-            if (isInsert) {
-                if (insertFromSelect) {
-                    buff.append("DIRECT ");
-                }
-                if (sortedInsertMode) {
-                    buff.append("SORTED ");
-                }
-            } else {
-                if (keys != null) {
-                    buff.append(" KEY(");
-                    buff.resetCount();
-                    for (Column c : keys) {
-                        buff.appendExceptFirst(", ");
-                        buff.append(c.getSQL());
-                    }
-                    buff.append(")\n");
-                }
-            }
-            buff.append("VALUES ");
+            buff.append(insertOrMerge);
+            buff.append("\nVALUES ");
             int row = 0;
-            if (entry.getValue().size() > 1) {
-                buff.append('\n');
-            }
-            for (String value : entry.getValue()) {
+            for (Value[] values : entry.getValue()) {
                 if (row++ > 0) {
                     buff.append(",\n");
                 }
-                buff.append(value);
-            }
-        }
-        return buff.toString();
-    }
-
-    private static String getPlanSQL(Value[] values) {
-        StatementBuilder buff = new StatementBuilder();
-        buff.append('(');
-        for (Value v : values) {
-            buff.appendExceptFirst(", ");
-            if (v == null) {
-                buff.append("NULL");
-            } else {
-                buff.append(v.getSQL());
+                buff.append('(');
+                buff.resetCount();
+                for (Value v : values) {
+                    buff.appendExceptFirst(", ");
+                    if (v == null) {
+                        buff.append("DEFAULT");
+                    } else {
+                        buff.append(v.getSQL());
+                    }
+                }
+                buff.append(')');
             }
         }
-        buff.append(')');
         return buff.toString();
     }
 
-    private static String getPlanSQL(Expression[] list) {
-        StatementBuilder buff = new StatementBuilder();
-        buff.append('(');
-        for (Expression e : list) {
-            buff.appendExceptFirst(", ");
-            if (e == null) {
-                buff.append("DEFAULT");
-            } else {
-                buff.append(e.getSQL());
-            }
+    //在本地算出表达式的值，值为null的列表示DEFAULT
+    private Value[] getValues(Expression[] list) {
+        Value[] values = new Value[list.length];
+        for (int i = 0; i < list.length; i++) {
+            Expression e = list[i];
+            if (e != null)
+                values[i] = e.optimize(session).getValue(session);
         }
-        buff.append(')');
-        return buff.toString();
+        return values;
     }
 
-    private HBaseRow createRow(Value rowKey, String value) {
-        rowKey = ValueString.get(rowKey.getString());
-        byte[] rowKeyAsBytes = HBaseUtils.toBytes(rowKey);
+    private HBaseRow createRow(Value rowKey, Expression[] expr, Value[] values) {
+        rowKey = table.convertRowKey(rowKey);
+        byte[] rowKeyAsBytes = table.getRowKeyAsBytes(rowKey);
 
         HBaseRegionInfo hri = HBaseUtils.getHBaseRegionInfo(getTableNameAsBytes(), rowKeyAsBytes);
         if (!HBaseUtils.isLocal(session, hri)) {
-            Map<String, List<String>> regions = servers.get(hri.getRegionServerURL());
+            Map<String, List<Value[]>> regions = servers.get(hri.getRegionServerURL());
             if (regions == null) {
                 regions = New.hashMap();
                 servers.put(hri.getRegionServerURL(), regions);
             }
 
-            List<String> values = regions.get(hri.getRegionName());
-            if (values == null) {
-                values = New.arrayList();
-                regions.put(hri.getRegionName(), values);
+            List<Value[]> rows = regions.get(hri.getRegionName());
+            if (rows == null) {
+                rows = New.arrayList();
+                regions.put(hri.getRegionName(), rows);
             }
-            values.add(value);
+            rows.add(values != null ? values : getValues(expr));
 
             return null;
         }
 
+        //复合主键没有唯一索引表，insert时要先检查rowKey是否已经存在，merge找不到记录时才会insert，不需要检查
+        if (isInsert && table.isCompositeRowKey())
+            ((HBaseDelegateIndex) table.getPrimaryKey()).checkDuplicateKey(session, hri.getRegionNameAsBytes(),
+                    rowKeyAsBytes);
+
         HBaseRow row = (HBaseRow) table.getTemplateRow();
         row.setRowKey(rowKey);
         row.setRegionName(hri.getRegionNameAsBytes());
 
         Put put;
         if (session.getTransaction() != null)
-            put = new Put(HBaseUtils.toBytes(rowKey), session.getTransaction().getTransactionId());
+            put = new Put(rowKeyAsBytes, session.getTransaction().getTransactionId());
         else
-            put = new Put(HBaseUtils.toBytes(rowKey));
+            put = new Put(rowKeyAsBytes);
         row.setPut(put);
 
         return row;
     }
 
     protected Row createRow(Expression[] expr, int rowId) {
-        HBaseRow row = createRow(getRowKey(rowId), getPlanSQL(expr));
+        HBaseRow row = createRow(getRowKey(rowId), expr, null);
         if (row == null)
             return null;
 
@@ -326,7 +374,7 @@ public class InsertOrMergeSupport {
     }
 
     protected Row createRow(Value[] values) {
-        HBaseRow row = createRow(getRowKey(values), getPlanSQL(values));
+        HBaseRow row = createRow(getRowKey(values), null, values);
         if (row == null)
             return null;
 
@@ -359,6 +407,14 @@ public class InsertOrMergeSupport {
     }
 
     private Value getRowKey(Value[] values) {
+        if (rowKeyColumnIndexes != null) {
+            Value[] rowKeyValues = new Value[rowKeyColumnIndexes.length];
+            for (int i = 0; i < rowKeyValues.length; i++) {
+                int index = rowKeyColumnIndexes[i];
+                rowKeyValues[i] = index == -1 ? null : values[index];
+            }
+            return createRowKey(rowKeyValues);
+        }
         if (rowKeyColumnIndex == -1)
             return getRowKey();
         else
@@ -366,6 +422,16 @@ public class InsertOrMergeSupport {
     }
 
     private Value getRowKey(int rowIndex) {
+        if (rowKeyColumnIndexes != null) {
+            Expression[] expr = list.get(rowIndex);
+            Value[] rowKeyValues = new Value[rowKeyColumnIndexes.length];
+            for (int i = 0; i < rowKeyValues.length; i++) {
+                int index = rowKeyColumnIndexes[i];
+                if (index != -1 && expr[index] != null)
+                    rowKeyValues[i] = expr[index].optimize(session).getValue(session);
+            }
+            return createRowKey(rowKeyValues);
+        }
         if (!list.isEmpty() && list.get(rowIndex).length > 0) {
             int columnIndex = 0;
             for (Column c : columns) {
@@ -378,6 +444,15 @@ public class InsertOrMergeSupport {
         return getRowKey();
     }
 
+    //复合主键的各列都必须给出值
+    private Value createRowKey(Value[] rowKeyValues) {
+        for (int i = 0; i < rowKeyValues.length; i++) {
+            if (rowKeyValues[i] == null || rowKeyValues[i] == ValueNull.INSTANCE)
+                throw DbException.get(ErrorCode.NULL_NOT_ALLOWED, table.getRowKeyColumns()[i].column.getSQL());
+        }
+        return table.createRowKey(rowKeyValues);
+    }
+
     private Value getRowKey() {
         if (table.isStatic())
             return ValueUuid.getNewRandom();
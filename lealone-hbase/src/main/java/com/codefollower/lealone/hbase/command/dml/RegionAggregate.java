@@ -0,0 +1,239 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.command.dml;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.regionserver.HRegionServer;
+import org.apache.hadoop.hbase.regionserver.InternalScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.codefollower.lealone.command.dml.Select;
+import com.codefollower.lealone.dbobject.table.Column;
+import com.codefollower.lealone.dbobject.table.TableFilter;
+import com.codefollower.lealone.expression.Aggregate;
+import com.codefollower.lealone.expression.Expression;
+import com.codefollower.lealone.expression.ExpressionColumn;
+import com.codefollower.lealone.hbase.dbobject.table.HBaseTable;
+import com.codefollower.lealone.hbase.engine.HBaseSession;
+import com.codefollower.lealone.hbase.transaction.ValidityChecker;
+import com.codefollower.lealone.hbase.transaction.ValidityFilter;
+import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.message.DbException;
+import com.codefollower.lealone.value.CompareMode;
+import com.codefollower.lealone.value.Value;
+import com.codefollower.lealone.value.ValueLong;
+import com.codefollower.lealone.value.ValueNull;
+
+/**
+ *
+ * 在region内部直接计算单表、不带where条件和group by的COUNT、SUM、MIN、MAX，
+ * 不需要为每条记录构造Row和Value[]，也不经过TableFilter和Aggregate.updateAggregate。<p>
+ *
+ * 每个region返回一条记录，就是各聚合函数在这个region上的部分结果，由协调者按原来的方式合并。
+ * 没有COUNT(*)时只读聚合函数用到的列，MVCC可见性在region scanner内部或读出后检查。
+ *
+ */
+public class RegionAggregate {
+    private final Select select;
+    private final Aggregate[] aggregates;
+    //聚合函数作用的列，COUNT(*)对应null
+    private final Column[] columns;
+    private final boolean hasCountAll;
+
+    private RegionAggregate(Select select, Aggregate[] aggregates, Column[] columns) {
+        this.select = select;
+        this.aggregates = aggregates;
+        this.columns = columns;
+
+        boolean hasCountAll = false;
+        for (Column c : columns) {
+            if (c == null)
+                hasCountAll = true;
+        }
+        this.hasCountAll = hasCountAll;
+    }
+
+    /**
+     *
+     * @return 不能在region内部直接计算时返回null
+     */
+    public static RegionAggregate create(Select select) {
+        TableFilter filter = select.getTopTableFilter();
+        if (!select.isGroupQuery() || select.getGroupBy() != null || select.getHaving() != null
+                || select.getCondition() != null || select.getLimit() != null || select.getOffset() != null
+                || filter.getJoin() != null || !(filter.getTable() instanceof HBaseTable))
+            return null;
+
+        List<Expression> expressions = select.getExpressions();
+        if (expressions.size() != select.getColumnCount())
+            return null;
+
+        int size = expressions.size();
+        Aggregate[] aggregates = new Aggregate[size];
+        Column[] columns = new Column[size];
+        for (int i = 0; i < size; i++) {
+            Expression e = expressions.get(i).getNonAliasExpression();
+            if (!(e instanceof Aggregate))
+                return null;
+            Aggregate a = (Aggregate) e;
+            if (a.isDistinct())
+                return null;
+
+            switch (a.getAggregateType()) {
+            case Aggregate.COUNT_ALL:
+                break;
+            case Aggregate.COUNT:
+            case Aggregate.SUM:
+            case Aggregate.MIN:
+            case Aggregate.MAX: {
+                if (!(a.getOn() instanceof ExpressionColumn))
+                    return null;
+                Column c = ((ExpressionColumn) a.getOn()).getColumn();
+                if (c.isRowKeyColumn()) {
+                    //COUNT(_rowkey_)就是COUNT(*)，MIN、MAX还是交给SQL引擎
+                    if (a.getAggregateType() != Aggregate.COUNT)
+                        return null;
+                } else {
+                    int type = c.getType();
+                    if (c.isTypeUnknown() || type == Value.BLOB || type == Value.CLOB)
+                        return null;
+                    columns[i] = c;
+                }
+                break;
+            }
+            default: //AVG等需要合并多个中间值的聚合函数
+                return null;
+            }
+            aggregates[i] = a;
+        }
+        return new RegionAggregate(select, aggregates, columns);
+    }
+
+    /**
+     * 扫描一个本地region，返回各聚合函数的部分结果
+     */
+    public Value[] execute(HBaseSession session, String regionNameStr) {
+        HRegionServer rs = session.getRegionServer();
+        String hostAndPort = rs.getServerName().getHostAndPort();
+        byte[] regionName = Bytes.toBytes(regionNameStr);
+        int fetchSize = select.getFetchSize();
+        boolean isFiltered = ValidityChecker.isValidityFilterEnabled();
+
+        Scan scan = new Scan();
+        ValidityFilter validityFilter = null;
+        //不能再加KeyOnlyFilter，ValidityFilter推迟检查的列要把原始的值带到scanner外面才能判断是否已删除，
+        //而且这里是本地的InternalScanner，去掉值也省不了网络传输
+        if (isFiltered)
+            validityFilter = ValidityChecker.setValidityFilter(scan, hostAndPort, session.getTransaction());
+        else
+            scan.setMaxVersions(1);
+
+        //有COUNT(*)时需要读所有列，否则只有其他列的记录会被漏掉。
+        //也不能用FirstKeyOnlyFilter，一行中第一列的最新版本可能对当前事务不可见或者是删除标记，
+        //而其他列还有可见的版本，只读第一列的一个版本无法判断这一行是否存在
+        if (!hasCountAll) {
+            for (Column c : columns)
+                scan.addColumn(c.getColumnFamilyNameAsBytes(), c.getNameAsBytes());
+        }
+
+        CompareMode compareMode = session.getDatabase().getCompareMode();
+        long[] counts = new long[aggregates.length];
+        Value[] values = new Value[aggregates.length];
+        ArrayList<Result> list = new ArrayList<Result>(fetchSize);
+        InternalScanner scanner = null;
+        try {
+            scanner = rs.getOnlineRegion(regionName).getScanner(scan);
+            boolean hasMoreRows = true;
+            while (hasMoreRows) {
+                list.clear();
+                if (isFiltered)
+                    hasMoreRows = ValidityChecker.fetchFilteredResults(session, hostAndPort, regionName, scanner,
+                            fetchSize, list, validityFilter);
+                else
+                    hasMoreRows = ValidityChecker.fetchResults(session, hostAndPort, regionName, scanner, fetchSize,
+                            list);
+
+                for (Result r : list) {
+                    for (int i = 0; i < aggregates.length; i++) {
+                        Column c = columns[i];
+                        if (c == null) {
+                            counts[i]++;
+                            continue;
+                        }
+                        Value v = HBaseUtils.toValue(r.getValue(c.getColumnFamilyNameAsBytes(), c.getNameAsBytes()),
+                                c.getType());
+                        if (v == ValueNull.INSTANCE)
+                            continue;
+                        counts[i]++;
+                        values[i] = add(aggregates[i], values[i], v, compareMode);
+                    }
+                }
+                session.checkCanceled();
+            }
+        } catch (Exception e) {
+            throw DbException.convert(e);
+        } finally {
+            if (scanner != null) {
+                try {
+                    scanner.close();
+                } catch (Exception e) {
+                    //ignore
+                }
+            }
+        }
+
+        Value[] row = new Value[aggregates.length];
+        for (int i = 0; i < aggregates.length; i++) {
+            switch (aggregates[i].getAggregateType()) {
+            case Aggregate.COUNT_ALL:
+            case Aggregate.COUNT:
+                row[i] = ValueLong.get(counts[i]);
+                break;
+            default:
+                row[i] = values[i] == null ? ValueNull.INSTANCE : values[i].convertTo(aggregates[i].getType());
+            }
+        }
+        return row;
+    }
+
+    //和AggregateData.add的做法相同
+    private static Value add(Aggregate a, Value value, Value v, CompareMode compareMode) {
+        switch (a.getAggregateType()) {
+        case Aggregate.SUM:
+            if (value == null)
+                return v.convertTo(a.getType());
+            return value.add(v.convertTo(value.getType()));
+        case Aggregate.MIN:
+            if (value == null || value.compareTypeSave(v, compareMode) > 0)
+                return v;
+            return value;
+        case Aggregate.MAX:
+            if (value == null || value.compareTypeSave(v, compareMode) < 0)
+                return v;
+            return value;
+        default: //COUNT
+            return value;
+        }
+    }
+}
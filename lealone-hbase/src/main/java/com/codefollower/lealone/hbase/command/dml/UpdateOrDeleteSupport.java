@@ -25,7 +25,10 @@ import com.codefollower.lealone.command.Prepared;
 import com.codefollower.lealone.dbobject.table.TableFilter;
 import com.codefollower.lealone.engine.Session;
 import com.codefollower.lealone.hbase.command.CommandParallel;
+import com.codefollower.lealone.hbase.dbobject.index.HBaseSecondaryIndex;
+import com.codefollower.lealone.hbase.dbobject.table.HBaseTable;
 import com.codefollower.lealone.hbase.engine.HBaseSession;
+import com.codefollower.lealone.hbase.util.HBaseRegionInfo;
 import com.codefollower.lealone.hbase.util.HBaseUtils;
 import com.codefollower.lealone.message.DbException;
 
@@ -53,6 +56,17 @@ public class UpdateOrDeleteSupport implements Callable<Integer> {
         boolean isNestedTransaction = false;
 
         try {
+            if (prepared.getLocalRegionNames() == null)
+                whereClauseSupport.resetIndexConditions();
+
+            //自动提交模式下只更新本地region中的一行记录时，不需要开启一个完整的事务，
+            //直接用写入时分配的偶数提交时间戳写入，写入前做冲突检测，不写TransactionStatusTable
+            if (session.getAutoCommit()) {
+                String localRegion = getLocalRegionForSingleRow();
+                if (localRegion != null)
+                    return updateSingleRow(localRegion);
+            }
+
             if (session.getAutoCommit()) {
                 session.setAutoCommit(false);
                 isTopTransaction = true;
@@ -80,6 +94,9 @@ public class UpdateOrDeleteSupport implements Callable<Integer> {
                 }
             }
 
+            //二级索引的修改在语句结束时一次性批量写入
+            session.getSecondaryIndexBuffer().flush(session, prepared.getFetchSize());
+
             if (isTopTransaction)
                 session.commit(false);
             //嵌套事务在父事务提交时再一起提交
@@ -87,6 +104,7 @@ public class UpdateOrDeleteSupport implements Callable<Integer> {
             //    session.commitNestedTransaction();
             return updateCount;
         } catch (Exception e) {
+            session.getSecondaryIndexBuffer().clear();
             if (isTopTransaction)
                 session.rollback();
 
@@ -103,6 +121,45 @@ public class UpdateOrDeleteSupport implements Callable<Integer> {
         }
     }
 
+    private int updateSingleRow(String localRegion) {
+        try {
+            whereClauseSupport.setRegionName(localRegion);
+            int updateCount = uod.internalUpdate();
+            session.commit(false);
+            return updateCount;
+        } catch (Exception e) {
+            session.rollback();
+            throw DbException.convert(e);
+        }
+    }
+
+    /**
+     * 如果where条件是rowKey等值条件，并且对应的region就在本地，那么返回这个region的名称，否则返回null。
+     * 有二级索引的表需要同时修改多个索引表中的记录，不能一步提交，所以也返回null。<p>
+     * 
+     * 只读取update()开始时重置过的索引条件，不改变tableFilter的状态，接下来的getSQLRoutingInfo会复用解析结果。
+     */
+    private String getLocalRegionForSingleRow() throws Exception {
+        if (prepared.getLocalRegionNames() != null)
+            return null;
+
+        TableFilter tableFilter = whereClauseSupport.getTableFilter();
+        if (!(tableFilter.getTable() instanceof HBaseTable) || ((HBaseTable) tableFilter.getTable()).doesSecondaryIndexExist())
+            return null;
+
+        if (tableFilter.getIndex() instanceof HBaseSecondaryIndex)
+            return null;
+
+        byte[] key = whereClauseSupport.getKey();
+        if (key == null)
+            return null;
+
+        HBaseRegionInfo hri = HBaseUtils.getHBaseRegionInfo(whereClauseSupport.getTableNameAsBytes(), key);
+        if (HBaseUtils.isLocal(session, hri))
+            return hri.getRegionName();
+        return null;
+    }
+
     @Override
     public Integer call() throws Exception {
         int updateCount = 0;
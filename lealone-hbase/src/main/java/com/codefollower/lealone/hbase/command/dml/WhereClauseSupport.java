@@ -25,9 +25,9 @@ import com.codefollower.lealone.dbobject.table.TableFilter;
 import com.codefollower.lealone.dbobject.table.TableView;
 import com.codefollower.lealone.hbase.dbobject.index.HBaseSecondaryIndex;
 import com.codefollower.lealone.hbase.dbobject.table.HBaseTable;
+import com.codefollower.lealone.hbase.util.HBaseUtils;
 import com.codefollower.lealone.result.SearchRow;
 import com.codefollower.lealone.value.Value;
-import com.codefollower.lealone.value.ValueBytes;
 
 public class WhereClauseSupport {
     private TableFilter tableFilter;
@@ -49,6 +49,13 @@ public class WhereClauseSupport {
         return tableFilter;
     }
 
+    /**
+     * 每次执行语句前调用一次，参数值可能已经变了，之后第一次取key时重新解析索引条件
+     */
+    public void resetIndexConditions() {
+        tableFilter.setIndexConditionsParsed(false);
+    }
+
     public byte[] getTableNameAsBytes() {
         if (tableFilter.getIndex() instanceof HBaseSecondaryIndex) {
             return ((HBaseSecondaryIndex) tableFilter.getIndex()).getTableNameAsBytes();
@@ -56,29 +63,56 @@ public class WhereClauseSupport {
         return tableNameAsBytes;
     }
 
-    public Value getStartRowKeyValue() {
+    /**
+     * 
+     * @return where条件对应的开始key(包含)，没有下限时返回null
+     */
+    public byte[] getStartKey() {
         SearchRow start = tableFilter.getStartSearchRow();
+        if (start == null)
+            return null;
+        if (tableFilter.getIndex() instanceof HBaseSecondaryIndex)
+            return ((HBaseSecondaryIndex) tableFilter.getIndex()).getKey(start);
+        if (tableFilter.getTable() instanceof HBaseTable)
+            return ((HBaseTable) tableFilter.getTable()).getStartRowKey(start);
+        return toBytes(start.getRowKey());
+    }
 
-        if (start != null) {
-            if (tableFilter.getIndex() instanceof HBaseSecondaryIndex) {
-                return ValueBytes.getNoCopy(((HBaseSecondaryIndex) tableFilter.getIndex()).getKey(start));
-            }
-            return start.getRowKey();
-        }
-        return null;
+    /**
+     * 
+     * @return where条件对应的结束key，没有上限时返回null
+     */
+    public byte[] getStopKey() {
+        SearchRow end = tableFilter.getEndSearchRow();
+        if (end == null)
+            return null;
+        if (tableFilter.getIndex() instanceof HBaseSecondaryIndex)
+            return ((HBaseSecondaryIndex) tableFilter.getIndex()).getKey(end);
+        if (tableFilter.getTable() instanceof HBaseTable)
+            return ((HBaseTable) tableFilter.getTable()).getStopRowKey(end);
+        return toBytes(end.getRowKey());
     }
 
-    public Value getEndRowKeyValue() {
+    /**
+     * 
+     * @return where条件是主键等值条件时返回对应的rowKey，否则返回null
+     */
+    public byte[] getKey() {
+        if (tableFilter.getIndex() instanceof HBaseSecondaryIndex)
+            return null;
+        SearchRow start = tableFilter.getStartSearchRow();
         SearchRow end = tableFilter.getEndSearchRow();
-        if (end != null) {
-            if (tableFilter.getIndex() instanceof HBaseSecondaryIndex) {
-                return ValueBytes.getNoCopy(((HBaseSecondaryIndex) tableFilter.getIndex()).getKey(end));
-            }
-            return end.getRowKey();
-        }
+        if (tableFilter.getTable() instanceof HBaseTable)
+            return ((HBaseTable) tableFilter.getTable()).getRowKey(start, end);
+        if (start != null && end != null && start.getRowKey() != null && start.getRowKey() == end.getRowKey())
+            return toBytes(start.getRowKey());
         return null;
     }
 
+    private static byte[] toBytes(Value v) {
+        return v == null ? null : HBaseUtils.toBytes(v);
+    }
+
     public String getRegionName() {
         return regionName;
     }
@@ -19,50 +19,311 @@
  */
 package com.codefollower.lealone.hbase.command.merge;
 
-import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
 
 import com.codefollower.lealone.command.dml.Select;
 import com.codefollower.lealone.dbobject.index.IndexType;
 import com.codefollower.lealone.dbobject.table.IndexColumn;
 import com.codefollower.lealone.dbobject.table.Table;
-import com.codefollower.lealone.hbase.result.HBaseSerializedResult;
+import com.codefollower.lealone.engine.Session;
+import com.codefollower.lealone.expression.Expression;
+import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.message.DbException;
 import com.codefollower.lealone.result.DelegatedResult;
+import com.codefollower.lealone.result.LocalResult;
 import com.codefollower.lealone.result.ResultInterface;
+import com.codefollower.lealone.value.Value;
+import com.codefollower.lealone.value.ValueArray;
 
+import static com.codefollower.lealone.hbase.engine.HBaseConstants.*;
+
+/**
+ * 
+ * 合并各region返回的聚合查询部分结果。
+ * 
+ * 哪个region的结果先返回就先合并哪个，不必等所有region都返回。
+ * 如果预计的部分结果记录数太多，就按分组键的哈希值分区，
+ * 第0个分区边到达边合并，其他分区先放到LocalResult中(记录数多时LocalResult会写到磁盘)，最后再一个个地合并，
+ * 这样内存中的分组哈希表一次只需要容纳一个分区的分组。<p>
+ * 
+ * 分区数是用最先返回的结果估算的，估少了时:
+ * <ul>第0个分区边到达边合并的记录数超过MEMORY_ROWS后就不再边到达边合并，
+ * 已合并好的分组作为部分结果按哈希值和之后到达的记录一起放到各分区的LocalResult中，最后再合并</ul>
+ * <ul>最后合并某个分区时，如果它的记录数超过MEMORY_ROWS，就换一个哈希函数把它再分成多个子分区</ul>
+ *
+ */
 public class HBaseMergedResult extends DelegatedResult {
-    public HBaseMergedResult(List<ResultInterface> results, Select newSelect, Select oldSelect) {
-        //1. 结果集串行化，为合并做准备
-        HBaseSerializedResult serializedResult = new HBaseSerializedResult(results, oldSelect);
+    private final static int MEMORY_ROWS = HBaseUtils.getConfiguration().getInt(COMMAND_PARALLEL_MERGE_MEMORY_ROWS,
+            DEFAULT_COMMAND_PARALLEL_MERGE_MEMORY_ROWS);
+    private final static int MAX_PARTITIONS = HBaseUtils.getConfiguration().getInt(COMMAND_PARALLEL_MERGE_MAX_PARTITIONS,
+            DEFAULT_COMMAND_PARALLEL_MERGE_MAX_PARTITIONS);
+    //子分区最多再分几层，所有记录都属于同一个分组时再分也没用
+    private final static int MAX_PARTITION_LEVELS = 3;
+
+    private final Session session;
+    private final Select newSelect;
+    private final Select oldSelect;
+    private final int limitRows;
+    private final int[] groupIndex;
+    private Expression[] partitionExpressions;
+    private int partitionColumnCount;
+    private LocalResult finalResult;
+
+    public HBaseMergedResult(Session session, CompletionService<ResultInterface> completionService, int size,
+            Select newSelect, Select oldSelect) {
+        this.session = session;
+        this.newSelect = newSelect;
+        this.oldSelect = oldSelect;
+        //有order by时合并后的结果还没有排序，此时不能截断
+        this.limitRows = oldSelect.getSortOrder() == null ? oldSelect.getLimitRows() : -1;
+        this.groupIndex = newSelect.getGroupIndex();
+
+        //1. 按结果到达的顺序合并，同时把不属于第0个分区的记录放到各自的分区
+        ArrivalOrderResult arrivalOrderResult = new ArrivalOrderResult(completionService, size);
+        finalResult = new LocalResult(session, oldSelect.getExpressions().toArray(new Expression[0]),
+                oldSelect.getColumnCount());
+        try {
+            ResultInterface mergedResult = mergeGroups(arrivalOrderResult);
+            if (arrivalOrderResult.overflow)
+                addPartial(mergedResult, arrivalOrderResult.partitions);
+            else
+                addCalculated(mergedResult);
+        } catch (RuntimeException e) {
+            arrivalOrderResult.closePartitions();
+            throw e;
+        } finally {
+            arrivalOrderResult.close();
+        }
+
+        //2. 合并其他分区
+        LocalResult[] partitions = arrivalOrderResult.partitions;
+        if (partitions != null) {
+            try {
+                for (int i = arrivalOrderResult.overflow ? 0 : 1; i < partitions.length; i++)
+                    mergePartition(partitions[i], 1);
+            } finally {
+                arrivalOrderResult.closePartitions();
+            }
+        }
+
+        finalResult.done();
+        result = finalResult;
+    }
+
+    private ResultInterface mergeGroups(ResultInterface partialResult) {
         Table table = newSelect.getTopTableFilter().getTable();
         newSelect.getTopTableFilter().setIndex(
-                new HBaseMergedIndex(serializedResult, table, -1, IndexColumn.wrap(table.getColumns()), IndexType
+                new HBaseMergedIndex(partialResult, table, -1, IndexColumn.wrap(table.getColumns()), IndexType
                         .createScan(false)));
 
-        //2. 把多个结果集合并
-        ResultInterface mergedResult = newSelect.queryGroupMerge();
+        //把多个结果集合并
+        return newSelect.queryGroupMerge();
+    }
 
-        //3. 计算合并后的结果集,
+    private void addCalculated(ResultInterface mergedResult) {
+        //计算合并后的结果集,
         //例如oldSelect="select avg"时，在分布式环境要转成newSelect="select count, sum"，
-        //此时就由count, sum来算出avg
+        //此时就由count, sum来算出avg。
+        //每个分组在这里只会出现一次，所以算完后不需要再按oldSelect合并一次
         ResultInterface calculatedResult = oldSelect.calculate(mergedResult, newSelect);
 
-        //4. 如果不存在avg、stddev这类需要拆分为count、sum的计算，此时mergedResult和calculatedResult是同一个实例
-        //否则就是不同实例，需要再一次按oldSelect合并结果集
-        if (mergedResult != calculatedResult) {
-            table = oldSelect.getTopTableFilter().getTable();
-            oldSelect.getTopTableFilter().setIndex(
-                    new HBaseMergedIndex(calculatedResult, table, -1, IndexColumn.wrap(table.getColumns()), IndexType
-                            .createScan(false)));
-            //5. 最终结果集
-            result = oldSelect.queryGroupMerge();
-
-            //6. 立刻关闭中间结果集
-            serializedResult.close();
-            mergedResult.close();
+        while (calculatedResult.next()) {
+            if (limitRows >= 0 && finalResult.getRowCount() >= limitRows)
+                break;
+            finalResult.addRow(calculatedResult.currentRow());
+        }
+
+        //立刻关闭中间结果集
+        if (mergedResult != calculatedResult)
             calculatedResult.close();
-        } else {
-            result = mergedResult;
+        mergedResult.close();
+    }
+
+    //newSelect合并后的记录和各region返回的部分结果格式相同，可以再次参与合并。
+    //同一分组之后到达的记录是按哈希值放到各分区的，所以已合并好的分组也要按哈希值放，
+    //不能都放到第0个分区，否则同一个分组会在不同分区中各合并一次
+    private void addPartial(ResultInterface mergedResult, LocalResult[] partitions) {
+        while (mergedResult.next()) {
+            Value[] row = mergedResult.currentRow();
+            partitions[getPartition(row, partitions.length, 0)].addRow(row);
+        }
+        mergedResult.close();
+    }
+
+    private void mergePartition(LocalResult partition, int level) {
+        partition.done();
+        try {
+            int rows = partition.getRowCount();
+            if (rows <= MEMORY_ROWS || level > MAX_PARTITION_LEVELS) {
+                addCalculated(mergeGroups(partition));
+                return;
+            }
+
+            //这个分区还是太大，换一个哈希函数再分
+            LocalResult[] subPartitions = newPartitions(rows);
+            try {
+                while (partition.next()) {
+                    Value[] row = partition.currentRow();
+                    subPartitions[getPartition(row, subPartitions.length, level)].addRow(row);
+                }
+                for (LocalResult subPartition : subPartitions)
+                    mergePartition(subPartition, level + 1);
+            } finally {
+                for (LocalResult subPartition : subPartitions)
+                    subPartition.close();
+            }
+        } finally {
+            partition.close();
         }
+    }
+
+    private int getPartitionCount(long rows) {
+        return (int) Math.max(2, Math.min((rows + MEMORY_ROWS - 1) / MEMORY_ROWS, MAX_PARTITIONS));
+    }
 
+    private LocalResult[] newPartitions(long rows) {
+        LocalResult[] partitions = new LocalResult[getPartitionCount(rows)];
+        for (int i = 0; i < partitions.length; i++)
+            partitions[i] = new LocalResult(session, partitionExpressions, partitionColumnCount);
+        return partitions;
+    }
+
+    private int getPartition(Value[] row, int count, int level) {
+        Value[] keyValues = new Value[groupIndex.length];
+        for (int i = 0; i < groupIndex.length; i++)
+            keyValues[i] = row[groupIndex[i]];
+        int h = ValueArray.get(keyValues).hashCode();
+        //每一层用不同的哈希函数，否则同一个分区的记录再分时还会落到同一个子分区
+        if (level > 0) {
+            h ^= level * 0x9E3779B9;
+            h *= 0x85EBCA6B;
+            h ^= h >>> 16;
+        }
+        return (h & Integer.MAX_VALUE) % count;
+    }
+
+    private class ArrivalOrderResult extends DelegatedResult {
+        private final CompletionService<ResultInterface> completionService;
+        private final int size;
+        private int remaining;
+        private ResultInterface current;
+        private LocalResult[] partitions;
+        //第0个分区边到达边合并的记录数
+        private int streamedRows;
+        //第0个分区边到达边合并的记录数超过MEMORY_ROWS后为true，之后到达的记录都放到分区中
+        private boolean overflow;
+
+        ArrivalOrderResult(CompletionService<ResultInterface> completionService, int size) {
+            this.completionService = completionService;
+            this.size = size;
+            this.remaining = size;
+            //列的元数据从最先返回的结果中取
+            nextResult();
+            result = current;
+            initPartitions(size);
+        }
+
+        private boolean nextResult() {
+            if (remaining == 0)
+                return false;
+            remaining--;
+            try {
+                current = completionService.take().get();
+            } catch (Exception e) {
+                current = null;
+                close();
+                if (e instanceof ExecutionException)
+                    throw DbException.convert(e.getCause());
+                throw DbException.convert(e);
+            }
+            return true;
+        }
+
+        //用最先返回的结果的记录数估算所有部分结果的总记录数
+        private void initPartitions(int size) {
+            if (groupIndex == null)
+                return;
+            partitionExpressions = newSelect.getExpressions().toArray(new Expression[0]);
+            partitionColumnCount = current.getVisibleColumnCount();
+            long rows = (long) current.getRowCount() * size;
+            if (rows <= MEMORY_ROWS)
+                return;
+            partitions = newPartitions(rows);
+            //第0个分区边到达边合并，只有溢出时才用到它的LocalResult
+            partitions[0].close();
+            partitions[0] = null;
+        }
+
+        //估算少了，从现在起第0个分区的记录也先放到LocalResult中
+        private void overflow() {
+            overflow = true;
+            if (partitions == null) {
+                //按已到达的结果重新估算总记录数
+                int arrived = size - remaining;
+                partitions = newPartitions((long) streamedRows * size / Math.max(arrived, 1));
+            } else {
+                partitions[0] = new LocalResult(session, partitionExpressions, partitionColumnCount);
+            }
+        }
+
+        @Override
+        public boolean next() {
+            while (current != null) {
+                while (current.next()) {
+                    if (groupIndex == null)
+                        return true;
+                    Value[] row = current.currentRow();
+                    int p = partitions == null ? 0 : getPartition(row, partitions.length, 0);
+                    if (p == 0 && !overflow) {
+                        if (streamedRows < MEMORY_ROWS) {
+                            streamedRows++;
+                            return true;
+                        }
+                        overflow();
+                        p = getPartition(row, partitions.length, 0);
+                    }
+                    partitions[p].addRow(row);
+                }
+                current.close();
+                current = null;
+                nextResult();
+            }
+            return false;
+        }
+
+        @Override
+        public Value[] currentRow() {
+            return current.currentRow();
+        }
+
+        @Override
+        public void reset() {
+            throw DbException.throwInternalError();
+        }
+
+        void closePartitions() {
+            if (partitions != null)
+                for (LocalResult partition : partitions)
+                    if (partition != null)
+                        partition.close();
+        }
+
+        @Override
+        public void close() {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+            //出错时把还没有合并的结果也关掉
+            while (remaining > 0) {
+                remaining--;
+                try {
+                    completionService.take().get().close();
+                } catch (Exception e) {
+                    //忽略
+                }
+            }
+        }
     }
 }
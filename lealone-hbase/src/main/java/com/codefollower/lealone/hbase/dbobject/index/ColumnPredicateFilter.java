@@ -0,0 +1,365 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.dbobject.index;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.filter.FilterBase;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.codefollower.lealone.dbobject.index.IndexCondition;
+import com.codefollower.lealone.dbobject.table.Column;
+import com.codefollower.lealone.dbobject.table.TableFilter;
+import com.codefollower.lealone.engine.Session;
+import com.codefollower.lealone.expression.Comparison;
+import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.message.DbException;
+import com.codefollower.lealone.util.New;
+import com.codefollower.lealone.value.CompareMode;
+import com.codefollower.lealone.value.Value;
+import com.codefollower.lealone.value.ValueNull;
+
+/**
+ *
+ * 把where条件中非主键列上的简单条件下推到region scanner中执行，不满足条件的记录不会离开region，
+ * 同时只把SQL引擎需要的列放到Result中。<p>
+ *
+ * 下推的条件来自TableFilter的IndexCondition(比较、IN列表、IS NULL、LIKE 'abc%'转换成的范围)，
+ * 这些都是记录被使用的必要条件，SQL引擎还会对返回的记录再计算一次完整的where条件，所以这里只需做粗过滤。<p>
+ *
+ * 需要放在ValidityFilter之后，这样传给filterRow的只有当前事务可见的列，没有出现的列就是NULL。
+ * 没有启用ValidityFilter时，由HBasePrimaryIndexCursor在ValidityChecker检查完可见性之后调用filter方法做同样的过滤。
+ *
+ */
+public class ColumnPredicateFilter extends FilterBase {
+    private CompareMode compareMode;
+    private List<Predicate> predicates;
+
+    //SQL引擎需要的列，为null时返回所有列
+    private List<byte[][]> projection;
+
+    private boolean filterRow;
+
+    /**
+     * Writable需要
+     */
+    public ColumnPredicateFilter() {
+    }
+
+    private ColumnPredicateFilter(CompareMode compareMode, List<Predicate> predicates, List<byte[][]> projection) {
+        this.compareMode = compareMode;
+        this.predicates = predicates;
+        this.projection = projection;
+    }
+
+    /**
+     *
+     * @param filter 表过滤器
+     * @param columns 所要查询的列，为null时表示不需要任何非主键列
+     * @return 没有可下推的条件也不需要做列裁剪时返回null
+     */
+    public static ColumnPredicateFilter create(TableFilter filter, List<Column> columns) {
+        Session session = filter.getSession();
+        List<Predicate> predicates = New.arrayList();
+        if (filter.getIndexConditions() != null) {
+            for (IndexCondition cond : filter.getIndexConditions()) {
+                Predicate p = createPredicate(session, cond);
+                if (p != null)
+                    predicates.add(p);
+            }
+        }
+
+        //delete、update语句需要整条记录，只对select语句做列裁剪
+        List<byte[][]> projection = null;
+        if (filter.getSelect() != null) {
+            projection = New.arrayList();
+            if (columns != null) {
+                for (Column c : columns) {
+                    if (!c.isRowKeyColumn())
+                        projection.add(new byte[][] { c.getColumnFamilyNameAsBytes(), c.getNameAsBytes() });
+                }
+            }
+            int columnCount = 0;
+            for (Column c : filter.getTable().getColumns())
+                if (!c.isRowKeyColumn())
+                    columnCount++;
+            if (projection.size() == columnCount)
+                projection = null;
+        }
+
+        if (predicates.isEmpty() && projection == null)
+            return null;
+        return new ColumnPredicateFilter(session.getDatabase().getCompareMode(), predicates, projection);
+    }
+
+    private static Predicate createPredicate(Session session, IndexCondition cond) {
+        Column c = cond.getColumn();
+        if (c.isRowKeyColumn() || !cond.isEvaluatable())
+            return null;
+
+        int compareType = cond.getCompareType();
+        Value[] values;
+        try {
+            switch (compareType) {
+            case Comparison.IN_LIST: {
+                List<Value> list = New.arrayList();
+                for (Value v : cond.getCurrentValueList(session))
+                    if (v != ValueNull.INSTANCE)
+                        list.add(v);
+                values = list.toArray(new Value[list.size()]);
+                break;
+            }
+            case Comparison.EQUAL_NULL_SAFE:
+            case Comparison.EQUAL:
+            case Comparison.BIGGER_EQUAL:
+            case Comparison.BIGGER:
+            case Comparison.SMALLER_EQUAL:
+            case Comparison.SMALLER: {
+                Value v = cond.getCurrentValue(session);
+                if (v == ValueNull.INSTANCE) {
+                    //只有IS NULL会转换成EQUAL_NULL_SAFE NULL，其他和NULL的比较交给SQL引擎处理
+                    if (compareType != Comparison.EQUAL_NULL_SAFE)
+                        return null;
+                    compareType = Comparison.IS_NULL;
+                    values = new Value[0];
+                } else {
+                    if (compareType == Comparison.EQUAL_NULL_SAFE)
+                        compareType = Comparison.EQUAL;
+                    values = new Value[] { c.convert(v) };
+                }
+                break;
+            }
+            default: //IN_QUERY等
+                return null;
+            }
+        } catch (DbException e) {
+            //值无法转换成列的类型时不下推，由SQL引擎报错或处理
+            return null;
+        }
+        return new Predicate(c.getColumnFamilyNameAsBytes(), c.getNameAsBytes(), c.getType(), compareType, values);
+    }
+
+    @Override
+    public void reset() {
+        filterRow = false;
+    }
+
+    @Override
+    public boolean hasFilterRow() {
+        return true;
+    }
+
+    @Override
+    public void filterRow(List<KeyValue> kvs) {
+        for (Predicate p : predicates) {
+            if (!p.test(kvs, compareMode)) {
+                kvs.clear();
+                filterRow = true;
+                return;
+            }
+        }
+
+        if (projection != null && !kvs.isEmpty()) {
+            //所有列都被裁剪掉时保留一列，否则这条记录会被当成已删除
+            KeyValue first = kvs.get(0);
+            for (Iterator<KeyValue> it = kvs.iterator(); it.hasNext();) {
+                if (!isProjected(it.next()))
+                    it.remove();
+            }
+            if (kvs.isEmpty())
+                kvs.add(first);
+        }
+    }
+
+    @Override
+    public boolean filterRow() {
+        return filterRow;
+    }
+
+    /**
+     * 过滤已经做过可见性检查的一批记录，返回满足下推条件的记录，并且只保留SQL引擎需要的列
+     */
+    public Result[] filter(Result[] result) {
+        ArrayList<Result> list = new ArrayList<Result>(result.length);
+        for (Result r : result) {
+            r = filter(r);
+            if (r != null)
+                list.add(r);
+        }
+        return list.toArray(new Result[list.size()]);
+    }
+
+    /**
+     * 同上，直接在list中去掉不满足条件的记录
+     */
+    public void filter(List<Result> list) {
+        for (int i = 0, size = list.size(); i < size; i++)
+            list.set(i, filter(list.get(i)));
+        for (Iterator<Result> it = list.iterator(); it.hasNext();) {
+            if (it.next() == null)
+                it.remove();
+        }
+    }
+
+    private Result filter(Result r) {
+        //Result.list()返回的是不可修改的列表
+        List<KeyValue> kvs = new ArrayList<KeyValue>(r.list());
+        reset();
+        filterRow(kvs);
+        if (filterRow())
+            return null;
+        return new Result(kvs);
+    }
+
+    private boolean isProjected(KeyValue kv) {
+        for (byte[][] column : projection)
+            if (kv.matchingColumn(column[0], column[1]))
+                return true;
+        return false;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeUTF(compareMode.getName());
+        out.writeInt(compareMode.getStrength());
+        out.writeBoolean(compareMode.isBinaryUnsigned());
+
+        out.writeInt(predicates.size());
+        for (Predicate p : predicates)
+            p.write(out);
+
+        if (projection == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(projection.size());
+            for (byte[][] column : projection) {
+                Bytes.writeByteArray(out, column[0]);
+                Bytes.writeByteArray(out, column[1]);
+            }
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        compareMode = CompareMode.getInstance(in.readUTF(), in.readInt(), in.readBoolean());
+
+        int size = in.readInt();
+        predicates = New.arrayList(size);
+        for (int i = 0; i < size; i++)
+            predicates.add(Predicate.read(in));
+
+        size = in.readInt();
+        if (size < 0) {
+            projection = null;
+        } else {
+            projection = New.arrayList(size);
+            for (int i = 0; i < size; i++)
+                projection.add(new byte[][] { Bytes.readByteArray(in), Bytes.readByteArray(in) });
+        }
+    }
+
+    private static class Predicate {
+        final byte[] family;
+        final byte[] qualifier;
+        final int type;
+        final int compareType;
+        final Value[] values;
+
+        Predicate(byte[] family, byte[] qualifier, int type, int compareType, Value[] values) {
+            this.family = family;
+            this.qualifier = qualifier;
+            this.type = type;
+            this.compareType = compareType;
+            this.values = values;
+        }
+
+        boolean test(List<KeyValue> kvs, CompareMode compareMode) {
+            Value v = ValueNull.INSTANCE;
+            for (KeyValue kv : kvs) {
+                if (kv.matchingColumn(family, qualifier)) {
+                    v = HBaseUtils.toValue(kv.getValue(), type);
+                    break;
+                }
+            }
+
+            if (compareType == Comparison.IS_NULL)
+                return v == ValueNull.INSTANCE;
+            if (v == ValueNull.INSTANCE)
+                return false;
+
+            if (compareType == Comparison.IN_LIST) {
+                for (Value value : values)
+                    if (compare(v, value, compareMode) == 0)
+                        return true;
+                return false;
+            }
+
+            int c = compare(v, values[0], compareMode);
+            switch (compareType) {
+            case Comparison.EQUAL:
+                return c == 0;
+            case Comparison.BIGGER_EQUAL:
+                return c >= 0;
+            case Comparison.BIGGER:
+                return c > 0;
+            case Comparison.SMALLER_EQUAL:
+                return c <= 0;
+            case Comparison.SMALLER:
+                return c < 0;
+            default:
+                return true;
+            }
+        }
+
+        private static int compare(Value v, Value value, CompareMode compareMode) {
+            if (v.getType() != value.getType())
+                v = v.convertTo(value.getType());
+            return v.compareTypeSave(value, compareMode);
+        }
+
+        void write(DataOutput out) throws IOException {
+            Bytes.writeByteArray(out, family);
+            Bytes.writeByteArray(out, qualifier);
+            out.writeInt(type);
+            out.writeInt(compareType);
+            out.writeInt(values.length);
+            for (Value v : values)
+                Bytes.writeByteArray(out, HBaseUtils.toBytes(v));
+        }
+
+        static Predicate read(DataInput in) throws IOException {
+            byte[] family = Bytes.readByteArray(in);
+            byte[] qualifier = Bytes.readByteArray(in);
+            int type = in.readInt();
+            int compareType = in.readInt();
+            Value[] values = new Value[in.readInt()];
+            for (int i = 0; i < values.length; i++)
+                values[i] = HBaseUtils.toValue(Bytes.readByteArray(in), type);
+            return new Predicate(family, qualifier, type, compareType, values);
+        }
+    }
+}
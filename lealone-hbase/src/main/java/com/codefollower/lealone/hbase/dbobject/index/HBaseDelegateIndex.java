@@ -6,6 +6,12 @@
  */
 package com.codefollower.lealone.hbase.dbobject.index;
 
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+
 import com.codefollower.lealone.constant.Constants;
 import com.codefollower.lealone.dbobject.index.BaseIndex;
 import com.codefollower.lealone.dbobject.index.Cursor;
@@ -15,6 +21,8 @@ import com.codefollower.lealone.dbobject.table.IndexColumn;
 import com.codefollower.lealone.dbobject.table.TableFilter;
 import com.codefollower.lealone.engine.Session;
 import com.codefollower.lealone.hbase.dbobject.table.HBaseTable;
+import com.codefollower.lealone.hbase.engine.HBaseSession;
+import com.codefollower.lealone.hbase.transaction.ValidityChecker;
 import com.codefollower.lealone.message.DbException;
 import com.codefollower.lealone.result.Row;
 import com.codefollower.lealone.result.SearchRow;
@@ -40,6 +48,40 @@ public class HBaseDelegateIndex extends BaseIndex {
         // nothing to do
     }
 
+    /**
+     * 复合主键的rowKey由各主键列编码得到，HBase的Put会直接覆盖已有的记录，
+     * 所以insert前先在本地region中Get一次，有对当前事务可见且未删除的记录就是主键重复了。<p>
+     * 
+     * 某列最新的版本不是删除标记但对当前事务不可见时，说明有其他事务正在写这一行，或者在当前事务开始之后写过，
+     * 这时也按主键重复处理。如果只靠提交时的write-write冲突检测，对方的提交时间戳已分配、
+     * 但还没写入TransactionStatusTable时开始的事务会把对方的记录当成不可见，
+     * 并且它的开始时间戳比对方的提交时间戳大，冲突检测也发现不了，对方的记录就被覆盖了。<p>
+     * 
+     * 仍然存在的缺口: 自动提交的单行insert做完冲突检测之后、Put到region之前，
+     * 开始时间戳比它的提交时间戳大的另一个insert在region中看不到它，两者都会成功，后写入的会覆盖先写入的。
+     */
+    public void checkDuplicateKey(HBaseSession session, byte[] regionName, byte[] rowKey) {
+        String hostAndPort = session.getHostAndPort();
+        //不用ValidityFilter，每列只读最新的版本，这样才能看到其他事务还不可见的写入
+        Get get = new Get(rowKey);
+        try {
+            Result r = session.getRegionServer().get(regionName, get);
+            if (r == null || r.isEmpty())
+                return;
+            if (ValidityChecker.hasInvisibleWrite(session, hostAndPort, r.list()))
+                throw getDuplicateKeyException();
+            Result[] results = ValidityChecker.checkResults(session, hostAndPort, regionName, new Result[] { r });
+            if (results.length == 0)
+                return;
+            //删除操作写入的是空值
+            for (KeyValue kv : results[0].raw())
+                if (kv.getValueLength() != 0)
+                    throw getDuplicateKeyException();
+        } catch (IOException e) {
+            throw DbException.convert(e);
+        }
+    }
+
     @Override
     public boolean canGetFirstOrLast() {
         return false;
@@ -67,8 +109,10 @@ public class HBaseDelegateIndex extends BaseIndex {
 
     @Override
     public int getColumnIndex(Column col) {
-        if (col.getColumnId() == columns[0].getColumnId()) {
-            return 0;
+        for (int i = 0; i < columns.length; i++) {
+            if (col.getColumnId() == columns[i].getColumnId()) {
+                return i;
+            }
         }
         return -1;
     }
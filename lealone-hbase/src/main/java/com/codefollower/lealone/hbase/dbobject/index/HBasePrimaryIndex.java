@@ -126,6 +126,10 @@ public class HBasePrimaryIndex extends BaseIndex {
 
     @Override
     public double getCost(Session session, int[] masks, SortOrder sortOrder) {
+        //执行过ANALYZE后按记录数估算全表扫描的代价
+        long rowCount = table.getRowCountApproximation();
+        if (rowCount > 0)
+            return Constants.COST_ROW_OFFSET + rowCount;
         return 10 * Constants.COST_ROW_OFFSET + 100;
     }
 
@@ -163,7 +167,7 @@ public class HBasePrimaryIndex extends BaseIndex {
 
     @Override
     public long getRowCountApproximation() {
-        return 0;
+        return table.getRowCountApproximation();
     }
 
     @Override
@@ -26,6 +26,7 @@ import java.util.List;
 
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.Scan;
@@ -34,27 +35,33 @@ import org.apache.hadoop.hbase.regionserver.InternalScanner;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import com.codefollower.lealone.command.Prepared;
+import com.codefollower.lealone.command.dml.Select;
 import com.codefollower.lealone.dbobject.index.Cursor;
 import com.codefollower.lealone.dbobject.table.Column;
 import com.codefollower.lealone.dbobject.table.TableFilter;
 import com.codefollower.lealone.hbase.command.dml.WithWhereClause;
 import com.codefollower.lealone.hbase.dbobject.table.HBaseTable;
+import com.codefollower.lealone.hbase.engine.HBaseConstants;
 import com.codefollower.lealone.hbase.engine.HBaseSession;
 import com.codefollower.lealone.hbase.result.HBaseRow;
 import com.codefollower.lealone.hbase.transaction.ValidityChecker;
+import com.codefollower.lealone.hbase.transaction.ValidityFilter;
 import com.codefollower.lealone.hbase.util.HBaseUtils;
 import com.codefollower.lealone.message.DbException;
 import com.codefollower.lealone.result.Row;
 import com.codefollower.lealone.result.SearchRow;
 import com.codefollower.lealone.value.Value;
-import com.codefollower.lealone.value.ValueString;
 
 //执行select、delete、update语句都会触发此类
 public class HBasePrimaryIndexCursor implements Cursor {
+    private static final int MAX_RESULT_SIZE = HBaseUtils.getConfiguration().getInt(HBaseConstants.SCAN_MAX_RESULT_SIZE,
+            HBaseConstants.DEFAULT_SCAN_MAX_RESULT_SIZE);
+
     private final HBaseSession session;
     private final String hostAndPort;
     private final byte[] regionName;
     private final int fetchSize;
+    private final HBaseTable table;
 
     //表所有列的个数
     private final int columnCount;
@@ -71,6 +78,21 @@ public class HBasePrimaryIndexCursor implements Cursor {
     private boolean isEnd = false;
     private ArrayList<Result> tmpList;
 
+    //是否已在region内部用ValidityFilter做了可见性过滤
+    private final boolean isFiltered = ValidityChecker.isValidityFilterEnabled();
+    private ValidityFilter validityFilter;
+    //没有启用ValidityFilter时，下推的条件和列裁剪在可见性检查之后由cursor自己做，否则为null
+    private ColumnPredicateFilter predicateFilter;
+
+    //select语句最多还需要从这个cursor读取多少条记录(LIMIT+OFFSET或maxRows)，-1表示不限制
+    private long limitRows = -1;
+    //没有where条件、join和DISTINCT时，读够limitRows条记录后select语句就会结束，此时可以提前关闭scanner，
+    //有DISTINCT时重复的记录不算数，读够limitRows条后可能还要继续读
+    private boolean isLimitExact;
+    //已读取的记录数和字节数，用来估算每条记录的大小
+    private long fetchedRows;
+    private long fetchedBytes;
+
     /**
      * 
      * @param filter 表过滤器
@@ -92,7 +114,8 @@ public class HBasePrimaryIndexCursor implements Cursor {
             throw DbException.throwInternalError("regionName is null");
 
         fetchSize = p.getFetchSize();
-        columnCount = ((HBaseTable) filter.getTable()).getColumns().length;
+        table = (HBaseTable) filter.getTable();
+        columnCount = table.getColumns().length;
 
         //select语句
         //对于下面两种类型的sql，columns会是null
@@ -103,20 +126,36 @@ public class HBasePrimaryIndexCursor implements Cursor {
         else
             columns = Arrays.asList(filter.getTable().getColumns()); //delete、update语句
 
-        Value startValue = null;
-        Value endValue = null;
-        if (first != null)
-            startValue = first.getRowKey();
-        if (last != null)
-            endValue = last.getRowKey();
+        Select select = filter.getSelect();
+        if (select != null && select.getTopTableFilter() == filter && !select.isGroupQuery()) {
+            limitRows = select.getScanLimitRows();
+            isLimitExact = limitRows > 0 && select.getCondition() == null && filter.getJoin() == null
+                    && !select.isDistinct();
+        }
 
-        //优化where pk = xxx，对于这样的等号查询，startValue和endValue相等，直接使用get方式获取数据
-        if (startValue != null && endValue != null && startValue == endValue) {
+        //优化where pk = xxx，对于这样的等号查询，直接使用get方式获取数据
+        byte[] rowKey = table.getRowKey(first, last);
+        if (rowKey != null) {
             try {
-                Result r = rs.get(regionName, new Get(Bytes.toBytes(startValue.getString())));
-                r = new Result(ValidityChecker.check(rs, hostAndPort, regionName, session.getTransaction(), r.list(), 1));
-                if (r != null && !r.isEmpty())
-                    result = new Result[] { r };
+                //pk in(...)会对每个值分别get，这些值不一定都在当前region中
+                if (rs.getRegionInfo(regionName).containsRow(rowKey)) {
+                    Get get = new Get(rowKey);
+                    Result r;
+                    if (isFiltered) {
+                        ValidityFilter validityFilter = ValidityChecker.setValidityFilter(get, hostAndPort,
+                                session.getTransaction());
+                        r = rs.get(regionName, get);
+                        Result[] results = ValidityChecker.checkFilteredResults(session, rs, hostAndPort, regionName,
+                                new Result[] { r }, validityFilter);
+                        r = results.length == 0 ? null : results[0];
+                    } else {
+                        r = rs.get(regionName, get);
+                        r = new Result(ValidityChecker.check(rs, hostAndPort, regionName, session.getTransaction(), r.list(),
+                                1));
+                    }
+                    if (r != null && !r.isEmpty())
+                        result = new Result[] { r };
+                }
 
                 isGet = true;
                 scannerId = -1;
@@ -127,17 +166,26 @@ public class HBasePrimaryIndexCursor implements Cursor {
             isGet = false;
 
             Scan scan = new Scan();
-            scan.setMaxVersions(1); //只取一个版本
-
-            byte[] startKey = HConstants.EMPTY_BYTE_ARRAY;
-            byte[] endKey = HConstants.EMPTY_BYTE_ARRAY;
+            //非主键列上的条件和列裁剪需要在可见性过滤之后做，
+            //在region内部做了可见性过滤时交给ValidityFilter，否则在ValidityChecker检查完之后再做
+            ColumnPredicateFilter predicateFilter = ColumnPredicateFilter.create(filter, columns);
+            if (isFiltered) {
+                validityFilter = ValidityChecker.setValidityFilter(scan, hostAndPort, session.getTransaction(),
+                        predicateFilter);
+            } else {
+                scan.setMaxVersions(1); //只取一个版本
+                this.predicateFilter = predicateFilter;
+            }
 
-            if (startValue != null)
-                startKey = HBaseUtils.toBytes(startValue);
-            if (endValue != null)
-                endKey = HBaseUtils.toBytes(endValue);
+            //主键条件按rowKey的编码方式转成[startKey, endKey)，endKey不包含在内
+            byte[] startKey = table.getStartRowKey(first);
+            byte[] endKey = table.getStopRowKey(last);
+            if (startKey == null)
+                startKey = HConstants.EMPTY_BYTE_ARRAY;
+            if (endKey == null)
+                endKey = HConstants.EMPTY_BYTE_ARRAY;
 
-            //调整start和stop位置，不能直接使用原有的startValue和endValue，因为它们有可能不是正确的Region开始和结束范围
+            //调整start和stop位置，不能直接使用原有的startKey和endKey，因为它们有可能不是正确的Region开始和结束范围
             try {
                 HRegionInfo info = rs.getRegionInfo(regionName);
                 if (Bytes.compareTo(startKey, info.getStartKey()) >= 0)
@@ -147,7 +195,8 @@ public class HBasePrimaryIndexCursor implements Cursor {
 
                 if (Bytes.equals(endKey, HConstants.EMPTY_BYTE_ARRAY))
                     scan.setStopRow(info.getEndKey());
-                else if (Bytes.compareTo(endKey, info.getEndKey()) < 0)
+                else if (Bytes.equals(info.getEndKey(), HConstants.EMPTY_BYTE_ARRAY)
+                        || Bytes.compareTo(endKey, info.getEndKey()) < 0)
                     scan.setStopRow(endKey);
                 else
                     scan.setStopRow(info.getEndKey());
@@ -158,8 +207,9 @@ public class HBasePrimaryIndexCursor implements Cursor {
             if (columns != null) {
                 for (Column c : columns) {
                     if (!c.isRowKeyColumn()) {
-                        //只指定列族而不指定具体的列会得到更好的性能
-                        //scan.addColumn(c.getColumnFamilyNameAsBytes(), c.getNameAsBytes());
+                        //只指定列族而不指定具体的列会得到更好的性能，
+                        //并且值为NULL的列不会存在，如果用addColumn，所选的列都是NULL的记录会被当成已删除，
+                        //列裁剪由ColumnPredicateFilter完成
                         scan.addFamily(c.getColumnFamilyNameAsBytes());
                     }
                 }
@@ -192,7 +242,7 @@ public class HBasePrimaryIndexCursor implements Cursor {
         if (result != null && index < result.length) {
             Result r = result[index];
             Value[] data = new Value[columnCount];
-            Value rowKey = ValueString.get(Bytes.toString(r.getRow()));
+            Value rowKey = table.getRowKeyValue(r.getRow());
             if (columns != null) {
                 int i = 0;
                 for (Column c : columns) {
@@ -226,14 +276,50 @@ public class HBasePrimaryIndexCursor implements Cursor {
             return false;
 
         try {
+            //一批记录可能全都不可见或不满足下推的条件，此时scanner还没结束，要接着读下一批
             if (scanner != null) {
-                tmpList.clear();
-                isEnd = !ValidityChecker.fetchResults(session, hostAndPort, regionName, scanner, fetchSize, tmpList);
+                do {
+                    tmpList.clear();
+                    if (isFiltered) {
+                        isEnd = !ValidityChecker.fetchFilteredResults(session, hostAndPort, regionName, scanner,
+                                fetchSize, tmpList, validityFilter);
+                    } else {
+                        isEnd = !ValidityChecker.fetchResults(session, hostAndPort, regionName, scanner, fetchSize, tmpList);
+                        if (predicateFilter != null)
+                            predicateFilter.filter(tmpList);
+                    }
+                } while (tmpList.isEmpty() && !isEnd);
                 result = tmpList.toArray(new Result[tmpList.size()]);
                 if (isEnd)
                     close();
-            } else
-                result = ValidityChecker.fetchResults(session, hostAndPort, regionName, scannerId, fetchSize);
+            } else {
+                do {
+                    if (isFiltered) {
+                        result = ValidityChecker.fetchFilteredResults(session, hostAndPort, regionName, scannerId,
+                                getBatchSize(), validityFilter);
+                    } else {
+                        result = ValidityChecker.fetchResults(session, hostAndPort, regionName, scannerId, getBatchSize());
+                        if (result != null && predicateFilter != null)
+                            result = predicateFilter.filter(result);
+                    }
+                    //返回null时scanner才算结束
+                    if (result == null) {
+                        isEnd = true;
+                        break;
+                    }
+
+                    fetchedRows += result.length;
+                    for (Result r : result)
+                        for (KeyValue kv : r.raw())
+                            fetchedBytes += kv.getLength();
+
+                    //已经读够了，select语句不会再调用next，直接关闭scanner，不用等到租约超时
+                    if (isLimitExact && fetchedRows >= limitRows) {
+                        isEnd = true;
+                        close();
+                    }
+                } while (result.length == 0 && !isEnd);
+            }
         } catch (Exception e) {
             close();
             throw DbException.convert(e);
@@ -248,6 +334,21 @@ public class HBasePrimaryIndexCursor implements Cursor {
         return false;
     }
 
+    /**
+     * 下一批从scanner中读取的记录数，不超过fetchSize和还需要的记录数，
+     * 并且按已读记录的平均大小换算，一批的字节数不超过MAX_RESULT_SIZE。<p>
+     * 
+     * 有where条件时已读的记录可能被过滤掉，读够limitRows条后还没结束就按fetchSize继续读
+     */
+    private int getBatchSize() {
+        long size = fetchSize;
+        if (limitRows > fetchedRows)
+            size = Math.min(size, limitRows - fetchedRows);
+        if (fetchedRows > 0)
+            size = Math.min(size, MAX_RESULT_SIZE / (fetchedBytes / fetchedRows + 1));
+        return (int) Math.max(size, 1);
+    }
+
     @Override
     public boolean previous() {
         return false;
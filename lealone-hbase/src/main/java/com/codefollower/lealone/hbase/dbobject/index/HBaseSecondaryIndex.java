@@ -19,27 +19,49 @@
  */
 package com.codefollower.lealone.hbase.dbobject.index;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.ipc.HRegionInterface;
+import org.apache.hadoop.hbase.regionserver.InternalScanner;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import com.codefollower.lealone.command.Prepared;
 import com.codefollower.lealone.constant.ErrorCode;
 import com.codefollower.lealone.dbobject.index.BaseIndex;
 import com.codefollower.lealone.dbobject.index.Cursor;
+import com.codefollower.lealone.dbobject.index.IndexCondition;
 import com.codefollower.lealone.dbobject.index.IndexType;
 import com.codefollower.lealone.dbobject.table.Column;
 import com.codefollower.lealone.dbobject.table.IndexColumn;
 import com.codefollower.lealone.dbobject.table.Table;
 import com.codefollower.lealone.dbobject.table.TableFilter;
 import com.codefollower.lealone.engine.Session;
+import com.codefollower.lealone.expression.Expression;
+import com.codefollower.lealone.hbase.dbobject.table.HBaseTable;
+import com.codefollower.lealone.hbase.dbobject.table.HBaseTableStatistics;
+import com.codefollower.lealone.hbase.engine.HBaseSession;
 import com.codefollower.lealone.hbase.metadata.MetaDataAdmin;
 import com.codefollower.lealone.hbase.result.HBaseRow;
+import com.codefollower.lealone.hbase.transaction.ValidityChecker;
+import com.codefollower.lealone.hbase.transaction.ValidityFilter;
+import com.codefollower.lealone.hbase.util.HBaseRegionInfo;
 import com.codefollower.lealone.hbase.util.HBaseUtils;
 import com.codefollower.lealone.message.DbException;
 import com.codefollower.lealone.result.ResultInterface;
 import com.codefollower.lealone.result.Row;
 import com.codefollower.lealone.result.SearchRow;
 import com.codefollower.lealone.result.SortOrder;
+import com.codefollower.lealone.util.StatementBuilder;
+import com.codefollower.lealone.value.CompareMode;
+import com.codefollower.lealone.value.DataType;
 import com.codefollower.lealone.value.Value;
 import com.codefollower.lealone.value.ValueBytes;
 import com.codefollower.lealone.value.ValueNull;
@@ -47,10 +69,25 @@ import com.codefollower.lealone.value.ValueString;
 
 public class HBaseSecondaryIndex extends BaseIndex {
 
-    public synchronized static void createIndexTableIfNotExists(Session session, String indexName) {
-        Prepared p = session.prepare( //
-                "CREATE HBASE TABLE IF NOT EXISTS " + indexName //
-                        + " (COLUMN FAMILY " + Bytes.toString(MetaDataAdmin.DEFAULT_COLUMN_FAMILY) + "(C char))", true);
+    /**
+     * 
+     * @param includeColumns 覆盖索引额外存放的列，在索引表中使用同样的列名和类型，可以为null
+     */
+    public synchronized static void createIndexTableIfNotExists(Session session, String indexName, Column[] includeColumns) {
+        StringBuilder buff = new StringBuilder("CREATE HBASE TABLE IF NOT EXISTS ");
+        buff.append(indexName).append(" (COLUMN FAMILY ").append(Bytes.toString(MetaDataAdmin.DEFAULT_COLUMN_FAMILY));
+        buff.append("(C char");
+        if (includeColumns != null) {
+            for (Column c : includeColumns) {
+                buff.append(", ").append(c.getSQL()).append(' ');
+                if (c.getOriginalSQL() != null)
+                    buff.append(c.getOriginalSQL());
+                else
+                    buff.append(DataType.getDataType(c.getType()).name);
+            }
+        }
+        buff.append("))");
+        Prepared p = session.prepare(buff.toString(), true);
         p.setExecuteDirec(true);
         p.update();
     }
@@ -71,73 +108,357 @@ public class HBaseSecondaryIndex extends BaseIndex {
         }
     }
 
+    //回表是按rowKey批量get(见HBaseSecondaryIndexCursor)，每条记录的代价按扫描一条索引记录的3倍计算
+    private static final int BACK_TO_TABLE_COST = 3;
+
+    //索引表中用来标记记录是否已删除的列
+    private static final byte[] C = Bytes.toBytes("C");
+
     //组成索引key的列个数
     private final int keyColumns;
     private final byte[] indexTableNameAsBytes;
 
+    //覆盖索引额外存放的列，不参与组成索引key，没有时为null
+    private final Column[] includeColumns;
+    private final IndexColumn[] includeIndexColumns;
+    private final byte[][] includeColumnNames;
+
     private final String select;
-    private final String insert;
-    private final String insertNull;
+    private final String batchInsert;
 
     private final ByteBuffer buffer = ByteBuffer.allocate(256);
 
-    public HBaseSecondaryIndex(Table table, int id, String indexName, IndexColumn[] columns, IndexType indexType) {
+    public HBaseSecondaryIndex(Table table, int id, String indexName, IndexColumn[] columns, IndexColumn[] includeColumns,
+            IndexType indexType) {
         initBaseIndex(table, id, indexName, columns, indexType);
         if (!database.isStarting()) {
             checkIndexColumnTypes(columns);
+            if (includeColumns != null)
+                checkIndexColumnTypes(includeColumns);
         }
         keyColumns = columns.length + 1; //多加了一列，最后一列对应rowKey
         indexTableNameAsBytes = Bytes.toBytes(indexName);
 
+        includeIndexColumns = includeColumns;
+        this.includeColumns = getIncludeColumns(includeColumns);
+
+        //记录由executeBatchRows发送，VALUES子句只需要用DEFAULT占位
+        StringBuilder names = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        if (this.includeColumns != null) {
+            includeColumnNames = new byte[this.includeColumns.length][];
+            for (int i = 0; i < this.includeColumns.length; i++) {
+                Column c = this.includeColumns[i];
+                includeColumnNames[i] = Bytes.toBytes(c.getName());
+                names.append(", ").append(c.getSQL());
+                values.append(", DEFAULT");
+            }
+        } else {
+            includeColumnNames = null;
+        }
+
         select = "select _rowkey_ from " + indexName + " where _rowkey_>=?";
-        insert = "insert into " + indexName + "(_rowkey_, c) values(?,'0')";
-        insertNull = "insert into " + indexName + "(_rowkey_, c) values(?,null)";
+        batchInsert = "insert into " + indexName + "(_rowkey_, c" + names + ") values(DEFAULT, DEFAULT" + values + ")";
+    }
+
+    private static Column[] getIncludeColumns(IndexColumn[] includeColumns) {
+        if (includeColumns == null || includeColumns.length == 0)
+            return null;
+        Column[] cols = new Column[includeColumns.length];
+        for (int i = 0; i < cols.length; i++)
+            cols[i] = includeColumns[i].column;
+        return cols;
+    }
+
+    public Column[] getIncludeColumns() {
+        return includeColumns;
+    }
+
+    /**
+     * 对于select语句，如果所用到的列都在索引中(索引列、INCLUDE列或rowKey列)，就不需要再回表
+     */
+    public boolean isCovering(TableFilter filter) {
+        if (filter == null || filter.getSelect() == null)
+            return false;
+        List<Column> cols = filter.getSelect().getColumns(filter);
+        if (cols == null)
+            return true;
+        for (Column c : cols) {
+            if (c.isRowKeyColumn() || getColumnIndex(c) >= 0)
+                continue;
+            if (!isIncludeColumn(c))
+                return false;
+        }
+        return true;
+    }
+
+    //EXPLAIN时标出不需要回表的索引
+    @Override
+    public String getPlanSQL(TableFilter filter) {
+        if (isCovering(filter))
+            return getPlanSQL() + " COVERING";
+        return getPlanSQL();
+    }
+
+    private boolean isIncludeColumn(Column c) {
+        if (includeColumns != null) {
+            for (Column ic : includeColumns)
+                if (ic.getColumnId() == c.getColumnId())
+                    return true;
+        }
+        return false;
+    }
+
+    /**
+     * 从索引表的记录中读出INCLUDE列的值，放到searchRow中
+     */
+    void readIncludeColumns(Result r, SearchRow searchRow) {
+        if (includeColumns == null)
+            return;
+        for (int i = 0; i < includeColumns.length; i++) {
+            Column c = includeColumns[i];
+            searchRow.setValue(c.getColumnId(),
+                    HBaseUtils.toValue(r.getValue(MetaDataAdmin.DEFAULT_COLUMN_FAMILY, includeColumnNames[i]), c.getType()));
+        }
+    }
+
+    @Override
+    public String getCreateSQLForCopy(Table targetTable, String quotedName) {
+        String sql = super.getCreateSQLForCopy(targetTable, quotedName);
+        if (includeIndexColumns == null)
+            return sql;
+        StatementBuilder buff = new StatementBuilder(sql);
+        buff.append(" INCLUDE(");
+        for (IndexColumn c : includeIndexColumns) {
+            buff.appendExceptFirst(", ");
+            buff.append(c.getSQL());
+        }
+        return buff.append(')').toString();
     }
 
     public byte[] getTableNameAsBytes() {
         return indexTableNameAsBytes;
     }
 
+    String getBatchInsertSQL() {
+        return batchInsert;
+    }
+
+    HBaseTable getIndexTable(Session session) {
+        return (HBaseTable) getSchema().getTableOrView(session, getName());
+    }
+
+    /**
+     * 索引记录先放到当前session的SecondaryIndexBuffer中，在语句结束时再批量写入索引表
+     */
     @Override
     public void add(Session session, Row row) {
-        if (indexType.isUnique()) {
-            byte[] key = getStartKey(row);
-            Prepared p = session.prepare(select, true);
-            p.getParameters().get(0).setValue(ValueString.get(Bytes.toString(key)));
-            ResultInterface r = p.query(1);
-            try {
-                if (r.next()) {
-                    buffer.clear();
-                    buffer.put(Bytes.toBytes(r.currentRow()[0].getString()));
-                    buffer.flip();
-                    SearchRow r2 = getRow(buffer);
-                    if (compareRows(row, r2) == 0) {
-                        if (!containsNullAndAllowMultipleNull(r2)) {
-                            throw getDuplicateKeyException();
-                        }
-                    }
-                }
-            } finally {
-                r.close();
-            }
-        }
+        SecondaryIndexBuffer indexBuffer = ((HBaseSession) session).getSecondaryIndexBuffer();
+        if (indexType.isUnique())
+            checkUnique((HBaseSession) session, indexBuffer, row);
 
-        Prepared p = session.prepare(insert, true);
-        p.getParameters().get(0).setValue(ValueString.get(Bytes.toString(getKey(row))));
-        p.update();
+        Value[] indexRow = getIndexRow(getKey(row), row);
+        indexBuffer.add(this, indexRow[0].getString(), indexRow);
     }
 
     //参数row是主表的记录，并不是索引表的记录
     @Override
     public void remove(Session session, Row row) {
-        //Update这种类型的SQL不需要先删除再insert，只需直接insert即可
-        if (((HBaseRow) row).isForUpdate())
+        //删除操作转成insert null操作。
+        //Update时也要这样做，索引列变了时旧的索引记录要删掉，否则覆盖索引会读到旧的记录和旧的INCLUDE列值；
+        //索引列没变时新旧索引记录的rowKey相同，随后add的新记录会在SecondaryIndexBuffer中替换掉这条null记录，不会多写
+        SecondaryIndexBuffer indexBuffer = ((HBaseSession) session).getSecondaryIndexBuffer();
+        Value[] indexRow = getIndexRow(getKey(row), null);
+        indexBuffer.add(this, indexRow[0].getString(), indexRow);
+        if (indexType.isUnique())
+            indexBuffer.removeUniqueKey(this, Bytes.toString(getStartKey(row)));
+    }
+
+    /**
+     * 
+     * @param key 索引表的rowKey
+     * @param row 主表的记录，为null时表示删除
+     * @return 索引表的记录: rowKey、C列、INCLUDE列，与batchInsert中的列一一对应
+     */
+    private Value[] getIndexRow(byte[] key, Row row) {
+        int includeCount = includeColumns == null ? 0 : includeColumns.length;
+        Value[] indexRow = new Value[2 + includeCount];
+        indexRow[0] = ValueString.get(Bytes.toString(key));
+        indexRow[1] = row == null ? ValueNull.INSTANCE : ValueString.get("0");
+        for (int i = 0; i < includeCount; i++) {
+            Value v = row == null ? null : row.getValue(includeColumns[i].getColumnId());
+            indexRow[i + 2] = v == null ? ValueNull.INSTANCE : v;
+        }
+        return indexRow;
+    }
+
+    /**
+     * 把getIndexRow得到的记录转成本地region的HBaseRow，空值与普通表一样表示列已删除
+     */
+    HBaseRow createIndexRow(HBaseSession session, HBaseTable indexTable, byte[] regionName, byte[] key, Value[] indexRow) {
+        HBaseRow row = (HBaseRow) indexTable.getTemplateRow();
+        row.setRowKey(indexRow[0]);
+        row.setRegionName(regionName);
+
+        Put put;
+        if (session.getTransaction() != null)
+            put = new Put(key, session.getTransaction().getTransactionId());
+        else
+            put = new Put(key);
+        put.add(MetaDataAdmin.DEFAULT_COLUMN_FAMILY, C, HBaseUtils.toBytes(indexRow[1]));
+        for (int i = 2; i < indexRow.length; i++)
+            put.add(MetaDataAdmin.DEFAULT_COLUMN_FAMILY, includeColumnNames[i - 2], HBaseUtils.toBytes(indexRow[i]));
+        row.setPut(put);
+        return row;
+    }
+
+    /**
+     * 唯一约束检查:
+     * 先查同一语句中还没写入索引表的记录，
+     * 再用[startKey, startKey的前缀 + Integer.MAX_VALUE)这个范围查索引表，范围内只要有一条可见的其他记录就是重复了。
+     * 范围在本地region中时直接在region内scan，否则还是通过SQL查询。
+     */
+    private void checkUnique(HBaseSession session, SecondaryIndexBuffer indexBuffer, Row row) {
+        if (containsNullAndAllowMultipleNull(row))
             return;
 
-        //删除操作转成insert null操作
-        Prepared p = session.prepare(insertNull, true);
-        p.getParameters().get(0).setValue(ValueString.get(Bytes.toString(getKey(row))));
-        p.update();
+        byte[] startKey = getStartKey(row);
+        if (!indexBuffer.addUniqueKey(this, Bytes.toString(startKey)))
+            throw getDuplicateKeyException();
+
+        byte[] key = getKey(row);
+        byte[] stopKey = Arrays.copyOf(startKey, startKey.length);
+        Bytes.putInt(stopKey, stopKey.length - 4, Integer.MAX_VALUE);
+
+        boolean exists;
+        HBaseRegionInfo hri = HBaseUtils.getHBaseRegionInfo(indexTableNameAsBytes, startKey);
+        if (hri.getHRegionInfo().containsRange(startKey, stopKey)) {
+            if (HBaseUtils.isLocal(session, hri)) {
+                exists = existsLocal(session, hri.getRegionNameAsBytes(), startKey, stopKey, key);
+            } else {
+                //在flush时和同一个region的其他检查一起做
+                indexBuffer.addRemoteUniqueCheck(this, hri, new byte[][] { startKey, stopKey, key });
+                return;
+            }
+        } else {
+            exists = existsRemote(session, row, startKey, key);
+        }
+
+        if (exists) {
+            indexBuffer.removeUniqueKey(this, Bytes.toString(startKey));
+            throw getDuplicateKeyException();
+        }
+    }
+
+    private boolean existsLocal(HBaseSession session, byte[] regionName, byte[] startKey, byte[] stopKey, byte[] key) {
+        String hostAndPort = session.getHostAndPort();
+        boolean isFiltered = ValidityChecker.isValidityFilterEnabled();
+        Scan scan = new Scan(startKey, stopKey);
+        scan.addColumn(MetaDataAdmin.DEFAULT_COLUMN_FAMILY, C);
+        ValidityFilter validityFilter = null;
+        if (isFiltered)
+            validityFilter = ValidityChecker.setValidityFilter(scan, hostAndPort, session.getTransaction());
+        else
+            scan.setMaxVersions(1);
+
+        InternalScanner scanner = null;
+        try {
+            scanner = session.getRegionServer().getOnlineRegion(regionName).getScanner(scan);
+            ArrayList<Result> list = new ArrayList<Result>(1);
+            boolean hasMoreRows = true;
+            while (hasMoreRows) {
+                list.clear();
+                if (isFiltered)
+                    hasMoreRows = ValidityChecker.fetchFilteredResults(session, hostAndPort, regionName, scanner, 1,
+                            list, validityFilter);
+                else
+                    hasMoreRows = ValidityChecker.fetchResults(session, hostAndPort, regionName, scanner, 1, list);
+                //跳过当前记录自己的索引(比如update时索引列的值没有变)
+                if (!list.isEmpty() && !Bytes.equals(list.get(0).getRow(), key))
+                    return true;
+            }
+            return false;
+        } catch (IOException e) {
+            throw DbException.convert(e);
+        } finally {
+            if (scanner != null) {
+                try {
+                    scanner.close();
+                } catch (IOException e) {
+                    //ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * 同一语句中落在其他服务器的同一个region中的唯一约束检查合并成一次scan，
+     * 用RowKeyRangesFilter只让各个检查范围内的索引记录离开region，可见性过滤用ValidityFilter在region内部做，
+     * ValidityFilter推迟检查的行由ValidityChecker.checkFilteredResults通过对方的HRegionInterface再检查。
+     *
+     * @param checks 每个元素是{startKey, stopKey, key}
+     */
+    void checkUniqueRemote(HBaseSession session, HBaseRegionInfo hri, List<byte[][]> checks, int fetchSize)
+            throws IOException {
+        byte[] startRow = null;
+        byte[] stopRow = null;
+        for (byte[][] check : checks) {
+            if (startRow == null || Bytes.compareTo(check[0], startRow) < 0)
+                startRow = check[0];
+            if (stopRow == null || Bytes.compareTo(check[1], stopRow) > 0)
+                stopRow = check[1];
+        }
+
+        Scan scan = new Scan(startRow, stopRow);
+        scan.addColumn(MetaDataAdmin.DEFAULT_COLUMN_FAMILY, C);
+        ValidityChecker.setValidityFilter(scan, hri.getHostAndPort(), session.getTransaction());
+        scan.setFilter(new FilterList(FilterList.Operator.MUST_PASS_ALL, scan.getFilter(), new RowKeyRangesFilter(checks)));
+
+        HRegionInterface server = HBaseUtils.getConnection().getHRegionConnection(hri.getHostname(), hri.getPort());
+        byte[] regionName = hri.getRegionNameAsBytes();
+        long scannerId = server.openScanner(regionName, scan);
+        try {
+            while (true) {
+                Result[] results = server.next(scannerId, fetchSize > 0 ? fetchSize : 1);
+                if (results == null || results.length == 0)
+                    return;
+                results = ValidityChecker.checkFilteredResults(session, server, hri.getHostAndPort(), regionName, results);
+                for (Result r : results) {
+                    if (r.isEmpty())
+                        continue;
+                    byte[] rowKey = r.getRow();
+                    for (byte[][] check : checks) {
+                        //跳过当前记录自己的索引(比如update时索引列的值没有变)
+                        if (Bytes.compareTo(rowKey, check[0]) >= 0 && Bytes.compareTo(rowKey, check[1]) < 0
+                                && !Bytes.equals(rowKey, check[2]))
+                            throw getDuplicateKeyException();
+                    }
+                }
+            }
+        } finally {
+            server.close(scannerId);
+        }
+    }
+
+    private boolean existsRemote(HBaseSession session, Row row, byte[] startKey, byte[] key) {
+        Prepared p = session.prepare(select, true);
+        p.getParameters().get(0).setValue(ValueString.get(Bytes.toString(startKey)));
+        ResultInterface r = p.query(1);
+        try {
+            if (r.next()) {
+                String rowKey = r.currentRow()[0].getString();
+                if (rowKey.equals(Bytes.toString(key)))
+                    return false;
+                buffer.clear();
+                buffer.put(Bytes.toBytes(rowKey));
+                buffer.flip();
+                SearchRow r2 = getRow(buffer);
+                return compareRows(row, r2) == 0;
+            }
+            return false;
+        } finally {
+            r.close();
+        }
     }
 
     @Override
@@ -171,10 +492,10 @@ public class HBaseSecondaryIndex extends BaseIndex {
         for (int i = 0; i < columns.length; i++) {
             array[i] = r.getValue(columns[i].getColumnId());
         }
-        if (isStartKey)
+        if (isStartKey || r.getRowKey() == null)
             array[keyColumns - 1] = null;
-        else
-            array[keyColumns - 1] = r.getRowKey();
+        else //rowKey按字符串形式存放，与主表rowKey的编码方式无关
+            array[keyColumns - 1] = ValueString.get(r.getRowKey().getString());
         encode(buffer, array);
         return Bytes.toBytes(buffer);
     }
@@ -215,7 +536,10 @@ public class HBaseSecondaryIndex extends BaseIndex {
 
     SearchRow getRow(Value[] array) {
         SearchRow searchRow = getTable().getTemplateRow();
-        searchRow.setRowKey((array[array.length - 1]));
+        Value rowKey = array[array.length - 1];
+        if (rowKey != ValueNull.INSTANCE)
+            rowKey = ((HBaseTable) getTable()).convertRowKey(ValueString.get(Bytes.toString(rowKey.getBytesNoCopy())));
+        searchRow.setRowKey(rowKey);
         Column[] cols = getColumns();
         for (int i = 0, size = array.length - 1; i < size; i++) {
             Column c = cols[i];
@@ -273,6 +597,75 @@ public class HBaseSecondaryIndex extends BaseIndex {
         return 10 * getCostRangeIndex(masks, 100, sortOrder);
     }
 
+    /**
+     * 覆盖索引不需要回表，所以去掉回表的代价。<p>
+     * 
+     * 执行过ANALYZE后按统计信息估算要扫描的索引记录数: 等值条件除以字段的不同值个数，范围条件用直方图估算。
+     */
+    public double getCost(Session session, int[] masks, TableFilter filter, SortOrder sortOrder) {
+        boolean isCovering = isCovering(filter);
+        HBaseTableStatistics stats = ((HBaseTable) table).getStatistics();
+        if (stats == null) {
+            if (isCovering)
+                return getCostRangeIndex(masks, 100, sortOrder);
+            return getCost(session, masks, sortOrder);
+        }
+
+        double rows = getEstimatedRows(session, stats, masks, filter);
+        //索引的顺序与ORDER BY一致时不需要再排序，与getCostRangeIndex一样给一点折扣
+        return 2 + (isCovering ? rows : rows * (1 + BACK_TO_TABLE_COST)) - getSortOrderCoveringCount(sortOrder);
+    }
+
+    private double getEstimatedRows(Session session, HBaseTableStatistics stats, int[] masks, TableFilter filter) {
+        long rowCount = Math.max(table.getRowCountApproximation(), 1);
+        double rows = rowCount;
+        if (masks == null)
+            return rows;
+        for (Column column : columns) {
+            int id = column.getColumnId();
+            int mask = masks[id];
+            if ((mask & IndexCondition.EQUALITY) == IndexCondition.EQUALITY) {
+                long distinct = stats.getDistinctCount(id);
+                if (distinct <= 0)
+                    distinct = Math.max(1, rowCount * column.getSelectivity() / 100);
+                rows /= distinct;
+            } else if ((mask & IndexCondition.RANGE) != 0) {
+                double fraction = getRangeFraction(session, stats, column, filter);
+                if (fraction < 0)
+                    fraction = (mask & IndexCondition.RANGE) == IndexCondition.RANGE ? 0.25 : 1.0 / 3;
+                rows *= fraction;
+                break;
+            } else {
+                break;
+            }
+        }
+        return Math.max(rows, 1);
+    }
+
+    //只有条件的值是常量时才能用直方图估算，否则返回-1
+    private double getRangeFraction(Session session, HBaseTableStatistics stats, Column column, TableFilter filter) {
+        if (filter == null)
+            return -1;
+        CompareMode compareMode = database.getCompareMode();
+        Value start = null;
+        Value end = null;
+        for (IndexCondition c : filter.getIndexConditions()) {
+            Expression e = c.getExpression();
+            if (c.getColumn() != column || e == null || !e.isConstant())
+                continue;
+            Value v = column.convert(e.getValue(session));
+            if (v == ValueNull.INSTANCE)
+                continue;
+            if (c.isStart() && (start == null || v.compareTypeSave(start, compareMode) > 0))
+                start = v;
+            if (c.isEnd() && (end == null || v.compareTypeSave(end, compareMode) < 0))
+                end = v;
+        }
+        if (start == null && end == null)
+            return -1;
+        return stats.getRangeFraction(column.getColumnId(), start, end, compareMode);
+    }
+
     @Override
     public void remove(Session session) {
         try {
@@ -286,7 +679,7 @@ public class HBaseSecondaryIndex extends BaseIndex {
     public void truncate(Session session) {
         try {
             HBaseSecondaryIndex.dropIndexTableIfExists(session, getName());
-            HBaseSecondaryIndex.createIndexTableIfNotExists(session, getName());
+            HBaseSecondaryIndex.createIndexTableIfNotExists(session, getName(), includeColumns);
         } catch (Exception e) {
             throw DbException.convert(e);
         }
@@ -314,7 +707,8 @@ public class HBaseSecondaryIndex extends BaseIndex {
 
     @Override
     public long getRowCountApproximation() {
-        return 0;
+        //主表的每条记录在索引表中都有一条对应的记录
+        return table.getRowCountApproximation();
     }
 
     @Override
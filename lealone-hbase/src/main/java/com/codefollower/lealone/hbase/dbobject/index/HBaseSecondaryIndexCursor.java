@@ -22,35 +22,44 @@ package com.codefollower.lealone.hbase.dbobject.index;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.HRegionInfo;
-import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.NotServingRegionException;
+import org.apache.hadoop.hbase.client.Action;
+import org.apache.hadoop.hbase.client.ConnectionUtils;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.MultiAction;
+import org.apache.hadoop.hbase.client.MultiResponse;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.ipc.HRegionInterface;
 import org.apache.hadoop.hbase.regionserver.HRegionServer;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+import org.apache.hadoop.ipc.RemoteException;
 
 import com.codefollower.lealone.command.Prepared;
 import com.codefollower.lealone.dbobject.index.Cursor;
 import com.codefollower.lealone.dbobject.table.Column;
 import com.codefollower.lealone.dbobject.table.TableFilter;
-import com.codefollower.lealone.expression.Parameter;
 import com.codefollower.lealone.hbase.command.dml.WithWhereClause;
 import com.codefollower.lealone.hbase.dbobject.table.HBaseTable;
 import com.codefollower.lealone.hbase.engine.HBaseSession;
 import com.codefollower.lealone.hbase.result.HBaseRow;
 import com.codefollower.lealone.hbase.transaction.ValidityChecker;
+import com.codefollower.lealone.hbase.transaction.ValidityFilter;
 import com.codefollower.lealone.hbase.util.HBaseRegionInfo;
 import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.hbase.util.RegionLocationCache;
 import com.codefollower.lealone.message.DbException;
-import com.codefollower.lealone.result.ResultInterface;
 import com.codefollower.lealone.result.Row;
 import com.codefollower.lealone.result.SearchRow;
 import com.codefollower.lealone.util.New;
 import com.codefollower.lealone.value.Value;
-import com.codefollower.lealone.value.ValueString;
 
 public class HBaseSecondaryIndexCursor implements Cursor {
     private final ByteBuffer readBuffer = ByteBuffer.allocate(256);
@@ -62,12 +71,32 @@ public class HBaseSecondaryIndexCursor implements Cursor {
 
     private final long scannerId;
     private final List<Column> columns;
+    //表所有列的个数
+    private final int columnCount;
+    private final HBaseTable dataTable;
+    private final byte[] dataTableName;
 
     private Result[] result;
     private int index = -1;
-
-    private SearchRow searchRow;
-    private HBaseRow row;
+    private boolean isEnd;
+
+    //是否已在region内部用ValidityFilter做了可见性过滤
+    private final boolean isFiltered = ValidityChecker.isValidityFilterEnabled();
+    private ValidityFilter validityFilter;
+    //所要查询的列都在索引中时不需要回表
+    private final boolean isCovering;
+
+    //按索引顺序攒一批索引记录，第一次调用get()时再按region分组批量回表
+    private final SearchRow[] searchRows;
+    private int searchRowCount;
+    private int searchRowIndex = -1;
+    private Row[] rows;
+
+    //回表时遇到region已移走的重试参数，与RetryableCommand一样用HBase客户端的配置
+    private static final long pause = HBaseUtils.getConfiguration().getLong(HConstants.HBASE_CLIENT_PAUSE,
+            HConstants.DEFAULT_HBASE_CLIENT_PAUSE);
+    private static final int numRetries = HBaseUtils.getConfiguration().getInt(HConstants.HBASE_CLIENT_RETRIES_NUMBER,
+            HConstants.DEFAULT_HBASE_CLIENT_RETRIES_NUMBER);
 
     public HBaseSecondaryIndexCursor(HBaseSecondaryIndex index, TableFilter filter, byte[] startKey, byte[] endKey) {
         secondaryIndex = index;
@@ -85,11 +114,17 @@ public class HBaseSecondaryIndexCursor implements Cursor {
             throw DbException.throwInternalError("regionName is null");
 
         fetchSize = p.getFetchSize();
+        searchRows = new SearchRow[fetchSize > 0 ? fetchSize : 1];
+
+        dataTable = (HBaseTable) secondaryIndex.getTable();
+        columnCount = dataTable.getColumns().length;
+        dataTableName = dataTable.getTableNameAsBytes();
 
         if (filter.getSelect() != null)
             columns = filter.getSelect().getColumns(filter);
         else
             columns = Arrays.asList(filter.getTable().getColumns());
+        isCovering = secondaryIndex.isCovering(filter);
 
         if (startKey == null)
             startKey = HConstants.EMPTY_BYTE_ARRAY;
@@ -97,7 +132,10 @@ public class HBaseSecondaryIndexCursor implements Cursor {
             endKey = HConstants.EMPTY_BYTE_ARRAY;
 
         Scan scan = new Scan();
-        scan.setMaxVersions(1);
+        if (isFiltered)
+            validityFilter = ValidityChecker.setValidityFilter(scan, hostAndPort, session.getTransaction());
+        else
+            scan.setMaxVersions(1);
         try {
             HRegionInfo info = rs.getRegionInfo(regionName);
             if (Bytes.compareTo(startKey, info.getStartKey()) >= 0)
@@ -118,89 +156,241 @@ public class HBaseSecondaryIndexCursor implements Cursor {
         }
     }
 
-    private byte[] dataTableName;
-    private Prepared selectPrepared;
-    private Parameter selectParameter;
+    @Override
+    public Row get() {
+        if (searchRowIndex < 0 || searchRowIndex >= searchRowCount)
+            return null;
+        if (rows == null) {
+            if (isCovering)
+                createCoveredRows();
+            else
+                fetchRows();
+        }
+
+        Row row = rows[searchRowIndex];
+        if (row == null)
+            throw new RuntimeException("row key " + searchRows[searchRowIndex].getRowKey() + " not found");
+        return row;
+    }
+
+    /**
+     * 把当前这一批索引记录对应的行键按region分组，每个region只读一次，结果仍按索引顺序存放。
+     * 如果region已经移走或分裂了，清除region位置缓存后对还没有读到的行重新分组再读。
+     */
+    private void fetchRows() {
+        rows = new Row[searchRowCount];
+        byte[][] rowKeys = new byte[searchRowCount][];
+        List<Integer> pending = New.arrayList(searchRowCount);
+        for (int i = 0; i < searchRowCount; i++) {
+            rowKeys[i] = dataTable.getRowKeyAsBytes(searchRows[i].getRowKey());
+            pending.add(i);
+        }
 
-    private void initSelectPrepared() {
-        StringBuilder buff = new StringBuilder("SELECT ");
+        for (int tries = 0;; tries++) {
+            try {
+                fetchRows(rowKeys, pending);
+                return;
+            } catch (Exception e) {
+                if (!isRegionMoved(e) || tries + 1 >= numRetries)
+                    throw DbException.convert(e);
+            }
 
-        if (columns != null) {
-            int i = 0;
-            for (Column c : columns) {
-                if (i > 0)
-                    buff.append(',');
-                buff.append(c.getFullName());
-                i++;
+            RegionLocationCache.clear();
+            try {
+                HBaseUtils.getConnection().clearRegionCache();
+                Thread.sleep(ConnectionUtils.getPauseTime(pause, tries));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw DbException.convert(new IOException("Giving up after tries=" + tries, e));
+            } catch (Exception e) {
+                throw DbException.convert(e);
             }
-        } else {
-            buff.append("*");
         }
-        buff.append(" FROM ");
-        buff.append(secondaryIndex.getTable().getSQL());
+    }
 
-        HBaseTable htable = (HBaseTable) secondaryIndex.getTable();
-        buff.append(" WHERE ").append(htable.getPrimaryKeyName()).append("=?");
-        selectPrepared = session.prepare(buff.toString(), true);
-        selectParameter = selectPrepared.getParameters().get(0);
-        dataTableName = htable.getTableNameAsBytes();
+    //读完一个region就把它的行从pending中去掉，出错时pending中只剩还没有读的行
+    private void fetchRows(byte[][] rowKeys, List<Integer> pending) throws Exception {
+        Map<HBaseRegionInfo, List<Integer>> regions = new LinkedHashMap<HBaseRegionInfo, List<Integer>>();
+        for (int i : pending) {
+            HBaseRegionInfo hri = HBaseUtils.getHBaseRegionInfo(dataTableName, rowKeys[i]);
+            List<Integer> list = regions.get(hri);
+            if (list == null) {
+                list = New.arrayList();
+                regions.put(hri, list);
+            }
+            list.add(i);
+        }
+
+        for (Map.Entry<HBaseRegionInfo, List<Integer>> e : regions.entrySet()) {
+            HBaseRegionInfo hri = e.getKey();
+            List<Integer> list = e.getValue();
+            Result[] results;
+            if (HBaseUtils.isLocal(session, hri))
+                results = getLocal(hri, rowKeys, list);
+            else
+                results = getRemote(hri, rowKeys, list);
+
+            //不可见或已删除的记录不在results中，所以按行键对应回去，
+            //行键可能是二进制编码的，用toStringBinary才不会有不同行键对应同一个字符串
+            Map<String, Result> map = New.hashMap(results.length);
+            for (Result r : results)
+                if (r != null && !r.isEmpty())
+                    map.put(Bytes.toStringBinary(r.getRow()), r);
+
+            for (int i : list) {
+                Result r = map.get(Bytes.toStringBinary(rowKeys[i]));
+                if (r != null)
+                    rows[i] = createRow(hri.getRegionNameAsBytes(), r);
+            }
+            pending.removeAll(list);
+        }
     }
 
-    @Override
-    public Row get() {
-        if (row == null) {
-            if (searchRow != null) {
-                if (selectPrepared == null)
-                    initSelectPrepared();
-
-                byte[] rowKey = HBaseUtils.toBytes(searchRow.getRowKey());
-                HBaseRegionInfo regionInfo = HBaseUtils.getHBaseRegionInfo(dataTableName, rowKey);
-                selectParameter.setValue(ValueString.get(Bytes.toString(rowKey)));
-                ResultInterface r = selectPrepared.query(1);
-                if (r.next()) {
-                    Value[] data = r.currentRow();
-                    List<Column> cols = columns;
-                    if (cols == null)
-                        cols = Arrays.asList(secondaryIndex.getTable().getColumns());
-
-                    List<KeyValue> kvs = New.arrayList(cols.size());
-                    for (Column c : columns) {
-                        kvs.add(new KeyValue(rowKey, c.getColumnFamilyNameAsBytes(), c.getNameAsBytes()));
-                    }
-                    row = new HBaseRow(regionInfo.getRegionNameAsBytes(), searchRow.getRowKey(), data, Row.MEMORY_CALCULATE,
-                            new Result(kvs));
-                } else {
-                    throw new RuntimeException("row key " + searchRow.getRowKey() + " not found");
+    private static boolean isRegionMoved(Throwable t) {
+        while (t != null) {
+            if (t instanceof RemoteException)
+                t = ((RemoteException) t).unwrapRemoteException();
+            if (t instanceof NotServingRegionException)
+                return true;
+            t = t.getCause();
+        }
+        return false;
+    }
+
+    //直接用索引记录中的值组成行，不需要回表
+    private void createCoveredRows() {
+        rows = new Row[searchRowCount];
+        for (int i = 0; i < searchRowCount; i++) {
+            SearchRow searchRow = searchRows[i];
+            Value rowKey = searchRow.getRowKey();
+            Value[] data = new Value[columnCount];
+            if (columns != null) {
+                for (Column c : columns) {
+                    int id = c.getColumnId();
+                    if (c.isRowKeyColumn())
+                        data[id] = rowKey;
+                    else
+                        data[id] = searchRow.getValue(id);
                 }
             }
+            rows[i] = new HBaseRow(regionName, rowKey, data, Row.MEMORY_CALCULATE, null);
         }
-        return row;
     }
 
-    @Override
-    public SearchRow getSearchRow() {
-        return searchRow;
+    private Get createGet(byte[] rowKey) {
+        Get get = new Get(rowKey);
+        for (Column c : columns) {
+            if (!c.isRowKeyColumn())
+                get.addFamily(c.getColumnFamilyNameAsBytes());
+        }
+        return get;
+    }
+
+    private Result[] getLocal(HBaseRegionInfo hri, byte[][] rowKeys, List<Integer> list) throws IOException {
+        HRegionServer rs = session.getRegionServer();
+        byte[] dataRegionName = hri.getRegionNameAsBytes();
+        Result[] results = new Result[list.size()];
+        int j = 0;
+        for (int i : list) {
+            Get get = createGet(rowKeys[i]);
+            if (isFiltered)
+                ValidityChecker.setValidityFilter(get, hostAndPort, session.getTransaction());
+            else
+                get.setMaxVersions(1);
+            results[j++] = rs.get(dataRegionName, get);
+        }
+        //整批记录中状态未知的事务只需要查一次
+        if (isFiltered)
+            return ValidityChecker.checkFilteredResults(session, rs, hostAndPort, dataRegionName, results);
+        return ValidityChecker.checkResults(session, hostAndPort, dataRegionName, results);
+    }
+
+    //数据所在的region在其他RegionServer上时，用一次multi调用读出这个region中的所有记录，
+    //可见性过滤只能在对方的region内部用ValidityFilter来做，推迟检查的行再通过对方的HRegionInterface检查
+    private Result[] getRemote(HBaseRegionInfo hri, byte[][] rowKeys, List<Integer> list) throws Exception {
+        byte[] dataRegionName = hri.getRegionNameAsBytes();
+        MultiAction<Get> multi = new MultiAction<Get>();
+        int j = 0;
+        for (int i : list) {
+            Get get = createGet(rowKeys[i]);
+            ValidityChecker.setValidityFilter(get, hri.getHostAndPort(), session.getTransaction());
+            multi.add(dataRegionName, new Action<Get>(get, j++));
+        }
+
+        HRegionInterface server = HBaseUtils.getConnection().getHRegionConnection(hri.getHostname(), hri.getPort());
+        MultiResponse response = server.multi(multi);
+        Result[] results = new Result[list.size()];
+        for (Pair<Integer, Object> pair : response.getResults().get(dataRegionName)) {
+            Object o = pair.getSecond();
+            if (o instanceof Exception)
+                throw (Exception) o;
+            if (o instanceof Throwable)
+                throw DbException.convert((Throwable) o);
+            results[pair.getFirst()] = (Result) o;
+        }
+        return ValidityChecker.checkFilteredResults(session, server, hri.getHostAndPort(), dataRegionName, results);
     }
 
-    private void setSearchRow() {
-        readBuffer.put(result[index].getRow());
-        readBuffer.flip();
-        searchRow = secondaryIndex.getRow(readBuffer);
+    private Row createRow(byte[] regionName, Result r) {
+        Value rowKey = dataTable.getRowKeyValue(r.getRow());
+        Value[] data = new Value[columnCount];
+        for (Column c : columns) {
+            int i = c.getColumnId();
+            if (c.isRowKeyColumn())
+                data[i] = rowKey;
+            else
+                data[i] = HBaseUtils.toValue(r.getValue(c.getColumnFamilyNameAsBytes(), c.getNameAsBytes()), c.getType());
+        }
+        return new HBaseRow(regionName, rowKey, data, Row.MEMORY_CALCULATE, r);
+    }
+
+    @Override
+    public SearchRow getSearchRow() {
+        if (searchRowIndex < 0 || searchRowIndex >= searchRowCount)
+            return null;
+        return searchRows[searchRowIndex];
     }
 
     @Override
     public boolean next() {
-        readBuffer.clear();
-        searchRow = null;
-        row = null;
-        index++;
-        if (result != null && index < result.length) {
-            setSearchRow();
+        searchRowIndex++;
+        if (searchRowIndex < searchRowCount)
             return true;
+
+        //读下一批索引记录
+        rows = null;
+        searchRowIndex = 0;
+        searchRowCount = 0;
+        while (searchRowCount < searchRows.length && nextIndexEntry()) {
+            readBuffer.clear();
+            readBuffer.put(result[index].getRow());
+            readBuffer.flip();
+            SearchRow searchRow = secondaryIndex.getRow(readBuffer);
+            if (isCovering)
+                secondaryIndex.readIncludeColumns(result[index], searchRow);
+            searchRows[searchRowCount++] = searchRow;
         }
+        for (int i = searchRowCount; i < searchRows.length; i++)
+            searchRows[i] = null;
+        return searchRowCount > 0;
+    }
+
+    private boolean nextIndexEntry() {
+        index++;
+        if (result != null && index < result.length)
+            return true;
+        if (isEnd)
+            return false;
 
         try {
-            result = ValidityChecker.fetchResults(session, hostAndPort, regionName, scannerId, fetchSize);
+            //一批索引记录可能全都不可见，返回null时scanner才算结束
+            do {
+                if (isFiltered)
+                    result = ValidityChecker.fetchFilteredResults(session, hostAndPort, regionName, scannerId,
+                            fetchSize, validityFilter);
+                else
+                    result = ValidityChecker.fetchResults(session, hostAndPort, regionName, scannerId, fetchSize);
+            } while (result != null && result.length == 0);
         } catch (Exception e) {
             close();
             throw DbException.convert(e);
@@ -208,10 +398,8 @@ public class HBaseSecondaryIndexCursor implements Cursor {
 
         index = 0;
 
-        if (result != null && result.length > 0) {
-            setSearchRow();
+        if (result != null && result.length > 0)
             return true;
-        }
 
         close();
         return false;
@@ -223,6 +411,7 @@ public class HBaseSecondaryIndexCursor implements Cursor {
     }
 
     private void close() {
+        isEnd = true;
         try {
             session.getRegionServer().close(scannerId);
         } catch (IOException e) {
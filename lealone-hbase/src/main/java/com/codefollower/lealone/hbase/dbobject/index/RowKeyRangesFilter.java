@@ -0,0 +1,117 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.dbobject.index;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.hadoop.hbase.filter.FilterBase;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ *
+ * 只让落在若干个[startKey, stopKey)范围内的行通过，其他行不会离开region。<p>
+ *
+ * 用于把同一语句中落在同一个region的多个唯一约束检查合并成一次scan。
+ *
+ */
+public class RowKeyRangesFilter extends FilterBase {
+    //按startKey排好序，并且已合并了重叠的范围
+    private byte[][] startKeys;
+    private byte[][] stopKeys;
+
+    /**
+     * Writable需要
+     */
+    public RowKeyRangesFilter() {
+    }
+
+    /**
+     *
+     * @param ranges 每个元素的前两项是startKey和stopKey
+     */
+    public RowKeyRangesFilter(List<byte[][]> ranges) {
+        byte[][][] sorted = ranges.toArray(new byte[ranges.size()][][]);
+        Arrays.sort(sorted, new Comparator<byte[][]>() {
+            @Override
+            public int compare(byte[][] r1, byte[][] r2) {
+                return Bytes.compareTo(r1[0], r2[0]);
+            }
+        });
+
+        int count = 0;
+        startKeys = new byte[sorted.length][];
+        stopKeys = new byte[sorted.length][];
+        for (byte[][] r : sorted) {
+            if (count > 0 && Bytes.compareTo(r[0], stopKeys[count - 1]) <= 0) {
+                if (Bytes.compareTo(r[1], stopKeys[count - 1]) > 0)
+                    stopKeys[count - 1] = r[1];
+            } else {
+                startKeys[count] = r[0];
+                stopKeys[count] = r[1];
+                count++;
+            }
+        }
+        startKeys = Arrays.copyOf(startKeys, count);
+        stopKeys = Arrays.copyOf(stopKeys, count);
+    }
+
+    @Override
+    public boolean filterRowKey(byte[] buffer, int offset, int length) {
+        //找到最后一个startKey <= rowKey的范围
+        int low = 0, high = startKeys.length - 1, found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (Bytes.compareTo(startKeys[mid], 0, startKeys[mid].length, buffer, offset, length) <= 0) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (found < 0)
+            return true;
+        return Bytes.compareTo(buffer, offset, length, stopKeys[found], 0, stopKeys[found].length) >= 0;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(startKeys.length);
+        for (int i = 0; i < startKeys.length; i++) {
+            Bytes.writeByteArray(out, startKeys[i]);
+            Bytes.writeByteArray(out, stopKeys[i]);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        int size = in.readInt();
+        startKeys = new byte[size][];
+        stopKeys = new byte[size][];
+        for (int i = 0; i < size; i++) {
+            startKeys[i] = Bytes.readByteArray(in);
+            stopKeys[i] = Bytes.readByteArray(in);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.dbobject.index;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import com.codefollower.lealone.command.CommandRemote;
+import com.codefollower.lealone.engine.SessionRemote;
+import com.codefollower.lealone.hbase.command.CommandParallel;
+import com.codefollower.lealone.hbase.command.dml.InsertOrMergeSupport;
+import com.codefollower.lealone.hbase.dbobject.table.HBaseTable;
+import com.codefollower.lealone.hbase.engine.HBaseSession;
+import com.codefollower.lealone.hbase.engine.SessionRemotePool;
+import com.codefollower.lealone.hbase.result.HBaseRow;
+import com.codefollower.lealone.hbase.util.HBaseRegionInfo;
+import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.util.New;
+import com.codefollower.lealone.value.Value;
+
+/**
+ *
+ * 缓存一条语句对二级索引表的所有修改，语句结束时按索引表的region分组批量写入，
+ * 本地region直接put，其他服务器上的region用executeBatchRows一次发送。
+ * 落在其他服务器上的唯一约束检查也在flush时按region合并成一次scan。
+ *
+ */
+public class SecondaryIndexBuffer {
+    //按索引分组，同一个索引key只保留最后一次修改
+    private final Map<HBaseSecondaryIndex, Map<String, Value[]>> indexes = //
+            new LinkedHashMap<HBaseSecondaryIndex, Map<String, Value[]>>();
+
+    //唯一索引在本语句中已加入的key前缀，用于检查同一语句中插入的记录之间是否重复
+    private final Map<HBaseSecondaryIndex, Set<String>> uniqueKeys = New.hashMap();
+
+    //还没有做的远程唯一约束检查，按索引和索引表的region分组
+    private final Map<HBaseSecondaryIndex, Map<HBaseRegionInfo, List<byte[][]>>> remoteUniqueChecks = //
+            new LinkedHashMap<HBaseSecondaryIndex, Map<HBaseRegionInfo, List<byte[][]>>>();
+
+    /**
+     *
+     * @param key 索引表的rowKey
+     * @param row 索引表的记录，格式见{@link HBaseSecondaryIndex#getIndexRow}
+     */
+    synchronized void add(HBaseSecondaryIndex index, String key, Value[] row) {
+        Map<String, Value[]> rows = indexes.get(index);
+        if (rows == null) {
+            rows = new LinkedHashMap<String, Value[]>();
+            indexes.put(index, rows);
+        }
+        rows.remove(key); //保证按最后一次修改的顺序写入
+        rows.put(key, row);
+    }
+
+    /**
+     *
+     * @return 同一语句中已经加入过相同的前缀时返回false
+     */
+    synchronized boolean addUniqueKey(HBaseSecondaryIndex index, String prefix) {
+        Set<String> keys = uniqueKeys.get(index);
+        if (keys == null) {
+            keys = new HashSet<String>();
+            uniqueKeys.put(index, keys);
+        }
+        return keys.add(prefix);
+    }
+
+    /**
+     * 唯一约束检查的范围在其他服务器的region中时先记下来，在flush时同一个region的检查合并成一次scan
+     *
+     * @param check {startKey, stopKey, key}
+     */
+    synchronized void addRemoteUniqueCheck(HBaseSecondaryIndex index, HBaseRegionInfo hri, byte[][] check) {
+        Map<HBaseRegionInfo, List<byte[][]>> regions = remoteUniqueChecks.get(index);
+        if (regions == null) {
+            regions = new LinkedHashMap<HBaseRegionInfo, List<byte[][]>>();
+            remoteUniqueChecks.put(index, regions);
+        }
+        List<byte[][]> checks = regions.get(hri);
+        if (checks == null) {
+            checks = New.arrayList();
+            regions.put(hri, checks);
+        }
+        checks.add(check);
+    }
+
+    synchronized void removeUniqueKey(HBaseSecondaryIndex index, String prefix) {
+        Set<String> keys = uniqueKeys.get(index);
+        if (keys != null)
+            keys.remove(prefix);
+    }
+
+    public synchronized boolean isEmpty() {
+        return indexes.isEmpty();
+    }
+
+    public synchronized void clear() {
+        indexes.clear();
+        uniqueKeys.clear();
+        remoteUniqueChecks.clear();
+    }
+
+    /**
+     * 先做远程唯一约束检查，再把缓存的修改写入索引表，写完后清空缓存
+     */
+    public void flush(final HBaseSession session, final int fetchSize) {
+        Map<HBaseSecondaryIndex, Map<String, Value[]>> indexes;
+        Map<HBaseSecondaryIndex, Map<HBaseRegionInfo, List<byte[][]>>> remoteUniqueChecks;
+        synchronized (this) {
+            if (this.indexes.isEmpty()) {
+                clear();
+                return;
+            }
+            indexes = new LinkedHashMap<HBaseSecondaryIndex, Map<String, Value[]>>(this.indexes);
+            remoteUniqueChecks = new LinkedHashMap<HBaseSecondaryIndex, Map<HBaseRegionInfo, List<byte[][]>>>(
+                    this.remoteUniqueChecks);
+            clear();
+        }
+
+        if (!remoteUniqueChecks.isEmpty())
+            checkRemoteUnique(session, fetchSize, remoteUniqueChecks);
+
+        //同一个服务器上的所有索引表的记录都用同一个SessionRemote依次发送
+        Map<String, Map<HBaseSecondaryIndex, Map<String, List<Value[]>>>> servers = New.hashMap();
+        for (Map.Entry<HBaseSecondaryIndex, Map<String, Value[]>> e : indexes.entrySet()) {
+            HBaseSecondaryIndex index = e.getKey();
+            HBaseTable indexTable = index.getIndexTable(session);
+            Map<HBaseRegionInfo, List<HBaseRow>> localRegions = New.hashMap();
+
+            for (Value[] row : e.getValue().values()) {
+                byte[] key = HBaseUtils.toBytes(row[0]);
+                HBaseRegionInfo hri = HBaseUtils.getHBaseRegionInfo(index.getTableNameAsBytes(), key);
+                if (HBaseUtils.isLocal(session, hri)) {
+                    List<HBaseRow> rows = localRegions.get(hri);
+                    if (rows == null) {
+                        rows = New.arrayList();
+                        localRegions.put(hri, rows);
+                    }
+                    rows.add(index.createIndexRow(session, indexTable, hri.getRegionNameAsBytes(), key, row));
+                } else {
+                    Map<HBaseSecondaryIndex, Map<String, List<Value[]>>> serverIndexes = servers.get(hri
+                            .getRegionServerURL());
+                    if (serverIndexes == null) {
+                        serverIndexes = new LinkedHashMap<HBaseSecondaryIndex, Map<String, List<Value[]>>>();
+                        servers.put(hri.getRegionServerURL(), serverIndexes);
+                    }
+                    Map<String, List<Value[]>> regions = serverIndexes.get(index);
+                    if (regions == null) {
+                        regions = New.hashMap();
+                        serverIndexes.put(index, regions);
+                    }
+                    List<Value[]> rows = regions.get(hri.getRegionName());
+                    if (rows == null) {
+                        rows = New.arrayList();
+                        regions.put(hri.getRegionName(), rows);
+                    }
+                    rows.add(row);
+                }
+            }
+
+            //本地region每个region一次批量put
+            for (Map.Entry<HBaseRegionInfo, List<HBaseRow>> e2 : localRegions.entrySet())
+                indexTable.addRows(session, e2.getKey().getRegionNameAsBytes(), e2.getValue());
+        }
+
+        if (servers.isEmpty())
+            return;
+
+        List<Callable<Void>> calls = New.arrayList(servers.size());
+        for (Map.Entry<String, Map<HBaseSecondaryIndex, Map<String, List<Value[]>>>> e : servers.entrySet()) {
+            final SessionRemote sr = SessionRemotePool.getSessionRemote(session, e.getKey());
+            final Map<HBaseSecondaryIndex, Map<String, List<Value[]>>> serverIndexes = e.getValue();
+            calls.add(new Callable<Void>() {
+                public Void call() throws Exception {
+                    for (Map.Entry<HBaseSecondaryIndex, Map<String, List<Value[]>>> e2 : serverIndexes.entrySet()) {
+                        String sql = e2.getKey().getBatchInsertSQL();
+                        if (sr.supportsBatchRows()) {
+                            CommandRemote c = SessionRemotePool.getCachedCommandRemote(session, sr, sql, null, fetchSize);
+                            c.executeBatchRows(e2.getValue());
+                        } else {
+                            //老版本的服务器只能接收SQL
+                            CommandRemote c = SessionRemotePool.getCommandRemote(sr,
+                                    InsertOrMergeSupport.getPlanSQL(sql, e2.getValue()), null, fetchSize);
+                            try {
+                                c.executeUpdate();
+                            } finally {
+                                c.close();
+                            }
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        CommandParallel.execute(calls);
+    }
+
+    //按服务器分组，同一个服务器上的region依次scan，不同服务器并行
+    private static void checkRemoteUnique(final HBaseSession session, final int fetchSize,
+            Map<HBaseSecondaryIndex, Map<HBaseRegionInfo, List<byte[][]>>> remoteUniqueChecks) {
+        Map<String, List<Object[]>> servers = New.hashMap();
+        for (Map.Entry<HBaseSecondaryIndex, Map<HBaseRegionInfo, List<byte[][]>>> e : remoteUniqueChecks.entrySet()) {
+            for (Map.Entry<HBaseRegionInfo, List<byte[][]>> e2 : e.getValue().entrySet()) {
+                List<Object[]> regions = servers.get(e2.getKey().getRegionServerURL());
+                if (regions == null) {
+                    regions = New.arrayList();
+                    servers.put(e2.getKey().getRegionServerURL(), regions);
+                }
+                regions.add(new Object[] { e.getKey(), e2.getKey(), e2.getValue() });
+            }
+        }
+
+        List<Callable<Void>> calls = New.arrayList(servers.size());
+        for (final List<Object[]> regions : servers.values()) {
+            calls.add(new Callable<Void>() {
+                @SuppressWarnings("unchecked")
+                public Void call() throws Exception {
+                    for (Object[] r : regions)
+                        ((HBaseSecondaryIndex) r[0]).checkUniqueRemote(session, (HBaseRegionInfo) r[1],
+                                (List<byte[][]>) r[2], fetchSize);
+                    return null;
+                }
+            });
+        }
+        CommandParallel.execute(calls);
+    }
+}
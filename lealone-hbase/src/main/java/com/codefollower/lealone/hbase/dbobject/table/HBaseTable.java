@@ -24,11 +24,14 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.Callable;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hbase.HColumnDescriptor;
 import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.TableNotFoundException;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.hadoop.hbase.master.HMaster;
@@ -41,6 +44,7 @@ import com.codefollower.lealone.dbobject.index.IndexType;
 import com.codefollower.lealone.dbobject.table.Column;
 import com.codefollower.lealone.dbobject.table.IndexColumn;
 import com.codefollower.lealone.dbobject.table.TableBase;
+import com.codefollower.lealone.dbobject.table.TableFilter;
 import com.codefollower.lealone.engine.Database;
 import com.codefollower.lealone.engine.Session;
 import com.codefollower.lealone.hbase.command.CommandParallel;
@@ -48,21 +52,38 @@ import com.codefollower.lealone.hbase.command.ddl.Options;
 import com.codefollower.lealone.hbase.dbobject.index.HBaseDelegateIndex;
 import com.codefollower.lealone.hbase.dbobject.index.HBasePrimaryIndex;
 import com.codefollower.lealone.hbase.dbobject.index.HBaseSecondaryIndex;
+import com.codefollower.lealone.hbase.engine.HBaseConstants;
 import com.codefollower.lealone.hbase.engine.HBaseDatabase;
 import com.codefollower.lealone.hbase.engine.HBaseSession;
 import com.codefollower.lealone.hbase.metadata.MetaDataAdmin;
+import com.codefollower.lealone.hbase.metadata.StatisticsTable;
 import com.codefollower.lealone.hbase.result.HBaseRow;
 import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.hbase.util.RowKeyCodec;
 import com.codefollower.lealone.message.DbException;
 import com.codefollower.lealone.result.Row;
 import com.codefollower.lealone.result.RowList;
+import com.codefollower.lealone.result.SearchRow;
+import com.codefollower.lealone.result.SortOrder;
 import com.codefollower.lealone.util.New;
 import com.codefollower.lealone.util.StatementBuilder;
+import com.codefollower.lealone.value.CompareMode;
 import com.codefollower.lealone.value.Value;
+import com.codefollower.lealone.value.ValueBytes;
+import com.codefollower.lealone.value.ValueNull;
+import com.codefollower.lealone.value.ValueString;
 
 public class HBaseTable extends TableBase {
+    private static final Log log = LogFactory.getLog(HBaseTable.class);
     private static final String DEFAULT_COLUMN_FAMILY_NAME = Bytes.toString(MetaDataAdmin.DEFAULT_COLUMN_FAMILY);
 
+    private static final long STATISTICS_REFRESH_INTERVAL = HBaseUtils.getConfiguration().getLong(
+            HBaseConstants.STATISTICS_REFRESH_INTERVAL, HBaseConstants.DEFAULT_STATISTICS_REFRESH_INTERVAL);
+    private static final float STATISTICS_AUTO_ANALYZE_RATIO = HBaseUtils.getConfiguration().getFloat(
+            HBaseConstants.STATISTICS_AUTO_ANALYZE_RATIO, HBaseConstants.DEFAULT_STATISTICS_AUTO_ANALYZE_RATIO);
+    private static final long STATISTICS_AUTO_ANALYZE_MIN_CHANGES = HBaseUtils.getConfiguration().getLong(
+            HBaseConstants.STATISTICS_AUTO_ANALYZE_MIN_CHANGES, HBaseConstants.DEFAULT_STATISTICS_AUTO_ANALYZE_MIN_CHANGES);
+
     /**
      * 使用create table建立的表被称为静态表，静态表只有一个列族，并且列族名是CF，
      * 静态表必须事先定义表结构: 表所包含的字段及字段类型。<p>
@@ -71,6 +92,8 @@ public class HBaseTable extends TableBase {
      * 可以在insert时根据字面出现的字段名和字面值来确定新的字段名和字段类型。
      */
     private final boolean isStatic;
+    //静态表的rowKey是否按RowKeyCodec编码，为false时是以前建立的表，rowKey都是字符串的UTF-8编码
+    private final boolean isOrderedRowKey;
 
     private final Database database;
     private final String tableName;
@@ -83,6 +106,9 @@ public class HBaseTable extends TableBase {
 
     private String rowKeyName;
     private Column rowKeyColumn;
+    //静态表中rowKey按RowKeyCodec编码时对应的主键列(单字段的非字符串主键或复合主键)，
+    //为null时rowKey是字符串的UTF-8编码(动态表、没有主键或单字段字符串主键的静态表)
+    private IndexColumn[] rowKeyColumns;
     private Map<String, ArrayList<Column>> columnFamilyMap;
 
     private Set<String> shortColumnNameSet;
@@ -90,6 +116,15 @@ public class HBaseTable extends TableBase {
 
     private boolean isColumnsModified;
 
+    //ANALYZE得到的统计信息，没有执行过ANALYZE时为null
+    private volatile HBaseTableStatistics statistics;
+    private volatile long statisticsLoadTime;
+    //读取统计信息时rowCount的值，两者之差就是本机在这之后增加的记录数
+    private volatile long rowCountAtAnalyze;
+    private volatile long changesSinceAnalyze;
+    private final AtomicBoolean analyzing = new AtomicBoolean();
+    private final AtomicBoolean loadingStatistics = new AtomicBoolean();
+
     public HBaseTable(CreateTableData data) {
         this(true, data, null, null, null);
     }
@@ -111,6 +146,7 @@ public class HBaseTable extends TableBase {
         if (isStatic) {
             htd = new HTableDescriptor(tableName);
             htd.addFamily(new HColumnDescriptor(DEFAULT_COLUMN_FAMILY_NAME));
+            htd.setValue(Options.ON_ROW_KEY_ENCODING, Options.ROW_KEY_ENCODING_ORDERED);
 
             columnFamilyMap = New.hashMap(1);
             columnFamilyMap.put(DEFAULT_COLUMN_FAMILY_NAME, data.columns);
@@ -121,6 +157,7 @@ public class HBaseTable extends TableBase {
         hTableDescriptor = htd;
 
         createIfNotExists(data.session, tableName, htd, splitKeys);
+        isOrderedRowKey = isStatic && isOrderedRowKey(tableName);
 
         scanIndex = new HBasePrimaryIndex(this, data.id, IndexColumn.wrap(getColumns()), IndexType.createScan(false));
         indexes.add(scanIndex);
@@ -218,6 +255,234 @@ public class HBaseTable extends TableBase {
         return rowKeyName;
     }
 
+    /**
+     * 复合主键的rowKey是各主键列按RowKeyCodec编码后拼接起来的字节数组，各主键列同时也作为普通列存放
+     */
+    public boolean isCompositeRowKey() {
+        return rowKeyColumns != null && rowKeyColumns.length > 1;
+    }
+
+    public IndexColumn[] getRowKeyColumns() {
+        return rowKeyColumns;
+    }
+
+    /**
+     * 把rowKey列的值转成记录中存放的rowKey值:
+     * 字符串rowKey是ValueString，单字段主键转成主键列的类型，复合主键是编码后的ValueBytes
+     */
+    public Value convertRowKey(Value v) {
+        if (rowKeyColumns == null)
+            return ValueString.get(v.getString());
+        if (rowKeyColumns.length == 1)
+            return rowKeyColumns[0].column.convert(v);
+        return v.convertTo(Value.BYTES);
+    }
+
+    /**
+     * 
+     * @param values 按主键列的顺序排列的复合主键各列的值
+     * @return 复合主键的rowKey值
+     */
+    public Value createRowKey(Value[] values) {
+        Value[] array = new Value[rowKeyColumns.length];
+        for (int i = 0; i < array.length; i++)
+            array[i] = rowKeyColumns[i].column.convert(values[i]);
+        return ValueBytes.getNoCopy(RowKeyCodec.encode(array));
+    }
+
+    /**
+     * 
+     * @param rowKey convertRowKey得到的rowKey值
+     * @return HBase中的rowKey
+     */
+    public byte[] getRowKeyAsBytes(Value rowKey) {
+        if (rowKeyColumns == null)
+            return HBaseUtils.toBytes(rowKey);
+        if (rowKeyColumns.length == 1)
+            return RowKeyCodec.encode(rowKeyColumns[0].column.convert(rowKey));
+        return rowKey.getBytesNoCopy();
+    }
+
+    /**
+     * getRowKeyAsBytes的逆操作
+     */
+    public Value getRowKeyValue(byte[] rowKey) {
+        if (rowKeyColumns == null)
+            return ValueString.get(Bytes.toString(rowKey));
+        if (rowKeyColumns.length == 1) {
+            Column c = rowKeyColumns[0].column;
+            Value v = RowKeyCodec.decode(rowKey, c.getType());
+            if (v.getType() == Value.DECIMAL)
+                v = v.convertScale(false, c.getScale()); //编码时去掉了末尾的0
+            return v;
+        }
+        return ValueBytes.getNoCopy(rowKey);
+    }
+
+    /**
+     * 
+     * @param first 所有查找的主键列的开始值
+     * @return scan的startRow(包含)，没有下限时返回null
+     */
+    public byte[] getStartRowKey(SearchRow first) {
+        if (first == null)
+            return null;
+        if (isCompositeRowKey())
+            return getRowKeyPrefix(first);
+        Value v = getRowKeyBound(first.getRowKey());
+        return v == null ? null : getRowKeyAsBytes(v);
+    }
+
+    /**
+     * 
+     * @param last 所有查找的主键列的结束值
+     * @return scan的stopRow(不包含)，它比所有不超过结束值的rowKey都大，没有上限时返回null
+     */
+    public byte[] getStopRowKey(SearchRow last) {
+        if (last == null)
+            return null;
+        if (isCompositeRowKey()) {
+            byte[] prefix = getRowKeyPrefix(last);
+            return prefix == null ? null : RowKeyCodec.getSuccessor(prefix);
+        }
+        Value v = getRowKeyBound(last.getRowKey());
+        if (v == null)
+            return null;
+        byte[] rowKey = getRowKeyAsBytes(v);
+        if (rowKeyColumns == null)
+            return Bytes.add(rowKey, new byte[1]); //比rowKey大的最小字节串
+        return RowKeyCodec.getSuccessor(rowKey);
+    }
+
+    /**
+     * 
+     * @return where条件是主键等值条件时返回对应的rowKey，否则返回null
+     */
+    public byte[] getRowKey(SearchRow first, SearchRow last) {
+        if (first == null || last == null)
+            return null;
+        if (isCompositeRowKey()) {
+            //所有主键列都要有等值条件，并且SQL中的相等和字节相等一致
+            if (getRangeColumnCount() < rowKeyColumns.length)
+                return null;
+            Value[] values = new Value[rowKeyColumns.length];
+            for (int i = 0; i < values.length; i++) {
+                int id = rowKeyColumns[i].column.getColumnId();
+                Value v = first.getValue(id);
+                if (v == null || v != last.getValue(id))
+                    return null;
+                values[i] = getRowKeyBound(rowKeyColumns[i].column, v);
+                if (values[i] == null)
+                    return null;
+            }
+            return RowKeyCodec.encode(values);
+        }
+        //对于where pk = xxx这样的等号查询，开始值和结束值是同一个对象
+        Value v = first.getRowKey();
+        if (v == null || v != last.getRowKey())
+            return null;
+        v = getRowKeyBound(v);
+        return v == null ? null : getRowKeyAsBytes(v);
+    }
+
+    private Value getRowKeyBound(Value v) {
+        if (v == null || v == ValueNull.INSTANCE)
+            return null;
+        if (rowKeyColumns == null)
+            return convertRowKey(v);
+        return getRowKeyBound(rowKeyColumns[0].column, v);
+    }
+
+    //把条件中的值转成列的类型，SQL按其他类型比较或无法转换时返回null，此时不能用它来确定rowKey的范围
+    private static Value getRowKeyBound(Column c, Value v) {
+        if (v == null || v == ValueNull.INSTANCE)
+            return null;
+        int type = c.getType();
+        if (Value.getHigherOrder(type, v.getType()) != type && !(isNumericType(type) && isNumericType(v.getType())))
+            return null;
+        try {
+            return c.convert(v);
+        } catch (DbException e) {
+            return null;
+        }
+    }
+
+    private static boolean isNumericType(int type) {
+        switch (type) {
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+        case Value.DECIMAL:
+        case Value.DOUBLE:
+        case Value.FLOAT:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    //复合主键从第一列开始连续有条件的那些列的编码，得到的是rowKey的前缀
+    private byte[] getRowKeyPrefix(SearchRow row) {
+        int count = getRangeColumnCount();
+        Value[] values = new Value[count];
+        for (int i = 0; i < count; i++) {
+            Column c = rowKeyColumns[i].column;
+            values[i] = getRowKeyBound(c, row.getValue(c.getColumnId()));
+            if (values[i] == null)
+                break;
+        }
+        if (count == 0 || values[0] == null)
+            return null;
+        return RowKeyCodec.encode(values);
+    }
+
+    //复合主键中从第一列开始可以用来确定rowKey范围的列数，后面的列都不能用:
+    //降序列的开始值和结束值会被IndexCursor交换，
+    //有collation的字符串列、忽略大小写的字符串列和按有符号比较的字节数组列，SQL的顺序与rowKey的字节顺序不一致
+    private int getRangeColumnCount() {
+        CompareMode compareMode = database.getCompareMode();
+        boolean binaryString = CompareMode.OFF.equals(compareMode.getName());
+        for (int i = 0; i < rowKeyColumns.length; i++) {
+            if ((rowKeyColumns[i].sortType & SortOrder.DESCENDING) != 0)
+                return i;
+            switch (rowKeyColumns[i].column.getType()) {
+            case Value.STRING_IGNORECASE:
+                return i;
+            case Value.STRING:
+            case Value.STRING_FIXED:
+                if (!binaryString)
+                    return i;
+                break;
+            case Value.BYTES:
+                if (!compareMode.isBinaryUnsigned())
+                    return i;
+                break;
+            }
+        }
+        return rowKeyColumns.length;
+    }
+
+    //静态表的rowKey编码方式，见rowKeyColumns，
+    //以前建立的表还是使用原来的方式: 单字段主键是字符串rowKey，复合主键使用唯一索引表
+    private void initRowKeyColumns(IndexColumn[] cols) {
+        rowKeyColumns = null;
+        if (!isOrderedRowKey)
+            return;
+        for (IndexColumn c : cols)
+            if (!RowKeyCodec.isSupported(c.column.getType()))
+                return;
+        if (cols.length == 1) {
+            switch (cols[0].column.getType()) {
+            case Value.STRING:
+            case Value.STRING_IGNORECASE:
+            case Value.STRING_FIXED:
+                return;
+            }
+        }
+        rowKeyColumns = cols;
+    }
+
     @Override
     public Column getColumn(String columnName) {
         if (getRowKeyName().equalsIgnoreCase(columnName))
@@ -318,24 +583,30 @@ public class HBaseTable extends TableBase {
     @Override
     public Index addIndex(Session session, String indexName, int indexId, IndexColumn[] cols, IndexType indexType,
             boolean create, String indexComment) {
+        return addIndex(session, indexName, indexId, cols, null, indexType, create, indexComment);
+    }
+
+    @Override
+    public Index addIndex(Session session, String indexName, int indexId, IndexColumn[] cols, IndexColumn[] includeCols,
+            IndexType indexType, boolean create, String indexComment) {
+        if (includeCols != null && indexType.isPrimaryKey())
+            throw DbException.getUnsupportedException("PRIMARY KEY ... INCLUDE");
         boolean isDelegateIndex = false;
         if (indexType.isPrimaryKey()) {
+            initRowKeyColumns(cols);
             for (IndexColumn c : cols) {
                 Column column = c.column;
                 if (column.isNullable()) {
                     throw DbException.get(ErrorCode.COLUMN_MUST_NOT_BE_NULLABLE_1, column.getName());
                 }
                 column.setPrimaryKey(true);
-                column.setRowKeyColumn(true);
+                //复合主键的各列按普通列读写，rowKey由它们编码得到
+                column.setRowKeyColumn(!isCompositeRowKey());
             }
 
-            if (cols.length == 1) {
+            //单字段主键和复合主键都直接对应rowKey，不需要索引表
+            if (cols.length == 1 || isCompositeRowKey())
                 isDelegateIndex = true;
-                if (isStatic) {
-                    rowKeyName = null;
-                    getRowKeyColumn();
-                }
-            }
         }
         boolean isSessionTemporary = isTemporary() && !isGlobalTemporary();
         if (!isSessionTemporary) {
@@ -343,7 +614,7 @@ public class HBaseTable extends TableBase {
 
             if (!isDelegateIndex) {
                 try {
-                    HBaseSecondaryIndex.createIndexTableIfNotExists(session, indexName);
+                    HBaseSecondaryIndex.createIndexTableIfNotExists(session, indexName, getColumns(includeCols));
                 } catch (Exception e) {
                     throw DbException.convert(e);
                 }
@@ -353,7 +624,7 @@ public class HBaseTable extends TableBase {
         if (isDelegateIndex)
             index = new HBaseDelegateIndex(this, indexId, indexName, cols, (HBasePrimaryIndex) scanIndex, indexType);
         else
-            index = new HBaseSecondaryIndex(this, indexId, indexName, cols, indexType);
+            index = new HBaseSecondaryIndex(this, indexId, indexName, cols, includeCols, indexType);
 
         index.setTemporary(isTemporary());
         if (index.getCreateSQL() != null) {
@@ -366,9 +637,32 @@ public class HBaseTable extends TableBase {
         }
         setModified();
         indexes.add(index);
+        //加入主键索引之后才能确定rowKey列
+        if (isStatic && indexType.isPrimaryKey()) {
+            rowKeyName = null;
+            rowKeyColumn = null;
+            getRowKeyColumn();
+        }
         return index;
     }
 
+    private static Column[] getColumns(IndexColumn[] cols) {
+        if (cols == null)
+            return null;
+        Column[] columns = new Column[cols.length];
+        for (int i = 0; i < cols.length; i++)
+            columns[i] = cols[i].column;
+        return columns;
+    }
+
+    //二级索引的代价还要看它能否覆盖filter用到的所有列
+    @Override
+    protected double getCost(Index index, Session session, int[] masks, TableFilter filter, SortOrder sortOrder) {
+        if (index instanceof HBaseSecondaryIndex)
+            return ((HBaseSecondaryIndex) index).getCost(session, masks, filter, sortOrder);
+        return index.getCost(session, masks, sortOrder);
+    }
+
     private void setTransactionId(Session session, Row row) {
         HBaseSession hs = (HBaseSession) session;
         if (hs.getTransaction() != null) {
@@ -385,32 +679,43 @@ public class HBaseTable extends TableBase {
     }
 
     @Override
-    public void addRow(final Session session, final Row row) {
+    public void addRow(Session session, Row row) {
         lastModificationId = database.getNextModificationDataId();
         setTransactionId(session, row);
         log(session, row);
 
         if (doesSecondaryIndexExist()) {
-            int size = indexes.size();
-            List<Callable<Void>> calls = New.arrayList(size);
-            for (int i = 0; i < size; i++) {
-                final Index index = indexes.get(i);
-                if (!(index instanceof HBaseDelegateIndex)) {
-                    calls.add(new Callable<Void>() {
-                        public Void call() throws Exception {
-                            index.add(session, row);
-                            return null;
-                        }
-                    });
-                }
+            //二级索引只是把索引记录放到SecondaryIndexBuffer中，所以不需要再并行执行
+            for (int i = 0, size = indexes.size(); i < size; i++) {
+                Index index = indexes.get(i);
+                if (!(index instanceof HBaseDelegateIndex))
+                    index.add(session, row);
             }
-
-            CommandParallel.execute(calls);
         } else {
             scanIndex.add(session, row);
         }
 
         rowCount++;
+        analyzeIfRequired();
+    }
+
+    /**
+     * 在同一个本地region中批量写入多条记录，目前用于写二级索引表
+     */
+    public void addRows(Session session, byte[] regionName, List<HBaseRow> rows) {
+        lastModificationId = database.getNextModificationDataId();
+        List<Put> puts = New.arrayList(rows.size());
+        for (HBaseRow row : rows) {
+            setTransactionId(session, row);
+            log(session, row);
+            puts.add(row.getPut());
+        }
+        try {
+            ((HBaseSession) session).getRegionServer().put(regionName, puts);
+        } catch (IOException e) {
+            throw DbException.convert(e);
+        }
+        rowCount += rows.size();
     }
 
     @Override
@@ -418,7 +723,7 @@ public class HBaseTable extends TableBase {
         removeRow(session, row, false);
     }
 
-    public void removeRow(final Session session, final Row row, boolean isUndo) {
+    public void removeRow(Session session, Row row, boolean isUndo) {
         if (!isUndo) {
             lastModificationId = database.getNextModificationDataId();
             setTransactionId(session, row);
@@ -426,26 +731,18 @@ public class HBaseTable extends TableBase {
         }
 
         if (!isUndo && doesSecondaryIndexExist()) {
-            int size = indexes.size();
-            List<Callable<Void>> calls = New.arrayList(size);
-            for (int i = 0; i < size; i++) {
-                final Index index = indexes.get(i);
-                if (!(index instanceof HBaseDelegateIndex)) {
-                    calls.add(new Callable<Void>() {
-                        public Void call() throws Exception {
-                            index.remove(session, row);
-                            return null;
-                        }
-                    });
-                }
+            for (int i = 0, size = indexes.size(); i < size; i++) {
+                Index index = indexes.get(i);
+                if (!(index instanceof HBaseDelegateIndex))
+                    index.remove(session, row);
             }
-
-            CommandParallel.execute(calls);
         } else {
             scanIndex.remove(session, row, isUndo);
         }
 
         rowCount--;
+        if (!isUndo)
+            analyzeIfRequired();
     }
 
     @Override
@@ -457,14 +754,16 @@ public class HBaseTable extends TableBase {
         for (rows.reset(); rows.hasNext();) {
             HBaseRow o = (HBaseRow) rows.next();
             HBaseRow n = (HBaseRow) rows.next();
+            if (isCompositeRowKey())
+                checkRowKeyColumnsUnchanged(o, n);
 
             o.setForUpdate(true);
             n.setRegionName(o.getRegionName());
             n.setRowKey(o.getRowKey());
             if (session.getTransaction() != null)
-                put = new Put(HBaseUtils.toBytes(n.getRowKey()), session.getTransaction().getTransactionId());
+                put = new Put(getRowKeyAsBytes(n.getRowKey()), session.getTransaction().getTransactionId());
             else
-                put = new Put(HBaseUtils.toBytes(n.getRowKey()));
+                put = new Put(getRowKeyAsBytes(n.getRowKey()));
             for (int i = 0; i < columnCount; i++) {
                 c = columns[i];
                 put.add(c.getColumnFamilyNameAsBytes(), c.getNameAsBytes(), HBaseUtils.toBytes(n.getValue(i)));
@@ -474,6 +773,16 @@ public class HBaseTable extends TableBase {
         super.updateRows(prepared, session, rows);
     }
 
+    //复合主键的rowKey由主键列编码而来，改了主键列就要换rowKey，新的rowKey可能属于其他region，
+    //这里不支持，否则新值会写到旧rowKey下，按新值查不到，按旧值却插入不了
+    private void checkRowKeyColumnsUnchanged(Row o, Row n) {
+        for (IndexColumn c : rowKeyColumns) {
+            int id = c.column.getColumnId();
+            if (!database.areEqual(o.getValue(id), n.getValue(id)))
+                throw DbException.getUnsupportedException("UPDATE primary key column " + c.column.getSQL());
+        }
+    }
+
     @Override
     public void truncate(Session session) {
 
@@ -536,7 +845,111 @@ public class HBaseTable extends TableBase {
 
     @Override
     public long getRowCountApproximation() {
-        return 0;
+        HBaseTableStatistics stats = getStatistics();
+        if (stats == null)
+            return 0;
+        return Math.max(0, stats.getRowCount() + rowCount - rowCountAtAnalyze);
+    }
+
+    /**
+     * 
+     * @return 最近一次ANALYZE得到的统计信息，每隔STATISTICS_REFRESH_INTERVAL毫秒在后台重新从StatisticsTable读取一次，
+     *         生成执行计划的线程不等待读取结果，先用原来的统计信息
+     */
+    public HBaseTableStatistics getStatistics() {
+        long now = System.currentTimeMillis();
+        if (now - statisticsLoadTime > STATISTICS_REFRESH_INTERVAL && loadingStatistics.compareAndSet(false, true)) {
+            statisticsLoadTime = now;
+            boolean submitted = CommandParallel.getScanLane().trySubmit(new Runnable() {
+                public void run() {
+                    try {
+                        loadStatistics();
+                    } finally {
+                        loadingStatistics.set(false);
+                    }
+                }
+            });
+            if (!submitted) {
+                //下次再试
+                statisticsLoadTime = 0;
+                loadingStatistics.set(false);
+            }
+        }
+        return statistics;
+    }
+
+    private void loadStatistics() {
+        try {
+            setStatistics(StatisticsTable.getInstance().getRecord(this));
+        } catch (Exception e) {
+            //统计信息只影响执行计划，读取失败时继续使用原来的
+            log.warn("Failed to read statistics of table " + tableName, e);
+        }
+    }
+
+    private void setStatistics(HBaseTableStatistics stats) {
+        if (stats == null)
+            return;
+        rowCountAtAnalyze = rowCount;
+        statistics = stats;
+        for (Column c : getColumns()) {
+            int selectivity = stats.getSelectivity(c.getColumnId());
+            if (selectivity > 0)
+                c.setSelectivity(selectivity);
+        }
+    }
+
+    @Override
+    public void analyze(Session session, int sample) {
+        //其他服务器已经执行过ANALYZE，这里是DDL重做，只需要重新读取统计信息
+        if (((HBaseDatabase) database).isFromZookeeper()) {
+            statisticsLoadTime = System.currentTimeMillis();
+            loadStatistics();
+            return;
+        }
+        if (sample <= 0)
+            sample = database.getSettings().analyzeSample;
+        analyze(sample);
+    }
+
+    private void analyze(int sample) {
+        changesSinceAnalyze = 0;
+        try {
+            HBaseTableStatistics stats = HBaseTableStatistics.collect(this, sample);
+            StatisticsTable.getInstance().addRecord(this, stats);
+            statisticsLoadTime = System.currentTimeMillis();
+            setStatistics(stats);
+        } catch (IOException e) {
+            throw DbException.convert(e);
+        }
+    }
+
+    //本机的修改次数足够多时，在后台重新ANALYZE
+    private void analyzeIfRequired() {
+        if (STATISTICS_AUTO_ANALYZE_RATIO <= 0)
+            return;
+        long changes = ++changesSinceAnalyze;
+        if (changes < STATISTICS_AUTO_ANALYZE_MIN_CHANGES)
+            return;
+        HBaseTableStatistics stats = statistics;
+        if (stats != null && changes < stats.getRowCount() * STATISTICS_AUTO_ANALYZE_RATIO)
+            return;
+        if (!analyzing.compareAndSet(false, true))
+            return;
+
+        boolean submitted = CommandParallel.getScanLane().trySubmit(new Runnable() {
+            public void run() {
+                try {
+                    analyze(database.getSettings().analyzeSample);
+                } catch (Exception e) {
+                    log.warn("Failed to analyze table " + tableName, e);
+                } finally {
+                    analyzing.set(false);
+                }
+            }
+        });
+        if (!submitted)
+            analyzing.set(false);
     }
 
     @Override
@@ -613,8 +1026,10 @@ public class HBaseTable extends TableBase {
         indexes.clear();
         boolean isFromZookeeper = ((HBaseDatabase) database).isFromZookeeper();
         super.removeChildrenAndResources(session);
-        if (!isFromZookeeper)
+        if (!isFromZookeeper) {
             dropIfExists(session, getName());
+            StatisticsTable.getInstance().removeRecord(this);
+        }
     }
 
     @Override
@@ -644,6 +1059,18 @@ public class HBaseTable extends TableBase {
         }
     }
 
+    //HBase中已经存在的表从它的HTableDescriptor中读取rowKey的编码方式
+    private static boolean isOrderedRowKey(String tableName) {
+        try {
+            HTableDescriptor htd = HBaseUtils.getHBaseAdmin().getTableDescriptor(Bytes.toBytes(tableName));
+            return Options.ROW_KEY_ENCODING_ORDERED.equals(htd.getValue(Options.ON_ROW_KEY_ENCODING));
+        } catch (TableNotFoundException e) {
+            return true;
+        } catch (IOException e) {
+            throw DbException.convertIOException(e, "Failed to get table descriptor of " + tableName);
+        }
+    }
+
     private static void dropIfExists(Session session, String tableName) {
         try {
             HMaster master = ((HBaseSession) session).getMaster();
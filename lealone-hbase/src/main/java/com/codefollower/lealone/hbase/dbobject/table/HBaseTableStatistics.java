@@ -0,0 +1,338 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.dbobject.table;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.Callable;
+
+import org.apache.hadoop.hbase.ClusterStatus;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HServerLoad;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.RandomRowFilter;
+import org.apache.hadoop.hbase.ipc.HRegionInterface;
+
+import com.codefollower.lealone.dbobject.table.Column;
+import com.codefollower.lealone.hbase.command.CommandParallel;
+import com.codefollower.lealone.hbase.engine.HBaseConstants;
+import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.util.New;
+import com.codefollower.lealone.value.CompareMode;
+import com.codefollower.lealone.value.Value;
+import com.codefollower.lealone.value.ValueNull;
+
+/**
+ *
+ * HBase表的统计信息: 总记录数、每个字段的不同值个数和等深直方图。<p>
+ *
+ * 由ANALYZE对每个region并行抽样得到，保存在StatisticsTable中，优化器用它来估算索引的代价。
+ *
+ */
+public class HBaseTableStatistics {
+    private static final int HISTOGRAM_BUCKETS = HBaseUtils.getConfiguration().getInt(
+            HBaseConstants.STATISTICS_HISTOGRAM_BUCKETS, HBaseConstants.DEFAULT_STATISTICS_HISTOGRAM_BUCKETS);
+
+    //每个region至少抽样多少条记录
+    private static final int MIN_REGION_SAMPLE_ROWS = 100;
+
+    private final long rowCount;
+    private final long analyzeTime;
+    //下标是字段的columnId，值为-1时表示没有统计这个字段
+    private final long[] distinctCounts;
+    //直方图的边界值，包括最小值和最大值，相邻两个边界之间的记录数大致相同
+    private final Value[][] histograms;
+
+    public HBaseTableStatistics(long rowCount, long analyzeTime, long[] distinctCounts, Value[][] histograms) {
+        this.rowCount = rowCount;
+        this.analyzeTime = analyzeTime;
+        this.distinctCounts = distinctCounts;
+        this.histograms = histograms;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public long getAnalyzeTime() {
+        return analyzeTime;
+    }
+
+    public long getDistinctCount(int columnId) {
+        if (columnId < 0 || columnId >= distinctCounts.length)
+            return -1;
+        return distinctCounts[columnId];
+    }
+
+    public Value[] getHistogram(int columnId) {
+        if (columnId < 0 || columnId >= histograms.length)
+            return null;
+        return histograms[columnId];
+    }
+
+    /**
+     *
+     * @return 与Column.getSelectivity的含义相同: 100表示没有重复值，没有统计时返回0
+     */
+    public int getSelectivity(int columnId) {
+        long distinct = getDistinctCount(columnId);
+        if (distinct < 0 || rowCount <= 0)
+            return 0;
+        return (int) Math.max(1, Math.min(100, distinct * 100 / rowCount));
+    }
+
+    /**
+     * 用直方图估算字段值在[start, end]之间的记录所占的比例，start或end为null时表示没有这一端的限制
+     *
+     * @return 没有直方图时返回-1
+     */
+    public double getRangeFraction(int columnId, Value start, Value end, CompareMode compareMode) {
+        Value[] histogram = getHistogram(columnId);
+        if (histogram == null || histogram.length < 2)
+            return -1;
+        double from = start == null ? 0 : getFraction(histogram, start, compareMode);
+        double to = end == null ? 1 : getFraction(histogram, end, compareMode);
+        double fraction = to - from;
+        //至少算一个桶的一半，避免把范围查询估成0条记录
+        return Math.max(fraction, 0.5 / (histogram.length - 1));
+    }
+
+    //小于等于v的记录所占的比例，在桶内部按桶的一半计算
+    private static double getFraction(Value[] histogram, Value v, CompareMode compareMode) {
+        int buckets = histogram.length - 1;
+        if (v.compareTypeSave(histogram[0], compareMode) < 0)
+            return 0;
+        if (v.compareTypeSave(histogram[buckets], compareMode) >= 0)
+            return 1;
+        int low = 0, high = buckets;
+        while (high - low > 1) {
+            int mid = (low + high) >>> 1;
+            if (v.compareTypeSave(histogram[mid], compareMode) < 0)
+                high = mid;
+            else
+                low = mid;
+        }
+        return (low + 0.5) / buckets;
+    }
+
+    /**
+     * 对表的每个region并行抽样，合并成整张表的统计信息。<p>
+     *
+     * 每个region先读开头的一批记录，读完整个region时记录数是准确的，
+     * 否则按region的大小除以这批记录的平均大小估算，再在整个region中随机抽样。
+     *
+     * @param sampleRows 整张表总共抽样多少条记录
+     */
+    public static HBaseTableStatistics collect(HBaseTable table, int sampleRows) throws IOException {
+        final byte[] tableName = table.getTableNameAsBytes();
+        NavigableMap<HRegionInfo, ServerName> regions = HBaseUtils.getRegionLocations(tableName);
+        final int regionSampleRows = Math.max(sampleRows / Math.max(regions.size(), 1), MIN_REGION_SAMPLE_ROWS);
+        final ClusterStatus clusterStatus = HBaseUtils.getHBaseAdmin().getClusterStatus();
+
+        List<Callable<RegionSample>> calls = New.arrayList(regions.size());
+        for (Map.Entry<HRegionInfo, ServerName> e : regions.entrySet()) {
+            final HRegionInfo hri = e.getKey();
+            final ServerName sn = e.getValue();
+            calls.add(new Callable<RegionSample>() {
+                public RegionSample call() throws Exception {
+                    return sample(clusterStatus, hri, sn, regionSampleRows);
+                }
+            });
+        }
+
+        long rowCount = 0;
+        List<Result> rows = New.arrayList();
+        for (RegionSample s : CommandParallel.getScanLane().invokeAll(calls)) {
+            rowCount += s.rowCount;
+            rows.addAll(s.rows);
+        }
+
+        Column[] columns = table.getColumns();
+        long[] distinctCounts = new long[columns.length];
+        Value[][] histograms = new Value[columns.length][];
+        CompareMode compareMode = table.getDatabase().getCompareMode();
+        for (int i = 0; i < columns.length; i++) {
+            Column c = columns[i];
+            int type = c.getType();
+            if (c.isTypeUnknown() || type == Value.BLOB || type == Value.CLOB) {
+                distinctCounts[i] = -1;
+                continue;
+            }
+            List<Value> values = New.arrayList(rows.size());
+            for (Result r : rows) {
+                if (c.isRowKeyColumn())
+                    values.add(table.getRowKeyValue(r.getRow()));
+                else
+                    values.add(HBaseUtils.toValue(r.getValue(c.getColumnFamilyNameAsBytes(), c.getNameAsBytes()), type));
+            }
+            distinctCounts[i] = c.isRowKeyColumn() ? rowCount : getDistinctCount(values, rowCount);
+            histograms[i] = getHistogram(values, compareMode);
+        }
+        return new HBaseTableStatistics(rowCount, System.currentTimeMillis(), distinctCounts, histograms);
+    }
+
+    /**
+     * 先读region开头的一批记录，读完整个region时记录数是准确的，样本就是整个region。<p>
+     *
+     * 否则按region的大小除以这批记录的平均大小估算记录数，
+     * 再用RandomRowFilter在整个region中按同样的条数随机抽样，避免样本只代表region开头的那部分key。
+     */
+    private static RegionSample sample(ClusterStatus clusterStatus, HRegionInfo hri, ServerName sn, int sampleRows)
+            throws IOException {
+        HRegionInterface server = HBaseUtils.getConnection().getHRegionConnection(sn.getHostname(), sn.getPort());
+        Result[] results = scan(server, hri, sampleRows, null);
+
+        RegionSample s = new RegionSample();
+        if (results == null)
+            return s;
+
+        long bytes = 0;
+        for (Result r : results) {
+            bytes += getLength(r);
+            if (!isDeleted(r))
+                s.rows.add(r);
+        }
+        s.rowCount = s.rows.size();
+        if (results.length >= sampleRows && bytes > 0) {
+            HServerLoad load = clusterStatus.getLoad(sn);
+            HServerLoad.RegionLoad regionLoad = load == null ? null : load.getRegionsLoad().get(hri.getRegionName());
+            if (regionLoad != null) {
+                long regionBytes = (regionLoad.getStorefileSizeMB() + regionLoad.getMemStoreSizeMB()) * 1024L * 1024L;
+                //包括已删除的记录
+                long totalRows = regionBytes / (bytes / results.length + 1);
+                long estimated = totalRows * s.rows.size() / results.length;
+                s.rowCount = Math.max(s.rowCount, estimated);
+
+                if (totalRows > results.length) {
+                    float chance = (float) sampleRows / totalRows;
+                    Result[] randomResults = scan(server, hri, sampleRows, new RandomRowFilter(chance));
+                    if (randomResults != null && randomResults.length > 0) {
+                        s.rows.clear();
+                        for (Result r : randomResults)
+                            if (!isDeleted(r))
+                                s.rows.add(r);
+                    }
+                }
+            }
+        }
+        return s;
+    }
+
+    //最多读maxRows条记录
+    private static Result[] scan(HRegionInterface server, HRegionInfo hri, int maxRows, Filter filter)
+            throws IOException {
+        Scan scan = new Scan();
+        scan.setMaxVersions(1);
+        scan.setCaching(maxRows);
+        if (filter != null)
+            scan.setFilter(filter);
+        List<Result> list = New.arrayList();
+        long scannerId = server.openScanner(hri.getRegionName(), scan);
+        try {
+            while (list.size() < maxRows) {
+                Result[] results = server.next(scannerId, maxRows - list.size());
+                if (results == null || results.length == 0)
+                    break;
+                for (Result r : results)
+                    list.add(r);
+                if (filter == null) //不带过滤器时一次就能读够，读不够说明已经到region末尾了
+                    break;
+            }
+        } finally {
+            server.close(scannerId);
+        }
+        return list.toArray(new Result[list.size()]);
+    }
+
+    private static long getLength(Result r) {
+        long bytes = 0;
+        for (KeyValue kv : r.raw())
+            bytes += kv.getLength();
+        return bytes;
+    }
+
+    //所有字段值都为空的记录是已删除的记录
+    private static boolean isDeleted(Result r) {
+        for (KeyValue kv : r.raw())
+            if (kv.getValueLength() != 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * 用Haas和Stokes的Duj1估算法，根据样本中的不同值个数估算总的不同值个数:
+     * D = n * d / (n - f1 + f1 * n / N)，其中f1是样本中只出现一次的值的个数
+     */
+    private static long getDistinctCount(List<Value> values, long rowCount) {
+        int n = values.size();
+        if (n == 0)
+            return 0;
+        HashMap<Value, Integer> counts = new HashMap<Value, Integer>();
+        for (Value v : values) {
+            Integer count = counts.get(v);
+            counts.put(v, count == null ? 1 : count + 1);
+        }
+        long d = counts.size();
+        if (n >= rowCount)
+            return d;
+        long f1 = 0;
+        for (Integer count : counts.values())
+            if (count == 1)
+                f1++;
+        double distinct = n * d / (n - f1 + (double) f1 * n / rowCount);
+        return Math.max(d, Math.min(rowCount, (long) distinct));
+    }
+
+    private static Value[] getHistogram(List<Value> values, final CompareMode compareMode) {
+        List<Value> list = new ArrayList<Value>(values.size());
+        for (Value v : values)
+            if (v != null && v != ValueNull.INSTANCE)
+                list.add(v);
+        if (list.isEmpty())
+            return null;
+        Collections.sort(list, new Comparator<Value>() {
+            public int compare(Value v1, Value v2) {
+                return v1.compareTypeSave(v2, compareMode);
+            }
+        });
+
+        int size = list.size();
+        int buckets = Math.max(1, Math.min(HISTOGRAM_BUCKETS, size - 1));
+        Value[] histogram = new Value[buckets + 1];
+        for (int i = 0; i <= buckets; i++)
+            histogram[i] = list.get((int) ((long) i * (size - 1) / buckets));
+        return histogram;
+    }
+
+    private static class RegionSample {
+        final List<Result> rows = New.arrayList();
+        long rowCount;
+    }
+}
@@ -57,45 +57,157 @@ public class HBaseConstants {
     public static final String COMMAND_RETRYABLE = Constants.PROJECT_NAME_PREFIX + "command.retryable";
     public static final boolean DEFAULT_COMMAND_RETRYABLE = true;
 
+    //CommandParallel分两条通道: oltp通道执行短小的更新、索引维护和分布式提交，scan通道执行分布式查询。
+    //每条通道的线程数和排队任务数都是有界的，空闲线程在keep.alive.time秒后退出
+    public static final String COMMAND_PARALLEL_MAX_POOL_SIZE = Constants.PROJECT_NAME_PREFIX //
+            + "command.parallel.max.pool.size";
+    public static final int DEFAULT_COMMAND_PARALLEL_MAX_POOL_SIZE = 64;
+
+    /**
+     * @deprecated 已不再读取，每条通道的核心线程数等于最大线程数(见COMMAND_PARALLEL_MAX_POOL_SIZE)，
+     * 空闲线程仍会在keep.alive.time秒后退出。保留这个常量只是为了不破坏引用它的代码
+     */
+    @Deprecated
     public static final String COMMAND_PARALLEL_CORE_POOL_SIZE = Constants.PROJECT_NAME_PREFIX
             + "command.parallel.core.pool.size";
+    /**
+     * @deprecated 见COMMAND_PARALLEL_CORE_POOL_SIZE
+     */
+    @Deprecated
     public static final int DEFAULT_COMMAND_PARALLEL_CORE_POOL_SIZE = 3;
 
-    public static final String COMMAND_PARALLEL_MAX_POOL_SIZE = Constants.PROJECT_NAME_PREFIX //
-            + "command.parallel.max.pool.size";
-    public static final int DEFAULT_COMMAND_PARALLEL_MAX_POOL_SIZE = Integer.MAX_VALUE;
+    public static final String COMMAND_PARALLEL_SCAN_MAX_POOL_SIZE = Constants.PROJECT_NAME_PREFIX //
+            + "command.parallel.scan.max.pool.size";
+    public static final int DEFAULT_COMMAND_PARALLEL_SCAN_MAX_POOL_SIZE = 32;
+
+    //每条通道最多排队多少个任务，队列满时由提交任务的线程自己执行
+    public static final String COMMAND_PARALLEL_QUEUE_SIZE = Constants.PROJECT_NAME_PREFIX //
+            + "command.parallel.queue.size";
+    public static final int DEFAULT_COMMAND_PARALLEL_QUEUE_SIZE = 1024;
+
+    //一次并行调用(比如一个查询发往多个region)最多同时占用多少个线程(包括调用者自己)
+    public static final String COMMAND_PARALLEL_MAX_QUERY_PARALLELISM = Constants.PROJECT_NAME_PREFIX
+            + "command.parallel.max.query.parallelism";
+    public static final int DEFAULT_COMMAND_PARALLEL_MAX_QUERY_PARALLELISM = 16;
 
     public static final String COMMAND_PARALLEL_KEEP_ALIVE_TIME = Constants.PROJECT_NAME_PREFIX
             + "command.parallel.keep.alive.time";
     public static final int DEFAULT_COMMAND_PARALLEL_KEEP_ALIVE_TIME = 5;
 
+    //非排序、非聚合的分布式查询同时向多少个数据源发出查询，为1时一个接一个地串行执行
+    public static final String COMMAND_PARALLEL_PREFETCH_SOURCES = Constants.PROJECT_NAME_PREFIX
+            + "command.parallel.prefetch.sources";
+    public static final int DEFAULT_COMMAND_PARALLEL_PREFETCH_SOURCES = 4;
+
+    //每个数据源最多预先取出多少条记录
+    public static final String COMMAND_PARALLEL_PREFETCH_BUFFER_SIZE = Constants.PROJECT_NAME_PREFIX
+            + "command.parallel.prefetch.buffer.size";
+    public static final int DEFAULT_COMMAND_PARALLEL_PREFETCH_BUFFER_SIZE = 1024;
+
+    //为true时按数据源的顺序返回记录，为false时按记录到达的顺序返回
+    public static final String COMMAND_PARALLEL_PREFETCH_ORDERED = Constants.PROJECT_NAME_PREFIX
+            + "command.parallel.prefetch.ordered";
+    public static final boolean DEFAULT_COMMAND_PARALLEL_PREFETCH_ORDERED = true;
+
+    //聚合查询合并各region的部分结果时，预计的记录数超过这个值就按分组键的哈希值分区，一次只合并一个分区
+    public static final String COMMAND_PARALLEL_MERGE_MEMORY_ROWS = Constants.PROJECT_NAME_PREFIX
+            + "command.parallel.merge.memory.rows";
+    public static final int DEFAULT_COMMAND_PARALLEL_MERGE_MEMORY_ROWS = 1 << 18;
+
+    //合并时最多分多少个区
+    public static final String COMMAND_PARALLEL_MERGE_MAX_PARTITIONS = Constants.PROJECT_NAME_PREFIX
+            + "command.parallel.merge.max.partitions";
+    public static final int DEFAULT_COMMAND_PARALLEL_MERGE_MAX_PARTITIONS = 64;
+
+    //scan相关参数
+    //-------------------------------
+    //region scanner每一批最多返回多少字节，按已读记录的平均大小换算成记录数，不会超过语句的fetchSize
+    public static final String SCAN_MAX_RESULT_SIZE = Constants.PROJECT_NAME_PREFIX + "scan.max.result.size";
+    public static final int DEFAULT_SCAN_MAX_RESULT_SIZE = 2 * 1024 * 1024;
+
     //session相关参数
     //-------------------------------
     public static final String SESSION_CORE_POOL_SIZE = Constants.PROJECT_NAME_PREFIX + "session.core.pool.size";
     public static final int DEFAULT_SESSION_CORE_POOL_SIZE = 3;
 
+    //每个SessionRemote最多缓存多少个已在远程服务器上prepare过的命令，为0时不缓存
+    public static final String SESSION_COMMAND_CACHE_SIZE = Constants.PROJECT_NAME_PREFIX + "session.command.cache.size";
+    public static final int DEFAULT_SESSION_COMMAND_CACHE_SIZE = 32;
+
     //metadata相关参数
     //-------------------------------
     public static final String METADATA_MAX_DDL_REDO_RECORDS = Constants.PROJECT_NAME_PREFIX + "metadata.max.ddl.redo.records";
     public static final int DEFAULT_METADATA_MAX_DDL_REDO_RECORDS = 5000;
 
+    //statistics相关参数
+    //-------------------------------
+    public static final String STATISTICS_HISTOGRAM_BUCKETS = Constants.PROJECT_NAME_PREFIX + "statistics.histogram.buckets";
+    public static final int DEFAULT_STATISTICS_HISTOGRAM_BUCKETS = 32;
+
+    //每隔多少毫秒从StatisticsTable重新读取一次统计信息，这样其他服务器上执行的ANALYZE也能看到
+    public static final String STATISTICS_REFRESH_INTERVAL = Constants.PROJECT_NAME_PREFIX + "statistics.refresh.interval";
+    public static final int DEFAULT_STATISTICS_REFRESH_INTERVAL = 60000;
+
+    //本机对一张表的修改次数超过上一次统计的记录数乘以这个比率(并且不少于min.changes)时，在后台重新ANALYZE，为0时不自动ANALYZE
+    public static final String STATISTICS_AUTO_ANALYZE_RATIO = Constants.PROJECT_NAME_PREFIX + "statistics.auto.analyze.ratio";
+    public static final float DEFAULT_STATISTICS_AUTO_ANALYZE_RATIO = 0.2f;
+
+    public static final String STATISTICS_AUTO_ANALYZE_MIN_CHANGES = Constants.PROJECT_NAME_PREFIX
+            + "statistics.auto.analyze.min.changes";
+    public static final int DEFAULT_STATISTICS_AUTO_ANALYZE_MIN_CHANGES = 10000;
+
     //transaction相关参数
     //-------------------------------
     public static final String TRANSACTION_COMMIT_CACHE_SIZE = Constants.PROJECT_NAME_PREFIX + "transaction.commit.cache.size";
-    public static final int DEFAULT_TRANSACTION_COMMIT_CACHE_SIZE = 1000;
+    public static final int DEFAULT_TRANSACTION_COMMIT_CACHE_SIZE = 1 << 16;
+
+    //too old导致的abort比率超过target.abort.rate时，缓存会翻倍，直到max.size
+    public static final String TRANSACTION_COMMIT_CACHE_MAX_SIZE = Constants.PROJECT_NAME_PREFIX
+            + "transaction.commit.cache.max.size";
+    public static final int DEFAULT_TRANSACTION_COMMIT_CACHE_MAX_SIZE = 1 << 22;
+
+    public static final String TRANSACTION_COMMIT_CACHE_TARGET_ABORT_RATE = Constants.PROJECT_NAME_PREFIX
+            + "transaction.commit.cache.target.abort.rate";
+    public static final float DEFAULT_TRANSACTION_COMMIT_CACHE_TARGET_ABORT_RATE = 0.001f;
 
     public static final String TRANSACTION_COMMIT_CACHE_ASSOCIATIVITY = Constants.PROJECT_NAME_PREFIX
             + "transaction.commit.cache.associativity";
     public static final int DEFAULT_TRANSACTION_COMMIT_CACHE_ASSOCIATIVITY = 32;
 
+    public static final String TRANSACTION_COMMIT_CACHE_STRIPES = Constants.PROJECT_NAME_PREFIX
+            + "transaction.commit.cache.stripes";
+    public static final int DEFAULT_TRANSACTION_COMMIT_CACHE_STRIPES = 64;
+
     public static final String TRANSACTION_TIMESTAMP_BATCH = Constants.PROJECT_NAME_PREFIX + "transaction.timestamp.batch";
     public static final int DEFAULT_TRANSACTION_TIMESTAMP_BATCH = 100000;
 
-    public static final String TRANSACTION_STATUS_CACHE_BUCKET_NUMBER = Constants.PROJECT_NAME_PREFIX
-            + "transaction.status.cache.bucket.number";
-    public static final int DEFAULT_TRANSACTION_STATUS_CACHE_BUCKET_NUMBER = 1 << 15;
-
-    public static final String TRANSACTION_STATUS_CACHE_BUCKET_SIZE = Constants.PROJECT_NAME_PREFIX
-            + "transaction.status.cache.bucket.size";
-    public static final int DEFAULT_TRANSACTION_STATUS_CACHE_BUCKET_SIZE = 1 << 14;
+    //剩余可分配的时间戳少于这个值时在后台预留下一批
+    public static final String TRANSACTION_TIMESTAMP_LOW_WATER_MARK = Constants.PROJECT_NAME_PREFIX
+            + "transaction.timestamp.low.water.mark";
+    public static final int DEFAULT_TRANSACTION_TIMESTAMP_LOW_WATER_MARK = 20000;
+
+    public static final String TRANSACTION_STATUS_GROUP_COMMIT_MAX_BATCH_SIZE = Constants.PROJECT_NAME_PREFIX
+            + "transaction.status.group.commit.max.batch.size";
+    public static final int DEFAULT_TRANSACTION_STATUS_GROUP_COMMIT_MAX_BATCH_SIZE = 256;
+
+    //单位是微秒，0表示不额外等待，只合并上一次写表期间积累下来的记录
+    public static final String TRANSACTION_STATUS_GROUP_COMMIT_MAX_DELAY = Constants.PROJECT_NAME_PREFIX
+            + "transaction.status.group.commit.max.delay";
+    public static final int DEFAULT_TRANSACTION_STATUS_GROUP_COMMIT_MAX_DELAY = 0;
+
+    //是否在region scanner内部用ValidityFilter做可见性过滤，遇到状态未知的事务时不会同步查询TransactionStatusTable，
+    //而是推迟到scanner外面按批查询。ValidityFilter要读每列的所有版本，
+    //而不启用时每列只读最新的一个版本，大多数记录都不是未提交事务写入的，所以默认关闭
+    public static final String TRANSACTION_VALIDITY_FILTER_ENABLED = Constants.PROJECT_NAME_PREFIX
+            + "transaction.validity.filter.enabled";
+    public static final boolean DEFAULT_TRANSACTION_VALIDITY_FILTER_ENABLED = false;
+
+    //每个缓存项占24字节(版本号、事务id、事务状态)，默认最多占用24M内存
+    public static final String TRANSACTION_STATUS_CACHE_SIZE = Constants.PROJECT_NAME_PREFIX + "transaction.status.cache.size";
+    public static final int DEFAULT_TRANSACTION_STATUS_CACHE_SIZE = 1 << 20;
+
+    //undo日志在内存中的最大字节数，超过后写满的chunk会被转移到临时文件中
+    public static final String TRANSACTION_UNDO_LOG_MEMORY_THRESHOLD = Constants.PROJECT_NAME_PREFIX
+            + "transaction.undo.log.memory.threshold";
+    public static final int DEFAULT_TRANSACTION_UNDO_LOG_MEMORY_THRESHOLD = 16 * 1024 * 1024;
 }
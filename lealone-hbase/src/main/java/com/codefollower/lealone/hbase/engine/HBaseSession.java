@@ -23,8 +23,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Future;
-import java.util.concurrent.ThreadPoolExecutor;
 
 import org.apache.hadoop.hbase.master.HMaster;
 import org.apache.hadoop.hbase.regionserver.HRegionServer;
@@ -40,6 +38,7 @@ import com.codefollower.lealone.hbase.command.CommandParallel;
 import com.codefollower.lealone.hbase.command.HBaseParser;
 import com.codefollower.lealone.hbase.command.dml.HBaseInsert;
 import com.codefollower.lealone.hbase.dbobject.HBaseSequence;
+import com.codefollower.lealone.hbase.dbobject.index.SecondaryIndexBuffer;
 import com.codefollower.lealone.hbase.metadata.TransactionStatusTable;
 import com.codefollower.lealone.hbase.result.HBaseRow;
 import com.codefollower.lealone.hbase.transaction.TimestampService;
@@ -51,7 +50,6 @@ import com.codefollower.lealone.util.New;
 public class HBaseSession extends Session {
 
     private static final TransactionStatusTable transactionStatusTable = TransactionStatusTable.getInstance();
-    private static final ThreadPoolExecutor pool = CommandParallel.getThreadPoolExecutor();
 
     /**
      * HBase的HMaster对象，master和regionServer不可能同时非null
@@ -74,6 +72,9 @@ public class HBaseSession extends Session {
     //参与本次事务的其他SessionRemote
     private final Map<String, SessionRemote> sessionRemoteCache = New.hashMap();
 
+    //当前语句对二级索引的修改，在语句结束时批量写入
+    private final SecondaryIndexBuffer secondaryIndexBuffer = new SecondaryIndexBuffer();
+
     public HBaseSession(Database database, User user, int id) {
         super(database, user, id);
     }
@@ -86,6 +87,10 @@ public class HBaseSession extends Session {
         return sessionRemoteCache.get(url);
     }
 
+    public SecondaryIndexBuffer getSecondaryIndexBuffer() {
+        return secondaryIndexBuffer;
+    }
+
     public HMaster getMaster() {
         return master;
     }
@@ -184,6 +189,7 @@ public class HBaseSession extends Session {
     private void endTransaction() {
         if (transaction != null) {
             transaction = null;
+            secondaryIndexBuffer.clear();
 
             for (SessionRemote sr : sessionRemoteCache.values()) {
                 sr.setTransaction(null);
@@ -262,10 +268,9 @@ public class HBaseSession extends Session {
     }
 
     private void parallel(final boolean commit) {
-        int size = sessionRemoteCache.size();
-        List<Future<Void>> futures = New.arrayList(size);
+        List<Callable<Void>> calls = New.arrayList(sessionRemoteCache.size());
         for (final SessionRemote sessionRemote : sessionRemoteCache.values()) {
-            futures.add(pool.submit(new Callable<Void>() {
+            calls.add(new Callable<Void>() {
                 public Void call() throws Exception {
                     if (commit)
                         sessionRemote.commitTransaction();
@@ -273,15 +278,9 @@ public class HBaseSession extends Session {
                         sessionRemote.rollbackTransaction();
                     return null;
                 }
-            }));
-        }
-        try {
-            for (int i = 0; i < size; i++) {
-                futures.get(i).get();
-            }
-        } catch (Exception e) {
-            throw DbException.convert(e);
+            });
         }
+        CommandParallel.execute(calls);
     }
 
     public void log(HBaseRow row) {
@@ -319,10 +318,9 @@ public class HBaseSession extends Session {
     }
 
     private void parallelSavepoint(final boolean add, final String name) {
-        int size = sessionRemoteCache.size();
-        List<Future<Void>> futures = New.arrayList(size);
+        List<Callable<Void>> calls = New.arrayList(sessionRemoteCache.size());
         for (final SessionRemote sessionRemote : sessionRemoteCache.values()) {
-            futures.add(pool.submit(new Callable<Void>() {
+            calls.add(new Callable<Void>() {
                 public Void call() throws Exception {
                     if (add)
                         sessionRemote.addSavepoint(name);
@@ -330,14 +328,8 @@ public class HBaseSession extends Session {
                         sessionRemote.rollbackToSavepoint(name);
                     return null;
                 }
-            }));
-        }
-        try {
-            for (int i = 0; i < size; i++) {
-                futures.get(i).get();
-            }
-        } catch (Exception e) {
-            throw DbException.convert(e);
+            });
         }
+        CommandParallel.execute(calls);
     }
 }
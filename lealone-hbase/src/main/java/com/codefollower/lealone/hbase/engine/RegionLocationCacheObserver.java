@@ -30,11 +30,9 @@ import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hbase.zookeeper.ZKUtil;
 import org.apache.hadoop.hbase.zookeeper.ZooKeeperWatcher;
 
-import com.codefollower.lealone.hbase.zookeeper.RegionLocationCacheTracker;
 import com.codefollower.lealone.hbase.zookeeper.ZooKeeperAdmin;
 
 public class RegionLocationCacheObserver extends BaseRegionObserver {
-    private static RegionLocationCacheTracker tracker;
     private static ZooKeeperWatcher watcher;
     private static final AtomicLong count = new AtomicLong(1);
 
@@ -44,8 +42,7 @@ public class RegionLocationCacheObserver extends BaseRegionObserver {
                 synchronized (RegionLocationCacheObserver.class) {
                     if (watcher == null) {
                         watcher = ZooKeeperAdmin.getZooKeeperWatcher();
-                        tracker = new RegionLocationCacheTracker(watcher);
-                        tracker.start();
+                        ZooKeeperAdmin.getRegionLocationCacheTracker();
                     }
                 }
             }
@@ -20,7 +20,9 @@
 package com.codefollower.lealone.hbase.engine;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -36,6 +38,44 @@ import com.codefollower.lealone.hbase.util.HBaseUtils;
 public class SessionRemotePool {
     private static final int corePoolSize = HBaseUtils.getConfiguration().getInt(HBaseConstants.SESSION_CORE_POOL_SIZE,
             HBaseConstants.DEFAULT_SESSION_CORE_POOL_SIZE);
+    private static final int commandCacheSize = HBaseUtils.getConfiguration().getInt(HBaseConstants.SESSION_COMMAND_CACHE_SIZE,
+            HBaseConstants.DEFAULT_SESSION_COMMAND_CACHE_SIZE);
+
+    //key是SessionRemote，value是在这个SessionRemote上已prepare过的命令，按SQL查找
+    private static final ConcurrentHashMap<SessionRemote, CommandCache> //
+    commandCache = new ConcurrentHashMap<SessionRemote, CommandCache>();
+
+    //被LRU淘汰的命令要关闭，否则服务器端的命令会一直留在缓存中
+    private static class CommandCache extends LinkedHashMap<String, CachedCommand> {
+        private static final long serialVersionUID = 1L;
+        private final int maxSize;
+
+        CommandCache(int maxSize) {
+            super(maxSize, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedCommand> eldest) {
+            if (size() > maxSize) {
+                eldest.getValue().command.close();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static class CachedCommand {
+        final CommandRemote command;
+        final int lastReconnect; //SessionRemote重连后服务器端的命令已不存在
+        final long modificationMetaId; //执行过DDL后表结构可能已变化
+
+        CachedCommand(CommandRemote command, int lastReconnect, long modificationMetaId) {
+            this.command = command;
+            this.lastReconnect = lastReconnect;
+            this.modificationMetaId = modificationMetaId;
+        }
+    }
 
     //key是Master或RegionServer的URL
     private static final ConcurrentHashMap<String, ConcurrentLinkedQueue<SessionRemote>> //
@@ -63,6 +103,9 @@ public class SessionRemotePool {
     public static SessionRemote getSessionRemote(Properties info, String url) {
         SessionRemote sr = getQueue(url).poll();
 
+        if (sr != null && sr.isClosed())
+            commandCache.remove(sr);
+
         if (sr == null || sr.isClosed()) {
             byte[] userPasswordHash = null;
             byte[] filePasswordHash = null;
@@ -89,21 +132,75 @@ public class SessionRemotePool {
     }
 
     public static void release(SessionRemote sr) {
-        if (sr == null || sr.isClosed())
+        if (sr == null)
+            return;
+        if (sr.isClosed()) {
+            commandCache.remove(sr);
             return;
+        }
 
         ConcurrentLinkedQueue<SessionRemote> queue = getQueue(sr.getURL());
-        if (queue.size() > corePoolSize)
+        if (queue.size() > corePoolSize) {
+            commandCache.remove(sr);
             sr.close();
-        else
+        } else
             queue.offer(sr);
     }
 
     public static CommandRemote getCommandRemote(HBaseSession originalSession, Prepared prepared, //
             String url, String sql) throws Exception {
+        SessionRemote sessionRemote = getSessionRemote(originalSession, url);
+        return getCachedCommandRemote(originalSession, sessionRemote, sql, prepared.getParameters(), prepared.getFetchSize());
+    }
+
+    /**
+     * 同一个SessionRemote上相同的SQL只在第一次执行时prepare，之后只需要传递参数值，
+     * 调用者不能关闭返回的CommandRemote
+     */
+    public static CommandRemote getCachedCommandRemote(HBaseSession originalSession, SessionRemote sr, String sql,
+            List<Parameter> parameters, int fetchSize) {
+        if (commandCacheSize <= 0)
+            return getCommandRemote(sr, sql, parameters, fetchSize);
+
+        long modificationMetaId = originalSession.getDatabase().getModificationMetaId();
+        CommandCache cache = commandCache.get(sr);
+        if (cache == null) {
+            cache = new CommandCache(commandCacheSize);
+            CommandCache old = commandCache.putIfAbsent(sr, cache);
+            if (old != null)
+                cache = old;
+        }
+
+        CachedCommand cc;
+        synchronized (cache) {
+            cc = cache.get(sql);
+        }
+        if (cc != null && cc.lastReconnect == sr.getLastReconnect() && cc.modificationMetaId == modificationMetaId
+                && cc.command.getFetchSize() == fetchSize) {
+            setParameters(cc.command, parameters);
+            return cc.command;
+        }
+
+        int lastReconnect = sr.getLastReconnect();
+        CommandRemote cr = getCommandRemote(sr, sql, parameters, fetchSize);
+        synchronized (cache) {
+            cc = cache.put(sql, new CachedCommand(cr, lastReconnect, modificationMetaId));
+        }
+        //旧的命令已过期(重连过、执行过DDL或fetchSize不同)，被新的命令替换后要关闭
+        if (cc != null && cc.command != cr)
+            cc.command.close();
+        return cr;
+    }
+
+    /**
+     * 取得originalSession在url对应的服务器上的SessionRemote，与originalSession共用同一个事务
+     */
+    public static SessionRemote getSessionRemote(HBaseSession originalSession, String url) {
         SessionRemote sessionRemote = originalSession.getSessionRemote(url);
-        if (sessionRemote != null && sessionRemote.isClosed())
+        if (sessionRemote != null && sessionRemote.isClosed()) {
+            commandCache.remove(sessionRemote);
             sessionRemote = null;
+        }
         boolean isNew = false;
         if (sessionRemote == null) {
             isNew = true;
@@ -116,21 +213,23 @@ public class SessionRemotePool {
         if (isNew)
             originalSession.addSessionRemote(url, sessionRemote);
 
-        return getCommandRemote(sessionRemote, sql, prepared.getParameters(), prepared.getFetchSize());
+        return sessionRemote;
     }
 
     public static CommandRemote getCommandRemote(SessionRemote sr, String sql, List<Parameter> parameters, int fetchSize) {
         CommandRemote cr = (CommandRemote) sr.prepareCommand(sql, fetchSize);
+        setParameters(cr, parameters);
+        return cr;
+    }
 
-        //传递最初的参数值到新的CommandRemote
+    //传递最初的参数值到CommandRemote
+    private static void setParameters(CommandRemote cr, List<Parameter> parameters) {
         if (parameters != null) {
             ArrayList<? extends ParameterInterface> newParams = cr.getParameters();
             for (int i = 0, size = parameters.size(); i < size; i++) {
                 newParams.get(i).setValue(parameters.get(i).getParamValue(), true);
             }
         }
-
-        return cr;
     }
 
     public static void check() {
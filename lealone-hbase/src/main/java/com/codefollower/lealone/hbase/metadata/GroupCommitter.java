@@ -0,0 +1,185 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.metadata;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.client.Put;
+
+/**
+ *
+ * 组提交: 多个线程提交的记录由一个后台线程合并成一次批量写入，
+ * 每个线程只有在自己的记录写入后才返回，写入失败时同一批中的所有线程都会收到这个异常。<p>
+ *
+ * 子类实现write，调用start启动后台线程后才能commit。
+ *
+ */
+public abstract class GroupCommitter implements Runnable {
+    private static final Log log = LogFactory.getLog(GroupCommitter.class);
+
+    private final String name;
+    private final int maxBatchSize;
+    private final long maxDelay;
+
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+    private final ArrayList<Request> requests;
+    private final ArrayList<Put> puts = new ArrayList<Put>();
+
+    /**
+     *
+     * @param name 后台线程的名称
+     * @param maxBatchSize 一次组提交最多包含多少个commit请求
+     * @param maxDelay 收到一批中的第一个请求后最多再等多久(单位微秒)，为0时不等待
+     */
+    public GroupCommitter(String name, int maxBatchSize, long maxDelay) {
+        this.name = name;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelay = maxDelay;
+        requests = new ArrayList<Request>(maxBatchSize);
+    }
+
+    public void start() {
+        Thread t = new Thread(this, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * 把puts交给后台线程，等到它们写入后才返回
+     *
+     * @throws IOException 这一批写入失败时抛出
+     */
+    public void commit(List<Put> puts) throws IOException, InterruptedException {
+        Request request = new Request(puts);
+        queue.add(request);
+        request.await();
+    }
+
+    /**
+     * 还在排队、没有被后台线程取走的commit请求个数
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * 一次写入一批记录，抛出异常时这一批中的所有commit都失败
+     */
+    protected abstract void write(List<Put> puts) throws IOException;
+
+    /**
+     * write失败后调用，子类用来丢掉还没写进去的记录，这些记录对应的commit已经按失败处理了
+     */
+    protected void discard() {
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                collect();
+            } catch (InterruptedException e) {
+                //继续把已收到的记录写完
+            } catch (Throwable e) {
+                //任何异常都不能让组提交线程退出，否则之后所有commit都会一直等下去
+                log.warn(name + " cannot collect records", e);
+            }
+            if (!requests.isEmpty())
+                commitRequests();
+        }
+    }
+
+    private void collect() throws InterruptedException {
+        requests.add(queue.take());
+
+        //把在上一次写入期间积累下来的请求都取出来，如果设置了延迟，再等一会儿凑成更大的一批
+        queue.drainTo(requests, maxBatchSize - requests.size());
+        if (maxDelay > 0) {
+            long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(maxDelay);
+            long remaining;
+            Request request;
+            while (requests.size() < maxBatchSize && (remaining = deadline - System.nanoTime()) > 0) {
+                request = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (request == null)
+                    break;
+                requests.add(request);
+                queue.drainTo(requests, maxBatchSize - requests.size());
+            }
+        }
+    }
+
+    private void commitRequests() {
+        IOException error = null;
+        try {
+            for (Request request : requests)
+                puts.addAll(request.puts);
+            write(puts);
+        } catch (IOException e) {
+            log.warn(name + " cannot write records", e);
+            error = e;
+        } catch (Throwable e) {
+            log.warn(name + " cannot write records", e);
+            error = new IOException(e);
+        } finally {
+            if (error != null) {
+                try {
+                    discard();
+                } catch (Throwable e) {
+                    log.warn(name + " cannot discard records", e);
+                }
+            }
+            //不管成功与否都要唤醒等待的线程，失败时由它们抛出异常
+            for (Request request : requests)
+                request.done(error);
+            requests.clear();
+            puts.clear();
+        }
+    }
+
+    private static class Request {
+        private final List<Put> puts;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile IOException error;
+
+        Request(List<Put> puts) {
+            this.puts = puts;
+        }
+
+        //只有记录已写入后才返回
+        void await() throws IOException, InterruptedException {
+            latch.await();
+            if (error != null)
+                throw error;
+        }
+
+        void done(IOException error) {
+            this.error = error;
+            latch.countDown();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.metadata;
+
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+
+import com.codefollower.lealone.dbobject.table.Column;
+import com.codefollower.lealone.hbase.dbobject.table.HBaseTable;
+import com.codefollower.lealone.hbase.dbobject.table.HBaseTableStatistics;
+import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.message.DbException;
+import com.codefollower.lealone.value.Value;
+
+/**
+ *
+ * 存放每张表的统计信息，每张表对应一条记录，rowKey是表名。<p>
+ *
+ * 每个字段有两列: "d."+字段名存放不同值个数，"h."+字段名存放直方图。
+ *
+ */
+public class StatisticsTable {
+    private final static byte[] TABLE_NAME = Bytes.toBytes(MetaDataAdmin.META_DATA_PREFIX + "statistics_table");
+    private final static byte[] ROW_COUNT = Bytes.toBytes("r");
+    private final static byte[] ANALYZE_TIME = Bytes.toBytes("t");
+    private final static String DISTINCT_COUNT_PREFIX = "d.";
+    private final static String HISTOGRAM_PREFIX = "h.";
+
+    private final static StatisticsTable st = new StatisticsTable();
+
+    public static StatisticsTable getInstance() {
+        return st;
+    }
+
+    private final HTable table;
+
+    private StatisticsTable() {
+        try {
+            MetaDataAdmin.createTableIfNotExists(TABLE_NAME);
+            table = new HTable(HBaseUtils.getConfiguration(), TABLE_NAME);
+        } catch (Exception e) {
+            throw DbException.convert(e);
+        }
+    }
+
+    public synchronized void addRecord(HBaseTable t, HBaseTableStatistics stats) {
+        Put put = new Put(t.getTableNameAsBytes());
+        put.add(MetaDataAdmin.DEFAULT_COLUMN_FAMILY, ROW_COUNT, Bytes.toBytes(stats.getRowCount()));
+        put.add(MetaDataAdmin.DEFAULT_COLUMN_FAMILY, ANALYZE_TIME, Bytes.toBytes(stats.getAnalyzeTime()));
+        try {
+            for (Column c : t.getColumns()) {
+                int id = c.getColumnId();
+                if (stats.getDistinctCount(id) < 0)
+                    continue;
+                put.add(MetaDataAdmin.DEFAULT_COLUMN_FAMILY, Bytes.toBytes(DISTINCT_COUNT_PREFIX + c.getName()),
+                        Bytes.toBytes(stats.getDistinctCount(id)));
+                Value[] histogram = stats.getHistogram(id);
+                if (histogram != null) {
+                    DataOutputBuffer out = new DataOutputBuffer();
+                    WritableUtils.writeVInt(out, histogram.length);
+                    for (Value v : histogram)
+                        Bytes.writeByteArray(out, HBaseUtils.toBytes(v));
+                    put.add(MetaDataAdmin.DEFAULT_COLUMN_FAMILY, Bytes.toBytes(HISTOGRAM_PREFIX + c.getName()),
+                            Bytes.copy(out.getData(), 0, out.getLength()));
+                }
+            }
+            table.put(put);
+        } catch (IOException e) {
+            throw DbException.convert(e);
+        }
+    }
+
+    /**
+     *
+     * @return 没有执行过ANALYZE时返回null
+     */
+    public synchronized HBaseTableStatistics getRecord(HBaseTable t) {
+        try {
+            Result r = table.get(new Get(t.getTableNameAsBytes()));
+            if (r.isEmpty())
+                return null;
+
+            Column[] columns = t.getColumns();
+            long[] distinctCounts = new long[columns.length];
+            Value[][] histograms = new Value[columns.length][];
+            for (Column c : columns) {
+                int id = c.getColumnId();
+                byte[] v = r.getValue(MetaDataAdmin.DEFAULT_COLUMN_FAMILY, Bytes.toBytes(DISTINCT_COUNT_PREFIX + c.getName()));
+                distinctCounts[id] = v == null ? -1 : Bytes.toLong(v);
+                v = r.getValue(MetaDataAdmin.DEFAULT_COLUMN_FAMILY, Bytes.toBytes(HISTOGRAM_PREFIX + c.getName()));
+                if (v != null && !c.isTypeUnknown()) {
+                    DataInputBuffer in = new DataInputBuffer();
+                    in.reset(v, v.length);
+                    Value[] histogram = new Value[WritableUtils.readVInt(in)];
+                    for (int i = 0; i < histogram.length; i++)
+                        histogram[i] = HBaseUtils.toValue(Bytes.readByteArray(in), c.getType());
+                    histograms[id] = histogram;
+                }
+            }
+            return new HBaseTableStatistics(Bytes.toLong(r.getValue(MetaDataAdmin.DEFAULT_COLUMN_FAMILY, ROW_COUNT)),
+                    Bytes.toLong(r.getValue(MetaDataAdmin.DEFAULT_COLUMN_FAMILY, ANALYZE_TIME)), distinctCounts, histograms);
+        } catch (IOException e) {
+            throw DbException.convert(e);
+        }
+    }
+
+    public synchronized void removeRecord(HBaseTable t) {
+        try {
+            table.delete(new Delete(t.getTableNameAsBytes()));
+        } catch (IOException e) {
+            throw DbException.convert(e);
+        }
+    }
+}
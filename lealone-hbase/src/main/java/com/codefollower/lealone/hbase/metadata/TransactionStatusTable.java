@@ -21,18 +21,42 @@ package com.codefollower.lealone.hbase.metadata;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
 
+import com.codefollower.lealone.hbase.engine.HBaseConstants;
 import com.codefollower.lealone.hbase.engine.HBaseSession;
 import com.codefollower.lealone.hbase.util.HBaseUtils;
 import com.codefollower.lealone.message.DbException;
 import com.codefollower.lealone.transaction.Transaction.CommitInfo;
 
+/**
+ * 
+ * 事务状态表，每个提交的事务对应一条记录。<p>
+ * 
+ * 并发提交的session不直接写表，而是把记录交给一个后台线程，
+ * 后台线程把同一时间段内的记录合并成一次批量put(组提交)，写成功后才唤醒对应的session。
+ *
+ */
 public class TransactionStatusTable {
+    //一次组提交最多包含多少个事务的记录
+    private static final int GROUP_COMMIT_MAX_BATCH_SIZE = HBaseUtils.getConfiguration().getInt(
+            HBaseConstants.TRANSACTION_STATUS_GROUP_COMMIT_MAX_BATCH_SIZE,
+            HBaseConstants.DEFAULT_TRANSACTION_STATUS_GROUP_COMMIT_MAX_BATCH_SIZE);
+
+    //收到一批中的第一条记录后最多再等多久(单位微秒)
+    private static final long GROUP_COMMIT_MAX_DELAY = HBaseUtils.getConfiguration().getLong(
+            HBaseConstants.TRANSACTION_STATUS_GROUP_COMMIT_MAX_DELAY,
+            HBaseConstants.DEFAULT_TRANSACTION_STATUS_GROUP_COMMIT_MAX_DELAY);
+
     private final static byte[] TABLE_NAME = Bytes.toBytes(MetaDataAdmin.META_DATA_PREFIX + "transaction_status_table");
     private final static byte[] SERVERS = Bytes.toBytes("s");
     private final static byte[] COMMIT_TIMESTAMP = Bytes.toBytes("c");
@@ -45,6 +69,7 @@ public class TransactionStatusTable {
     }
 
     private final HTable table;
+    private final GroupCommitter groupCommitter;
 
     private TransactionStatusTable() {
         try {
@@ -53,6 +78,22 @@ public class TransactionStatusTable {
         } catch (Exception e) {
             throw DbException.convert(e);
         }
+
+        groupCommitter = new GroupCommitter(TransactionStatusTable.class.getSimpleName() + "-GroupCommitter",
+                GROUP_COMMIT_MAX_BATCH_SIZE, GROUP_COMMIT_MAX_DELAY) {
+            @Override
+            protected void write(List<Put> puts) throws IOException {
+                table.put(puts);
+            }
+
+            @Override
+            protected void discard() {
+                //写失败的记录会留在HTable的写缓冲里，下一批put时会被顺带写进去，
+                //但这些事务已经按失败处理了，所以要丢掉
+                table.getWriteBuffer().clear();
+            }
+        };
+        groupCommitter.start();
     }
 
     public void addRecord(HBaseSession session) {
@@ -95,36 +136,84 @@ public class TransactionStatusTable {
             }
 
             try {
-                table.put(puts);
-            } catch (IOException e) {
+                groupCommitter.commit(puts);
+            } catch (Exception e) {
                 throw DbException.convert(e);
             }
         }
     }
 
     public long query(String hostAndPort, long queryTimestamp) {
-        String rowKey = CommitInfo.getKey(hostAndPort, queryTimestamp);
-        Get get = new Get(Bytes.toBytes(rowKey));
-        get.setTimeStamp(queryTimestamp);
+        return query(hostAndPort, new long[] { queryTimestamp })[0];
+    }
+
+    /**
+     * 批量查询多个事务的提交时间戳，不管有多少个事务，最多只访问两次事务状态表:
+     * 第一次用multi-get取出所有事务的记录，第二次用multi-get检查这些事务涉及的所有参与者是否都已提交。
+     * 
+     * @param hostAndPort 事务所在的主机名和端口号
+     * @param queryTimestamps 事务id
+     * @return 与queryTimestamps一一对应的提交时间戳，-1表示事务未正常提交
+     */
+    public long[] query(String hostAndPort, long[] queryTimestamps) {
+        int len = queryTimestamps.length;
+        long[] commitTimestamps = new long[len];
+        String[] rowKeys = new String[len];
+        String[][] participants = new String[len][];
+
+        List<Get> gets = new ArrayList<Get>(len);
+        for (int i = 0; i < len; i++) {
+            rowKeys[i] = CommitInfo.getKey(hostAndPort, queryTimestamps[i]);
+            Get get = new Get(Bytes.toBytes(rowKeys[i]));
+            get.setTimeStamp(queryTimestamps[i]);
+            gets.add(get);
+        }
+
         try {
-            long commitTimestamp = -1;
-            Result r = table.get(get);
-            if (r != null && !r.isEmpty()) {
-                commitTimestamp = Bytes.toLong(r.getValue(MetaDataAdmin.DEFAULT_COLUMN_FAMILY, COMMIT_TIMESTAMP));
-                String serverStr = Bytes.toString(r.getValue(MetaDataAdmin.DEFAULT_COLUMN_FAMILY, SERVERS));
-                String[] servers = serverStr.split(",");
+            Result[] results = table.get(gets);
+
+            //所有事务涉及的其他参与者，去掉重复的
+            Set<String> servers = new LinkedHashSet<String>();
+            Result r;
+            for (int i = 0; i < len; i++) {
+                commitTimestamps[i] = -1;
+                r = results[i];
+                if (r != null && !r.isEmpty()) {
+                    commitTimestamps[i] = Bytes.toLong(r.getValue(MetaDataAdmin.DEFAULT_COLUMN_FAMILY, COMMIT_TIMESTAMP));
+                    participants[i] = Bytes.toString(r.getValue(MetaDataAdmin.DEFAULT_COLUMN_FAMILY, SERVERS)).split(",");
+                    for (String server : participants[i]) {
+                        if (!rowKeys[i].equals(server))
+                            servers.add(server);
+                    }
+                }
+            }
+
+            if (!servers.isEmpty()) {
+                gets = new ArrayList<Get>(servers.size());
+                for (String server : servers)
+                    gets.add(new Get(Bytes.toBytes(server)));
+                results = table.get(gets);
+
+                Set<String> committedServers = new HashSet<String>(servers.size());
+                int i = 0;
                 for (String server : servers) {
-                    if (!rowKey.equals(server)) {
-                        get = new Get(Bytes.toBytes(server));
-                        r = table.get(get);
-                        if (r == null || r.isEmpty()) {
-                            commitTimestamp = -1;
-                            break;
+                    r = results[i++];
+                    if (r != null && !r.isEmpty())
+                        committedServers.add(server);
+                }
+
+                for (i = 0; i < len; i++) {
+                    if (participants[i] != null) {
+                        for (String server : participants[i]) {
+                            if (!rowKeys[i].equals(server) && !committedServers.contains(server)) {
+                                commitTimestamps[i] = -1;
+                                break;
+                            }
                         }
                     }
                 }
             }
-            return commitTimestamp;
+            return commitTimestamps;
         } catch (IOException e) {
             throw DbException.convert(e);
         }
@@ -23,10 +23,10 @@ import java.util.Arrays;
 
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hbase.util.MurmurHash;
 
 import com.codefollower.lealone.hbase.dbobject.table.HBaseTable;
-import com.codefollower.lealone.hbase.util.HBaseUtils;
 import com.codefollower.lealone.result.Row;
 import com.codefollower.lealone.value.Value;
 
@@ -37,6 +37,7 @@ public class HBaseRow extends Row {
     private Result result;
     private HBaseTable table;
     private int hashCode = 0;
+    private long fingerprint = 0;
 
     public HBaseRow(Value[] data, int memory) {
         super(data, memory);
@@ -88,7 +89,7 @@ public class HBaseRow extends Row {
     public int hashCode() {
         if (hashCode != 0)
             return hashCode;
-        byte[] rowKey = HBaseUtils.toBytes(getRowKey());
+        byte[] rowKey = table.getRowKeyAsBytes(getRowKey());
         byte[] tableName = table.getTableNameAsBytes();
         byte[] key = Arrays.copyOf(tableName, tableName.length + rowKey.length);
         System.arraycopy(rowKey, 0, key, tableName.length, rowKey.length);
@@ -96,4 +97,25 @@ public class HBaseRow extends Row {
 
         return hashCode;
     }
+
+    /**
+     * 
+     * @return (表id, rowKey)的64位指纹，不会为0，用于write-write冲突检测
+     */
+    public long getFingerprint() {
+        if (fingerprint != 0)
+            return fingerprint;
+        byte[] rowKey = table.getRowKeyAsBytes(getRowKey());
+        byte[] key = new byte[4 + rowKey.length];
+        Bytes.putInt(key, 0, table.getId());
+        System.arraycopy(rowKey, 0, key, 4, rowKey.length);
+
+        long h1 = MurmurHash.getInstance().hash(key, 0, key.length, 0xdeadbeef);
+        long h2 = MurmurHash.getInstance().hash(key, 0, key.length, 0x9747b28c);
+        fingerprint = (h1 << 32) | (h2 & 0xffffffffL);
+        if (fingerprint == 0)
+            fingerprint = 1;
+
+        return fingerprint;
+    }
 }
@@ -19,15 +19,49 @@
  */
 package com.codefollower.lealone.hbase.result;
 
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.codefollower.lealone.command.CommandInterface;
 import com.codefollower.lealone.command.dml.Select;
+import com.codefollower.lealone.hbase.command.CommandParallel;
+import com.codefollower.lealone.hbase.command.ParallelLane;
+import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.message.DbException;
 import com.codefollower.lealone.result.DelegatedResult;
 import com.codefollower.lealone.result.ResultInterface;
+import com.codefollower.lealone.value.Value;
 
+import static com.codefollower.lealone.hbase.engine.HBaseConstants.*;
+
+/**
+ * 
+ * 按顺序返回多个数据源(region server)的查询结果。<p>
+ * 
+ * 由command构造时，如果数据源多于一个，会同时向最多PREFETCH_SOURCES个数据源发出查询，
+ * 每个数据源在后台线程中把记录预先取到一个有界队列中(最多PREFETCH_BUFFER_SIZE条)，
+ * 一个数据源的记录取完后再启动下一个数据源。
+ * PREFETCH_ORDERED为true时按数据源的顺序返回记录，否则按记录到达的顺序返回。
+ * 如果后台线程忙不过来，数据源还没开始执行，就由调用者按数据源的顺序直接执行并读取它的结果。
+ * 结果关闭时清空队列，阻塞在队列上的后台线程随后就会退出。
+ *
+ */
 public class HBaseSerializedResult extends DelegatedResult {
     private final static int UNKNOW_ROW_COUNT = -1;
+    private final static int PREFETCH_SOURCES = HBaseUtils.getConfiguration().getInt(COMMAND_PARALLEL_PREFETCH_SOURCES,
+            DEFAULT_COMMAND_PARALLEL_PREFETCH_SOURCES);
+    private final static int PREFETCH_BUFFER_SIZE = HBaseUtils.getConfiguration().getInt(
+            COMMAND_PARALLEL_PREFETCH_BUFFER_SIZE, DEFAULT_COMMAND_PARALLEL_PREFETCH_BUFFER_SIZE);
+    private final static boolean PREFETCH_ORDERED = HBaseUtils.getConfiguration().getBoolean(
+            COMMAND_PARALLEL_PREFETCH_ORDERED, DEFAULT_COMMAND_PARALLEL_PREFETCH_ORDERED);
+
     private final List<ResultInterface> results;
     private final List<? extends CommandInterface> commands;
     private final int maxRows;
@@ -38,6 +72,18 @@ public class HBaseSerializedResult extends DelegatedResult {
     private int index = 0;
     private int count = 0;
 
+    //以下字段只用于预取模式
+    private final boolean prefetch;
+    private Source[] sources;
+    private BlockingQueue<Object> sharedQueue; //按记录到达的顺序返回时所有数据源共用一个队列
+    private int nextSource; //下一个要启动的数据源
+    //已提交但还不知道是否开始执行的数据源，按数据源的顺序排列，调用者从这里找需要直接执行的数据源
+    private final LinkedList<Source> unstarted = new LinkedList<Source>();
+    private int finishedSources;
+    private Source direct; //由调用者直接读取的数据源
+    private Value[] currentRow;
+    private volatile boolean closed;
+
     public HBaseSerializedResult(List<? extends CommandInterface> commands, int maxRows, boolean scrollable, Select select) {
         this.results = null;
         this.commands = commands;
@@ -45,7 +91,11 @@ public class HBaseSerializedResult extends DelegatedResult {
         this.limitRows = select.getLimitRows();
         this.scrollable = scrollable;
         this.size = commands.size();
-        nextResult();
+        this.prefetch = PREFETCH_SOURCES > 1 && size > 1;
+        if (prefetch)
+            startPrefetch();
+        else
+            nextResult();
     }
 
     public HBaseSerializedResult(List<ResultInterface> results, Select select) {
@@ -55,6 +105,7 @@ public class HBaseSerializedResult extends DelegatedResult {
         this.limitRows = select.getLimitRows();
         this.scrollable = false;
         this.size = results.size();
+        this.prefetch = false;
         nextResult();
     }
 
@@ -72,11 +123,91 @@ public class HBaseSerializedResult extends DelegatedResult {
         return true;
     }
 
+    private void startPrefetch() {
+        sources = new Source[size];
+        if (!PREFETCH_ORDERED)
+            sharedQueue = new ArrayBlockingQueue<Object>(PREFETCH_SOURCES * PREFETCH_BUFFER_SIZE);
+        for (int i = 0; i < size; i++)
+            sources[i] = new Source(commands.get(i), PREFETCH_ORDERED ? new ArrayBlockingQueue<Object>(PREFETCH_BUFFER_SIZE)
+                    : sharedQueue);
+        while (nextSource < size && nextSource < PREFETCH_SOURCES)
+            startNextSource();
+
+        //列的元数据从第一个数据源的结果中取
+        Source first = sources[0];
+        if (!claim(first)) {
+            try {
+                first.ready.await();
+            } catch (InterruptedException e) {
+                close();
+                throw DbException.convert(e);
+            }
+            if (first.error != null) {
+                close();
+                throw DbException.convert(first.error);
+            }
+        }
+        result = first.result;
+    }
+
+    //scan通道满了时数据源不会被执行，等到需要它的记录时由调用者直接执行
+    private void startNextSource() {
+        ParallelLane lane = CommandParallel.getScanLane();
+        Source source = sources[nextSource++];
+        source.rejected = !lane.trySubmit(lane.newTask(source));
+        unstarted.add(source);
+    }
+
+    private void finishSource() {
+        finishedSources++;
+        if (nextSource < size)
+            startNextSource();
+    }
+
+    //如果数据源还没开始执行，由调用者直接执行
+    private boolean claim(Source source) {
+        if (!source.started.compareAndSet(false, true))
+            return false;
+        direct = source;
+        try {
+            source.result = source.command.executeQuery(maxRows, scrollable);
+        } catch (RuntimeException e) {
+            direct = null;
+            close();
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * 按顺序直接执行一个还没开始的数据源
+     *
+     * @param rejectedOnly 为true时只执行通道拒绝了的数据源，在通道队列中的数据源还有机会由后台线程执行
+     */
+    private boolean claimUnstarted(boolean rejectedOnly) {
+        for (Iterator<Source> it = unstarted.iterator(); it.hasNext();) {
+            Source source = it.next();
+            if (source.started.get()) {
+                it.remove();
+            } else if (!rejectedOnly || source.rejected) {
+                it.remove();
+                if (claim(source))
+                    return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public boolean next() {
         count++;
-        if (limitRows >= 0 && count > limitRows)
+        if (limitRows >= 0 && count > limitRows) {
+            if (prefetch)
+                close();
             return false;
+        }
+        if (prefetch)
+            return nextPrefetched();
         boolean next = result.next();
         if (!next) {
             boolean nextResult;
@@ -94,8 +225,147 @@ public class HBaseSerializedResult extends DelegatedResult {
         return next;
     }
 
+    //队列中的元素要么是一条记录，要么是表示数据源已结束的Source
+    private boolean nextPrefetched() {
+        try {
+            while (finishedSources < size) {
+                if (direct != null) {
+                    ResultInterface r = direct.result;
+                    if ((limitRows < 0 || direct.rows < limitRows) && r.next()) {
+                        direct.rows++;
+                        currentRow = r.currentRow();
+                        return true;
+                    }
+                    r.close();
+                    direct = null;
+                    finishSource();
+                    continue;
+                }
+
+                Object o;
+                if (sharedQueue == null) {
+                    Source source = sources[finishedSources];
+                    if (claim(source))
+                        continue;
+                    o = source.queue.take();
+                } else {
+                    o = sharedQueue.poll();
+                    if (o == null) {
+                        //通道拒绝了的数据源不会再有后台线程执行，马上由调用者执行
+                        if (claimUnstarted(true))
+                            continue;
+                        o = sharedQueue.poll(100, TimeUnit.MILLISECONDS);
+                        if (o == null) {
+                            claimUnstarted(false);
+                            continue;
+                        }
+                    }
+                }
+
+                if (o instanceof Source) {
+                    Source source = (Source) o;
+                    if (source.error != null) {
+                        close();
+                        throw DbException.convert(source.error);
+                    }
+                    finishSource();
+                } else {
+                    currentRow = (Value[]) o;
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            close();
+            throw DbException.convert(e);
+        }
+        currentRow = null;
+        return false;
+    }
+
+    @Override
+    public Value[] currentRow() {
+        if (prefetch)
+            return currentRow;
+        return super.currentRow();
+    }
+
+    @Override
+    public void close() {
+        //预取模式下各个数据源的结果由后台线程关闭
+        if (prefetch) {
+            closed = true;
+            if (direct != null) {
+                direct.result.close();
+                direct = null;
+            }
+            //让阻塞在put上的后台线程继续，它们看到closed后就不再往队列中放记录
+            if (sharedQueue != null)
+                sharedQueue.clear();
+            else if (sources != null)
+                for (Source source : sources)
+                    source.queue.clear();
+        } else
+            super.close();
+    }
+
     @Override
     public int getRowCount() {
         return UNKNOW_ROW_COUNT;
     }
+
+    private class Source implements Callable<Void> {
+        final CommandInterface command;
+        final BlockingQueue<Object> queue;
+        final CountDownLatch ready = new CountDownLatch(1);
+        final AtomicBoolean started = new AtomicBoolean();
+        boolean rejected; //通道满了没有接受这个数据源，只在调用者线程中使用
+        int rows; //由调用者直接读取时已返回的记录数
+        volatile ResultInterface result;
+        volatile Throwable error;
+
+        Source(CommandInterface command, BlockingQueue<Object> queue) {
+            this.command = command;
+            this.queue = queue;
+        }
+
+        @Override
+        public Void call() {
+            //已经由调用者直接执行了，或者结果已关闭
+            if (!started.compareAndSet(false, true) || closed)
+                return null;
+            try {
+                ResultInterface r = command.executeQuery(maxRows, scrollable);
+                result = r;
+                ready.countDown();
+                try {
+                    //每个数据源最多只需要返回limitRows条记录
+                    int rows = 0;
+                    while (!closed && (limitRows < 0 || rows < limitRows) && r.next()) {
+                        if (!put(r.currentRow()))
+                            break;
+                        rows++;
+                    }
+                } finally {
+                    r.close();
+                }
+            } catch (Throwable e) {
+                error = e;
+                ready.countDown();
+            }
+            put(this);
+            return null;
+        }
+
+        //队列满时阻塞，结果关闭时队列会被清空，所以每个后台线程在关闭后最多再放一个元素就返回false
+        private boolean put(Object o) {
+            if (closed)
+                return false;
+            try {
+                queue.put(o);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            return !closed;
+        }
+    }
 }
@@ -19,35 +19,70 @@
  */
 package com.codefollower.lealone.hbase.result;
 
+import java.util.Comparator;
 import java.util.List;
 
 import com.codefollower.lealone.command.dml.Select;
 import com.codefollower.lealone.engine.Session;
 import com.codefollower.lealone.result.DelegatedResult;
 import com.codefollower.lealone.result.ResultInterface;
-import com.codefollower.lealone.result.SortOrder;
 import com.codefollower.lealone.value.Value;
 import com.codefollower.lealone.value.ValueNull;
 
+/**
+ * 
+ * 合并多个region返回的已排好序的结果。<p>
+ * 
+ * 用一个最小堆保存每个region结果的当前行，每返回一行只需要O(log k)次比较(k是region个数)。
+ * 每个region的结果最多只有limit+offset条记录(见{@link #getRegionMaxRows(int, Session, Select)})，
+ * 不过offset条记录只有在全局排序后才能确定，所以仍然要在这里跳过。
+ *
+ */
 public class HBaseSortedResult extends DelegatedResult {
-    private static final Value[] END = new Value[0];
-    private final SortOrder sort;
+    private final Comparator<Value[]> sort;
     private final ResultInterface[] results;
-    private final int limit;
+    private final int limit; //-1表示没有限制
+    private final int offset;
     private final int size;
     private int rowCount = -1;
     private Value[] currentRow;
-    private Value[][] currentRows;
+
+    //各个region结果的当前行，以及按当前行排序的最小堆(存放的是results的下标)
+    private final Value[][] currentRows;
+    private final int[] heap;
+    private int heapSize = -1; //-1表示堆还没有初始化
 
     private int rowNumber;
 
     public HBaseSortedResult(int maxRows, Session session, Select select, List<ResultInterface> results) {
-        this.sort = select.getSortOrder();
-        this.results = results.toArray(new ResultInterface[results.size()]);
+        this(select.getSortOrder(), results.toArray(new ResultInterface[results.size()]), getLimit(maxRows, session, select),
+                getOffset(session, select));
+    }
+
+    /**
+     * 
+     * @param sort 排序方式
+     * @param results 各个region已排好序的结果
+     * @param limit 最多返回多少条记录，-1表示没有限制
+     * @param offset 跳过前面多少条记录
+     */
+    public HBaseSortedResult(Comparator<Value[]> sort, ResultInterface[] results, int limit, int offset) {
+        this.sort = sort;
+        this.results = results;
         this.result = this.results[0];
         this.size = this.results.length;
+        this.limit = limit;
+        this.offset = offset;
         currentRows = new Value[size][];
+        heap = new int[size];
 
+        if (limit >= 0)
+            rowCount = limit;
+
+        skipOffset();
+    }
+
+    private static int getLimit(int maxRows, Session session, Select select) {
         int limitRows = maxRows == 0 ? -1 : maxRows;
         if (select.getLimit() != null) {
             Value v = select.getLimit().getValue(session);
@@ -58,27 +93,46 @@ public class HBaseSortedResult extends DelegatedResult {
                 limitRows = Math.min(l, limitRows);
             }
         }
+        return limitRows;
+    }
 
-        int offset;
-        if (select.getOffset() != null) {
-            offset = select.getOffset().getValue(session).getInt();
-        } else {
-            offset = 0;
-        }
-
-        if (limitRows >= 0)
-            rowCount = limitRows;
+    private static int getOffset(Session session, Select select) {
+        if (select.getOffset() != null)
+            return select.getOffset().getValue(session).getInt();
+        else
+            return 0;
+    }
 
-        limit = limitRows + offset;
+    /**
+     * 每个region只需返回排在前面的limit+offset条记录
+     * 
+     * @return 传给每个region的maxRows，0表示没有限制
+     */
+    public static int getRegionMaxRows(int maxRows, Session session, Select select) {
+        int limit = getLimit(maxRows, session, select);
+        if (limit < 0)
+            return 0;
+        return limit + getOffset(session, select);
+    }
 
-        for (int i = 0; i < offset; i++)
-            next();
+    private void skipOffset() {
+        for (int i = 0; i < offset; i++) {
+            if (!pollNext()) {
+                break;
+            }
+        }
     }
 
     @Override
     public void reset() {
-        for (int i = 0; i < size; i++)
+        for (int i = 0; i < size; i++) {
             results[i].reset();
+            currentRows[i] = null;
+        }
+        heapSize = -1;
+        rowNumber = 0;
+        currentRow = null;
+        skipOffset();
     }
 
     @Override
@@ -88,38 +142,69 @@ public class HBaseSortedResult extends DelegatedResult {
 
     @Override
     public boolean next() {
-        if (limit == 0 || (limit > 0 && rowNumber >= limit)) {
+        if (limit >= 0 && rowNumber >= limit) {
             currentRow = null;
             return false;
         }
         rowNumber++;
+        return pollNext();
+    }
+
+    //从堆中取出最小的一行，然后用同一个结果的下一行补上
+    private boolean pollNext() {
+        if (heapSize < 0)
+            initHeap();
+
+        if (heapSize == 0) {
+            currentRow = null;
+            return false;
+        }
+
+        int i = heap[0];
+        currentRow = currentRows[i];
+        if (results[i].next()) {
+            currentRows[i] = results[i].currentRow();
+        } else {
+            currentRows[i] = null;
+            heap[0] = heap[--heapSize];
+        }
+        if (heapSize > 0)
+            siftDown(0);
+        return true;
+    }
 
-        int next = -1;
-        Value[] row = null;
+    private void initHeap() {
+        heapSize = 0;
         for (int i = 0; i < size; i++) {
-            if (currentRows[i] == END)
-                continue;
-            if (currentRows[i] == null) {
-                if (results[i].next())
-                    currentRows[i] = results[i].currentRow();
-                else
-                    currentRows[i] = END;
-            }
-            if (currentRows[i] != END) {
-                if (next == -1) {
-                    next = i;
-                    row = currentRows[i];
-                } else {
-                    if (sort.compare(row, currentRows[i]) > 0) {
-                        next = i;
-                        row = currentRows[i];
-                    }
-                }
+            if (results[i].next()) {
+                currentRows[i] = results[i].currentRow();
+                heap[heapSize++] = i;
             }
         }
-        currentRow = row;
-        currentRows[next] = null;
-        return currentRow != null;
+        for (int i = (heapSize >>> 1) - 1; i >= 0; i--)
+            siftDown(i);
+    }
+
+    private void siftDown(int pos) {
+        int x = heap[pos];
+        int half = heapSize >>> 1;
+        while (pos < half) {
+            int child = (pos << 1) + 1;
+            int right = child + 1;
+            if (right < heapSize && less(heap[right], heap[child]))
+                child = right;
+            if (!less(heap[child], x))
+                break;
+            heap[pos] = heap[child];
+            pos = child;
+        }
+        heap[pos] = x;
+    }
+
+    //相等时按结果的下标排序，这样和原来逐个比较的结果顺序一致
+    private boolean less(int a, int b) {
+        int comp = sort.compare(currentRows[a], currentRows[b]);
+        return comp < 0 || comp == 0 && a < b;
     }
 
     @Override
@@ -19,29 +19,61 @@
  */
 package com.codefollower.lealone.hbase.transaction;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
- * This class stores the mapping between start a commit timestamps and between
- * modified row and commit timestamp.
+ * This class stores the mapping between modified row and commit timestamp.
  * 
- * Both mappings are respresented as a long->long mapping, each of them
- * implemented using a single long []
+ * The mapping is respresented as a long->long mapping, implemented using a
+ * single long []. For a map of size N we create an array of size 2*N and store
+ * the keys on even indexes and values on odd indexes.
  * 
- * For a map of size N we create an array of size 2*N and store the keys on even
- * indexes and values on odd indexes.
+ * Keys are 64-bit fingerprints of (table id, row key), see
+ * {@link com.codefollower.lealone.hbase.result.HBaseRow#getFingerprint()}. The low
+ * bits select the set and the whole fingerprint is compared on lookup, so the
+ * high bits act as a verification tag and two different rows practically never
+ * share an entry.
  * 
- * Each time an entry is removed, we update the largestDeletedTimestamp if the
- * entry's commit timestamp is greater than this value.
+ * Each set remembers the largest commit timestamp it ever evicted. A transaction
+ * is only too old if one of the sets of its write set evicted a commit newer than
+ * its start timestamp, evictions in unrelated sets don't abort it.
  * 
  * Rationale: we want queries to be fast and touch as least memory regions as
  * possible
  * 
- * TODO: improve garbage collection, right now an entry is picked at random (by
- * hash) which could cause the eviction of a very recent timestamp
+ * The sets of the cache are partitioned into stripes by fingerprint, each stripe
+ * is guarded by its own lock, so commits whose write sets fall into different
+ * stripes never serialize. A commit must lock all the stripes of its write set via
+ * {@link #lockStripes(long[])} before calling isTooOld/get/put, and release them
+ * with {@link #unlockStripes(int[])}.
+ * 
+ * The cache grows (up to maxSize) when the fraction of too-old aborts among the
+ * last checks exceeds the target abort rate, see {@link #resizeIfNeeded()}.
  */
 
 public class CommitHashMap {
-    private final LongCache rowsCommitMapping;
-    private long largestDeletedTimestamp;
+    //每检查这么多次事务后计算一次too old的比率
+    private static final int CHECK_WINDOW = 1024;
+
+    private volatile LongCache rowsCommitMapping;
+    private final int associativity;
+    private final int maxSize;
+    private final double targetAbortRate;
+    private final AtomicLong largestDeletedTimestamp = new AtomicLong();
+    private final ReentrantLock[] stripeLocks;
+    private final int stripeMask;
+
+    private final AtomicLong checks = new AtomicLong();
+    private final AtomicLong tooOldChecks = new AtomicLong();
+    private final AtomicBoolean resizeRequested = new AtomicBoolean();
+    private final AtomicLong resizes = new AtomicLong();
+
+    public CommitHashMap(int size, int associativity, int stripes) {
+        this(size, associativity, stripes, size, 0);
+    }
 
     /**
      * Constructs a new, empty hashtable with the specified size and associativity
@@ -50,17 +82,108 @@ public class CommitHashMap {
      *            the initial size of the hashtable.
      * @param associativity
      *            the associativity of the cache.
+     * @param stripes
+     *            the number of lock stripes, rounded up to a power of two.
+     * @param maxSize
+     *            the size the hashtable may grow to.
+     * @param targetAbortRate
+     *            the fraction of too-old aborts above which the hashtable grows.
      * @throws IllegalArgumentException
-     *             if the size or associativity is less than zero.
+     *             if the size is less than zero or the associativity or stripes is less than one.
      */
-    public CommitHashMap(int size, int associativity) {
+    public CommitHashMap(int size, int associativity, int stripes, int maxSize, double targetAbortRate) {
         if (size < 0) {
             throw new IllegalArgumentException("Illegal size: " + size);
         }
-        if (associativity < 0) {
+        if (associativity < 1) {
             throw new IllegalArgumentException("Illegal associativity: " + associativity);
         }
+        if (stripes < 1) {
+            throw new IllegalArgumentException("Illegal stripes: " + stripes);
+        }
+        this.associativity = associativity;
+        this.maxSize = Math.max(size, maxSize);
+        this.targetAbortRate = targetAbortRate;
         this.rowsCommitMapping = new LongCache(size, associativity);
+
+        //stripe的个数不能超过set的个数，否则多出来的锁永远用不到。
+        //set的个数只会翻倍，所以同一个fingerprint所在的stripe在扩容前后是不变的
+        int n = 1;
+        while (n < stripes && n < rowsCommitMapping.getSetCount())
+            n <<= 1;
+        stripeLocks = new ReentrantLock[n];
+        for (int i = 0; i < n; i++)
+            stripeLocks[i] = new ReentrantLock();
+        stripeMask = n - 1;
+    }
+
+    public int getStripeCount() {
+        return stripeLocks.length;
+    }
+
+    public int getSize() {
+        return rowsCommitMapping.getSetCount() * associativity;
+    }
+
+    public long getResizeCount() {
+        return resizes.get();
+    }
+
+    /**
+     * 按stripe的下标从小到大加锁，避免多个事务之间出现死锁
+     * 
+     * @param hashes 事务写过的所有行的fingerprint
+     * @return 已加锁的stripe下标，需要传给{@link #unlockStripes(int[])}
+     */
+    public int[] lockStripes(long[] hashes) {
+        int len = hashes.length;
+        int[] stripes = new int[len];
+        for (int i = 0; i < len; i++)
+            stripes[i] = (int) (hashes[i] & stripeMask);
+        Arrays.sort(stripes);
+
+        //去掉重复的stripe
+        int count = 0;
+        for (int i = 0; i < len; i++) {
+            if (count == 0 || stripes[count - 1] != stripes[i])
+                stripes[count++] = stripes[i];
+        }
+        if (count != len)
+            stripes = Arrays.copyOf(stripes, count);
+
+        for (int i = 0; i < count; i++)
+            stripeLocks[stripes[i]].lock();
+        return stripes;
+    }
+
+    public void unlockStripes(int[] stripes) {
+        for (int i = stripes.length - 1; i >= 0; i--)
+            stripeLocks[stripes[i]].unlock();
+    }
+
+    /**
+     * 写集合中任何一行所在的set淘汰过比startTimestamp新的提交记录时，就无法再做准确的冲突检测了
+     */
+    public boolean isTooOld(long[] hashes, long startTimestamp) {
+        LongCache cache = rowsCommitMapping;
+        boolean tooOld = false;
+        for (long hash : hashes) {
+            if (cache.getLargestEvictedTimestamp(hash) > startTimestamp) {
+                tooOld = true;
+                break;
+            }
+        }
+
+        if (targetAbortRate > 0) {
+            if (tooOld)
+                tooOldChecks.incrementAndGet();
+            if (checks.incrementAndGet() % CHECK_WINDOW == 0) {
+                long n = tooOldChecks.getAndSet(0);
+                if (n > targetAbortRate * CHECK_WINDOW && getSize() < maxSize)
+                    resizeRequested.set(true);
+            }
+        }
+        return tooOld;
     }
 
     public long getLatestWriteForRow(long hash) {
@@ -69,26 +192,68 @@ public class CommitHashMap {
 
     public void putLatestWriteForRow(long hash, long commitTimestamp) {
         long oldCommitTS = rowsCommitMapping.set(hash, commitTimestamp);
-        largestDeletedTimestamp = Math.max(oldCommitTS, largestDeletedTimestamp);
+        long largest;
+        while (oldCommitTS > (largest = largestDeletedTimestamp.get())) {
+            if (largestDeletedTimestamp.compareAndSet(largest, oldCommitTS))
+                break;
+        }
     }
 
     public long getLargestDeletedTimestamp() {
-        return largestDeletedTimestamp;
+        return largestDeletedTimestamp.get();
     }
 
+    /**
+     * 如果too old的比率超过了目标值就把容量翻倍。
+     * 需要锁住所有stripe，所以调用者不能持有任何stripe的锁。
+     */
+    public void resizeIfNeeded() {
+        if (!resizeRequested.compareAndSet(true, false))
+            return;
+
+        int n = stripeLocks.length;
+        for (int i = 0; i < n; i++)
+            stripeLocks[i].lock();
+        try {
+            LongCache old = rowsCommitMapping;
+            if (old.getSetCount() * associativity < maxSize) {
+                rowsCommitMapping = old.grow();
+                resizes.incrementAndGet();
+            }
+        } finally {
+            for (int i = n - 1; i >= 0; i--)
+                stripeLocks[i].unlock();
+        }
+    }
+
+    /**
+     * 组相联的long->long缓存，每个set占用associativity个连续的槽位，set之间互不重叠，
+     * 所以只要持有set所在stripe的锁就可以安全地读写这个set。
+     */
     public static class LongCache {
         private final long[] cache;
+        //每个set淘汰过的最大的value
+        private final long[] evicted;
         private final int associativity;
         private final int mask;
 
         public LongCache(int size, int associativity) {
-            this.cache = new long[2 * (size + associativity)];
+            int setCount = 1;
+            while (setCount * associativity < size)
+                setCount <<= 1;
+            this.cache = new long[2 * setCount * associativity];
+            this.evicted = new long[setCount];
             this.associativity = associativity;
-            this.mask = size - 1;
+            this.mask = setCount - 1;
+        }
+
+        public int getSetCount() {
+            return mask + 1;
         }
 
         public long set(long key, long value) {
-            final int index = index(key);
+            final int set = setIndex(key);
+            final int index = set * associativity;
             int oldestIndex = 0;
             long oldestValue = Long.MAX_VALUE;
             for (int i = 0; i < associativity; ++i) {
@@ -105,11 +270,13 @@ public class CommitHashMap {
             }
             cache[oldestIndex] = key;
             cache[oldestIndex + 1] = value;
+            if (oldestValue > evicted[set])
+                evicted[set] = oldestValue;
             return oldestValue;
         }
 
         public long get(long key) {
-            final int index = index(key);
+            final int index = setIndex(key) * associativity;
             for (int i = 0; i < associativity; ++i) {
                 int currIndex = 2 * (index + i);
                 if (cache[currIndex] == key) {
@@ -119,8 +286,37 @@ public class CommitHashMap {
             return 0;
         }
 
-        private int index(long hash) {
-            return (int) (Math.abs(hash) & mask);
+        public long getLargestEvictedTimestamp(long key) {
+            return evicted[setIndex(key)];
+        }
+
+        /**
+         * 返回一个set个数翻倍的新缓存，原来第i个set中的记录会被分到新缓存的第i和第i+setCount个set中，
+         * 这两个set都继承原来那个set的淘汰记录
+         */
+        LongCache grow() {
+            int setCount = getSetCount();
+            LongCache c = new LongCache((setCount << 1) * associativity, associativity);
+            for (int i = 0; i < setCount; i++) {
+                c.evicted[i] = evicted[i];
+                c.evicted[i + setCount] = evicted[i];
+            }
+            int[] used = new int[c.getSetCount()];
+            for (int i = 0, len = cache.length; i < len; i += 2) {
+                long key = cache[i];
+                if (key == 0)
+                    continue;
+                int set = c.setIndex(key);
+                int currIndex = 2 * (set * associativity + used[set]++);
+                c.cache[currIndex] = key;
+                c.cache[currIndex + 1] = cache[i + 1];
+            }
+            return c;
+        }
+
+        //key所在的set
+        int setIndex(long hash) {
+            return (int) (hash & mask);
         }
     }
 }
@@ -20,25 +20,73 @@
 package com.codefollower.lealone.hbase.transaction;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.util.Threads;
 
 import com.codefollower.lealone.hbase.engine.HBaseConstants;
 import com.codefollower.lealone.hbase.metadata.TimestampServiceTable;
 import com.codefollower.lealone.hbase.util.HBaseUtils;
 import com.codefollower.lealone.message.DbException;
 
+/**
+ * 
+ * 时间戳服务，事务用奇数版本号，非事务用偶数版本号。<p>
+ * 
+ * 分配时间戳只是对一个AtomicLong做CAS，不加锁，也不访问HBase。
+ * 每次预留TIMESTAMP_BATCH个时间戳并写入TimestampServiceTable，
+ * 当剩余的时间戳少于LOW_WATER_MARK时由后台线程预留下一批，
+ * 只有后台线程来不及预留时分配线程才会同步等待。
+ *
+ */
 public class TimestampService {
+    private static final Log log = LogFactory.getLog(TimestampService.class);
+
     private static final long TIMESTAMP_BATCH = HBaseUtils.getConfiguration().getLong(HBaseConstants.TRANSACTION_TIMESTAMP_BATCH,
             HBaseConstants.DEFAULT_TRANSACTION_TIMESTAMP_BATCH);
 
+    private static final long LOW_WATER_MARK = HBaseUtils.getConfiguration().getLong(
+            HBaseConstants.TRANSACTION_TIMESTAMP_LOW_WATER_MARK, HBaseConstants.DEFAULT_TRANSACTION_TIMESTAMP_LOW_WATER_MARK);
+
     private final TimestampServiceTable timestampServiceTable;
-    private long first;
-    private long last;
-    private long maxTimestamp;
+    private final ExecutorService refillExecutor = Executors.newSingleThreadExecutor(Threads
+            .newDaemonThreadFactory(TimestampService.class.getSimpleName()));
+    private final AtomicBoolean refilling = new AtomicBoolean(false);
+    private final Runnable refillTask = new Runnable() {
+        public void run() {
+            try {
+                refill(false);
+            } catch (Throwable e) {
+                //后台预留失败不要紧，分配线程在时间戳用完时会同步重试
+                log.warn("cannot reserve timestamp batch in background", e);
+            } finally {
+                refilling.set(false);
+            }
+        }
+    };
+
+    private final AtomicLong last = new AtomicLong();
+    private volatile long first;
+    //已写入TimestampServiceTable的最大时间戳，分配出去的时间戳不能超过它
+    private volatile long maxTimestamp;
+
+    //统计信息
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong allocationNanos = new AtomicLong();
+    private final AtomicLong backgroundRefills = new AtomicLong();
+    private final AtomicLong blockingRefills = new AtomicLong();
+    private final AtomicLong refillNanos = new AtomicLong();
 
     public TimestampService(String hostAndPort) {
         try {
             timestampServiceTable = new TimestampServiceTable(hostAndPort);
-            first = last = maxTimestamp = timestampServiceTable.getLastMaxTimestamp();
+            first = maxTimestamp = timestampServiceTable.getLastMaxTimestamp();
+            last.set(first);
             addBatch();
         } catch (IOException e) {
             throw DbException.convert(e);
@@ -49,48 +97,111 @@ public class TimestampService {
         return first;
     }
 
+    //调用者必须持有this锁
     private void addBatch() throws IOException {
-        maxTimestamp += TIMESTAMP_BATCH;
-        timestampServiceTable.updateLastMaxTimestamp(maxTimestamp);
+        long start = System.nanoTime();
+        long newMaxTimestamp = maxTimestamp + TIMESTAMP_BATCH;
+        //必须先持久化再发布，这样重启后不会分配出重复的时间戳
+        timestampServiceTable.updateLastMaxTimestamp(newMaxTimestamp);
+        maxTimestamp = newMaxTimestamp;
+        refillNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    private synchronized void refill(boolean blocking) throws IOException {
+        //另一个线程可能已经预留好了
+        if (blocking) {
+            if (last.get() + 2 <= maxTimestamp)
+                return;
+            blockingRefills.incrementAndGet();
+        } else {
+            if (maxTimestamp - last.get() >= LOW_WATER_MARK)
+                return;
+            backgroundRefills.incrementAndGet();
+        }
+        addBatch();
     }
 
     public synchronized void reset() throws IOException {
-        first = last = maxTimestamp = 0;
+        first = maxTimestamp = 0;
+        last.set(0);
         timestampServiceTable.updateLastMaxTimestamp(0);
         addBatch();
     }
 
     //事务用奇数版本号
-    public synchronized long nextOdd() throws IOException {
-        if (last >= maxTimestamp)
-            addBatch();
+    public long nextOdd() throws IOException {
+        return next(true);
+    }
 
-        long delta;
-        if (last % 2 == 0)
-            delta = 1;
-        else
-            delta = 2;
+    //非事务用偶数版本号
+    public long nextEven() throws IOException {
+        return next(false);
+    }
+
+    private long next(boolean odd) throws IOException {
+        long start = System.nanoTime();
+        long current, next;
+        while (true) {
+            current = last.get();
+            if ((current % 2 == 0) == odd)
+                next = current + 1;
+            else
+                next = current + 2;
+
+            if (next > maxTimestamp) {
+                refill(true);
+                continue;
+            }
+            if (last.compareAndSet(current, next))
+                break;
+        }
 
-        last += delta;
-        return last;
+        if (maxTimestamp - next < LOW_WATER_MARK && refilling.compareAndSet(false, true))
+            refillExecutor.execute(refillTask);
+
+        allocations.incrementAndGet();
+        allocationNanos.addAndGet(System.nanoTime() - start);
+        return next;
     }
 
-    //非事务用偶数版本号
-    public synchronized long nextEven() throws IOException {
-        if (last >= maxTimestamp)
-            addBatch();
+    public long getAllocationCount() {
+        return allocations.get();
+    }
+
+    /**
+     * 
+     * @return 平均每次分配时间戳所花的时间(单位纳秒)
+     */
+    public long getAverageAllocationNanos() {
+        long count = allocations.get();
+        return count == 0 ? 0 : allocationNanos.get() / count;
+    }
+
+    public long getBackgroundRefillCount() {
+        return backgroundRefills.get();
+    }
+
+    /**
+     * 
+     * @return 后台线程来不及预留，分配线程不得不同步等待的次数
+     */
+    public long getBlockingRefillCount() {
+        return blockingRefills.get();
+    }
 
-        long delta;
-        if (last % 2 == 0)
-            delta = 2;
-        else
-            delta = 1;
-        last += delta;
-        return last;
+    /**
+     * 
+     * @return 平均每次写TimestampServiceTable所花的时间(单位纳秒)
+     */
+    public long getAverageRefillNanos() {
+        long count = backgroundRefills.get() + blockingRefills.get();
+        return count == 0 ? 0 : refillNanos.get() / count;
     }
 
     @Override
     public String toString() {
-        return "TimestampService(first: " + first + ", last: " + last + ", max: " + maxTimestamp + ")";
+        return "TimestampService(first: " + first + ", last: " + last.get() + ", max: " + maxTimestamp + ", allocations: "
+                + allocations.get() + ", avgAllocationNanos: " + getAverageAllocationNanos() + ", backgroundRefills: "
+                + backgroundRefills.get() + ", blockingRefills: " + blockingRefills.get() + ")";
     }
 }
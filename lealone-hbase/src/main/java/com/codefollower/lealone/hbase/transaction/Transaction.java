@@ -20,15 +20,27 @@
 package com.codefollower.lealone.hbase.transaction;
 
 import static com.codefollower.lealone.hbase.engine.HBaseConstants.DEFAULT_TRANSACTION_COMMIT_CACHE_ASSOCIATIVITY;
+import static com.codefollower.lealone.hbase.engine.HBaseConstants.DEFAULT_TRANSACTION_COMMIT_CACHE_MAX_SIZE;
 import static com.codefollower.lealone.hbase.engine.HBaseConstants.DEFAULT_TRANSACTION_COMMIT_CACHE_SIZE;
+import static com.codefollower.lealone.hbase.engine.HBaseConstants.DEFAULT_TRANSACTION_COMMIT_CACHE_STRIPES;
+import static com.codefollower.lealone.hbase.engine.HBaseConstants.DEFAULT_TRANSACTION_COMMIT_CACHE_TARGET_ABORT_RATE;
 import static com.codefollower.lealone.hbase.engine.HBaseConstants.TRANSACTION_COMMIT_CACHE_ASSOCIATIVITY;
+import static com.codefollower.lealone.hbase.engine.HBaseConstants.TRANSACTION_COMMIT_CACHE_MAX_SIZE;
 import static com.codefollower.lealone.hbase.engine.HBaseConstants.TRANSACTION_COMMIT_CACHE_SIZE;
+import static com.codefollower.lealone.hbase.engine.HBaseConstants.TRANSACTION_COMMIT_CACHE_STRIPES;
+import static com.codefollower.lealone.hbase.engine.HBaseConstants.TRANSACTION_COMMIT_CACHE_TARGET_ABORT_RATE;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Set;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
 
 import com.codefollower.lealone.constant.ErrorCode;
 import com.codefollower.lealone.hbase.engine.HBaseSession;
@@ -42,22 +54,32 @@ public class Transaction implements com.codefollower.lealone.transaction.Transac
     private static final CommitHashMap commitHashMap = new CommitHashMap( //
             HBaseUtils.getConfiguration().getInt(TRANSACTION_COMMIT_CACHE_SIZE, DEFAULT_TRANSACTION_COMMIT_CACHE_SIZE), //
             HBaseUtils.getConfiguration().getInt(TRANSACTION_COMMIT_CACHE_ASSOCIATIVITY,
-                    DEFAULT_TRANSACTION_COMMIT_CACHE_ASSOCIATIVITY));
+                    DEFAULT_TRANSACTION_COMMIT_CACHE_ASSOCIATIVITY), //
+            HBaseUtils.getConfiguration().getInt(TRANSACTION_COMMIT_CACHE_STRIPES, DEFAULT_TRANSACTION_COMMIT_CACHE_STRIPES), //
+            HBaseUtils.getConfiguration().getInt(TRANSACTION_COMMIT_CACHE_MAX_SIZE, DEFAULT_TRANSACTION_COMMIT_CACHE_MAX_SIZE), //
+            HBaseUtils.getConfiguration().getFloat(TRANSACTION_COMMIT_CACHE_TARGET_ABORT_RATE,
+                    DEFAULT_TRANSACTION_COMMIT_CACHE_TARGET_ABORT_RATE));
+
+    //提交次数和各种原因导致的abort次数
+    private static final AtomicLong commits = new AtomicLong();
+    private static final AtomicLong tooOldAborts = new AtomicLong();
+    private static final AtomicLong writeWriteConflictAborts = new AtomicLong();
+    private static final AtomicLong invalidTimestampAborts = new AtomicLong();
 
     private final HBaseSession session;
     private final TimestampService timestampService;
     private final Transaction parent;
 
     private CopyOnWriteArrayList<Transaction> children;
-    private CopyOnWriteArrayList<HBaseRow> undoRows;
+    private UndoLog undoLog;
     private CopyOnWriteArrayList<CommitInfo> commitInfoList;
-    private HashMap<String, Integer> savepoints;
-
-    //用于跟踪最顶层事务进行了哪些操作(Object对像是HBaseRow或者Transaction)
-    private CopyOnWriteArrayList<Object> transactionTrace;
+    //保存点对应的undo日志位置和子事务个数
+    private HashMap<String, int[]> savepoints;
 
     private long transactionId;
     private long commitTimestamp;
+    //自动提交模式下单行写操作的读时间戳，写入时transactionId会换成提交时间戳，冲突检测要用原来的读时间戳
+    private long startTimestamp;
     private boolean autoCommit;
 
     public Transaction(HBaseSession session) {
@@ -68,9 +90,6 @@ public class Transaction implements com.codefollower.lealone.transaction.Transac
         this.session = session;
         this.parent = parent;
         timestampService = session.getTimestampService();
-        children = new CopyOnWriteArrayList<Transaction>();
-        undoRows = new CopyOnWriteArrayList<HBaseRow>();
-        commitInfoList = new CopyOnWriteArrayList<CommitInfo>();
 
         //嵌套事务
         if (parent != null)
@@ -78,6 +97,11 @@ public class Transaction implements com.codefollower.lealone.transaction.Transac
         else
             autoCommit = session.getAutoCommit();
 
+        //自动提交模式的事务大多只用来做快照读，只需要一个读时间戳，
+        //所以不必分配下面这些列表，真正用到时再分配
+        if (!autoCommit)
+            initLists();
+
         try {
             if (autoCommit)
                 transactionId = timestampService.nextEven();
@@ -90,8 +114,15 @@ public class Transaction implements com.codefollower.lealone.transaction.Transac
         //初始化完transactionId再加入parent，要用这个变量来计算hashCode()
         if (parent != null)
             parent.addChild(this);
-        else
-            transactionTrace = new CopyOnWriteArrayList<Object>();
+    }
+
+    private void initLists() {
+        if (children == null)
+            children = new CopyOnWriteArrayList<Transaction>();
+        if (undoLog == null)
+            undoLog = new UndoLog();
+        if (commitInfoList == null)
+            commitInfoList = new CopyOnWriteArrayList<CommitInfo>();
     }
 
     @Override
@@ -117,6 +148,8 @@ public class Transaction implements com.codefollower.lealone.transaction.Transac
     @Override
     public void setAutoCommit(boolean autoCommit) {
         this.autoCommit = autoCommit;
+        if (!autoCommit)
+            initLists();
     }
 
     @Override
@@ -134,9 +167,6 @@ public class Transaction implements com.codefollower.lealone.transaction.Transac
 
     public void addChild(Transaction t) {
         children.add(t);
-
-        if (!isNested())
-            transactionTrace.add(t);
     }
 
     public void removeChild(Transaction t) {
@@ -144,7 +174,7 @@ public class Transaction implements com.codefollower.lealone.transaction.Transac
     }
 
     public long getStartTimestamp() {
-        return transactionId;
+        return startTimestamp != 0 ? startTimestamp : transactionId;
     }
 
     @Override
@@ -154,19 +184,19 @@ public class Transaction implements com.codefollower.lealone.transaction.Transac
 
     //只从最顶层的事务提交
     public void commit() {
-        if (!autoCommit) {
+        if (autoCommit) {
+            commitSingleRow();
+        } else {
             ArrayList<Transaction> allTransactions = New.arrayList();
             getAllTransactionsRecursively(allTransactions);
 
             try {
                 long commitTimestamp = timestampService.nextOdd();
-                Set<HBaseRow> undoRows = New.hashSet();
-                for (Transaction t : allTransactions) {
+                for (Transaction t : allTransactions)
                     t.setCommitTimestamp(commitTimestamp);
-                    undoRows.addAll(t.undoRows);
-                }
 
-                checkConflict(undoRows);
+                checkConflict(allTransactions, transactionId);
+                commits.incrementAndGet();
                 //TODO 考虑如何缓存事务id和提交时间戳? 难点是: 当前节点提交了，但是还不能完全确定全局事务正常提交
             } catch (Exception e) {
                 rollback();
@@ -178,36 +208,125 @@ public class Transaction implements com.codefollower.lealone.transaction.Transac
         }
     }
 
-    private void checkConflict(Set<HBaseRow> undoRows) {
-        synchronized (commitHashMap) {
-            if (transactionId < timestampService.first()) {
-                //1. transactionId不可能小于region server启动时从TimestampServiceTable中获得的上一次的最大时间戳
-                throw DbException.throwInternalError("transactionId(" + transactionId + ") < firstTimestampService("
-                        + timestampService.first() + ")");
-            } else if (!undoRows.isEmpty() && transactionId < commitHashMap.getLargestDeletedTimestamp()) {
+    /**
+     * 自动提交模式下的单行写操作直接一步提交: 提交时间戳是写入时才分配的偶数时间戳，见log(HBaseRow)，
+     * 不需要往TransactionStatusTable写记录。<p>
+     * 
+     * 偶数版本一写入就对其他事务可见了，所以write-write冲突检测必须在写入之前做，见log(HBaseRow)，
+     * 到这里时已经没有需要检测的了。
+     */
+    private void commitSingleRow() {
+        if (undoLog == null || undoLog.size() == 0)
+            return;
+
+        commits.incrementAndGet();
+        endTransaction();
+    }
+
+    private void checkConflict(ArrayList<Transaction> allTransactions, long startTimestamp) {
+        if (startTimestamp < timestampService.first()) {
+            invalidTimestampAborts.incrementAndGet();
+            //1. transactionId不可能小于region server启动时从TimestampServiceTable中获得的上一次的最大时间戳
+            throw DbException.throwInternalError("transactionId(" + startTimestamp + ") < firstTimestampService("
+                    + timestampService.first() + ")");
+        }
+
+        long[] hashes = getRowFingerprints(allTransactions);
+        int size = hashes.length;
+
+        //只锁住写集合所在的stripe，写集合不相交的事务可以并发提交
+        int[] stripes = commitHashMap.lockStripes(hashes);
+        try {
+            if (size > 0 && commitHashMap.isTooOld(hashes, startTimestamp)) {
                 //2. Too old and not read only
-                throw new RuntimeException("Too old startTimestamp: ST " + transactionId + " MAX "
+                tooOldAborts.incrementAndGet();
+                throw new RuntimeException("Too old startTimestamp: ST " + startTimestamp + " MAX "
                         + commitHashMap.getLargestDeletedTimestamp());
-            } else {
-                //3. write-write冲突检测
-                for (HBaseRow row : undoRows) {
-                    long oldCommitTimestamp = commitHashMap.getLatestWriteForRow(row.hashCode());
-                    if (oldCommitTimestamp != 0 && oldCommitTimestamp > transactionId) {
-                        throw new RuntimeException("Write-write conflict: oldCommitTimestamp " + oldCommitTimestamp
-                                + ", startTimestamp " + transactionId + ", rowKey " + row.getRowKey());
-                    }
-                }
+            }
 
-                //不能把下面的代码放入第3步的for循环中，只有冲突检测完后才能put提交记录
-                for (HBaseRow row : undoRows) {
-                    commitHashMap.putLatestWriteForRow(row.hashCode(), getCommitTimestamp());
+            //3. write-write冲突检测
+            for (int i = 0; i < size; i++) {
+                long oldCommitTimestamp = commitHashMap.getLatestWriteForRow(hashes[i]);
+                if (oldCommitTimestamp != 0 && oldCommitTimestamp > startTimestamp) {
+                    writeWriteConflictAborts.incrementAndGet();
+                    throw new RuntimeException("Write-write conflict: oldCommitTimestamp " + oldCommitTimestamp
+                            + ", startTimestamp " + startTimestamp + ", rowKey "
+                            + Bytes.toStringBinary(findRowKey(allTransactions, hashes[i])));
                 }
             }
+
+            //不能把下面的代码放入第3步的for循环中，只有冲突检测完后才能put提交记录
+            for (int i = 0; i < size; i++) {
+                commitHashMap.putLatestWriteForRow(hashes[i], getCommitTimestamp());
+            }
+        } finally {
+            commitHashMap.unlockStripes(stripes);
+            commitHashMap.resizeIfNeeded();
+        }
+    }
+
+    public static CommitHashMap getCommitHashMap() {
+        return commitHashMap;
+    }
+
+    public static long getCommitCount() {
+        return commits.get();
+    }
+
+    public static long getTooOldAbortCount() {
+        return tooOldAborts.get();
+    }
+
+    public static long getWriteWriteConflictAbortCount() {
+        return writeWriteConflictAborts.get();
+    }
+
+    public static long getInvalidTimestampAbortCount() {
+        return invalidTimestampAborts.get();
+    }
+
+    //同一行在写集合中可能出现多次，冲突检测和put提交记录时重复的fingerprint不影响结果
+    private static long[] getRowFingerprints(ArrayList<Transaction> allTransactions) {
+        ArrayList<long[]> list = New.arrayList(allTransactions.size());
+        int size = 0;
+        for (Transaction t : allTransactions) {
+            if (t.undoLog != null) {
+                long[] hashes = t.undoLog.getRowFingerprints();
+                list.add(hashes);
+                size += hashes.length;
+            }
+        }
+
+        long[] hashes = new long[size];
+        int pos = 0;
+        for (long[] a : list) {
+            System.arraycopy(a, 0, hashes, pos, a.length);
+            pos += a.length;
         }
+        return hashes;
+    }
+
+    private static byte[] findRowKey(ArrayList<Transaction> allTransactions, long fingerprint) {
+        for (Transaction t : allTransactions) {
+            if (t.undoLog != null) {
+                byte[] rowKey = t.undoLog.findRowKey(fingerprint);
+                if (rowKey != null)
+                    return rowKey;
+            }
+        }
+        return null;
     }
 
     public void rollback() {
-        if (!autoCommit) {
+        if (autoCommit) {
+            try {
+                undo();
+            } catch (Exception e) {
+                throw DbException.convert(e);
+            } finally {
+                endTransaction();
+            }
+        } else {
             try {
                 for (Transaction t : children)
                     t.rollback();
@@ -226,30 +345,68 @@ public class Transaction implements com.codefollower.lealone.transaction.Transac
     }
 
     private void undo() {
-        if (undoRows != null) {
-            for (int i = undoRows.size() - 1; i >= 0; i--) {
-                HBaseRow row = undoRows.get(i);
-                row.getTable().removeRow(session, row, true);
-            }
-        }
+        if (undoLog != null)
+            undoLog.undo(session, 0);
     }
 
     private void endTransaction() {
-        if (undoRows != null) {
-            undoRows.clear();
-            undoRows = null;
+        if (undoLog != null) {
+            undoLog.close();
+            undoLog = null;
         }
 
         //children和commitInfoList两个字段在提交后还有用，如有必要可调用releaseResources()
     }
 
+    /**
+     * 在写入row之前调用。<p>
+     * 
+     * 自动提交模式下的单行写操作用偶数时间戳写入，写入后马上就是可见的。
+     * 如果直接用读时间戳(偶数的transactionId)作为版本号，那么读时间戳更大、但在写入之前就已开始的快照读
+     * 会在读的过程中看到这个版本突然出现，所以第一次写入时才分配一个新的偶数时间戳作为提交时间戳，
+     * 之后的写入都用它作为版本号，这与普通事务先分配提交时间戳再写TransactionStatusTable是一样的。<p>
+     * 
+     * 同样因为写入后马上可见，要在写入之前用读时间戳做write-write冲突检测并登记这一行的提交时间戳，
+     * 检测失败时抛出异常，row不会被写入，其他事务也就不会读到一个之后会被撤消的版本。
+     */
     public void log(HBaseRow row) {
-        if (!autoCommit) {
-            undoRows.add(row);
+        boolean singleRow = autoCommit && parent == null;
+        if (singleRow) {
+            if (startTimestamp == 0) {
+                try {
+                    commitTimestamp = timestampService.nextEven();
+                } catch (IOException e) {
+                    throw DbException.convert(e);
+                }
+                startTimestamp = transactionId;
+                transactionId = commitTimestamp;
+            }
+            row.setTransactionId(commitTimestamp);
+            Put put = row.getPut();
+            if (put != null && put.getTimeStamp() != commitTimestamp)
+                row.setPut(newPut(put, commitTimestamp));
+        }
+
+        //非自动提交模式下undoLog已经分配好了，自动提交模式下只有单行写操作会走到这里，见UpdateOrDeleteSupport
+        if (undoLog == null)
+            undoLog = new UndoLog();
+        undoLog.add(row);
+
+        if (singleRow) {
+            ArrayList<Transaction> allTransactions = New.arrayList(1);
+            allTransactions.add(this);
+            checkConflict(allTransactions, startTimestamp);
+        }
+    }
 
-            if (!isNested())
-                transactionTrace.add(row);
+    //在读阶段构造的Put用的是读时间戳，换成提交时间戳
+    private static Put newPut(Put put, long timestamp) {
+        Put newPut = new Put(put.getRow(), timestamp);
+        for (Map.Entry<byte[], List<KeyValue>> e : put.getFamilyMap().entrySet()) {
+            for (KeyValue kv : e.getValue())
+                newPut.add(e.getKey(), kv.getQualifier(), timestamp, kv.getValue());
         }
+        return newPut;
     }
 
     public Transaction getRootTransaction() {
@@ -273,16 +430,20 @@ public class Transaction implements com.codefollower.lealone.transaction.Transac
         if (transactionId == queryTimestamp)
             return true;
 
-        for (Transaction t : children) {
-            if (t.isUncommittedRecursively(queryTimestamp))
-                return true;
+        if (children != null) {
+            for (Transaction t : children) {
+                if (t.isUncommittedRecursively(queryTimestamp))
+                    return true;
+            }
         }
 
         return false;
     }
 
     @Override
-    public void addCommitInfo(CommitInfo commitInfo) {
+    public synchronized void addCommitInfo(CommitInfo commitInfo) {
+        if (commitInfoList == null)
+            commitInfoList = new CopyOnWriteArrayList<CommitInfo>();
         commitInfoList.add(commitInfo);
     }
 
@@ -292,7 +453,9 @@ public class Transaction implements com.codefollower.lealone.transaction.Transac
     }
 
     public CommitInfo[] getAllCommitInfo(boolean includeSelf) {
-        ArrayList<CommitInfo> commitInfoList = New.arrayList(this.commitInfoList);
+        ArrayList<CommitInfo> commitInfoList = New.arrayList();
+        if (this.commitInfoList != null)
+            commitInfoList.addAll(this.commitInfoList);
 
         if (includeSelf) {
             ArrayList<Transaction> list = New.arrayList();
@@ -315,16 +478,18 @@ public class Transaction implements com.codefollower.lealone.transaction.Transac
 
     private void getAllTransactionsRecursively(ArrayList<Transaction> list) {
         list.add(this);
-        for (Transaction t : children)
-            t.getAllTransactionsRecursively(list);
+        if (children != null) {
+            for (Transaction t : children)
+                t.getAllTransactionsRecursively(list);
+        }
     }
 
     @Override
     public void releaseResources() {
-        for (Transaction t : children)
-            t.releaseResources();
-
         if (children != null) {
+            for (Transaction t : children)
+                t.releaseResources();
+
             children.clear();
             children = null;
         }
@@ -339,7 +504,7 @@ public class Transaction implements com.codefollower.lealone.transaction.Transac
         if (savepoints == null)
             savepoints = session.getDatabase().newStringMap();
 
-        savepoints.put(name, transactionTrace.size());
+        savepoints.put(name, new int[] { undoLog.size(), children.size() });
     }
 
     public void rollbackToSavepoint(String name) {
@@ -347,29 +512,26 @@ public class Transaction implements com.codefollower.lealone.transaction.Transac
             throw DbException.get(ErrorCode.SAVEPOINT_IS_INVALID_1, name);
         }
 
-        Integer savepointIndex = savepoints.get(name);
-        if (savepointIndex == null) {
+        int[] savepoint = savepoints.get(name);
+        if (savepoint == null) {
             throw DbException.get(ErrorCode.SAVEPOINT_IS_INVALID_1, name);
         }
-        int i = savepointIndex.intValue();
+        int i = savepoint[0];
+        int childCount = savepoint[1];
+
+        //子事务rollback时会把自己从children中删除
         int size;
-        while ((size = transactionTrace.size()) > i) {
-            Object object = transactionTrace.remove(size - 1);
-            if (object instanceof Transaction)
-                ((Transaction) object).rollback();
-            else {
-                HBaseRow row = (HBaseRow) object;
-                row.getTable().removeRow(session, row, true);
-            }
-        }
-        if (savepoints != null) {
-            String[] names = new String[savepoints.size()];
-            savepoints.keySet().toArray(names);
-            for (String n : names) {
-                savepointIndex = savepoints.get(n);
-                if (savepointIndex.intValue() >= i) {
-                    savepoints.remove(name);
-                }
+        while ((size = children.size()) > childCount)
+            children.get(size - 1).rollback();
+        undoLog.undo(session, i);
+
+        //在这个保存点之后建立的保存点都失效了，这个保存点本身还可以再用
+        String[] names = new String[savepoints.size()];
+        savepoints.keySet().toArray(names);
+        for (String n : names) {
+            savepoint = savepoints.get(n);
+            if (savepoint[0] > i || savepoint[1] > childCount) {
+                savepoints.remove(n);
             }
         }
     }
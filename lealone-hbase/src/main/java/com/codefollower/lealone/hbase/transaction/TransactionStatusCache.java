@@ -19,7 +19,8 @@
  */
 package com.codefollower.lealone.hbase.transaction;
 
-import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import com.codefollower.lealone.hbase.util.HBaseUtils;
 
@@ -31,28 +32,91 @@ import static com.codefollower.lealone.hbase.engine.HBaseConstants.*;
  * <ul>-1: 事务状态未知</ul>
  * <ul>-2: 事务未正常提交</ul>
  * <ul>其他值: 事务正常提交</ul>
+ * 
+ * 内部是一个容量固定的开放寻址long->long哈希表，每个槽位占三个long: 版本号、事务id、事务状态，
+ * 读写都不加锁。每个事务id只在从它的hash位置开始的PROBE_LENGTH个槽位中查找，
+ * 这些槽位都被占用时淘汰其中事务id最小(也就是最老)的那个。<p>
+ * 
+ * 版本号是一个顺序锁: 写入者先把它从偶数CAS成奇数，写完事务id和状态后再加1变回偶数；
+ * 读者在读事务id和状态前后各读一次版本号，两次相同且是偶数才说明读到的是同一次写入的结果，
+ * 即使槽位在这期间被别的事务占用后又换回原来的事务id(ABA)也能发现。
  *
  */
 public class TransactionStatusCache {
 
-    //桶个数
-    private static final int BUCKET_NUMBER = HBaseUtils.getConfiguration().getInt(TRANSACTION_STATUS_CACHE_BUCKET_NUMBER,
-            DEFAULT_TRANSACTION_STATUS_CACHE_BUCKET_NUMBER);
+    //缓存最多能放多少个事务的状态，会向上取整为2的n次方
+    private static final int CACHE_SIZE = HBaseUtils.getConfiguration().getInt(TRANSACTION_STATUS_CACHE_SIZE,
+            DEFAULT_TRANSACTION_STATUS_CACHE_SIZE);
+
+    private static final int PROBE_LENGTH = 8;
 
-    //每个桶的容量大小
-    private static final int BUCKET_SIZE = HBaseUtils.getConfiguration().getInt(TRANSACTION_STATUS_CACHE_BUCKET_SIZE,
-            DEFAULT_TRANSACTION_STATUS_CACHE_BUCKET_SIZE);
+    //每个槽位的三个long分别是: 版本号、事务id、事务状态
+    private static final int SLOT_WIDTH = 3;
+    private static final long EMPTY = 0;
 
-    private final Bucket buckets[] = new Bucket[BUCKET_NUMBER];
+    private final AtomicLongArray slots;
+    private final int mask;
 
-    public synchronized void set(long tid, long timestamp) {
-        int position = getPosition(tid);
-        Bucket bucket = buckets[position];
-        if (bucket == null) {
-            bucket = new Bucket();
-            buckets[position] = bucket;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public TransactionStatusCache() {
+        this(CACHE_SIZE);
+    }
+
+    public TransactionStatusCache(int size) {
+        int capacity = PROBE_LENGTH;
+        while (capacity < size)
+            capacity <<= 1;
+        slots = new AtomicLongArray(SLOT_WIDTH * capacity);
+        mask = capacity - 1;
+    }
+
+    public void set(long tid, long timestamp) {
+        int start = index(tid);
+        while (true) {
+            int oldestIndex = -1;
+            long oldestVersion = 0;
+            long oldestTid = Long.MAX_VALUE;
+            boolean retry = false;
+            for (int i = 0; i < PROBE_LENGTH; i++) {
+                int index = SLOT_WIDTH * ((start + i) & mask);
+                long version = slots.get(index);
+                if ((version & 1) != 0) //其他写入者正在修改这个槽位
+                    continue;
+                long key = slots.get(index + 1);
+                if (key == tid || key == EMPTY) {
+                    if (write(index, version, tid, timestamp))
+                        return;
+                    retry = true; //其他写入者抢先了，重新找
+                    break;
+                }
+                if (key < oldestTid) {
+                    oldestTid = key;
+                    oldestIndex = index;
+                    oldestVersion = version;
+                }
+            }
+            if (retry)
+                continue;
+            if (oldestIndex == -1) //所有槽位都有写入者在修改，放弃缓存这个状态
+                return;
+            //如果在这期间槽位被别人改过，版本号就变了，CAS会失败
+            if (write(oldestIndex, oldestVersion, tid, timestamp)) {
+                evictions.incrementAndGet();
+                return;
+            }
         }
-        bucket.set(tid, timestamp);
+    }
+
+    private boolean write(int index, long expectedVersion, long tid, long timestamp) {
+        if (!slots.compareAndSet(index, expectedVersion, expectedVersion + 1))
+            return false;
+        slots.set(index + 1, tid);
+        slots.set(index + 2, timestamp);
+        slots.set(index, expectedVersion + 2);
+        return true;
     }
 
     /**
@@ -61,31 +125,48 @@ public class TransactionStatusCache {
      * @return -1: 事务状态未知; -2: 事务未正常提交; 其他值: 事务正常提交
      */
     public long get(long tid) {
-        Bucket bucket = buckets[getPosition(tid)];
-        if (bucket == null) {
-            return -1;
+        int start = index(tid);
+        for (int i = 0; i < PROBE_LENGTH; i++) {
+            int index = SLOT_WIDTH * ((start + i) & mask);
+            long version = slots.get(index);
+            if (slots.get(index + 1) == tid) {
+                long timestamp = slots.get(index + 2);
+                if ((version & 1) == 0 && slots.get(index) == version) {
+                    hits.incrementAndGet();
+                    return timestamp;
+                }
+                break;
+            }
         }
-        return bucket.get(tid);
+        misses.incrementAndGet();
+        return -1;
     }
 
-    //算出tid在哪个桶
-    private int getPosition(long tid) {
-        return ((int) (tid / BUCKET_SIZE)) % BUCKET_NUMBER;
+    private int index(long tid) {
+        //事务id是连续的奇数，先打散再取模，避免相邻事务挤在同一段槽位
+        long h = tid * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
     }
 
-    private static class Bucket {
-        private final long tids[] = new long[BUCKET_SIZE];
+    public int getCapacity() {
+        return mask + 1;
+    }
 
-        Bucket() {
-            Arrays.fill(tids, -1);
-        }
+    public long getHitCount() {
+        return hits.get();
+    }
 
-        long get(long tid) {
-            return tids[(int) (tid % BUCKET_SIZE)];
-        }
+    public long getMissCount() {
+        return misses.get();
+    }
 
-        void set(long tid, long timestamp) {
-            tids[(int) (tid % BUCKET_SIZE)] = timestamp;
-        }
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TransactionStatusCache(capacity: " + getCapacity() + ", hits: " + hits.get() + ", misses: " + misses.get()
+                + ", evictions: " + evictions.get() + ")";
     }
 }
@@ -0,0 +1,369 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.transaction;
+
+import static com.codefollower.lealone.hbase.engine.HBaseConstants.DEFAULT_TRANSACTION_UNDO_LOG_MEMORY_THRESHOLD;
+import static com.codefollower.lealone.hbase.engine.HBaseConstants.TRANSACTION_UNDO_LOG_MEMORY_THRESHOLD;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+
+import com.codefollower.lealone.hbase.engine.HBaseSession;
+import com.codefollower.lealone.hbase.result.HBaseRow;
+import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.message.DbException;
+import com.codefollower.lealone.util.New;
+
+/**
+ * 
+ * 事务的undo日志，只追加。<p>
+ * 
+ * 每条记录只保存撤消一次写操作需要的信息(region、rowKey、时间戳和被写的列)以及做write-write冲突检测用的fingerprint，
+ * 不再引用HBaseRow和它的Put/Result。记录按chunk组织，内存中已写满的chunk的总大小超过阈值后，
+ * 这些chunk会被转移到临时文件中，撤消或冲突检测时再按需读回来。
+ *
+ */
+class UndoLog {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MEMORY_THRESHOLD = HBaseUtils.getConfiguration().getInt(TRANSACTION_UNDO_LOG_MEMORY_THRESHOLD,
+            DEFAULT_TRANSACTION_UNDO_LOG_MEMORY_THRESHOLD);
+
+    //region名和列族名会大量重复，记录中只保存它们在names中的下标
+    private final ArrayList<byte[]> names = New.arrayList();
+    private final TreeMap<byte[], Integer> nameIndexes = new TreeMap<byte[], Integer>(Bytes.BYTES_COMPARATOR);
+
+    //最后一个chunk总是可写的
+    private final ArrayList<Chunk> chunks = New.arrayList();
+    private int size;
+    //已写满并且还在内存中的chunk的总字节数
+    private long memory;
+
+    private File file;
+    private RandomAccessFile spillFile;
+    private long fileLength;
+
+    UndoLog() {
+        chunks.add(new Chunk());
+    }
+
+    /**
+     * 
+     * @return 记录数，可以当成位置传给{@link #undo(HBaseSession, int)}
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized void add(HBaseRow row) {
+        //Update这种类型的SQL不会删除旧记录，撤消时什么都不用做，冲突检测用的fingerprint与新记录也是相同的
+        if (row.isForUpdate())
+            return;
+
+        byte[] rowKey;
+        List<byte[]> families = New.arrayList();
+        List<byte[]> qualifiers = New.arrayList();
+        Put put = row.getPut();
+        if (put != null) {
+            rowKey = put.getRow();
+            for (Map.Entry<byte[], List<KeyValue>> e : put.getFamilyMap().entrySet()) {
+                for (KeyValue kv : e.getValue()) {
+                    families.add(e.getKey());
+                    qualifiers.add(kv.getQualifier());
+                }
+            }
+        } else {
+            Result result = row.getResult();
+            if (result == null)
+                throw DbException.throwInternalError("oldPut and result were null???");
+            rowKey = result.getRow();
+            for (KeyValue kv : result.list()) {
+                families.add(kv.getFamily());
+                qualifiers.add(kv.getQualifier());
+            }
+        }
+
+        Chunk chunk = chunks.get(chunks.size() - 1);
+        DataOutputBuffer out = chunk.out;
+        try {
+            WritableUtils.writeVInt(out, getNameIndex(row.getRegionName()));
+            out.writeLong(row.getFingerprint());
+            out.writeLong(row.getTransactionId());
+            Bytes.writeByteArray(out, rowKey);
+            int columnCount = families.size();
+            WritableUtils.writeVInt(out, columnCount);
+            for (int i = 0; i < columnCount; i++) {
+                WritableUtils.writeVInt(out, getNameIndex(families.get(i)));
+                Bytes.writeByteArray(out, qualifiers.get(i));
+            }
+            chunk.count++;
+            size++;
+
+            if (out.getLength() >= CHUNK_SIZE)
+                seal(chunk);
+        } catch (IOException e) {
+            throw DbException.convert(e);
+        }
+    }
+
+    /**
+     * 按写入的相反顺序撤消位置position之后的所有记录，然后把它们从日志中删除
+     */
+    synchronized void undo(HBaseSession session, int position) {
+        if (position >= size)
+            return;
+
+        try {
+            while (size > position) {
+                int last = chunks.size() - 1;
+                Chunk chunk = chunks.get(last);
+                int keep = Math.max(0, chunk.count - (size - position));
+                int[] offsets = new int[chunk.count + 1];
+                Entry[] entries = read(chunk, offsets);
+
+                Map<Integer, List<Delete>> deletes = new HashMap<Integer, List<Delete>>();
+                for (int i = chunk.count - 1; i >= keep; i--) {
+                    Entry entry = entries[i];
+                    Delete delete = new Delete(entry.rowKey);
+                    for (int j = 0, len = entry.families.length; j < len; j++)
+                        delete.deleteColumn(names.get(entry.families[j]), entry.qualifiers[j], entry.timestamp);
+
+                    List<Delete> list = deletes.get(entry.regionIndex);
+                    if (list == null) {
+                        list = New.arrayList();
+                        deletes.put(entry.regionIndex, list);
+                    }
+                    list.add(delete);
+                }
+                for (Map.Entry<Integer, List<Delete>> e : deletes.entrySet())
+                    session.getRegionServer().delete(names.get(e.getKey()), e.getValue());
+
+                size -= chunk.count - keep;
+
+                if (keep == 0 && last > 0) {
+                    chunks.remove(last);
+                    if (chunk.data != null)
+                        memory -= chunk.length;
+                } else {
+                    reopen(chunk, keep, offsets[keep]);
+                }
+            }
+
+            if (chunks.get(chunks.size() - 1).out == null)
+                chunks.add(new Chunk());
+
+            truncateSpillFile();
+        } catch (IOException e) {
+            throw DbException.convert(e);
+        }
+    }
+
+    /**
+     * 
+     * @return 所有记录的fingerprint，用于write-write冲突检测
+     */
+    synchronized long[] getRowFingerprints() {
+        long[] fingerprints = new long[size];
+        int index = 0;
+        for (Chunk chunk : chunks) {
+            for (Entry entry : read(chunk, null))
+                fingerprints[index++] = entry.fingerprint;
+        }
+        return fingerprints;
+    }
+
+    synchronized byte[] findRowKey(long fingerprint) {
+        for (Chunk chunk : chunks) {
+            for (Entry entry : read(chunk, null))
+                if (entry.fingerprint == fingerprint)
+                    return entry.rowKey;
+        }
+        return null;
+    }
+
+    synchronized void close() {
+        chunks.clear();
+        size = 0;
+        memory = 0;
+        if (spillFile != null) {
+            try {
+                spillFile.close();
+            } catch (IOException e) {
+                //ignore
+            }
+            spillFile = null;
+            file.delete();
+            file = null;
+        }
+    }
+
+    private int getNameIndex(byte[] name) {
+        Integer index = nameIndexes.get(name);
+        if (index == null) {
+            index = names.size();
+            names.add(name);
+            nameIndexes.put(name, index);
+        }
+        return index;
+    }
+
+    private void seal(Chunk chunk) throws IOException {
+        chunk.length = chunk.out.getLength();
+        chunk.data = Arrays.copyOf(chunk.out.getData(), chunk.length);
+        chunk.out = null;
+        chunks.add(new Chunk());
+
+        memory += chunk.length;
+        if (memory > MEMORY_THRESHOLD)
+            spill();
+    }
+
+    private void spill() throws IOException {
+        if (spillFile == null) {
+            file = File.createTempFile("lealone-undo-", ".log");
+            file.deleteOnExit();
+            spillFile = new RandomAccessFile(file, "rw");
+        }
+
+        for (Chunk chunk : chunks) {
+            if (chunk.data != null) {
+                spillFile.seek(fileLength);
+                spillFile.write(chunk.data, 0, chunk.length);
+                chunk.fileOffset = fileLength;
+                fileLength += chunk.length;
+                memory -= chunk.length;
+                chunk.data = null;
+            }
+        }
+    }
+
+    //被撤消的chunk在临时文件中占用的空间不再需要了，chunk是按顺序写入临时文件的，所以只需截掉文件尾部
+    private void truncateSpillFile() throws IOException {
+        if (spillFile == null)
+            return;
+
+        long length = 0;
+        for (Chunk chunk : chunks) {
+            if (chunk.fileOffset >= 0)
+                length = Math.max(length, chunk.fileOffset + chunk.length);
+        }
+        if (length < fileLength) {
+            spillFile.setLength(length);
+            fileLength = length;
+        }
+    }
+
+    //只保留前count条记录，并让chunk重新变成可写的
+    private void reopen(Chunk chunk, int count, int length) throws IOException {
+        if (chunk.out == null) {
+            byte[] data = getData(chunk);
+            if (chunk.data != null)
+                memory -= chunk.length;
+            chunk.out = new DataOutputBuffer(Math.max(length, CHUNK_SIZE));
+            chunk.out.write(data, 0, length);
+            chunk.data = null;
+            chunk.length = 0;
+            chunk.fileOffset = -1;
+        } else {
+            //DataOutputBuffer没有truncate，只能重写一遍
+            byte[] data = Arrays.copyOf(chunk.out.getData(), length);
+            chunk.out.reset();
+            chunk.out.write(data, 0, length);
+        }
+        chunk.count = count;
+    }
+
+    private byte[] getData(Chunk chunk) throws IOException {
+        if (chunk.out != null)
+            return chunk.out.getData();
+        if (chunk.data != null)
+            return chunk.data;
+
+        byte[] data = new byte[chunk.length];
+        spillFile.seek(chunk.fileOffset);
+        spillFile.readFully(data);
+        return data;
+    }
+
+    private Entry[] read(Chunk chunk, int[] offsets) {
+        Entry[] entries = new Entry[chunk.count];
+        try {
+            byte[] data = getData(chunk);
+            DataInputBuffer in = new DataInputBuffer();
+            in.reset(data, chunk.out != null ? chunk.out.getLength() : chunk.length);
+            for (int i = 0; i < chunk.count; i++) {
+                if (offsets != null)
+                    offsets[i] = in.getPosition();
+
+                Entry entry = new Entry();
+                entry.regionIndex = WritableUtils.readVInt(in);
+                entry.fingerprint = in.readLong();
+                entry.timestamp = in.readLong();
+                entry.rowKey = Bytes.readByteArray(in);
+                int columnCount = WritableUtils.readVInt(in);
+                entry.families = new int[columnCount];
+                entry.qualifiers = new byte[columnCount][];
+                for (int j = 0; j < columnCount; j++) {
+                    entry.families[j] = WritableUtils.readVInt(in);
+                    entry.qualifiers[j] = Bytes.readByteArray(in);
+                }
+                entries[i] = entry;
+            }
+            if (offsets != null)
+                offsets[chunk.count] = in.getPosition();
+        } catch (IOException e) {
+            throw DbException.convert(e);
+        }
+        return entries;
+    }
+
+    private static class Chunk {
+        //可写的chunk才有out，写满后数据放在data中，转移到临时文件后data为null
+        DataOutputBuffer out = new DataOutputBuffer();
+        byte[] data;
+        int length;
+        long fileOffset = -1;
+        int count;
+    }
+
+    private static class Entry {
+        int regionIndex;
+        long fingerprint;
+        long timestamp;
+        byte[] rowKey;
+        int[] families;
+        byte[][] qualifiers;
+    }
+}
@@ -22,16 +22,26 @@ package com.codefollower.lealone.hbase.transaction;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Result;
-import org.apache.hadoop.hbase.regionserver.HRegionServer;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.ipc.HRegionInterface;
 import org.apache.hadoop.hbase.regionserver.InternalScanner;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import com.codefollower.lealone.hbase.engine.HBaseSession;
 import com.codefollower.lealone.hbase.metadata.TransactionStatusTable;
+import com.codefollower.lealone.hbase.util.HBaseUtils;
+
+import static com.codefollower.lealone.hbase.engine.HBaseConstants.*;
 
 /**
  * 
@@ -44,21 +54,101 @@ public class ValidityChecker {
     /** We always ask for CACHE_VERSIONS_OVERHEAD extra versions */
     private final static int CACHE_VERSIONS_OVERHEAD = 3;
 
-    public static List<KeyValue> check(HRegionServer regionServer, String hostAndPort, byte[] regionName,
+    //是否在region scanner内部用ValidityFilter做可见性过滤
+    private final static boolean VALIDITY_FILTER_ENABLED = HBaseUtils.getConfiguration().getBoolean(
+            TRANSACTION_VALIDITY_FILTER_ENABLED, DEFAULT_TRANSACTION_VALIDITY_FILTER_ENABLED);
+
+    public static TransactionStatusCache getTransactionStatusCache() {
+        return cache;
+    }
+
+    public static boolean isValidityFilterEnabled() {
+        return VALIDITY_FILTER_ENABLED;
+    }
+
+    /**
+     * 让scan在region内部过滤掉对当前事务不可见的版本，
+     * 用这样的scan得到的结果要交给checkFilteredResults或fetchFilteredResults，见ValidityFilter
+     */
+    public static ValidityFilter setValidityFilter(Scan scan, String hostAndPort, Transaction transaction) {
+        return setValidityFilter(scan, hostAndPort, transaction, null);
+    }
+
+    /**
+     * 
+     * @param rowFilter 可见性过滤之后再对整行做的过滤，比如ColumnPredicateFilter，可以为null
+     */
+    public static ValidityFilter setValidityFilter(Scan scan, String hostAndPort, Transaction transaction,
+            Filter rowFilter) {
+        ValidityFilter filter = new ValidityFilter(hostAndPort, transaction, rowFilter);
+        scan.setMaxVersions();
+        scan.setFilter(filter);
+        return filter;
+    }
+
+    public static ValidityFilter setValidityFilter(Get get, String hostAndPort, Transaction transaction) {
+        ValidityFilter filter = new ValidityFilter(hostAndPort, transaction, null);
+        get.setMaxVersions();
+        get.setFilter(filter);
+        return filter;
+    }
+
+    /**
+     * 检查一行记录中每一列对当前事务可见的版本。<p>
+     * 
+     * 如果某列已读到的版本都不可见，需要再往前读更老的版本，
+     * 同一轮中所有这样的列合并成一个Get，时间范围的上界取各列最老的不可见版本的时间戳中最大的那个，
+     * 读回来后每一列再去掉不早于它自己那个时间戳的版本(这些版本上一轮已经检查过了)，
+     * 所以每一轮只需要读一次region，反复读取直到每一列都找到可见版本或者没有更老的版本为止。
+     */
+    public static List<KeyValue> check(HRegionInterface regionServer, String hostAndPort, byte[] regionName,
             Transaction transaction, List<KeyValue> kvs, int localVersions) throws IOException {
+        return check(regionServer, hostAndPort, regionName, transaction, kvs, localVersions, new HashSet<Long>());
+    }
+
+    /**
+     * @param running 已经查询过但还没有提交的事务，这些事务写入的版本直接当成不可见，不会再去查询
+     */
+    private static List<KeyValue> check(HRegionInterface regionServer, String hostAndPort, byte[] regionName,
+            Transaction transaction, List<KeyValue> kvs, int localVersions, Set<Long> running) throws IOException {
         if (kvs == null) {
             return Collections.emptyList();
         }
 
-        final int requestVersions = localVersions * 2 + CACHE_VERSIONS_OVERHEAD;
-
         long startTimestamp = transaction.getStartTimestamp();
         List<KeyValue> checked = new ArrayList<KeyValue>();
-        // Map from column to older uncommitted timestamp
-        List<Get> pendingGets = new ArrayList<Get>();
+        PendingGet pendingGet = new PendingGet(kvs.isEmpty() ? null : kvs.get(0).getRow());
+        Set<Long> unresolved = new HashSet<Long>();
+
+        while (true) {
+            int requestVersions = localVersions * 2 + CACHE_VERSIONS_OVERHEAD;
+
+            collectUnresolved(kvs, startTimestamp, transaction, unresolved);
+            resolve(hostAndPort, unresolved, running);
+
+            checkVersions(hostAndPort, transaction, startTimestamp, kvs, localVersions, checked, pendingGet, running);
+
+            if (pendingGet.isEmpty())
+                break;
 
+            kvs = pendingGet.get(regionServer, regionName, requestVersions);
+            pendingGet.clear();
+
+            if (kvs.isEmpty())
+                break;
+            localVersions = requestVersions;
+        }
+
+        Collections.sort(checked, KeyValue.COMPARATOR);
+        return checked;
+    }
+
+    private static void checkVersions(String hostAndPort, Transaction transaction, long startTimestamp,
+            List<KeyValue> kvs, int localVersions, List<KeyValue> checked, PendingGet pendingGet, Set<Long> running)
+            throws IOException {
         byte[] lastFamily = null;
         byte[] lastQualifier = null;
+        KeyValue lastKv = null;
 
         byte[] currentFamily = null;
         byte[] currentQualifier = null;
@@ -77,13 +167,8 @@ public class ValidityChecker {
             if (!(Bytes.equals(lastQualifier, currentQualifier) && Bytes.equals(lastFamily, currentFamily))) {
                 // New column, if we didn't read a committed value for last one,
                 // add it to pending
-                if (!isValidRead && versionsProcessed == localVersions) {
-                    Get get = new Get(kv.getRow());
-                    get.addColumn(kv.getFamily(), kv.getQualifier());
-                    get.setMaxVersions(requestVersions); // TODO set maxVersions wisely
-                    get.setTimeRange(0, oldestUncommittedTS - 1);
-                    pendingGets.add(get);
-                }
+                if (!isValidRead && versionsProcessed >= localVersions)
+                    pendingGet.addColumn(lastKv, oldestUncommittedTS, versionsProcessed);
                 isValidRead = false;
                 versionsProcessed = 0;
                 oldestUncommittedTS = Long.MAX_VALUE;
@@ -95,7 +180,8 @@ public class ValidityChecker {
                 continue;
             }
             versionsProcessed++;
-            if (isValidRead(hostAndPort, kv.getTimestamp(), startTimestamp, transaction)) {
+            lastKv = kv;
+            if (isValidRead(hostAndPort, kv.getTimestamp(), startTimestamp, transaction, running)) {
                 // Valid read, add it to result unless it's a delete
                 if (kv.getValueLength() > 0) {
                     checked.add(kv);
@@ -108,27 +194,70 @@ public class ValidityChecker {
             }
         }
 
-        if (!isValidRead && kvs.size() == 1) {
-            KeyValue kv = kvs.get(0);
-            Get get = new Get(kv.getRow());
-            get.addColumn(kv.getFamily(), kv.getQualifier());
-            get.setMaxVersions(requestVersions); // TODO set maxVersions wisely
-            get.setTimeRange(0, oldestUncommittedTS - 1);
-            pendingGets.add(get);
+        //最后一列
+        if (!isValidRead && versionsProcessed >= localVersions)
+            pendingGet.addColumn(lastKv, oldestUncommittedTS, versionsProcessed);
+    }
+
+    /**
+     * 
+     * 一行中需要读更老版本的列，每一轮合并成一个Get
+     *
+     */
+    private static class PendingGet {
+        private final byte[] row;
+        //family长度 + family + qualifier -> 这一列最老的不可见版本的时间戳
+        private final Map<byte[], Long> columns = new TreeMap<byte[], Long>(Bytes.BYTES_COMPARATOR);
+        private final List<KeyValue> columnKvs = new ArrayList<KeyValue>();
+        private long maxOldestUncommittedTS;
+        private int maxVersionsProcessed;
+
+        PendingGet(byte[] row) {
+            this.row = row;
+        }
+
+        void addColumn(KeyValue kv, long oldestUncommittedTS, int versionsProcessed) {
+            columns.put(getColumnKey(kv), oldestUncommittedTS);
+            columnKvs.add(kv);
+            maxOldestUncommittedTS = Math.max(maxOldestUncommittedTS, oldestUncommittedTS);
+            maxVersionsProcessed = Math.max(maxVersionsProcessed, versionsProcessed);
+        }
+
+        boolean isEmpty() {
+            return columns.isEmpty();
+        }
+
+        void clear() {
+            columns.clear();
+            columnKvs.clear();
+            maxOldestUncommittedTS = 0;
+            maxVersionsProcessed = 0;
         }
 
-        // If we have pending columns, request (and check recursively) them
-        if (!pendingGets.isEmpty()) {
-            int size = pendingGets.size();
-            Result[] results = new Result[size];
-            for (int i = 0; i < size; i++)
-                results[i] = regionServer.get(regionName, pendingGets.get(i));
-            for (Result r : results) {
-                checked.addAll(check(regionServer, hostAndPort, regionName, transaction, r.list(), requestVersions));
+        List<KeyValue> get(HRegionInterface regionServer, byte[] regionName, int requestVersions) throws IOException {
+            Get get = new Get(row);
+            for (KeyValue kv : columnKvs)
+                get.addColumn(kv.getFamily(), kv.getQualifier());
+            //某列在[它自己的时间戳, maxOldestUncommittedTS)之间的版本都已经检查过了，
+            //最多有maxVersionsProcessed个，读回来后要去掉，所以多要这么多个版本
+            get.setMaxVersions(requestVersions + maxVersionsProcessed); // TODO set maxVersions wisely
+            get.setTimeRange(0, maxOldestUncommittedTS); //不包含maxOldestUncommittedTS
+
+            List<KeyValue> list = regionServer.get(regionName, get).list();
+            List<KeyValue> kvs = new ArrayList<KeyValue>();
+            if (list != null) {
+                for (KeyValue kv : list) {
+                    if (kv.getTimestamp() < columns.get(getColumnKey(kv)))
+                        kvs.add(kv);
+                }
             }
+            return kvs;
+        }
+
+        private static byte[] getColumnKey(KeyValue kv) {
+            byte[] family = kv.getFamily();
+            return Bytes.add(new byte[] { (byte) family.length }, family, kv.getQualifier());
         }
-        Collections.sort(checked, KeyValue.COMPARATOR);
-        return checked;
     }
 
     /**
@@ -139,15 +268,21 @@ public class ValidityChecker {
      * @return
      * @throws IOException
      */
-    private static boolean isValidRead(String hostAndPort, long queryTimestamp, long startTimestamp, Transaction transaction)
+    static boolean isValidRead(String hostAndPort, long queryTimestamp, long startTimestamp, Transaction transaction)
             throws IOException {
+        return isValidRead(hostAndPort, queryTimestamp, startTimestamp, transaction, null);
+    }
+
+    private static boolean isValidRead(String hostAndPort, long queryTimestamp, long startTimestamp,
+            Transaction transaction, Set<Long> running) throws IOException {
 
         //1. 时间戳是偶数时，说明是非事务，如果入库时间戳小于当前事务的开始时间戳，那么就认为此条记录是有效的
         if (queryTimestamp % 2 == 0)
             return queryTimestamp < startTimestamp;
 
         //2. 入库时间戳等于当前事务的开始时间戳，说明当前事务在读取它刚写入的记录
-        if (queryTimestamp == startTimestamp || transaction.isUncommitted(queryTimestamp))
+        //(ValidityFilter被反序列化后transaction为null)
+        if (queryTimestamp == startTimestamp || transaction != null && transaction.isUncommitted(queryTimestamp))
             return true;
 
         long commitTimestamp = cache.get(queryTimestamp); //TransactionStatusCache中的所有值初始情况下是-1
@@ -160,30 +295,121 @@ public class ValidityChecker {
         if (commitTimestamp != -1)
             return commitTimestamp <= startTimestamp;
 
-        //5. 记录还没在TransactionStatusCache中，需要到TransactionStatusTable中查询(这一步会消耗一些时间)
+        //5. 同一批记录中已经批量查询过，事务还没有提交
+        if (running != null && running.contains(queryTimestamp))
+            return false;
+
+        //6. 记录还没在TransactionStatusCache中，需要到TransactionStatusTable中查询(这一步会消耗一些时间)
         commitTimestamp = TransactionStatusTable.getInstance().query(hostAndPort, queryTimestamp);
         if (commitTimestamp != -1) {
             cache.set(queryTimestamp, commitTimestamp);
-            return true;
-        } else {
-            cache.set(queryTimestamp, -2);
+            return commitTimestamp <= startTimestamp;
+        }
+        //查不到时事务可能还在运行，之后还会提交，所以不能缓存成-2(未正常提交)，
+        //否则它提交后写入的记录对之后开始的事务也永远不可见了，这里只是当前这次读不到
+        return false;
+    }
+
+    /**
+     * kvs中是否有对当前事务不可见的写入(删除标记除外)，
+     * 也就是有其他事务正在写这一行，或者在当前事务开始之后写过这一行
+     */
+    public static boolean hasInvisibleWrite(HBaseSession session, String hostAndPort, List<KeyValue> kvs)
+            throws IOException {
+        Transaction t = session.getTransaction();
+        long startTimestamp = t.getStartTimestamp();
+        Set<Long> unresolved = new HashSet<Long>();
+        Set<Long> running = new HashSet<Long>();
+        collectUnresolved(kvs, startTimestamp, t, unresolved);
+        resolve(hostAndPort, unresolved, running);
+        for (KeyValue kv : kvs)
+            if (kv.getValueLength() != 0 && !isValidRead(hostAndPort, kv.getTimestamp(), startTimestamp, t, running))
+                return true;
+        return false;
+    }
+
+    /**
+     * 判断isValidRead是否要走到第6步，也就是需要到TransactionStatusTable查询
+     * (ValidityFilter被反序列化后transaction为null)
+     */
+    static boolean isUnresolved(long queryTimestamp, long startTimestamp, Transaction transaction) {
+        if (queryTimestamp % 2 == 0 || queryTimestamp == startTimestamp)
             return false;
+        if (transaction != null && transaction.isUncommitted(queryTimestamp))
+            return false;
+        return cache.get(queryTimestamp) == -1;
+    }
+
+    /**
+     * 找出kvs中需要到TransactionStatusTable查询的事务id(也就是isValidRead的第6步)，放到unresolved中
+     */
+    private static void collectUnresolved(List<KeyValue> kvs, long startTimestamp, Transaction transaction,
+            Set<Long> unresolved) {
+        long queryTimestamp;
+        for (KeyValue kv : kvs) {
+            queryTimestamp = kv.getTimestamp();
+            if (isUnresolved(queryTimestamp, startTimestamp, transaction))
+                unresolved.add(queryTimestamp);
+        }
+    }
+
+    /**
+     * 一次批量查询unresolved中所有事务的状态，已提交的放入TransactionStatusCache，
+     * 查不到的事务可能还在运行，不能缓存成-2，只放到running中，
+     * 这样接下来的check就不需要再逐条访问TransactionStatusTable了。<p>
+     * 
+     * 查完后unresolved会被清空，已经在running中的事务不会再查询。
+     */
+    private static void resolve(String hostAndPort, Set<Long> unresolved, Set<Long> running) {
+        unresolved.removeAll(running);
+        int size = unresolved.size();
+        if (size == 0)
+            return;
+
+        long[] queryTimestamps = new long[size];
+        int i = 0;
+        for (Long queryTimestamp : unresolved)
+            queryTimestamps[i++] = queryTimestamp;
+
+        long[] commitTimestamps = TransactionStatusTable.getInstance().query(hostAndPort, queryTimestamps);
+        for (i = 0; i < size; i++) {
+            if (commitTimestamps[i] != -1)
+                cache.set(queryTimestamps[i], commitTimestamps[i]);
+            else
+                running.add(queryTimestamps[i]);
         }
+        unresolved.clear();
     }
 
+    /**
+     * 
+     * @return scanner已经结束时返回null，否则返回对当前事务可见的记录，有可能是空数组
+     */
     public static Result[] fetchResults(HBaseSession session, String hostAndPort, //
             byte[] regionName, long scannerId, int fetchSize) throws IOException {
+        Result[] result = session.getRegionServer().next(scannerId, fetchSize);
+        if (result == null || result.length == 0)
+            return null;
+        return checkResults(session, hostAndPort, regionName, result);
+    }
+
+    /**
+     * 检查同一个region中的一批记录，返回对当前事务可见的记录，不可见或已删除的记录会被去掉
+     */
+    public static Result[] checkResults(HBaseSession session, String hostAndPort, //
+            byte[] regionName, Result[] result) throws IOException {
         Transaction t = session.getTransaction();
         List<KeyValue> kvs;
         KeyValue kv;
         Result r;
         long queryTimestamp;
         long startTimestamp = t.getStartTimestamp();
-        Result[] result = session.getRegionServer().next(scannerId, fetchSize);
-        ArrayList<Result> list = new ArrayList<Result>(result.length);
+
+        //1. 先找出这一批记录中所有状态未知的事务，批量查询
+        boolean[] needCheck = new boolean[result.length];
+        Set<Long> unresolved = new HashSet<Long>();
         for (int i = 0; i < result.length; i++) {
-            r = result[i];
-            kvs = r.list();
+            kvs = result[i].list();
             //当Result.isEmpty=true时，r.list()也返回null，所以这里不用再判断kvs.isEmpty
             if (kvs != null) {
                 kv = kvs.get(0);
@@ -191,13 +417,26 @@ public class ValidityChecker {
                 if (queryTimestamp == startTimestamp //
                         || queryTimestamp < startTimestamp && queryTimestamp % 2 == 0 //
                         || t.isUncommitted(queryTimestamp)) {
-                    if (kv.getValueLength() != 0) //kv已删除，不需要再处理
-                        list.add(r);
                     continue;
                 }
+                collectUnresolved(kvs, startTimestamp, t, unresolved);
+            }
+            needCheck[i] = true;
+        }
+        Set<Long> running = new HashSet<Long>();
+        resolve(hostAndPort, unresolved, running);
+
+        //2. 再一次性过滤
+        ArrayList<Result> list = new ArrayList<Result>(result.length);
+        for (int i = 0; i < result.length; i++) {
+            r = result[i];
+            if (!needCheck[i]) {
+                if (r.list().get(0).getValueLength() != 0) //kv已删除，不需要再处理
+                    list.add(r);
+                continue;
             }
 
-            r = new Result(ValidityChecker.check(session.getRegionServer(), hostAndPort, regionName, t, kvs, 1));
+            r = new Result(check(session.getRegionServer(), hostAndPort, regionName, t, r.list(), 1, running));
             if (!r.isEmpty())
                 list.add(r);
         }
@@ -212,29 +451,126 @@ public class ValidityChecker {
         Result r;
         long queryTimestamp;
         long startTimestamp = t.getStartTimestamp();
-        List<KeyValue> kvs = new ArrayList<KeyValue>();
+        List<KeyValue> kvs;
 
+        //1. 先把这一批记录都读出来，同时找出所有状态未知的事务，批量查询
+        ArrayList<List<KeyValue>> rows = new ArrayList<List<KeyValue>>(fetchSize);
+        Set<Long> unresolved = new HashSet<Long>();
         //long start = System.nanoTime();
         boolean hasMoreRows = true;
         for (int i = 0; hasMoreRows && i < fetchSize; i++) {
-            kvs.clear();
+            kvs = new ArrayList<KeyValue>();
             hasMoreRows = scanner.next(kvs);
             if (!kvs.isEmpty()) {
+                rows.add(kvs);
                 kv = kvs.get(0);
                 queryTimestamp = kv.getTimestamp();
-                if (queryTimestamp < startTimestamp && queryTimestamp % 2 == 0 || t.isUncommitted(queryTimestamp)) {
-                    if (kv.getValueLength() != 0) //kv已删除，不需要再处理
-                        list.add(new Result(kvs));
-                    continue;
-                }
+                if (!(queryTimestamp < startTimestamp && queryTimestamp % 2 == 0 || t.isUncommitted(queryTimestamp)))
+                    collectUnresolved(kvs, startTimestamp, t, unresolved);
+            }
+        }
+        Set<Long> running = new HashSet<Long>();
+        resolve(hostAndPort, unresolved, running);
 
-                r = new Result(ValidityChecker.check(session.getRegionServer(), hostAndPort, regionName, t, kvs, 1));
-                if (!r.isEmpty())
-                    list.add(r);
+        //2. 再一次性过滤
+        for (int i = 0, size = rows.size(); i < size; i++) {
+            kvs = rows.get(i);
+            kv = kvs.get(0);
+            queryTimestamp = kv.getTimestamp();
+            if (queryTimestamp < startTimestamp && queryTimestamp % 2 == 0 || t.isUncommitted(queryTimestamp)) {
+                if (kv.getValueLength() != 0) //kv已删除，不需要再处理
+                    list.add(new Result(kvs));
+                continue;
             }
+
+            r = new Result(check(session.getRegionServer(), hostAndPort, regionName, t, kvs, 1, running));
+            if (!r.isEmpty())
+                list.add(r);
         }
         //long end = System.nanoTime();
         //System.out.println((end - start) / 1000000 + " ms count="+list.size());
         return hasMoreRows;
     }
+
+    //以下方法用于已设置了ValidityFilter的scanner或get
+
+    /**
+     * 
+     * @return scanner已经结束时返回null，否则返回对当前事务可见的记录，有可能是空数组
+     */
+    public static Result[] fetchFilteredResults(HBaseSession session, String hostAndPort, //
+            byte[] regionName, long scannerId, int fetchSize, ValidityFilter filter) throws IOException {
+        Result[] result = session.getRegionServer().next(scannerId, fetchSize);
+        if (result == null || result.length == 0)
+            return null;
+        return checkFilteredResults(session, session.getRegionServer(), hostAndPort, regionName, result, filter);
+    }
+
+    public static boolean fetchFilteredResults(HBaseSession session, String hostAndPort, byte[] regionName,
+            InternalScanner scanner, int fetchSize, ArrayList<Result> list, ValidityFilter filter) throws IOException {
+        ArrayList<Result> rows = new ArrayList<Result>(fetchSize);
+        List<KeyValue> kvs = new ArrayList<KeyValue>();
+        boolean hasMoreRows = true;
+        for (int i = 0; hasMoreRows && i < fetchSize; i++) {
+            kvs.clear();
+            hasMoreRows = scanner.next(kvs);
+            if (!kvs.isEmpty())
+                rows.add(new Result(kvs));
+        }
+        Result[] result = checkFilteredResults(session, session.getRegionServer(), hostAndPort, regionName,
+                rows.toArray(new Result[rows.size()]), filter);
+        for (Result r : result)
+            list.add(r);
+        return hasMoreRows;
+    }
+
+    public static Result[] checkFilteredResults(HBaseSession session, HRegionInterface regionServer,
+            String hostAndPort, byte[] regionName, Result[] result) throws IOException {
+        return checkFilteredResults(session, regionServer, hostAndPort, regionName, result, null);
+    }
+
+    /**
+     * ValidityFilter不会在region scanner内部同步查询TransactionStatusTable，
+     * 有事务写入的版本(奇数时间戳)的行要在这里批量查询事务状态后再检查一次，
+     * 其他的行在region内部已经做完可见性过滤了，直接返回。<p>
+     * 
+     * 数据在其他RegionServer上时，regionServer是对方的HRegionInterface，需要读更老的版本时也从对方读取。
+     * 
+     * @param filter 设置到scan上的ValidityFilter，要用它的rowFilter过滤再检查过的行，为null时表示没有rowFilter
+     */
+    public static Result[] checkFilteredResults(HBaseSession session, HRegionInterface regionServer,
+            String hostAndPort, byte[] regionName, Result[] result, ValidityFilter filter) throws IOException {
+        Transaction t = session.getTransaction();
+        long startTimestamp = t.getStartTimestamp();
+
+        //1. 先找出需要再检查的行，它们中所有状态未知的事务一起查询
+        boolean[] needCheck = new boolean[result.length];
+        Set<Long> unresolved = new HashSet<Long>();
+        for (int i = 0; i < result.length; i++) {
+            //当Result.isEmpty=true时，r.list()也返回null
+            List<KeyValue> kvs = result[i] == null ? null : result[i].list();
+            if (kvs != null && ValidityFilter.needCheck(kvs, startTimestamp)) {
+                needCheck[i] = true;
+                collectUnresolved(kvs, startTimestamp, t, unresolved);
+            }
+        }
+        Set<Long> running = new HashSet<Long>();
+        resolve(hostAndPort, unresolved, running);
+
+        //2. 再一次性过滤
+        ArrayList<Result> list = new ArrayList<Result>(result.length);
+        for (int i = 0; i < result.length; i++) {
+            Result r = result[i];
+            if (r == null || r.isEmpty())
+                continue;
+            if (needCheck[i]) {
+                List<KeyValue> kvs = check(regionServer, hostAndPort, regionName, t, r.list(), 1, running);
+                if (kvs.isEmpty() || filter != null && !filter.filterCheckedRow(kvs))
+                    continue;
+                r = new Result(kvs);
+            }
+            list.add(r);
+        }
+        return list.toArray(new Result[list.size()]);
+    }
 }
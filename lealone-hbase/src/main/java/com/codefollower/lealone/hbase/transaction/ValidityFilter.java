@@ -0,0 +1,196 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.transaction;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterBase;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.codefollower.lealone.message.DbException;
+
+/**
+ * 
+ * 在region scanner内部做MVCC可见性过滤，对当前事务不可见的版本直接跳过，不会被放到Result中。<p>
+ * 
+ * 每一列的版本按时间戳从新到旧依次传进来，找到第一个可见版本后就跳到下一列，
+ * 如果可见版本是删除标记(值为空)，这一列也不返回。
+ * 需要配合scan.setMaxVersions()使用，这样不可见版本后面的老版本才会传给过滤器。<p>
+ * 
+ * 遇到TransactionStatusCache中没有的事务时不会在region scanner内部同步查询TransactionStatusTable，
+ * 而是把这一列剩下的版本都原样返回，由scanner外面的ValidityChecker.checkFilteredResults批量查询后再检查，
+ * 为了让两边判断一致，所有包含事务写入的版本(奇数时间戳)的行都交给checkFilteredResults再检查一次，见needCheck。
+ * 这样的行rowFilter也推迟到检查之后再做，因为推迟检查的列可能包含不可见的版本。
+ *
+ */
+public class ValidityFilter extends FilterBase {
+    private String hostAndPort;
+    private long startTimestamp;
+
+    //write/readFields不包含它，只在本地region scanner中使用，反序列化后为null
+    private Transaction transaction;
+
+    //可见性过滤之后再对整行做的过滤，可以为null
+    private Filter rowFilter;
+
+    private byte[] lastFamily;
+    private byte[] lastQualifier;
+    //当前列是否已找到可见版本
+    private boolean isColumnResolved;
+    //当前列是否已推迟到scanner外面检查
+    private boolean isColumnDeferred;
+    //当前行是否需要在scanner外面再检查
+    private boolean isRowUnchecked;
+
+    /**
+     * Writable需要
+     */
+    public ValidityFilter() {
+    }
+
+    public ValidityFilter(String hostAndPort, Transaction transaction, Filter rowFilter) {
+        this.hostAndPort = hostAndPort;
+        this.transaction = transaction;
+        this.startTimestamp = transaction.getStartTimestamp();
+        this.rowFilter = rowFilter;
+    }
+
+    /**
+     * 一行中有事务写入的版本时需要交给ValidityChecker.checkFilteredResults再检查一次
+     */
+    static boolean needCheck(List<KeyValue> kvs, long startTimestamp) {
+        for (KeyValue kv : kvs)
+            if (needCheck(kv.getTimestamp(), startTimestamp))
+                return true;
+        return false;
+    }
+
+    private static boolean needCheck(long queryTimestamp, long startTimestamp) {
+        return queryTimestamp % 2 != 0 && queryTimestamp != startTimestamp;
+    }
+
+    @Override
+    public void reset() {
+        lastFamily = null;
+        lastQualifier = null;
+        isColumnResolved = false;
+        isColumnDeferred = false;
+        isRowUnchecked = false;
+        if (rowFilter != null)
+            rowFilter.reset();
+    }
+
+    @Override
+    public ReturnCode filterKeyValue(KeyValue kv) {
+        if (lastQualifier == null || !kv.matchingColumn(lastFamily, lastQualifier)) {
+            lastFamily = kv.getFamily();
+            lastQualifier = kv.getQualifier();
+            isColumnResolved = false;
+            isColumnDeferred = false;
+        } else if (isColumnResolved) {
+            return ReturnCode.NEXT_COL;
+        } else if (isColumnDeferred) {
+            return ReturnCode.INCLUDE;
+        }
+
+        long queryTimestamp = kv.getTimestamp();
+        if (ValidityChecker.isUnresolved(queryTimestamp, startTimestamp, transaction)) {
+            isColumnDeferred = true;
+            isRowUnchecked = true;
+            return ReturnCode.INCLUDE;
+        }
+
+        boolean isValidRead;
+        try {
+            isValidRead = ValidityChecker.isValidRead(hostAndPort, queryTimestamp, startTimestamp, transaction);
+        } catch (IOException e) {
+            throw DbException.convert(e);
+        }
+
+        if (!isValidRead)
+            return ReturnCode.SKIP;
+
+        isColumnResolved = true;
+        if (kv.getValueLength() == 0) //已删除
+            return ReturnCode.NEXT_COL;
+        if (needCheck(queryTimestamp, startTimestamp))
+            isRowUnchecked = true;
+        return ReturnCode.INCLUDE;
+    }
+
+    @Override
+    public boolean hasFilterRow() {
+        return rowFilter != null;
+    }
+
+    @Override
+    public void filterRow(List<KeyValue> kvs) {
+        if (rowFilter != null && !isRowUnchecked)
+            rowFilter.filterRow(kvs);
+    }
+
+    @Override
+    public boolean filterRow() {
+        return rowFilter != null && !isRowUnchecked && rowFilter.filterRow();
+    }
+
+    /**
+     * 对在scanner外面检查完的行再用rowFilter过滤
+     * 
+     * @return false表示这一行被过滤掉
+     */
+    boolean filterCheckedRow(List<KeyValue> kvs) {
+        if (rowFilter == null)
+            return true;
+        rowFilter.reset();
+        rowFilter.filterRow(kvs);
+        return !rowFilter.filterRow();
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        Bytes.writeByteArray(out, Bytes.toBytes(hostAndPort));
+        out.writeLong(startTimestamp);
+        out.writeBoolean(rowFilter != null);
+        if (rowFilter != null) {
+            out.writeUTF(rowFilter.getClass().getName());
+            rowFilter.write(out);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        hostAndPort = Bytes.toString(Bytes.readByteArray(in));
+        startTimestamp = in.readLong();
+        if (in.readBoolean()) {
+            try {
+                rowFilter = (Filter) Class.forName(in.readUTF()).newInstance();
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+            rowFilter.readFields(in);
+        }
+    }
+}
@@ -58,6 +58,17 @@ public class HBaseRegionInfo {
         return regionLocation.getHostname();
     }
 
+    /**
+     * HBase RegionServer的主机名和RPC端口号，格式同ServerName.getHostAndPort()
+     */
+    public String getHostAndPort() {
+        return regionLocation.getHostnamePort();
+    }
+
+    public int getPort() {
+        return regionLocation.getPort();
+    }
+
     public int getTcpPort() {
         return ZooKeeperAdmin.getTcpPort(regionLocation);
     }
@@ -281,12 +281,7 @@ public class HBaseUtils {
     }
 
     public static HBaseRegionInfo getHBaseRegionInfo(byte[] tableName, byte[] rowKey) {
-        try {
-            HRegionLocation regionLocation = getConnection().locateRegion(tableName, rowKey);
-            return new HBaseRegionInfo(regionLocation);
-        } catch (IOException e) {
-            throw DbException.convert(e);
-        }
+        return RegionLocationCache.getRegionInfo(tableName, rowKey);
     }
 
     //-----------------以下代码来自org.apache.hadoop.hbase.client.HTable---------------------------//
@@ -378,35 +373,33 @@ public class HBaseUtils {
 
     public static SQLRoutingInfo getSQLRoutingInfo( //
             HBaseSession session, WhereClauseSupport whereClauseSupport, Prepared prepared) throws Exception {
-        whereClauseSupport.getTableFilter().setIndexConditionsParsed(false);
         byte[] tableName = whereClauseSupport.getTableNameAsBytes();
-        Value startValue = whereClauseSupport.getStartRowKeyValue();
-        Value endValue = whereClauseSupport.getEndRowKeyValue();
-
         String sql = prepared.getSQL();
 
-        byte[] start = null;
+        //主键条件按rowKey的编码方式转换，等值条件只需要找到一个region，范围条件只找与[start, end)相交的region
+        byte[] start;
         byte[] end = null;
-        if (startValue != null)
-            start = toBytes(startValue);
-        if (endValue != null)
-            end = toBytes(endValue);
+        boolean oneRegion = false;
+        List<byte[]> startKeys = null;
+        byte[] key = whereClauseSupport.getKey();
+        if (key != null) {
+            start = key;
+            oneRegion = true;
+        } else {
+            start = whereClauseSupport.getStartKey();
+            end = whereClauseSupport.getStopKey();
+        }
 
         if (start == null)
             start = HConstants.EMPTY_START_ROW;
         if (end == null)
             end = HConstants.EMPTY_END_ROW;
 
-        boolean oneRegion = false;
-        List<byte[]> startKeys = null;
-        if (startValue != null && endValue != null && startValue == endValue)
-            oneRegion = true;
-
         if (!oneRegion) {
-            startKeys = HBaseUtils.getStartKeysInRange(tableName, start, end);
+            startKeys = RegionLocationCache.getStartKeysInRange(tableName, start, end);
             if (startKeys == null || startKeys.isEmpty()) {
-                throw new RuntimeException("no regions for table: " + Bytes.toString(tableName) + " start: " + startValue
-                        + " end: " + endValue);
+                throw new RuntimeException("no regions for table: " + Bytes.toString(tableName) + " start: "
+                        + Bytes.toStringBinary(start) + " end: " + Bytes.toStringBinary(end));
             } else if (startKeys.size() == 1) {
                 oneRegion = true;
                 start = startKeys.get(0);
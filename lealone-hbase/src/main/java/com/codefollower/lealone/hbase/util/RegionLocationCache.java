@@ -0,0 +1,167 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.client.MetaScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.codefollower.lealone.hbase.zookeeper.ZooKeeperAdmin;
+import com.codefollower.lealone.message.DbException;
+
+/**
+ * 
+ * 缓存每个表的region边界(startKey -> HBaseRegionInfo)，
+ * 路由一条SQL或一条记录时只需在本地做一次二分查找，不用访问.META.表。<p>
+ * 
+ * region关闭或分裂时RegionLocationCacheObserver会修改zk节点，
+ * RegionLocationCacheTracker收到通知后清空缓存，下次用到时再扫描.META.表重建。
+ * 如果有region还没有分配到RegionServer(比如正在迁移)，这个表的边界不缓存，
+ * 此时退回到原先的方式: 找region用HConnection.locateRegion，找范围内的region扫描.META.表。
+ *
+ */
+public class RegionLocationCache {
+    //每个表的map构建好后不再修改，变化时整个替换掉，所以读时不需要加锁
+    private static final Map<String, NavigableMap<byte[], HBaseRegionInfo>> tables = //
+    new ConcurrentHashMap<String, NavigableMap<byte[], HBaseRegionInfo>>();
+
+    //每次清空缓存时加1，扫描.META.期间如果缓存被清空了，扫描到的结果可能已经过时，不能放到缓存中
+    private static final AtomicLong version = new AtomicLong();
+    private static volatile boolean trackerStarted;
+
+    private RegionLocationCache() {
+    }
+
+    public static void clear() {
+        version.incrementAndGet();
+        tables.clear();
+    }
+
+    public static HBaseRegionInfo getRegionInfo(byte[] tableName, byte[] rowKey) {
+        if (rowKey == null)
+            rowKey = HConstants.EMPTY_START_ROW;
+        HBaseRegionInfo hri = find(tables.get(Bytes.toString(tableName)), rowKey);
+        if (hri == null) {
+            //缓存可能过时了，重新加载一次
+            hri = find(loadRegions(tableName), rowKey);
+            if (hri == null) {
+                try {
+                    HRegionLocation regionLocation = HBaseUtils.getConnection().locateRegion(tableName, rowKey);
+                    hri = new HBaseRegionInfo(regionLocation);
+                } catch (IOException e) {
+                    throw DbException.convert(e);
+                }
+            }
+        }
+        return hri;
+    }
+
+    /**
+     * 返回与[startKey, endKey]相交的各个region的起始key，第一个是startKey本身，
+     * 与HBaseUtils.getStartKeysInRange的语义一样
+     */
+    public static List<byte[]> getStartKeysInRange(byte[] tableName, byte[] startKey, byte[] endKey) {
+        if (startKey == null)
+            startKey = HConstants.EMPTY_START_ROW;
+        if (endKey == null)
+            endKey = HConstants.EMPTY_END_ROW;
+
+        NavigableMap<byte[], HBaseRegionInfo> regions = tables.get(Bytes.toString(tableName));
+        if (find(regions, startKey) == null) {
+            regions = loadRegions(tableName);
+            if (find(regions, startKey) == null) {
+                try {
+                    return HBaseUtils.getStartKeysInRange(tableName, startKey, endKey);
+                } catch (IOException e) {
+                    throw DbException.convert(e);
+                }
+            }
+        }
+
+        List<byte[]> rangeKeys = new ArrayList<byte[]>();
+        rangeKeys.add(startKey);
+        NavigableMap<byte[], HBaseRegionInfo> tail = regions.tailMap(startKey, false);
+        for (byte[] regionStartKey : tail.keySet()) {
+            if (Bytes.equals(endKey, HConstants.EMPTY_END_ROW) || Bytes.compareTo(regionStartKey, endKey) <= 0)
+                rangeKeys.add(regionStartKey);
+            else
+                break;
+        }
+        return rangeKeys;
+    }
+
+    private static HBaseRegionInfo find(NavigableMap<byte[], HBaseRegionInfo> regions, byte[] rowKey) {
+        if (regions == null)
+            return null;
+        Map.Entry<byte[], HBaseRegionInfo> e = regions.floorEntry(rowKey);
+        if (e == null)
+            return null;
+        HBaseRegionInfo hri = e.getValue();
+        byte[] endKey = hri.getHRegionInfo().getEndKey();
+        if (Bytes.equals(endKey, HConstants.EMPTY_END_ROW) || Bytes.compareTo(rowKey, endKey) < 0)
+            return hri;
+        return null;
+    }
+
+    private static NavigableMap<byte[], HBaseRegionInfo> loadRegions(byte[] tableName) {
+        startTracker();
+        long v = version.get();
+        NavigableMap<HRegionInfo, ServerName> locations;
+        try {
+            locations = MetaScanner.allTableRegions(HBaseUtils.getConfiguration(), tableName, false);
+        } catch (IOException e) {
+            throw DbException.convert(e);
+        }
+        NavigableMap<byte[], HBaseRegionInfo> regions = new TreeMap<byte[], HBaseRegionInfo>(Bytes.BYTES_COMPARATOR);
+        for (Map.Entry<HRegionInfo, ServerName> e : locations.entrySet()) {
+            HRegionInfo info = e.getKey();
+            ServerName sn = e.getValue();
+            //有region还没有分配到RegionServer时不缓存
+            if (sn == null) {
+                tables.remove(Bytes.toString(tableName));
+                return null;
+            }
+            regions.put(info.getStartKey(), new HBaseRegionInfo(new HRegionLocation(info, sn.getHostname(), sn.getPort())));
+        }
+        if (version.get() == v)
+            tables.put(Bytes.toString(tableName), regions);
+        return regions;
+    }
+
+    //master和客户端上没有RegionLocationCacheObserver，也要监听zk的通知
+    private static void startTracker() {
+        if (!trackerStarted) {
+            ZooKeeperAdmin.getRegionLocationCacheTracker();
+            trackerStarted = true;
+        }
+    }
+}
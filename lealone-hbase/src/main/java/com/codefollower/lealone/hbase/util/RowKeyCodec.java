@@ -0,0 +1,351 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.util;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.codefollower.lealone.message.DbException;
+import com.codefollower.lealone.value.DataType;
+import com.codefollower.lealone.value.Value;
+import com.codefollower.lealone.value.ValueBoolean;
+import com.codefollower.lealone.value.ValueByte;
+import com.codefollower.lealone.value.ValueBytes;
+import com.codefollower.lealone.value.ValueDate;
+import com.codefollower.lealone.value.ValueDecimal;
+import com.codefollower.lealone.value.ValueDouble;
+import com.codefollower.lealone.value.ValueFloat;
+import com.codefollower.lealone.value.ValueInt;
+import com.codefollower.lealone.value.ValueLong;
+import com.codefollower.lealone.value.ValueNull;
+import com.codefollower.lealone.value.ValueShort;
+import com.codefollower.lealone.value.ValueString;
+import com.codefollower.lealone.value.ValueStringFixed;
+import com.codefollower.lealone.value.ValueStringIgnoreCase;
+import com.codefollower.lealone.value.ValueTime;
+import com.codefollower.lealone.value.ValueTimestamp;
+import com.codefollower.lealone.value.ValueUuid;
+
+/**
+ *
+ * 保持顺序的rowKey编码: 编码后的字节按HBase的无符号字节序比较，结果与SQL中值的大小顺序一致。<p>
+ *
+ * 每个值先写一个标记字节，NULL是0x00，其他值是0x01，所以NULL排在最前面。<p>
+ * 整数统一用8字节，翻转符号位；浮点数正数翻转符号位、负数翻转所有位；
+ * 日期时间按Value中与时区无关的dateValue和纳秒数编码(与compareSecure一致)，不用依赖JVM默认时区的毫秒数，
+ * 否则不同时区的server会得到不同的rowKey，夏令时跳过的本地时间还会和其他时间得到相同的rowKey；
+ * DECIMAL按符号、指数、有效数字编码，负数取反；
+ * 字符串和字节数组中的0x00转义成0x00 0xFF，并以0x00 0x01结尾。<p>
+ *
+ * 每个值的编码都是自定界的，所以多个值直接拼接起来就是复合主键的编码，
+ * 按字节比较就等于按列依次比较，前几列的编码也正好是完整编码的前缀。
+ *
+ */
+public class RowKeyCodec {
+    private static final byte NULL = 0x00;
+    private static final byte NOT_NULL = 0x01;
+
+    private static final byte DECIMAL_NEGATIVE = 0x00;
+    private static final byte DECIMAL_ZERO = 0x01;
+    private static final byte DECIMAL_POSITIVE = 0x02;
+
+    private static final byte ESCAPE = 0x00;
+    private static final byte ESCAPED_ZERO = (byte) 0xFF;
+    private static final byte TERMINATOR = 0x01;
+
+    private RowKeyCodec() {
+    }
+
+    /**
+     * 能否作为rowKey的列类型
+     */
+    public static boolean isSupported(int type) {
+        switch (type) {
+        case Value.BOOLEAN:
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+        case Value.DECIMAL:
+        case Value.DOUBLE:
+        case Value.FLOAT:
+        case Value.DATE:
+        case Value.TIME:
+        case Value.TIMESTAMP:
+        case Value.BYTES:
+        case Value.UUID:
+        case Value.STRING:
+        case Value.STRING_IGNORECASE:
+        case Value.STRING_FIXED:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    public static byte[] encode(Value v) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encode(out, v);
+        return out.toByteArray();
+    }
+
+    /**
+     * 复合主键的编码，遇到null(不是ValueNull)时就停止，此时得到的是前几列的编码(前缀)
+     */
+    public static byte[] encode(Value[] values) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Value v : values) {
+            if (v == null)
+                break;
+            encode(out, v);
+        }
+        return out.toByteArray();
+    }
+
+    public static Value decode(byte[] b, int type) {
+        return decode(ByteBuffer.wrap(b), type);
+    }
+
+    public static Value[] decode(byte[] b, int[] types) {
+        ByteBuffer buff = ByteBuffer.wrap(b);
+        Value[] values = new Value[types.length];
+        for (int i = 0; i < types.length; i++)
+            values[i] = decode(buff, types[i]);
+        return values;
+    }
+
+    /**
+     * 比所有以prefix开头的key都大的最小key，用作scan的stopRow(不包含)
+     *
+     * @return prefix全是0xFF时返回null，表示没有上限
+     */
+    public static byte[] getSuccessor(byte[] prefix) {
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (prefix[i] != (byte) 0xFF) {
+                byte[] successor = new byte[i + 1];
+                System.arraycopy(prefix, 0, successor, 0, i + 1);
+                successor[i]++;
+                return successor;
+            }
+        }
+        return null;
+    }
+
+    private static void encode(ByteArrayOutputStream out, Value v) {
+        if (v == ValueNull.INSTANCE) {
+            out.write(NULL);
+            return;
+        }
+        out.write(NOT_NULL);
+
+        int type = v.getType();
+        switch (type) {
+        case Value.BOOLEAN:
+            out.write(v.getBoolean().booleanValue() ? 1 : 0);
+            break;
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+            writeLong(out, v.getLong() ^ Long.MIN_VALUE);
+            break;
+        case Value.FLOAT: {
+            int i = Float.floatToIntBits(v.getFloat());
+            writeInt(out, i < 0 ? ~i : i ^ Integer.MIN_VALUE);
+            break;
+        }
+        case Value.DOUBLE: {
+            long l = Double.doubleToLongBits(v.getDouble());
+            writeLong(out, l < 0 ? ~l : l ^ Long.MIN_VALUE);
+            break;
+        }
+        case Value.DECIMAL:
+            encodeDecimal(out, v.getBigDecimal());
+            break;
+        case Value.DATE:
+            writeLong(out, ((ValueDate) v).getDateValue() ^ Long.MIN_VALUE);
+            break;
+        case Value.TIME:
+            writeLong(out, ((ValueTime) v).getNanos() ^ Long.MIN_VALUE);
+            break;
+        case Value.TIMESTAMP:
+            writeLong(out, ((ValueTimestamp) v).getDateValue() ^ Long.MIN_VALUE);
+            writeLong(out, ((ValueTimestamp) v).getNanos() ^ Long.MIN_VALUE);
+            break;
+        case Value.UUID:
+            writeLong(out, ((ValueUuid) v).getHigh() ^ Long.MIN_VALUE);
+            writeLong(out, ((ValueUuid) v).getLow() ^ Long.MIN_VALUE);
+            break;
+        case Value.BYTES:
+            encodeBytes(out, v.getBytesNoCopy());
+            break;
+        case Value.STRING:
+        case Value.STRING_IGNORECASE:
+        case Value.STRING_FIXED:
+            encodeBytes(out, Bytes.toBytes(v.getString()));
+            break;
+        default:
+            throw DbException.getUnsupportedException("row key type " + DataType.getDataType(type).name);
+        }
+    }
+
+    private static Value decode(ByteBuffer buff, int type) {
+        if (buff.get() == NULL)
+            return ValueNull.INSTANCE;
+
+        switch (type) {
+        case Value.BOOLEAN:
+            return ValueBoolean.get(buff.get() != 0);
+        case Value.BYTE:
+            return ValueByte.get((byte) (buff.getLong() ^ Long.MIN_VALUE));
+        case Value.SHORT:
+            return ValueShort.get((short) (buff.getLong() ^ Long.MIN_VALUE));
+        case Value.INT:
+            return ValueInt.get((int) (buff.getLong() ^ Long.MIN_VALUE));
+        case Value.LONG:
+            return ValueLong.get(buff.getLong() ^ Long.MIN_VALUE);
+        case Value.FLOAT: {
+            int i = buff.getInt();
+            return ValueFloat.get(Float.intBitsToFloat(i < 0 ? i ^ Integer.MIN_VALUE : ~i));
+        }
+        case Value.DOUBLE: {
+            long l = buff.getLong();
+            return ValueDouble.get(Double.longBitsToDouble(l < 0 ? l ^ Long.MIN_VALUE : ~l));
+        }
+        case Value.DECIMAL:
+            return ValueDecimal.get(decodeDecimal(buff));
+        case Value.DATE:
+            return ValueDate.fromDateValue(buff.getLong() ^ Long.MIN_VALUE);
+        case Value.TIME:
+            return ValueTime.fromNanos(buff.getLong() ^ Long.MIN_VALUE);
+        case Value.TIMESTAMP: {
+            long dateValue = buff.getLong() ^ Long.MIN_VALUE;
+            return ValueTimestamp.fromDateValueAndNanos(dateValue, buff.getLong() ^ Long.MIN_VALUE);
+        }
+        case Value.UUID:
+            return ValueUuid.get(buff.getLong() ^ Long.MIN_VALUE, buff.getLong() ^ Long.MIN_VALUE);
+        case Value.BYTES:
+            return ValueBytes.getNoCopy(decodeBytes(buff));
+        case Value.STRING:
+            return ValueString.get(Bytes.toString(decodeBytes(buff)));
+        case Value.STRING_IGNORECASE:
+            return ValueStringIgnoreCase.get(Bytes.toString(decodeBytes(buff)));
+        case Value.STRING_FIXED:
+            return ValueStringFixed.get(Bytes.toString(decodeBytes(buff)));
+        default:
+            throw DbException.getUnsupportedException("row key type " + DataType.getDataType(type).name);
+        }
+    }
+
+    //值 = 0.digits * 10^exponent，digits去掉了末尾的0，
+    //正数: 指数(翻转符号位) + 数字字符 + 0x00，负数把这些字节全部取反，结尾是0xFF
+    private static void encodeDecimal(ByteArrayOutputStream out, BigDecimal d) {
+        int signum = d.signum();
+        if (signum == 0) {
+            out.write(DECIMAL_ZERO);
+            return;
+        }
+        d = d.stripTrailingZeros();
+        byte[] digits = Bytes.toBytes(d.unscaledValue().abs().toString());
+        int exponent = (digits.length - d.scale()) ^ Integer.MIN_VALUE;
+        if (signum > 0) {
+            out.write(DECIMAL_POSITIVE);
+            writeInt(out, exponent);
+            out.write(digits, 0, digits.length);
+            out.write(0x00);
+        } else {
+            out.write(DECIMAL_NEGATIVE);
+            writeInt(out, ~exponent);
+            for (byte b : digits)
+                out.write(~b);
+            out.write(0xFF);
+        }
+    }
+
+    private static BigDecimal decodeDecimal(ByteBuffer buff) {
+        byte sign = buff.get();
+        if (sign == DECIMAL_ZERO)
+            return BigDecimal.ZERO;
+        boolean negative = sign == DECIMAL_NEGATIVE;
+        int exponent = buff.getInt();
+        if (negative)
+            exponent = ~exponent;
+        exponent ^= Integer.MIN_VALUE;
+
+        StringBuilder digits = new StringBuilder();
+        while (true) {
+            byte b = buff.get();
+            if (negative) {
+                if (b == (byte) 0xFF)
+                    break;
+                b = (byte) ~b;
+            } else if (b == 0x00) {
+                break;
+            }
+            digits.append((char) b);
+        }
+        BigDecimal d = new BigDecimal(new BigInteger(digits.toString()), digits.length() - exponent);
+        return negative ? d.negate() : d;
+    }
+
+    private static void encodeBytes(ByteArrayOutputStream out, byte[] bytes) {
+        for (byte b : bytes) {
+            if (b == ESCAPE) {
+                out.write(ESCAPE);
+                out.write(ESCAPED_ZERO);
+            } else {
+                out.write(b);
+            }
+        }
+        out.write(ESCAPE);
+        out.write(TERMINATOR);
+    }
+
+    private static byte[] decodeBytes(ByteBuffer buff) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (true) {
+            byte b = buff.get();
+            if (b == ESCAPE) {
+                if (buff.get() == TERMINATOR)
+                    break;
+                out.write(0x00);
+            } else {
+                out.write(b);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int i) {
+        out.write(i >>> 24);
+        out.write(i >>> 16);
+        out.write(i >>> 8);
+        out.write(i);
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long l) {
+        writeInt(out, (int) (l >>> 32));
+        writeInt(out, (int) l);
+    }
+}
@@ -28,6 +28,7 @@ import org.apache.hadoop.hbase.zookeeper.ZooKeeperListener;
 import org.apache.hadoop.hbase.zookeeper.ZooKeeperWatcher;
 
 import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.hbase.util.RegionLocationCache;
 
 public class RegionLocationCacheTracker extends ZooKeeperListener {
     private static final Log log = LogFactory.getLog(RegionLocationCacheTracker.class);
@@ -46,6 +47,7 @@ public class RegionLocationCacheTracker extends ZooKeeperListener {
         if (path.equals(ZooKeeperAdmin.REGION_LOCATION_CACHE_NODE)) {
             try {
                 getDataAndWatch();
+                RegionLocationCache.clear();
                 HBaseUtils.getConnection().clearRegionCache();
             } catch (IOException e) {
                 log.warn("cannot clear region cache", e);
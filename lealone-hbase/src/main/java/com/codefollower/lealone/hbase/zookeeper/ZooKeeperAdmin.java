@@ -45,6 +45,7 @@ public class ZooKeeperAdmin {
     private static RegionServerTracker regionServerTracker;
     private static TcpPortTracker tcpPortTracker;
     private static PgPortTracker pgPortTracker;
+    private static RegionLocationCacheTracker regionLocationCacheTracker;
 
     private static void reset() {
         watcher = null;
@@ -52,6 +53,7 @@ public class ZooKeeperAdmin {
         regionServerTracker = null;
         tcpPortTracker = null;
         pgPortTracker = null;
+        regionLocationCacheTracker = null;
         abortable = newAbortable();
     }
 
@@ -111,6 +113,18 @@ public class ZooKeeperAdmin {
         return masterAddressTracker;
     }
 
+    public static RegionLocationCacheTracker getRegionLocationCacheTracker() {
+        if (regionLocationCacheTracker == null) {
+            synchronized (ZooKeeperAdmin.class) {
+                if (regionLocationCacheTracker == null) {
+                    regionLocationCacheTracker = new RegionLocationCacheTracker(getZooKeeperWatcher());
+                    regionLocationCacheTracker.start();
+                }
+            }
+        }
+        return regionLocationCacheTracker;
+    }
+
     public static List<ServerName> getOnlineServers() {
         return getRegionServerTracker().getOnlineServers();
     }
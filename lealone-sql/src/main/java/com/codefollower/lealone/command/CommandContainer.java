@@ -7,8 +7,10 @@
 package com.codefollower.lealone.command;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import com.codefollower.lealone.api.DatabaseEventListener;
+import com.codefollower.lealone.command.dml.BatchRowsTarget;
 import com.codefollower.lealone.expression.Parameter;
 import com.codefollower.lealone.expression.ParameterInterface;
 import com.codefollower.lealone.result.ResultInterface;
@@ -49,6 +51,10 @@ public class CommandContainer extends Command {
             prepared.setModificationMetaId(0);
             String sql = prepared.getSQL();
             ArrayList<Parameter> oldParams = prepared.getParameters();
+            List<Value[]> batchRows = null;
+            if (prepared instanceof BatchRowsTarget)
+                batchRows = ((BatchRowsTarget) prepared).getBatchRows();
+            String[] localRegionNames = prepared.getLocalRegionNames();
             Parser parser = session.createParser();
             prepared = parser.parse(sql);
             long mod = prepared.getModificationMetaId();
@@ -63,6 +69,11 @@ public class CommandContainer extends Command {
                 }
             }
             prepared.prepare();
+            //由TcpServerThread直接设置的记录不在SQL中，需要转到新的Prepared
+            if (batchRows != null) {
+                prepared.setLocalRegionNames(localRegionNames);
+                ((BatchRowsTarget) prepared).setBatchRows(batchRows);
+            }
             prepared.setModificationMetaId(mod);
         }
     }
@@ -3921,6 +3921,10 @@ public class Parser {
             command.setComment(readCommentIf());
             read("(");
             command.setIndexColumns(parseIndexColumnList());
+            if (readIf("INCLUDE")) {
+                read("(");
+                command.setIncludeColumns(parseIndexColumnList());
+            }
             return command;
         }
     }
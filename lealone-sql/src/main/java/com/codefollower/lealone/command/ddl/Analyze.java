@@ -52,7 +52,14 @@ public class Analyze extends DefineCommand {
      * @param manual whether the command was called by the user
      */
     public static void analyzeTable(Session session, Table table, int sample, boolean manual) {
-        if (!(table.getTableType().equals(Table.TABLE)) || table.isHidden() || session == null) {
+        if (table.isHidden() || session == null) {
+            return;
+        }
+        if (!(table.getTableType().equals(Table.TABLE))) {
+            // tables of other storage engines collect their own statistics
+            if (manual && session.getUser().hasRight(table, Right.SELECT)) {
+                table.analyze(session, sample);
+            }
             return;
         }
         if (!manual) {
@@ -27,6 +27,7 @@ public class CreateIndex extends SchemaCommand {
     private String tableName;
     private String indexName;
     private IndexColumn[] indexColumns;
+    private IndexColumn[] includeColumns;
     private boolean primaryKey, unique, hash;
     private boolean ifNotExists;
     private String comment;
@@ -51,6 +52,10 @@ public class CreateIndex extends SchemaCommand {
         this.indexColumns = columns;
     }
 
+    public void setIncludeColumns(IndexColumn[] columns) {
+        this.includeColumns = columns;
+    }
+
     public int update() {
         if (!transactional) {
             session.commit(true);
@@ -89,7 +94,10 @@ public class CreateIndex extends SchemaCommand {
             indexType = IndexType.createNonUnique(persistent, hash);
         }
         IndexColumn.mapColumns(indexColumns, table);
-        table.addIndex(session, indexName, id, indexColumns, indexType, create, comment);
+        if (includeColumns != null) {
+            IndexColumn.mapColumns(includeColumns, table);
+        }
+        table.addIndex(session, indexName, id, indexColumns, includeColumns, indexType, create, comment);
         return 0;
     }
 
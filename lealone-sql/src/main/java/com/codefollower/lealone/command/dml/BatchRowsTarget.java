@@ -0,0 +1,33 @@
+/*
+ * Copyright 2004-2013 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.codefollower.lealone.command.dml;
+
+import java.util.List;
+
+import com.codefollower.lealone.value.Value;
+
+/**
+ * A statement whose VALUES list can be replaced by rows received through
+ * COMMAND_EXECUTE_BATCH_ROWS. Only INSERT and MERGE support this.
+ */
+public interface BatchRowsTarget {
+
+    /**
+     * Replace the rows of the VALUES list. A null value means DEFAULT.
+     *
+     * @param rows the rows
+     */
+    void setBatchRows(List<Value[]> rows);
+
+    /**
+     * Get the rows set by setBatchRows.
+     *
+     * @return the rows, or null if the statement uses its own VALUES list
+     */
+    List<Value[]> getBatchRows();
+
+}
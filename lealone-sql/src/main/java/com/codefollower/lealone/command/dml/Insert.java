@@ -7,6 +7,7 @@
 package com.codefollower.lealone.command.dml;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import com.codefollower.lealone.api.Trigger;
 import com.codefollower.lealone.command.Command;
@@ -21,6 +22,7 @@ import com.codefollower.lealone.engine.Session;
 import com.codefollower.lealone.engine.UndoLogRecord;
 import com.codefollower.lealone.expression.Expression;
 import com.codefollower.lealone.expression.Parameter;
+import com.codefollower.lealone.expression.ValueExpression;
 import com.codefollower.lealone.message.DbException;
 import com.codefollower.lealone.result.ResultInterface;
 import com.codefollower.lealone.result.ResultTarget;
@@ -33,7 +35,7 @@ import com.codefollower.lealone.value.Value;
  * This class represents the statement
  * INSERT
  */
-public class Insert extends Prepared implements ResultTarget {
+public class Insert extends Prepared implements ResultTarget, BatchRowsTarget {
 
     protected Table table;
     protected Column[] columns;
@@ -42,6 +44,7 @@ public class Insert extends Prepared implements ResultTarget {
     protected boolean sortedInsertMode;
     protected int rowNumber;
     protected boolean insertFromSelect;
+    protected List<Value[]> batchRows;
 
     public Insert(Session session) {
         super(session);
@@ -75,6 +78,24 @@ public class Insert extends Prepared implements ResultTarget {
         list.add(expr);
     }
 
+    public void setBatchRows(List<Value[]> rows) {
+        batchRows = rows;
+        list.clear();
+        for (int i = 0, size = rows.size(); i < size; i++) {
+            Value[] row = rows.get(i);
+            Expression[] expr = new Expression[row.length];
+            for (int j = 0; j < row.length; j++) {
+                if (row[j] != null)
+                    expr[j] = ValueExpression.get(row[j]);
+            }
+            list.add(expr);
+        }
+    }
+
+    public List<Value[]> getBatchRows() {
+        return batchRows;
+    }
+
     public int update() {
         Index index = null;
         if (sortedInsertMode) {
@@ -7,6 +7,7 @@
 package com.codefollower.lealone.command.dml;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import com.codefollower.lealone.api.Trigger;
 import com.codefollower.lealone.command.Command;
@@ -21,6 +22,7 @@ import com.codefollower.lealone.engine.Session;
 import com.codefollower.lealone.engine.UndoLogRecord;
 import com.codefollower.lealone.expression.Expression;
 import com.codefollower.lealone.expression.Parameter;
+import com.codefollower.lealone.expression.ValueExpression;
 import com.codefollower.lealone.message.DbException;
 import com.codefollower.lealone.result.ResultInterface;
 import com.codefollower.lealone.result.Row;
@@ -32,7 +34,7 @@ import com.codefollower.lealone.value.Value;
  * This class represents the statement
  * MERGE
  */
-public class Merge extends Prepared {
+public class Merge extends Prepared implements BatchRowsTarget {
 
     protected Table table;
     protected Column[] columns;
@@ -40,6 +42,7 @@ public class Merge extends Prepared {
     protected final ArrayList<Expression[]> list = New.arrayList();
     protected Query query;
     protected Prepared update;
+    protected List<Value[]> batchRows;
 
     public Merge(Session session) {
         super(session);
@@ -77,6 +80,24 @@ public class Merge extends Prepared {
         list.add(expr);
     }
 
+    public void setBatchRows(List<Value[]> rows) {
+        batchRows = rows;
+        list.clear();
+        for (int i = 0, size = rows.size(); i < size; i++) {
+            Value[] row = rows.get(i);
+            Expression[] expr = new Expression[row.length];
+            for (int j = 0; j < row.length; j++) {
+                if (row[j] != null)
+                    expr[j] = ValueExpression.get(row[j]);
+            }
+            list.add(expr);
+        }
+    }
+
+    public List<Value[]> getBatchRows() {
+        return batchRows;
+    }
+
     public int update() {
         int count;
         session.getUser().checkRight(table, Right.INSERT);
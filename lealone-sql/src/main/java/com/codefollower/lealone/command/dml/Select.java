@@ -86,6 +86,7 @@ public class Select extends Query {
     private boolean sortUsingIndex;
     private SortOrder sort;
     private int currentGroupRowId;
+    private long scanLimitRows = -1;
 
     private Map<String, ArrayList<Column>> columnsMap = New.hashMap();
 
@@ -637,6 +638,12 @@ public class Select extends Query {
                 limitRows += offset;
             }
         }
+        if (sort == null || sortUsingIndex) {
+            scanLimitRows = limitRows;
+        }
+        if (sampleSize > 0 && (scanLimitRows <= 0 || sampleSize < scanLimitRows)) {
+            scanLimitRows = sampleSize;
+        }
         int rowNumber = 0;
         setCurrentRowNumber(0);
         ArrayList<Row> forUpdateRows = null;
@@ -685,6 +692,7 @@ public class Select extends Query {
     }
 
     protected LocalResult queryWithoutCache(int maxRows, ResultTarget target) {
+        scanLimitRows = -1;
         int limitRows = maxRows == 0 ? -1 : maxRows;
         if (limitExpr != null) {
             Value v = limitExpr.getValue(session);
@@ -1257,10 +1265,32 @@ public class Select extends Query {
         return topTableFilter;
     }
 
+    public Expression getCondition() {
+        return condition;
+    }
+
+    /**
+     * Get the maximum number of rows the running query reads from the top
+     * table filter before it stops (LIMIT plus OFFSET, the maximum row count
+     * or the sample size). Rows rejected by the condition or by a join, and
+     * duplicate rows of a DISTINCT query, do not count, so the storage layer
+     * can only use this as a lower bound unless there is no condition, no join
+     * and no DISTINCT.
+     *
+     * @return the number of rows, or -1 if the query reads all rows
+     */
+    public long getScanLimitRows() {
+        return scanLimitRows;
+    }
+
     public ArrayList<Expression> getExpressions() {
         return expressions;
     }
 
+    public int[] getGroupIndex() {
+        return groupIndex;
+    }
+
     public void setForUpdate(boolean b) {
         this.isForUpdate = b;
         if (session.getDatabase().getSettings().selectForUpdateMvcc && session.getDatabase().isMultiVersion()) {
@@ -87,6 +87,10 @@ public abstract class BaseIndex extends SchemaObjectBase implements Index {
         return getSQL();
     }
 
+    public String getPlanSQL(TableFilter filter) {
+        return getPlanSQL();
+    }
+
     public void removeChildrenAndResources(Session session) {
         table.removeIndex(this);
         remove(session);
@@ -164,35 +168,39 @@ public abstract class BaseIndex extends SchemaObjectBase implements Index {
         }
         // if the ORDER BY clause matches the ordering of this index,
         // it will be cheaper than another index, so adjust the cost accordingly
-        if (sortOrder != null) {
-            int[] columnIndexes = new int[indexColumns.length];
-            int[] columnSortTypes = new int[indexColumns.length];
-            for (int i = 0, len = indexColumns.length; i < len; i++) {
-                columnIndexes[i] = indexColumns[i].column.getColumnId();
-                columnSortTypes[i] = indexColumns[i].sortType;
-            }
-            boolean sortOrderMatches = true;
-            int[] sortOrderIndexes = sortOrder.getIndexes();
-            int coveringCount = 0;
-            for (int i = 0, len = sortOrderIndexes.length; i < len; i++) {
-                if (i >= columnIndexes.length) {
-                    // we can still use this index if we are sorting by more than it's columns
-                    break;
-                }
-                if (columnIndexes[i] != sortOrderIndexes[i] || columnSortTypes[i] != sortOrder.getSortTypes()[i]) {
-                    sortOrderMatches = false;
-                    break;
-                }
-                coveringCount++;
+        cost -= getSortOrderCoveringCount(sortOrder);
+        return cost;
+    }
+
+    /**
+     * Get the number of leading ORDER BY columns that this index returns in
+     * the requested order.
+     *
+     * @param sortOrder the sort order, or null
+     * @return the number of covered ORDER BY columns, or 0 if the sort order
+     *         does not match this index
+     */
+    protected int getSortOrderCoveringCount(SortOrder sortOrder) {
+        if (sortOrder == null) {
+            return 0;
+        }
+        int[] sortOrderIndexes = sortOrder.getIndexes();
+        int coveringCount = 0;
+        for (int i = 0, len = sortOrderIndexes.length; i < len; i++) {
+            if (i >= indexColumns.length) {
+                // we can still use this index if we are sorting by more than it's columns
+                break;
             }
-            if (sortOrderMatches) {
-                // "coveringCount" makes sure that when we have two
-                // or more covering indexes, we choose the one
-                // that covers more
-                cost -= coveringCount;
+            if (indexColumns[i].column.getColumnId() != sortOrderIndexes[i]
+                    || indexColumns[i].sortType != sortOrder.getSortTypes()[i]) {
+                return 0;
             }
+            coveringCount++;
         }
-        return cost;
+        // "coveringCount" makes sure that when we have two
+        // or more covering indexes, we choose the one
+        // that covers more
+        return coveringCount;
     }
 
     public int compareRows(SearchRow rowData, SearchRow compare) {
@@ -28,6 +28,15 @@ public interface Index extends SchemaObject {
      */
     String getPlanSQL();
 
+    /**
+     * Get the message to show in a EXPLAIN statement when this index is used
+     * by the given table filter.
+     *
+     * @param filter the table filter
+     * @return the plan
+     */
+    String getPlanSQL(TableFilter filter);
+
     /**
      * Close this index.
      *
@@ -171,6 +171,8 @@ public class IndexCursor implements Cursor {
     private SearchRow getSearchRow(SearchRow row, int id, Value v, boolean max) {
         if (row == null) {
             row = table.getTemplateRow();
+        } else if (id == -2) {
+            v = getMax(row.getRowKey(), v, max);
         } else {
             v = getMax(row.getValue(id), v, max);
         }
@@ -233,6 +233,10 @@ public class MultiVersionIndex implements Index {
         return base.getPlanSQL();
     }
 
+    public String getPlanSQL(TableFilter filter) {
+        return base.getPlanSQL(filter);
+    }
+
     public long getRowCount(Session session) {
         return base.getRowCount(session);
     }
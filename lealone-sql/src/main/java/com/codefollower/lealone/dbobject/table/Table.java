@@ -171,6 +171,29 @@ public abstract class Table extends SchemaObjectBase {
     public abstract Index addIndex(Session session, String indexName, int indexId, IndexColumn[] cols, IndexType indexType,
             boolean create, String indexComment);
 
+    /**
+     * Create an index that also stores the values of some non-key columns,
+     * so that queries only referencing these columns can be answered
+     * from the index alone. Only supported by some table types.
+     *
+     * @param session the session
+     * @param indexName the name of the index
+     * @param indexId the id
+     * @param cols the index columns
+     * @param includeCols the included (non-key) columns, or null
+     * @param indexType the index type
+     * @param create whether this is a new index
+     * @param indexComment the comment
+     * @return the index
+     */
+    public Index addIndex(Session session, String indexName, int indexId, IndexColumn[] cols, IndexColumn[] includeCols,
+            IndexType indexType, boolean create, String indexComment) {
+        if (includeCols != null) {
+            throw DbException.getUnsupportedException("INCLUDE");
+        }
+        return addIndex(session, indexName, indexId, cols, indexType, create, indexComment);
+    }
+
     /**
      * Remove a row from the table and all indexes.
      *
@@ -636,15 +659,17 @@ public abstract class Table extends SchemaObjectBase {
     }
 
     /**
-     * Get the best plan for the given search mask.
+     * Get the best plan for the given search mask, taking into account
+     * which columns of the table filter are actually used.
      *
      * @param session the session
      * @param masks per-column comparison bit masks, null means 'always false',
      *              see constants in IndexCondition
+     * @param filter the table filter
      * @param sortOrder the sort order
      * @return the plan item
      */
-    public PlanItem getBestPlanItem(Session session, int[] masks, SortOrder sortOrder) {
+    public PlanItem getBestPlanItem(Session session, int[] masks, TableFilter filter, SortOrder sortOrder) {
         PlanItem item = new PlanItem();
         item.setIndex(getScanIndex(session));
         item.cost = item.getIndex().getCost(session, null, null);
@@ -652,7 +677,7 @@ public abstract class Table extends SchemaObjectBase {
         if (indexes != null && masks != null) {
             for (int i = 1, size = indexes.size(); i < size; i++) {
                 Index index = indexes.get(i);
-                double cost = index.getCost(session, masks, sortOrder);
+                double cost = getCost(index, session, masks, filter, sortOrder);
                 if (cost < item.cost) {
                     item.cost = cost;
                     item.setIndex(index);
@@ -662,6 +687,45 @@ public abstract class Table extends SchemaObjectBase {
         return item;
     }
 
+    /**
+     * Get the best plan for the given search mask.
+     *
+     * @param session the session
+     * @param masks per-column comparison bit masks, null means 'always false',
+     *              see constants in IndexCondition
+     * @param sortOrder the sort order
+     * @return the plan item
+     */
+    public PlanItem getBestPlanItem(Session session, int[] masks, SortOrder sortOrder) {
+        return getBestPlanItem(session, masks, null, sortOrder);
+    }
+
+    /**
+     * Estimate the cost of using the given index for the table filter.
+     *
+     * @param index the index
+     * @param session the session
+     * @param masks per-column comparison bit masks
+     * @param filter the table filter, or null if unknown
+     * @param sortOrder the sort order
+     * @return the estimated cost
+     */
+    protected double getCost(Index index, Session session, int[] masks, TableFilter filter, SortOrder sortOrder) {
+        return index.getCost(session, masks, sortOrder);
+    }
+
+    /**
+     * Collect the statistics of a table that is not a regular table (for
+     * example a table of another storage engine). This is called by ANALYZE,
+     * the default implementation does nothing.
+     *
+     * @param session the session
+     * @param sample the number of sample rows
+     */
+    public void analyze(Session session, int sample) {
+        // nothing to do
+    }
+
     /**
      * Get the primary key index if there is one, or null if there is none.
      *
@@ -184,7 +184,7 @@ public class TableFilter implements ColumnResolver {
             if (select != null) {
                 sortOrder = select.getSortOrder();
             }
-            item = table.getBestPlanItem(s, masks, sortOrder);
+            item = table.getBestPlanItem(s, masks, this, sortOrder);
             // The more index conditions, the earlier the table.
             // This is to ensure joins without indexes run quickly:
             // x (x.a=10); y (x.b=y.b) - see issue 113
@@ -671,7 +671,7 @@ public class TableFilter implements ColumnResolver {
         if (index != null) {
             buff.append('\n');
             StatementBuilder planBuff = new StatementBuilder();
-            planBuff.append(index.getPlanSQL());
+            planBuff.append(index.getPlanSQL(this));
             if (indexConditions.size() > 0) {
                 planBuff.append(": ");
                 for (IndexCondition condition : indexConditions) {
@@ -724,6 +724,15 @@ public class TableFilter implements ColumnResolver {
         return index;
     }
 
+    /**
+     * Get the index conditions of this filter.
+     *
+     * @return the index conditions
+     */
+    public ArrayList<IndexCondition> getIndexConditions() {
+        return indexConditions;
+    }
+
     public void setIndex(Index index) {
         this.index = index;
         cursor.setIndex(index);
@@ -60,17 +60,17 @@ public class Aggregate extends Expression {
     /**
      * The aggregate type for SUM(expression).
      */
-    static final int SUM = 3;
+    public static final int SUM = 3;
 
     /**
      * The aggregate type for MIN(expression).
      */
-    static final int MIN = 4;
+    public static final int MIN = 4;
 
     /**
      * The aggregate type for MAX(expression).
      */
-    static final int MAX = 5;
+    public static final int MAX = 5;
 
     /**
      * The aggregate type for AVG(expression).
@@ -518,6 +518,28 @@ public class Aggregate extends Expression {
         return dataType;
     }
 
+    /**
+     * Get the aggregate type, for example COUNT_ALL or SUM.
+     *
+     * @return the aggregate type
+     */
+    public int getAggregateType() {
+        return type;
+    }
+
+    /**
+     * Get the expression the aggregate is applied to.
+     *
+     * @return the expression, or null for COUNT(*)
+     */
+    public Expression getOn() {
+        return on;
+    }
+
+    public boolean isDistinct() {
+        return distinct;
+    }
+
     public void mapColumns(ColumnResolver resolver, int level) {
         if (on != null) {
             on.mapColumns(resolver, level);
@@ -18,6 +18,9 @@ import java.util.ArrayList;
 
 import com.codefollower.lealone.command.Command;
 import com.codefollower.lealone.command.BackendBatchCommand;
+import com.codefollower.lealone.command.CommandRemote;
+import com.codefollower.lealone.command.Prepared;
+import com.codefollower.lealone.command.dml.BatchRowsTarget;
 import com.codefollower.lealone.constant.Constants;
 import com.codefollower.lealone.constant.ErrorCode;
 import com.codefollower.lealone.constant.SysProperties;
@@ -88,12 +91,14 @@ public class TcpServerThread implements Runnable {
                 if (minClientVersion < Constants.TCP_PROTOCOL_VERSION_6) {
                     throw DbException.get(ErrorCode.DRIVER_VERSION_ERROR_2, "" + clientVersion, ""
                             + Constants.TCP_PROTOCOL_VERSION_6);
-                } else if (minClientVersion > Constants.TCP_PROTOCOL_VERSION_12) {
+                } else if (minClientVersion > Constants.TCP_PROTOCOL_VERSION_13) {
                     throw DbException.get(ErrorCode.DRIVER_VERSION_ERROR_2, "" + clientVersion, ""
-                            + Constants.TCP_PROTOCOL_VERSION_12);
+                            + Constants.TCP_PROTOCOL_VERSION_13);
                 }
                 int maxClientVersion = transfer.readInt();
-                if (maxClientVersion >= Constants.TCP_PROTOCOL_VERSION_12) {
+                if (maxClientVersion >= Constants.TCP_PROTOCOL_VERSION_13) {
+                    clientVersion = Constants.TCP_PROTOCOL_VERSION_13;
+                } else if (maxClientVersion >= Constants.TCP_PROTOCOL_VERSION_12) {
                     clientVersion = Constants.TCP_PROTOCOL_VERSION_12;
                 } else {
                     clientVersion = minClientVersion;
@@ -479,6 +484,54 @@ public class TcpServerThread implements Runnable {
             executeBatch(size, command);
             break;
         }
+        case SessionRemote.COMMAND_EXECUTE_BATCH_ROWS: {
+            int id = transfer.readInt();
+            boolean distributed = transfer.readBoolean();
+            Command command = (Command) cache.getObject(id, false);
+            int regions = transfer.readInt();
+            String[] regionNames = new String[regions];
+            ArrayList<ArrayList<Value[]>> regionRows = New.arrayList(regions);
+            for (int i = 0; i < regions; i++) {
+                regionNames[i] = transfer.readString();
+                int size = transfer.readInt();
+                ArrayList<Value[]> rows = New.arrayList(size);
+                for (int j = 0; j < size; j++)
+                    rows.add(CommandRemote.readRow(transfer));
+                regionRows.add(rows);
+            }
+            if (distributed) {
+                session.setAutoCommit(false);
+                session.setRoot(false);
+            }
+            int old = session.getModificationId();
+            int updateCount = 0;
+            //每个region的记录直接替换INSERT/MERGE语句中的记录，不需要再解析SQL
+            synchronized (session) {
+                try {
+                    for (int i = 0; i < regions; i++) {
+                        //重新编译过的话Prepared会变，所以每次都要重新取
+                        BatchRowsTarget target = getBatchRowsTarget(command);
+                        command.getPrepared().setLocalRegionNames(new String[] { regionNames[i] });
+                        target.setBatchRows(regionRows.get(i));
+                        updateCount += command.executeUpdate();
+                    }
+                } finally {
+                    //执行出错时也要清掉，否则这批记录会一直留在缓存的Prepared中
+                    Prepared prepared = command.getPrepared();
+                    if (prepared instanceof BatchRowsTarget)
+                        ((BatchRowsTarget) prepared).setBatchRows(new ArrayList<Value[]>(0));
+                }
+            }
+            int status;
+            if (session.isClosed()) {
+                status = SessionRemote.STATUS_CLOSED;
+            } else {
+                status = getState(old);
+            }
+            transfer.writeInt(status).writeInt(updateCount).writeBoolean(session.getAutoCommit());
+            transfer.flush();
+            break;
+        }
         case SessionRemote.COMMAND_CLOSE: {
             int id = transfer.readInt();
             Command command = (Command) cache.getObject(id, true);
@@ -587,6 +640,13 @@ public class TcpServerThread implements Runnable {
         }
     }
 
+    private static BatchRowsTarget getBatchRowsTarget(Command command) {
+        Prepared prepared = command.getPrepared();
+        if (!(prepared instanceof BatchRowsTarget))
+            throw DbException.getUnsupportedException("batch rows");
+        return (BatchRowsTarget) prepared;
+    }
+
     private int getState(int oldModificationId) {
         if (session.getModificationId() == oldModificationId) {
             return SessionRemote.STATUS_OK;
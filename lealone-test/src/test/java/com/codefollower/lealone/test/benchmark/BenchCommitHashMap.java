@@ -0,0 +1,106 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.codefollower.lealone.hbase.transaction.CommitHashMap;
+
+/**
+ * 
+ * 模拟多个线程并发提交短事务，测试write-write冲突检测在不同线程数下的提交吞吐量，
+ * 不需要启动HBase集群。
+ *
+ */
+public class BenchCommitHashMap {
+    public static void main(String[] args) throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores * 2; threads *= 2) {
+            new BenchCommitHashMap(threads, 200000, 5).run();
+        }
+    }
+
+    private final CommitHashMap commitHashMap = new CommitHashMap(1 << 20, 32, 64);
+    private final AtomicLong timestamp = new AtomicLong(1);
+    private final int threads;
+    private final int commitsPerThread;
+    private final int rowsPerCommit;
+
+    public BenchCommitHashMap(int threads, int commitsPerThread, int rowsPerCommit) {
+        this.threads = threads;
+        this.commitsPerThread = commitsPerThread;
+        this.rowsPerCommit = rowsPerCommit;
+    }
+
+    public void run() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch end = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final long seed = i;
+            new Thread(new Runnable() {
+                public void run() {
+                    Random random = new Random(seed);
+                    long[] hashes = new long[rowsPerCommit];
+                    try {
+                        start.await();
+                        for (int j = 0; j < commitsPerThread; j++) {
+                            long startTimestamp = timestamp.getAndIncrement();
+                            for (int k = 0; k < rowsPerCommit; k++)
+                                hashes[k] = random.nextLong();
+                            commit(hashes, startTimestamp, timestamp.getAndIncrement());
+                        }
+                    } catch (InterruptedException e) {
+                        //ignore
+                    } finally {
+                        end.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        end.await();
+        long time = System.nanoTime() - startTime;
+
+        long commits = (long) threads * commitsPerThread;
+        System.out.println("threads: " + threads + ", stripes: " + commitHashMap.getStripeCount() + ", commits: " + commits
+                + ", time: " + time / 1000000 + " ms, throughput: " + commits * 1000000000L / time + " commits/s");
+    }
+
+    //与Transaction.checkConflict的流程一样
+    private boolean commit(long[] hashes, long startTimestamp, long commitTimestamp) {
+        int[] stripes = commitHashMap.lockStripes(hashes);
+        try {
+            for (long hash : hashes) {
+                long oldCommitTimestamp = commitHashMap.getLatestWriteForRow(hash);
+                if (oldCommitTimestamp != 0 && oldCommitTimestamp > startTimestamp)
+                    return false;
+            }
+            for (long hash : hashes)
+                commitHashMap.putLatestWriteForRow(hash, commitTimestamp);
+            return true;
+        } finally {
+            commitHashMap.unlockStripes(stripes);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.benchmark;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import com.codefollower.lealone.hbase.result.HBaseSortedResult;
+import com.codefollower.lealone.result.DelegatedResult;
+import com.codefollower.lealone.result.ResultInterface;
+import com.codefollower.lealone.value.Value;
+import com.codefollower.lealone.value.ValueInt;
+
+/**
+ * 
+ * 测试HBaseSortedResult在不同region个数下合并排序结果的开销，
+ * 每个region的结果都放在内存中，不需要启动HBase集群。
+ *
+ */
+public class BenchSortedResult {
+    public static void main(String[] args) throws Exception {
+        for (int regions = 1; regions <= 1024; regions *= 4) {
+            new BenchSortedResult(regions, 1000000 / regions, 5).run();
+        }
+    }
+
+    private static final Comparator<Value[]> SORT = new Comparator<Value[]>() {
+        @Override
+        public int compare(Value[] a, Value[] b) {
+            return a[0].compareTo(b[0], null);
+        }
+    };
+
+    private final int regions;
+    private final int rowsPerRegion;
+    private final int loop;
+    private final Value[][][] data;
+
+    public BenchSortedResult(int regions, int rowsPerRegion, int loop) {
+        this.regions = regions;
+        this.rowsPerRegion = rowsPerRegion;
+        this.loop = loop;
+
+        Random random = new Random(regions);
+        data = new Value[regions][][];
+        for (int i = 0; i < regions; i++) {
+            int[] keys = new int[rowsPerRegion];
+            for (int j = 0; j < rowsPerRegion; j++)
+                keys[j] = random.nextInt();
+            Arrays.sort(keys);
+            data[i] = new Value[rowsPerRegion][];
+            for (int j = 0; j < rowsPerRegion; j++)
+                data[i][j] = new Value[] { ValueInt.get(keys[j]) };
+        }
+    }
+
+    public void run() throws Exception {
+        long rows = 0;
+        long time = 0;
+        for (int i = 0; i < loop; i++) {
+            ResultInterface[] results = new ResultInterface[regions];
+            for (int j = 0; j < regions; j++)
+                results[j] = new MemoryResult(data[j]);
+
+            long startTime = System.nanoTime();
+            HBaseSortedResult result = new HBaseSortedResult(SORT, results, -1, 0);
+            Value[] last = null;
+            while (result.next()) {
+                Value[] row = result.currentRow();
+                if (last != null && SORT.compare(last, row) > 0)
+                    throw new AssertionError("rows are not sorted");
+                last = row;
+                rows++;
+            }
+            time += System.nanoTime() - startTime;
+        }
+
+        System.out.println("regions: " + regions + ", rows: " + rows / loop + ", time: " + time / loop / 1000000
+                + " ms, merge cost: " + time / rows + " ns/row");
+    }
+
+    private static class MemoryResult extends DelegatedResult {
+        private final Value[][] rows;
+        private int index = -1;
+
+        MemoryResult(Value[][] rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public void reset() {
+            index = -1;
+        }
+
+        @Override
+        public Value[] currentRow() {
+            return rows[index];
+        }
+
+        @Override
+        public boolean next() {
+            return ++index < rows.length;
+        }
+
+        @Override
+        public int getRowCount() {
+            return rows.length;
+        }
+
+        @Override
+        public boolean needToClose() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
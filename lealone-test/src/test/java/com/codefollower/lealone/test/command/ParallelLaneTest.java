@@ -0,0 +1,121 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.command;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.codefollower.lealone.hbase.command.ParallelLane;
+import com.codefollower.lealone.message.DbException;
+import com.codefollower.lealone.result.ResultInterface;
+
+public class ParallelLaneTest {
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicInteger closed = new AtomicInteger();
+
+    @Test
+    public void run() throws Exception {
+        invokeAll();
+        invokeAllWithFailure();
+    }
+
+    void invokeAll() {
+        ParallelLane lane = new ParallelLane("test", 4, 4, 60, 4);
+        List<Callable<Integer>> calls = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < 10; i++) {
+            final int n = i;
+            calls.add(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    return n;
+                }
+            });
+        }
+        List<Integer> results = lane.invokeAll(calls);
+        assertEquals(10, results.size());
+        for (int i = 0; i < 10; i++)
+            assertEquals(i, results.get(i).intValue());
+    }
+
+    //第一个任务失败时，已完成和还在执行的任务返回的结果集都要被关闭
+    void invokeAllWithFailure() throws Exception {
+        ParallelLane lane = new ParallelLane("test", 4, 4, 60, 4);
+        final CountDownLatch running = new CountDownLatch(1);
+        List<Callable<ResultInterface>> calls = new ArrayList<Callable<ResultInterface>>();
+        calls.add(new Callable<ResultInterface>() {
+            public ResultInterface call() throws Exception {
+                //等第二个任务开始执行后再失败
+                running.await(5, TimeUnit.SECONDS);
+                throw new RuntimeException("failed");
+            }
+        });
+        calls.add(new Callable<ResultInterface>() {
+            public ResultInterface call() throws Exception {
+                running.countDown();
+                Thread.sleep(200);
+                return newResult();
+            }
+        });
+        calls.add(new Callable<ResultInterface>() {
+            public ResultInterface call() throws Exception {
+                return newResult();
+            }
+        });
+
+        try {
+            lane.invokeAll(calls);
+            fail("DbException expected");
+        } catch (DbException e) {
+            //ignore
+        }
+
+        //第二个任务在invokeAll返回后才完成
+        long deadline = System.currentTimeMillis() + 5000;
+        while (closed.get() < created.get() || created.get() < 1) {
+            if (System.currentTimeMillis() > deadline)
+                break;
+            Thread.sleep(10);
+        }
+        assertEquals(created.get(), closed.get());
+    }
+
+    private ResultInterface newResult() {
+        created.incrementAndGet();
+        return (ResultInterface) Proxy.newProxyInstance(ResultInterface.class.getClassLoader(),
+                new Class<?>[] { ResultInterface.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("close"))
+                            closed.incrementAndGet();
+                        return null;
+                    }
+                });
+    }
+}
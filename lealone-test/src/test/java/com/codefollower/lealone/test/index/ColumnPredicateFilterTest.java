@@ -0,0 +1,151 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.index;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.filter.Filter.ReturnCode;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import com.codefollower.lealone.expression.Comparison;
+import com.codefollower.lealone.hbase.dbobject.index.ColumnPredicateFilter;
+import com.codefollower.lealone.hbase.transaction.ValidityFilter;
+import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.value.CompareMode;
+import com.codefollower.lealone.value.Value;
+import com.codefollower.lealone.value.ValueInt;
+
+public class ColumnPredicateFilterTest {
+    private static final byte[] CF = Bytes.toBytes("CF");
+    private static final byte[] F1 = Bytes.toBytes("F1");
+    private static final byte[] F2 = Bytes.toBytes("F2");
+
+    //只用偶数(非事务)时间戳，这样不需要访问TransactionStatusTable，开始时间戳是100
+    //r1: f1的最新版本10不可见，可见版本是60
+    //r2: f1的最新版本60不可见，可见版本是10
+    private static final KeyValue[] R1 = { kv("r1", F1, 102, 10), kv("r1", F1, 98, 60), kv("r1", F2, 50, 1) };
+    private static final KeyValue[] R2 = { kv("r2", F1, 102, 60), kv("r2", F1, 98, 10), kv("r2", F2, 50, 2) };
+    //r3: f1的最新版本是状态未知的事务101写入的
+    private static final KeyValue[] R3 = { kv("r3", F1, 101, 10), kv("r3", F1, 98, 60), kv("r3", F2, 50, 3) };
+
+    //启用ValidityFilter时，在region内部先做可见性过滤，再用下推的条件f1 > 50过滤并只保留f2
+    @Test
+    public void filterInRegion() throws Exception {
+        ValidityFilter filter = validityFilter(100);
+
+        List<KeyValue> kvs = scan(filter, R1);
+        assertEquals(1, kvs.size());
+        assertTrue(kvs.get(0).matchingColumn(CF, F2));
+        assertEquals(1, Bytes.toInt(kvs.get(0).getValue()));
+
+        assertTrue(scan(filter, R2).isEmpty());
+
+        //推迟到scanner外面检查的行原样返回，下推的条件也要等到检查之后再做
+        assertEquals(3, scan(filter, R3).size());
+    }
+
+    //没有启用ValidityFilter时，ValidityChecker检查完可见性之后由cursor调用filter，结果要和region内部过滤一样
+    @Test
+    public void filterAfterValidityCheck() throws Exception {
+        //ValidityChecker只返回每列的可见版本
+        Result[] result = { new Result(new KeyValue[] { R1[1], R1[2] }), new Result(new KeyValue[] { R2[1], R2[2] }) };
+        result = predicateFilter().filter(result);
+        assertEquals(1, result.length);
+        assertEquals(1, result[0].size());
+        assertEquals(1, Bytes.toInt(result[0].getValue(CF, F2)));
+
+        List<Result> list = new ArrayList<Result>();
+        list.add(new Result(new KeyValue[] { R2[1], R2[2] }));
+        list.add(new Result(new KeyValue[] { R1[1], R1[2] }));
+        predicateFilter().filter(list);
+        assertEquals(1, list.size());
+        assertEquals("r1", Bytes.toString(list.get(0).getRow()));
+    }
+
+    //模拟region scanner: 每行开始前reset，只收集INCLUDE的列，最后整行过滤
+    private static List<KeyValue> scan(ValidityFilter filter, KeyValue[] row) {
+        filter.reset();
+        List<KeyValue> kvs = new ArrayList<KeyValue>();
+        for (KeyValue kv : row)
+            if (filter.filterKeyValue(kv) == ReturnCode.INCLUDE)
+                kvs.add(kv);
+        filter.filterRow(kvs);
+        if (filter.filterRow())
+            kvs.clear();
+        return kvs;
+    }
+
+    private static KeyValue kv(String row, byte[] qualifier, long timestamp, int value) {
+        return new KeyValue(Bytes.toBytes(row), CF, qualifier, timestamp, Bytes.toBytes(value));
+    }
+
+    //模拟region server端收到的过滤器，下推的条件作为ValidityFilter的rowFilter
+    private static ValidityFilter validityFilter(long startTimestamp) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Bytes.writeByteArray(out, Bytes.toBytes("localhost:60020"));
+        out.writeLong(startTimestamp);
+        out.writeBoolean(true);
+        out.writeUTF(ColumnPredicateFilter.class.getName());
+        predicateFilter().write(out);
+        out.close();
+
+        ValidityFilter filter = new ValidityFilter();
+        filter.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        return filter;
+    }
+
+    //条件f1 > 50，只需要f2
+    private static ColumnPredicateFilter predicateFilter() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(CompareMode.OFF);
+        out.writeInt(0);
+        out.writeBoolean(false);
+
+        out.writeInt(1);
+        Bytes.writeByteArray(out, CF);
+        Bytes.writeByteArray(out, F1);
+        out.writeInt(Value.INT);
+        out.writeInt(Comparison.BIGGER);
+        out.writeInt(1);
+        Bytes.writeByteArray(out, HBaseUtils.toBytes(ValueInt.get(50)));
+
+        out.writeInt(1);
+        Bytes.writeByteArray(out, CF);
+        Bytes.writeByteArray(out, F2);
+        out.close();
+
+        ColumnPredicateFilter filter = new ColumnPredicateFilter();
+        filter.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        return filter;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.index;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import com.codefollower.lealone.hbase.dbobject.index.RowKeyRangesFilter;
+
+public class RowKeyRangesFilterTest {
+    @Test
+    public void run() throws Exception {
+        List<byte[][]> ranges = new ArrayList<byte[][]>();
+        //故意不按顺序加入，并且[b, d)和[c, e)有重叠
+        ranges.add(range("m", "p"));
+        ranges.add(range("c", "e"));
+        ranges.add(range("b", "d"));
+        ranges.add(range("x", "y"));
+
+        RowKeyRangesFilter filter = deserialize(new RowKeyRangesFilter(ranges));
+
+        //返回true表示这一行被过滤掉
+        assertTrue(filter.filterRowKey(key("a"), 0, 1));
+        assertFalse(filter.filterRowKey(key("b"), 0, 1));
+        assertFalse(filter.filterRowKey(key("c1"), 0, 2));
+        assertFalse(filter.filterRowKey(key("d5"), 0, 2));
+        assertTrue(filter.filterRowKey(key("e"), 0, 1));
+        assertTrue(filter.filterRowKey(key("f"), 0, 1));
+        assertFalse(filter.filterRowKey(key("m"), 0, 1));
+        assertTrue(filter.filterRowKey(key("p"), 0, 1));
+        assertFalse(filter.filterRowKey(key("x0"), 0, 2));
+        assertTrue(filter.filterRowKey(key("z"), 0, 1));
+
+        //rowKey在一个更大的数组中
+        assertFalse(filter.filterRowKey(key("__n__"), 2, 1));
+        assertTrue(filter.filterRowKey(key("__q__"), 2, 1));
+    }
+
+    private static byte[][] range(String startKey, String stopKey) {
+        return new byte[][] { key(startKey), key(stopKey) };
+    }
+
+    private static byte[] key(String key) {
+        return Bytes.toBytes(key);
+    }
+
+    //模拟region server端收到的过滤器
+    private static RowKeyRangesFilter deserialize(RowKeyRangesFilter filter) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        filter.write(out);
+        out.close();
+
+        RowKeyRangesFilter filter2 = new RowKeyRangesFilter();
+        filter2.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        return filter2;
+    }
+}
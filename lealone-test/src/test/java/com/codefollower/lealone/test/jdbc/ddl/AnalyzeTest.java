@@ -0,0 +1,66 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.jdbc.ddl;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.codefollower.lealone.test.jdbc.TestBase;
+
+public class AnalyzeTest extends TestBase {
+    @Test
+    public void run() throws Exception {
+        stmt.executeUpdate("DROP TABLE IF EXISTS AnalyzeTest");
+        stmt.executeUpdate("CREATE TABLE IF NOT EXISTS AnalyzeTest (pk int NOT NULL PRIMARY KEY, f1 int, f2 int)");
+        stmt.executeUpdate("CREATE INDEX IF NOT EXISTS AnalyzeTest_f1 ON AnalyzeTest(f1)");
+        stmt.executeUpdate("CREATE INDEX IF NOT EXISTS AnalyzeTest_f2 ON AnalyzeTest(f2)");
+
+        //f1每行都不一样，f2只有两个值
+        for (int i = 0; i < 100; i++) {
+            stmt.executeUpdate("INSERT INTO AnalyzeTest(pk, f1, f2) VALUES(" + i + ", " + i + ", " + (i % 2) + ")");
+        }
+
+        stmt.executeUpdate("ANALYZE TABLE AnalyzeTest");
+
+        int f1 = getSelectivity("F1");
+        int f2 = getSelectivity("F2");
+        assertTrue("f1=" + f1, f1 > 50);
+        assertTrue("f2=" + f2, f2 < 10);
+        assertTrue("f1=" + f1 + ", f2=" + f2, f1 > f2);
+
+        //两个列上都有等值条件时应该选择重复值少的f1上的索引
+        sql = "EXPLAIN SELECT f1, f2 FROM AnalyzeTest WHERE f1 = 10 AND f2 = 0";
+        String plan = getStringValue(1, true);
+        assertTrue(plan, plan.contains("ANALYZETEST_F1"));
+
+        sql = "SELECT count(*) FROM AnalyzeTest WHERE f1 = 10 AND f2 = 0";
+        assertEquals(1, getIntValue(1, true));
+
+        stmt.executeUpdate("DROP TABLE IF EXISTS AnalyzeTest");
+    }
+
+    private int getSelectivity(String columnName) throws Exception {
+        sql = "SELECT SELECTIVITY FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_NAME = 'ANALYZETEST' AND COLUMN_NAME = '"
+                + columnName + "'";
+        return getIntValue(1, true);
+    }
+}
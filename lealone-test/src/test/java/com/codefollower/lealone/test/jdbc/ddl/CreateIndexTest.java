@@ -19,6 +19,9 @@
  */
 package com.codefollower.lealone.test.jdbc.ddl;
 
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
 import org.junit.Test;
 
 import com.codefollower.lealone.test.jdbc.TestBase;
@@ -44,6 +47,27 @@ public class CreateIndexTest extends TestBase {
 
         //stmt.executeUpdate("ALTER INDEX mydb.public.idx0 RENAME TO idx1");
 
+        testIncludeColumns();
+    }
+
+    //INCLUDE子句要出现在索引的CREATE SQL中，重启后按元数据重建索引时才不会丢掉INCLUDE列
+    void testIncludeColumns() throws Exception {
+        stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx3 ON CreateIndexTest(f2) INCLUDE(f3)");
+
+        String createSQL = getIndexSQL("IDX3");
+        assertTrue(createSQL, createSQL.endsWith(" INCLUDE(F3)"));
+
+        //用同样的SQL换个索引名再建一次，得到的CREATE SQL应该一样
+        stmt.executeUpdate(createSQL.replace("IDX3", "IDX4"));
+        assertEquals(createSQL.replace("IDX3", "IDX4"), getIndexSQL("IDX4"));
+
+        stmt.executeUpdate("DROP INDEX IF EXISTS idx4");
+        stmt.executeUpdate("DROP INDEX IF EXISTS idx3");
+    }
+
+    private String getIndexSQL(String indexName) throws Exception {
+        sql = "SELECT SQL FROM INFORMATION_SCHEMA.INDEXES WHERE INDEX_NAME = '" + indexName + "'";
+        return getStringValue(1, true);
     }
 
 }
@@ -30,7 +30,9 @@ public class InsertTest extends TestBase {
     public void run() throws Exception {
         createTableIfNotExists("InsertTest");
         createTableIfNotExists("InsertTest2");
+        createTableIfNotExists("InsertTest3");
         testInsert();
+        testInsertIntoManyRegions();
     }
 
     void testInsert() throws Exception {
@@ -73,4 +75,32 @@ public class InsertTest extends TestBase {
                 + "DIRECT SELECT _rowkey_, f1, cf1.f2, cf2.f3 FROM InsertTest2";
         assertEquals(12, stmt.executeUpdate(sql));
     }
+
+    //其他服务器上的region的记录会按region分批发过去，表达式在本地算好，NULL也要原样保留
+    void testInsertIntoManyRegions() throws Exception {
+        sql = "INSERT INTO InsertTest3(_rowkey_, f1, cf1.f2, cf2.f3) VALUES"
+                + " ('01', 'a1', 'b', 10 + 2), ('02', 'a2', NULL, 13)"
+                + ",('26', 'a3', 'b', 14), ('27', CONCAT('a', '4'), 'b', 15)"
+                + ",('51', 'a5', NULL, 16), ('52', 'a6', 'b', 17)"
+                + ",('76', 'a7', 'b', 18), ('77', 'a8', NULL, 19)";
+        assertEquals(8, stmt.executeUpdate(sql));
+
+        sql = "SELECT count(*), sum(cf2.f3) FROM InsertTest3";
+        executeQuery();
+        assertEquals(8, getIntValue(1));
+        assertEquals(124, getIntValue(2, true));
+
+        sql = "SELECT count(*) FROM InsertTest3 WHERE cf1.f2 IS NULL";
+        assertEquals(3, getIntValue(1, true));
+
+        sql = "SELECT f1, cf2.f3 FROM InsertTest3 WHERE _rowkey_ = '27'";
+        executeQuery();
+        assertEquals("a4", getStringValue(1));
+        assertEquals(15, getIntValue(2, true));
+
+        sql = "SELECT f1, cf2.f3 FROM InsertTest3 WHERE _rowkey_ = '01'";
+        executeQuery();
+        assertEquals("a1", getStringValue(1));
+        assertEquals(12, getIntValue(2, true));
+    }
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.jdbc.dml;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+
+import java.sql.SQLException;
+
+import org.junit.Test;
+
+import com.codefollower.lealone.constant.ErrorCode;
+import com.codefollower.lealone.test.jdbc.TestBase;
+
+//静态表的rowKey由主键列按RowKeyCodec编码得到，负数也能按范围查找
+public class PrimaryKeyTest extends TestBase {
+    @Test
+    public void run() throws Exception {
+        testIntPrimaryKey();
+        testCompositePrimaryKey();
+    }
+
+    void testIntPrimaryKey() throws Exception {
+        stmt.executeUpdate("DROP TABLE IF EXISTS PrimaryKeyTest");
+        stmt.executeUpdate("CREATE TABLE IF NOT EXISTS PrimaryKeyTest (id int NOT NULL PRIMARY KEY, f1 int)");
+        for (int i = -10; i <= 10; i++)
+            stmt.executeUpdate("INSERT INTO PrimaryKeyTest(id, f1) VALUES(" + i + ", " + (i * 10) + ")");
+
+        sql = "SELECT count(*) FROM PrimaryKeyTest WHERE id >= -5 AND id < 3";
+        assertEquals(8, getIntValue(1, true));
+
+        sql = "SELECT count(*) FROM PrimaryKeyTest WHERE id <= -9";
+        assertEquals(2, getIntValue(1, true));
+
+        sql = "SELECT f1 FROM PrimaryKeyTest WHERE id = -7";
+        assertEquals(-70, getIntValue(1, true));
+
+        stmt.executeUpdate("DROP TABLE IF EXISTS PrimaryKeyTest");
+    }
+
+    void testCompositePrimaryKey() throws Exception {
+        stmt.executeUpdate("DROP TABLE IF EXISTS PrimaryKeyTest2");
+        stmt.executeUpdate("CREATE TABLE IF NOT EXISTS PrimaryKeyTest2 " //
+                + "(id int NOT NULL, name varchar NOT NULL, f1 int, PRIMARY KEY(id, name))");
+        stmt.executeUpdate("INSERT INTO PrimaryKeyTest2(id, name, f1) VALUES(-10, 'a', 1)");
+        stmt.executeUpdate("INSERT INTO PrimaryKeyTest2(id, name, f1) VALUES(-1, 'a', 2)");
+        stmt.executeUpdate("INSERT INTO PrimaryKeyTest2(id, name, f1) VALUES(0, 'a', 3)");
+        stmt.executeUpdate("INSERT INTO PrimaryKeyTest2(id, name, f1) VALUES(1, 'a', 4)");
+        stmt.executeUpdate("INSERT INTO PrimaryKeyTest2(id, name, f1) VALUES(1, 'b', 5)");
+        stmt.executeUpdate("INSERT INTO PrimaryKeyTest2(id, name, f1) VALUES(10, 'a', 6)");
+
+        sql = "SELECT count(*) FROM PrimaryKeyTest2 WHERE id >= -1 AND id < 10";
+        assertEquals(4, getIntValue(1, true));
+
+        sql = "SELECT count(*) FROM PrimaryKeyTest2 WHERE id = 1";
+        assertEquals(2, getIntValue(1, true));
+
+        sql = "SELECT f1 FROM PrimaryKeyTest2 WHERE id = 1 AND name = 'b'";
+        assertEquals(5, getIntValue(1, true));
+
+        //复合主键没有唯一索引表，重复的主键也要报错，不能覆盖原来的记录
+        assertDuplicateKey("INSERT INTO PrimaryKeyTest2(id, name, f1) VALUES(1, 'b', 50)");
+        assertDuplicateKey("INSERT INTO PrimaryKeyTest2(id, name, f1) VALUES(2, 'a', 7), (2, 'a', 8)");
+
+        sql = "SELECT f1 FROM PrimaryKeyTest2 WHERE id = 1 AND name = 'b'";
+        assertEquals(5, getIntValue(1, true));
+
+        //删除之后可以再插入
+        stmt.executeUpdate("DELETE FROM PrimaryKeyTest2 WHERE id = 1 AND name = 'b'");
+        stmt.executeUpdate("INSERT INTO PrimaryKeyTest2(id, name, f1) VALUES(1, 'b', 50)");
+        sql = "SELECT f1 FROM PrimaryKeyTest2 WHERE id = 1 AND name = 'b'";
+        assertEquals(50, getIntValue(1, true));
+
+        //merge和update不做重复检查
+        stmt.executeUpdate("MERGE INTO PrimaryKeyTest2(id, name, f1) KEY(id, name) VALUES(1, 'b', 500)");
+        stmt.executeUpdate("UPDATE PrimaryKeyTest2 SET f1 = f1 + 1 WHERE id = 1 AND name = 'b'");
+        sql = "SELECT f1 FROM PrimaryKeyTest2 WHERE id = 1 AND name = 'b'";
+        assertEquals(501, getIntValue(1, true));
+
+        sql = "SELECT count(*) FROM PrimaryKeyTest2";
+        assertEquals(6, getIntValue(1, true));
+
+        //改主键列要换rowKey，不支持，原来的记录不变；主键列的值没变时可以更新
+        try {
+            stmt.executeUpdate("UPDATE PrimaryKeyTest2 SET name = 'c' WHERE id = 1 AND name = 'b'");
+            fail();
+        } catch (SQLException e) {
+            assertEquals(ErrorCode.FEATURE_NOT_SUPPORTED_1, e.getErrorCode());
+        }
+        assertEquals(1, stmt.executeUpdate("UPDATE PrimaryKeyTest2 SET name = 'b', f1 = 502 WHERE id = 1 AND name = 'b'"));
+        sql = "SELECT f1 FROM PrimaryKeyTest2 WHERE id = 1 AND name = 'b'";
+        assertEquals(502, getIntValue(1, true));
+        sql = "SELECT count(*) FROM PrimaryKeyTest2 WHERE id = 1 AND name = 'c'";
+        assertEquals(0, getIntValue(1, true));
+        assertDuplicateKey("INSERT INTO PrimaryKeyTest2(id, name, f1) VALUES(1, 'b', 503)");
+        stmt.executeUpdate("INSERT INTO PrimaryKeyTest2(id, name, f1) VALUES(1, 'c', 504)");
+        sql = "SELECT count(*) FROM PrimaryKeyTest2 WHERE id = 1";
+        assertEquals(3, getIntValue(1, true));
+
+        stmt.executeUpdate("DROP TABLE IF EXISTS PrimaryKeyTest2");
+    }
+
+    private void assertDuplicateKey(String sql) throws Exception {
+        try {
+            stmt.executeUpdate(sql);
+            fail(sql);
+        } catch (SQLException e) {
+            assertEquals(ErrorCode.DUPLICATE_KEY_1, e.getErrorCode());
+        }
+    }
+}
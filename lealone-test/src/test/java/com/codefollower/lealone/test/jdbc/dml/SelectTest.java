@@ -21,7 +21,10 @@ package com.codefollower.lealone.test.jdbc.dml;
 
 import static junit.framework.Assert.*;
 
+import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.ResultSet;
+import java.sql.Statement;
 
 import org.junit.Test;
 
@@ -34,6 +37,10 @@ public class SelectTest extends TestBase {
         testInsert();
         testSelect();
         testAggregate();
+        testManyDistinctStatements();
+        testSortedMerge();
+        testPrefetch();
+        testPushdown();
     }
 
     void testInsert() throws Exception {
@@ -123,6 +130,22 @@ public class SelectTest extends TestBase {
         assertTrue(rs.next());
         assertFalse(rs.next());
         rs.close();
+
+        //前3条记录的f1都是a1，有DISTINCT时读够LIMIT条记录后还要继续读
+        sql = "SELECT DISTINCT f1 FROM SelectTest LIMIT 2";
+        rs = stmt.executeQuery(sql);
+        assertTrue(rs.next());
+        assertTrue(rs.next());
+        assertFalse(rs.next());
+        rs.close();
+
+        sql = "SELECT DISTINCT cf2.f3 FROM SelectTest LIMIT 3";
+        rs = stmt.executeQuery(sql);
+        int count = 0;
+        while (rs.next())
+            count++;
+        rs.close();
+        assertEquals(3, count);
     }
 
     private void tableAlias() throws Exception {
@@ -139,4 +162,163 @@ public class SelectTest extends TestBase {
         //因为cf2.f3是int，所以内部已进行4舍5入
         assertEquals(35.0, getDoubleValue(1, true), 0.2);
     }
+
+    //测试环境中远程命令的缓存只有4个，不同的SQL超过4个时旧的命令会被淘汰并关闭，再次执行时要重新prepare
+    void testManyDistinctStatements() throws Exception {
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 10; i++) {
+                sql = "SELECT count(*) FROM SelectTest WHERE _rowkey_ >= '0" + i + "'";
+                assertEquals(12 - Math.max(0, Math.min(i, 4) - 1), getIntValue(1, true));
+            }
+        }
+    }
+
+    //4个region的结果各自排好序后再合并，f2在12条记录中各不相同(a到l)
+    void testSortedMerge() throws Exception {
+        assertEquals("abcdefghijkl", getF2("SELECT f2 FROM SelectTest ORDER BY f2"));
+        assertEquals("lkjihgfedcba", getF2("SELECT f2 FROM SelectTest ORDER BY f2 DESC"));
+        //f3相同时再按f2排
+        assertEquals("ghijkladbcef", getF2("SELECT f2 FROM SelectTest ORDER BY cf2.f3, f2"));
+
+        assertEquals("jih", getF2("SELECT f2 FROM SelectTest ORDER BY f2 DESC LIMIT 3 OFFSET 2"));
+        //只有OFFSET没有LIMIT
+        assertEquals("kl", getF2("SELECT f2 FROM SelectTest ORDER BY f2 LIMIT NULL OFFSET 10"));
+        assertEquals("", getF2("SELECT f2 FROM SelectTest ORDER BY f2 LIMIT 5 OFFSET 12"));
+
+        //maxRows和OFFSET一起用时，每个region也要返回maxRows+offset条记录
+        stmt.setMaxRows(2);
+        try {
+            assertEquals("de", getF2("SELECT f2 FROM SelectTest ORDER BY f2 LIMIT 5 OFFSET 3"));
+            assertEquals("ij", getF2("SELECT f2 FROM SelectTest ORDER BY f2 LIMIT NULL OFFSET 8"));
+        } finally {
+            stmt.setMaxRows(0);
+        }
+    }
+
+    //不排序的查询同时从多个region预取结果，每条记录只能返回一次，提前关闭结果集后其他查询不受影响
+    void testPrefetch() throws Exception {
+        createTableIfNotExists("SelectTest2");
+        int count = 100;
+        for (int i = 0; i < count; i++) {
+            String rowKey = (i < 10 ? "0" : "") + i;
+            stmt.executeUpdate("INSERT INTO SelectTest2(_rowkey_, f1, cf2.f3) VALUES('" + rowKey + "', 'p', " + i + ")");
+        }
+
+        stmt.setFetchSize(3);
+        try {
+            boolean[] found = new boolean[count];
+            ResultSet rs = stmt.executeQuery("SELECT cf2.f3 FROM SelectTest2");
+            int rows = 0;
+            while (rs.next()) {
+                int v = rs.getInt(1);
+                assertFalse(found[v]);
+                found[v] = true;
+                rows++;
+            }
+            rs.close();
+            assertEquals(count, rows);
+
+            //只读几条就关闭
+            for (int round = 0; round < 3; round++) {
+                rs = stmt.executeQuery("SELECT cf2.f3 FROM SelectTest2");
+                assertTrue(rs.next());
+                assertTrue(rs.next());
+                rs.close();
+            }
+
+            rs = stmt.executeQuery("SELECT cf2.f3 FROM SelectTest2 LIMIT 7");
+            rows = 0;
+            while (rs.next())
+                rows++;
+            rs.close();
+            assertEquals(7, rows);
+
+            stmt.setMaxRows(30);
+            rs = stmt.executeQuery("SELECT cf2.f3 FROM SelectTest2");
+            rows = 0;
+            while (rs.next())
+                rows++;
+            rs.close();
+            assertEquals(30, rows);
+        } finally {
+            stmt.setMaxRows(0);
+            stmt.setFetchSize(0);
+        }
+
+        sql = "SELECT count(*) FROM SelectTest2";
+        assertEquals(count, getIntValue(1, true));
+    }
+
+    //非rowKey列上的条件和要查询的列会下推到region的scan里(见ColumnPredicateFilter)，
+    //f1 + 0、COALESCE这类表达式不会下推，两种写法的结果要一样
+    void testPushdown() throws Exception {
+        stmt.executeUpdate("CREATE HBASE TABLE IF NOT EXISTS SelectTest3 (" //
+                + "SPLIT KEYS('25', '50', '75'), COLUMN FAMILY cf(id int, f1 int, f2 varchar))");
+        stmt.executeUpdate("DELETE FROM SelectTest3");
+
+        stmt.executeUpdate("INSERT INTO SelectTest3(_rowkey_, id, f1, f2) VALUES('01', 1, 10, 'a')");
+        stmt.executeUpdate("INSERT INTO SelectTest3(_rowkey_, id, f1, f2) VALUES('02', 2, NULL, 'b')");
+        stmt.executeUpdate("INSERT INTO SelectTest3(_rowkey_, id, f1, f2) VALUES('25', 3, 30, NULL)");
+        stmt.executeUpdate("INSERT INTO SelectTest3(_rowkey_, id, f1, f2) VALUES('26', 4, 40, 'abc1')");
+        stmt.executeUpdate("INSERT INTO SelectTest3(_rowkey_, id, f1, f2) VALUES('50', 5, NULL, NULL)");
+        stmt.executeUpdate("INSERT INTO SelectTest3(_rowkey_, id, f1, f2) VALUES('51', 6, -5, 'abd')");
+        stmt.executeUpdate("INSERT INTO SelectTest3(_rowkey_, id, f1, f2) VALUES('75', 7, 70, 'abc2')");
+        stmt.executeUpdate("INSERT INTO SelectTest3(_rowkey_, id, f1, f2) VALUES('76', 8, 20, 'c')");
+
+        assertPushdown("347", "f1 > 20", "f1 + 0 > 20");
+        assertPushdown("348", "f1 >= 20 AND f1 < 70", "f1 + 0 >= 20 AND f1 + 0 < 70");
+        assertPushdown("25", "f1 IS NULL", "COALESCE(f1, 999) = 999");
+        assertPushdown("17", "f1 IN(10, 70, 100)", "f1 + 0 IN(10, 70, 100)");
+        assertPushdown("47", "f2 LIKE 'abc%'", "LEFT(f2, 3) = 'abc'");
+        assertPushdown("6", "f2 = 'abd'", "CONCAT(f2, '') = 'abd'");
+        assertPushdown("", "f1 > 100", "f1 + 0 > 100");
+        assertPushdown("47", "_rowkey_ >= '25' AND f1 > 30", "_rowkey_ >= '25' AND f1 + 0 > 30");
+
+        //只查部分列，所有被查的列都是NULL的记录也不能丢
+        assertEquals("abnullabc1nullabdabc2c", getF2("SELECT f2 FROM SelectTest3 ORDER BY id"));
+        assertEquals("anullabc1abc2c", getF2("SELECT f2 FROM SelectTest3 WHERE f1 > 0 ORDER BY id"));
+        sql = "SELECT count(f2), count(*) FROM SelectTest3 WHERE f1 IS NULL OR f1 < 20";
+        assertEquals(3, getIntValue(1));
+        assertEquals(4, getIntValue(2, true));
+
+        //下推的条件看到的是当前事务可见的值
+        Connection conn1 = DriverManager.getConnection(getURL(), "sa", "");
+        try {
+            conn1.setAutoCommit(false);
+            Statement stmt1 = conn1.createStatement();
+            stmt1.executeUpdate("UPDATE SelectTest3 SET f1 = 100 WHERE _rowkey_ = '01'");
+            stmt1.executeUpdate("DELETE FROM SelectTest3 WHERE _rowkey_ = '75'");
+
+            ResultSet rs = stmt1.executeQuery("SELECT id FROM SelectTest3 WHERE f1 > 50 ORDER BY id");
+            assertTrue(rs.next());
+            assertEquals(1, rs.getInt(1));
+            assertFalse(rs.next());
+            rs.close();
+
+            assertPushdown("7", "f1 > 50", "f1 + 0 > 50");
+
+            conn1.rollback();
+        } finally {
+            conn1.close();
+        }
+        assertPushdown("7", "f1 > 50", "f1 + 0 > 50");
+
+        stmt.executeUpdate("UPDATE SelectTest3 SET f1 = NULL WHERE _rowkey_ = '76'");
+        assertPushdown("258", "f1 IS NULL", "COALESCE(f1, 999) = 999");
+        assertPushdown("16", "f1 < 20", "f1 + 0 < 20");
+    }
+
+    private void assertPushdown(String expected, String condition, String notPushedCondition) throws Exception {
+        assertEquals(expected, getF2("SELECT id FROM SelectTest3 WHERE " + condition + " ORDER BY id"));
+        assertEquals(expected, getF2("SELECT id FROM SelectTest3 WHERE " + notPushedCondition + " ORDER BY id"));
+    }
+
+    private String getF2(String sql) throws Exception {
+        StringBuilder buff = new StringBuilder();
+        ResultSet rs = stmt.executeQuery(sql);
+        while (rs.next())
+            buff.append(rs.getString(1));
+        rs.close();
+        return buff.toString();
+    }
 }
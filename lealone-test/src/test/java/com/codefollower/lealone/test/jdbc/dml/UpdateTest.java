@@ -20,6 +20,14 @@
 package com.codefollower.lealone.test.jdbc.dml;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 
 import org.junit.Test;
 
@@ -31,6 +39,8 @@ public class UpdateTest extends TestBase {
         createTableIfNotExists("UpdateTest");
         testInsert();
         testUpdate();
+        testSingleRowUpdateSnapshot();
+        testSingleRowUpdateConflict();
     }
 
     void testInsert() throws Exception {
@@ -60,4 +70,50 @@ public class UpdateTest extends TestBase {
         assertEquals("b", getStringValue(2));
         assertEquals(61, getIntValue(3, true));
     }
+
+    //自动提交的单行更新一步提交，在它之前开始的事务仍然只能读到旧值
+    void testSingleRowUpdateSnapshot() throws Exception {
+        Connection conn2 = DriverManager.getConnection(getURL(), "sa", "");
+        try {
+            conn2.setAutoCommit(false);
+            Statement stmt2 = conn2.createStatement();
+            stmt2.executeQuery("SELECT f1 FROM UpdateTest WHERE _rowkey_ = '02'").close();
+
+            assertEquals(1, stmt.executeUpdate("UPDATE UpdateTest SET f1 = 'a9' WHERE _rowkey_ = '02'"));
+
+            ResultSet rs2 = stmt2.executeQuery("SELECT f1 FROM UpdateTest WHERE _rowkey_ = '02'");
+            assertTrue(rs2.next());
+            assertEquals("a1", rs2.getString(1));
+            rs2.close();
+            conn2.commit();
+        } finally {
+            conn2.close();
+        }
+
+        sql = "SELECT f1 FROM UpdateTest WHERE _rowkey_ = '02'";
+        assertEquals("a9", getStringValue(1, true));
+    }
+
+    //事务开始后，同一行被自动提交的单行更新抢先修改，事务提交时要因为write-write冲突而失败
+    void testSingleRowUpdateConflict() throws Exception {
+        Connection conn2 = DriverManager.getConnection(getURL(), "sa", "");
+        try {
+            conn2.setAutoCommit(false);
+            Statement stmt2 = conn2.createStatement();
+            stmt2.executeUpdate("UPDATE UpdateTest SET f1 = 't1' WHERE _rowkey_ = '03'");
+
+            assertEquals(1, stmt.executeUpdate("UPDATE UpdateTest SET f1 = 'a8' WHERE _rowkey_ = '03'"));
+            try {
+                conn2.commit();
+                fail("write-write conflict expected");
+            } catch (SQLException e) {
+                //事务已被回滚
+            }
+        } finally {
+            conn2.close();
+        }
+
+        sql = "SELECT f1 FROM UpdateTest WHERE _rowkey_ = '03'";
+        assertEquals("a8", getStringValue(1, true));
+    }
 }
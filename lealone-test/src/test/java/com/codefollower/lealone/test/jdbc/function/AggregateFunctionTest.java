@@ -20,6 +20,11 @@
 package com.codefollower.lealone.test.jdbc.function;
 
 import static junit.framework.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+
 import org.junit.Test;
 
 import com.codefollower.lealone.test.jdbc.TestBase;
@@ -31,6 +36,9 @@ public class AggregateFunctionTest extends TestBase {
         init();
         testAggregateFunctions();
         testAggregateFunctionsWithGroupBy();
+        testGroupByWithManyGroups();
+        testGroupByWithUnderestimatedPartitions();
+        testRegionAggregate();
     }
 
     void init() throws Exception {
@@ -119,6 +127,150 @@ public class AggregateFunctionTest extends TestBase {
         assertValues();
     }
 
+    //分组数远多于lealone.command.parallel.merge.memory.rows(测试配置中是8)，
+    //合并各region的部分结果时要分区、溢出和再分区，结果必须和不分区时一样
+    void testGroupByWithManyGroups() throws Exception {
+        createTable("AggregateFunctionTest2", "25", "50", "75");
+        int groups = 40;
+        for (int i = 0; i < 100; i++) {
+            String rowKey = (i < 10 ? "0" : "") + i;
+            stmt.executeUpdate("INSERT INTO AggregateFunctionTest2(_rowkey_, f1, cf2.f3) VALUES('" + rowKey + "', 'g"
+                    + (i % groups) + "', " + i + ")");
+        }
+
+        sql = "SELECT f1, count(*), sum(cf2.f3) FROM AggregateFunctionTest2 GROUP BY f1";
+        rs = stmt.executeQuery(sql);
+        int rowCount = 0;
+        while (rs.next()) {
+            int g = Integer.parseInt(rs.getString(1).substring(1));
+            int count = 0, sum = 0;
+            for (int i = g; i < 100; i += groups) {
+                count++;
+                sum += i;
+            }
+            assertEquals(count, rs.getInt(2));
+            assertEquals(sum, rs.getInt(3));
+            rowCount++;
+        }
+        closeResultSet();
+        assertEquals(groups, rowCount);
+    }
+
+    //前三个region都只有g0、g1两个分组，第四个region有25个分组，
+    //最先返回的是小region时，按它估算的总记录数不超过lealone.command.parallel.merge.memory.rows，不分区，
+    //之后边到达边合并的记录数超过这个值时才溢出到分区中，
+    //已合并好的g0、g1和第四个region中的g0、g1必须落到同一个分区，否则会得到重复的分组
+    void testGroupByWithUnderestimatedPartitions() throws Exception {
+        createTable("AggregateFunctionTest4", "25", "50", "75");
+        int[] counts = new int[25];
+        int[] sums = new int[25];
+        for (int i = 0; i < 100; i++) {
+            if (i % 25 >= 10 && i < 75)
+                continue;
+            int g = i < 75 ? i % 2 : i - 75;
+            counts[g]++;
+            sums[g] += i;
+            String rowKey = (i < 10 ? "0" : "") + i;
+            stmt.executeUpdate("INSERT INTO AggregateFunctionTest4(_rowkey_, f1, cf2.f3) VALUES('" + rowKey + "', 'g" + g
+                    + "', " + i + ")");
+        }
+
+        //各region返回的先后是不确定的，多查几次
+        for (int round = 0; round < 5; round++) {
+            sql = "SELECT f1, count(*), sum(cf2.f3) FROM AggregateFunctionTest4 GROUP BY f1";
+            rs = stmt.executeQuery(sql);
+            int rowCount = 0;
+            while (rs.next()) {
+                int g = Integer.parseInt(rs.getString(1).substring(1));
+                assertEquals(counts[g], rs.getInt(2));
+                assertEquals(sums[g], rs.getInt(3));
+                rowCount++;
+            }
+            closeResultSet();
+            assertEquals(25, rowCount);
+        }
+    }
+
+    //不带where条件的COUNT、SUM、MIN、MAX在各region内部直接计算(见RegionAggregate)，
+    //静态表的列有类型，四个region里都有记录，f1有NULL值也有负数
+    void testRegionAggregate() throws Exception {
+        stmt.executeUpdate("CREATE HBASE TABLE IF NOT EXISTS AggregateFunctionTest3 (" //
+                + "SPLIT KEYS('25', '50', '75'), COLUMN FAMILY cf(id int, f1 int))");
+        stmt.executeUpdate("DELETE FROM AggregateFunctionTest3");
+
+        stmt.executeUpdate("INSERT INTO AggregateFunctionTest3(_rowkey_, id, f1) VALUES('01', 1, 10)");
+        stmt.executeUpdate("INSERT INTO AggregateFunctionTest3(_rowkey_, id, f1) VALUES('02', 2, NULL)");
+        stmt.executeUpdate("INSERT INTO AggregateFunctionTest3(_rowkey_, id, f1) VALUES('25', 3, 30)");
+        stmt.executeUpdate("INSERT INTO AggregateFunctionTest3(_rowkey_, id, f1) VALUES('26', 4, NULL)");
+        stmt.executeUpdate("INSERT INTO AggregateFunctionTest3(_rowkey_, id, f1) VALUES('50', 5, 50)");
+        stmt.executeUpdate("INSERT INTO AggregateFunctionTest3(_rowkey_, id, f1) VALUES('51', 6, -5)");
+        stmt.executeUpdate("INSERT INTO AggregateFunctionTest3(_rowkey_, id, f1) VALUES('75', 7, 70)");
+        stmt.executeUpdate("INSERT INTO AggregateFunctionTest3(_rowkey_, id, f1) VALUES('76', 8, NULL)");
+
+        assertRegionAggregate(8, 5, 155, -5, 70, 36);
+        assertPlan(true, "SELECT count(*), count(f1), sum(f1), min(f1), max(f1), sum(id) FROM AggregateFunctionTest3");
+        assertPlan(true, "SELECT count(*) FROM AggregateFunctionTest3");
+        assertPlan(false, "SELECT count(*), sum(f1) FROM AggregateFunctionTest3 WHERE f1 > 20");
+        assertPlan(false, "SELECT avg(f1), count(*) FROM AggregateFunctionTest3");
+
+        //其他事务未提交的插入和删除都不可见
+        Connection conn1 = DriverManager.getConnection(getURL(), "sa", "");
+        try {
+            conn1.setAutoCommit(false);
+            Statement stmt1 = conn1.createStatement();
+            stmt1.executeUpdate("INSERT INTO AggregateFunctionTest3(_rowkey_, id, f1) VALUES('77', 9, 100)");
+            stmt1.executeUpdate("DELETE FROM AggregateFunctionTest3 WHERE _rowkey_ = '51'");
+
+            assertRegionAggregate(8, 5, 155, -5, 70, 36);
+
+            conn1.rollback();
+        } finally {
+            conn1.close();
+        }
+        assertRegionAggregate(8, 5, 155, -5, 70, 36);
+
+        //已提交的删除可见
+        stmt.executeUpdate("DELETE FROM AggregateFunctionTest3 WHERE _rowkey_ = '51'");
+        stmt.executeUpdate("DELETE FROM AggregateFunctionTest3 WHERE _rowkey_ = '02'");
+        assertRegionAggregate(6, 4, 160, 10, 70, 28);
+
+        //下面这些不能在region内部计算，结果也要一样
+        sql = "SELECT count(*), sum(f1) FROM AggregateFunctionTest3 WHERE f1 > 20";
+        assertEquals(3, getIntValue(1));
+        assertEquals(150, getIntValue(2, true));
+
+        sql = "SELECT count(DISTINCT f1), sum(DISTINCT id) FROM AggregateFunctionTest3";
+        assertEquals(4, getIntValue(1));
+        assertEquals(28, getIntValue(2, true));
+
+        sql = "SELECT avg(f1), count(*) FROM AggregateFunctionTest3";
+        assertEquals(40, getIntValue(1));
+        assertEquals(6, getIntValue(2, true));
+
+        stmt.executeUpdate("DELETE FROM AggregateFunctionTest3");
+        assertRegionAggregate(0, 0, 0, 0, 0, 0);
+    }
+
+    private void assertPlan(boolean isRegionAggregate, String query) throws Exception {
+        sql = "EXPLAIN " + query;
+        String plan = getStringValue(1, true);
+        assertEquals(plan, isRegionAggregate, plan.contains("/* region aggregate */"));
+    }
+
+    //表是空的或列全是NULL时sum、min、max返回NULL，getInt得到0
+    private void assertRegionAggregate(int countAll, int count, int sum, int min, int max, int sumId) throws Exception {
+        sql = "SELECT count(*), count(f1), sum(f1), min(f1), max(f1), sum(id) FROM AggregateFunctionTest3";
+        assertEquals(countAll, getIntValue(1));
+        assertEquals(count, getIntValue(2));
+        assertEquals(sum, getIntValue(3));
+        assertEquals(min, getIntValue(4));
+        assertEquals(max, getIntValue(5));
+        assertEquals(sumId, getIntValue(6, true));
+
+        sql = "SELECT count(*) FROM AggregateFunctionTest3";
+        assertEquals(countAll, getIntValue(1, true));
+    }
+
     void getValues1() throws Exception {
         count1 = getIntValue(1);
         max1 = getIntValue(2);
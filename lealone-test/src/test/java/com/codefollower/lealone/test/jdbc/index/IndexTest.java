@@ -38,6 +38,8 @@ public class IndexTest extends TestBase {
         testCommit();
         testRollback();
         testSavepoint();
+        testIncludeColumns();
+        testIndexBuffer();
 
         //printHTable("IndexTest".toUpperCase(), 1000);
     }
@@ -237,4 +239,127 @@ public class IndexTest extends TestBase {
         sql = "SELECT count(*) FROM IndexTest";
         assertEquals(2, getIntValue(1, true));
     }
+
+    //f3在索引中时只读索引表，f4不在索引中时要回表，两种情况的结果要一样
+    void testIncludeColumns() throws Exception {
+        stmt.executeUpdate("CREATE TABLE IF NOT EXISTS IndexTest3 (f1 int NOT NULL, f2 int, f3 varchar, f4 int)");
+        stmt.executeUpdate("CREATE PRIMARY KEY HASH IF NOT EXISTS IndexTest3_idx0 ON IndexTest3(f1)");
+        stmt.executeUpdate("CREATE INDEX IF NOT EXISTS IndexTest3_idx1 ON IndexTest3(f2) INCLUDE(f3)");
+        stmt.executeUpdate("DELETE FROM IndexTest3");
+
+        stmt.executeUpdate("INSERT INTO IndexTest3(f1, f2, f3, f4) VALUES(100, 10, 'a', 1)");
+        stmt.executeUpdate("INSERT INTO IndexTest3(f1, f2, f3, f4) VALUES(200, 20, 'b', 2)");
+        stmt.executeUpdate("INSERT INTO IndexTest3(f1, f2, f3, f4) VALUES(300, 30, 'c', 3)");
+
+        sql = "SELECT f3 FROM IndexTest3 WHERE f2 = 20";
+        assertEquals("b", getStringValue(1, true));
+
+        sql = "SELECT f1, f3 FROM IndexTest3 WHERE f2 = 30";
+        executeQuery();
+        assertEquals(300, getIntValue(1));
+        assertEquals("c", getStringValue(2, true));
+
+        //只有部分列在索引中
+        sql = "SELECT f3, f4 FROM IndexTest3 WHERE f2 = 20";
+        executeQuery();
+        assertEquals("b", getStringValue(1));
+        assertEquals(2, getIntValue(2, true));
+
+        //EXPLAIN中用COVERING标出不回表的索引
+        sql = "EXPLAIN SELECT f1, f3 FROM IndexTest3 WHERE f2 = 30";
+        String plan = getStringValue(1, true);
+        Assert.assertTrue(plan, plan.contains("INDEXTEST3_IDX1 COVERING"));
+        sql = "EXPLAIN SELECT f3, f4 FROM IndexTest3 WHERE f2 = 20";
+        plan = getStringValue(1, true);
+        Assert.assertTrue(plan, plan.contains("INDEXTEST3_IDX1"));
+        Assert.assertFalse(plan, plan.contains("COVERING"));
+
+        //修改INCLUDE列后索引表中的值也要跟着变
+        assertEquals(1, stmt.executeUpdate("UPDATE IndexTest3 SET f3 = 'bb' WHERE f1 = 200"));
+        sql = "SELECT f3 FROM IndexTest3 WHERE f2 = 20";
+        assertEquals("bb", getStringValue(1, true));
+
+        assertEquals(1, stmt.executeUpdate("UPDATE IndexTest3 SET f3 = 'cc', f2 = 31 WHERE f1 = 300"));
+        sql = "SELECT count(*) FROM IndexTest3 WHERE f2 = 30";
+        assertEquals(0, getIntValue(1, true));
+        sql = "SELECT f3 FROM IndexTest3 WHERE f2 = 31";
+        assertEquals("cc", getStringValue(1, true));
+        //旧的索引记录已经删掉，回表和不回表的查询都查不到f2 = 30
+        sql = "SELECT f1, f3 FROM IndexTest3 WHERE f2 = 30";
+        rs = stmt.executeQuery(sql);
+        Assert.assertFalse(rs.next());
+        closeResultSet();
+        sql = "SELECT f3, f4 FROM IndexTest3 WHERE f2 = 30";
+        rs = stmt.executeQuery(sql);
+        Assert.assertFalse(rs.next());
+        closeResultSet();
+
+        assertEquals(1, stmt.executeUpdate("DELETE FROM IndexTest3 WHERE f1 = 100"));
+        sql = "SELECT count(*) FROM IndexTest3 WHERE f2 = 10";
+        assertEquals(0, getIntValue(1, true));
+    }
+
+    //二级索引的修改在语句结束时才批量写入，语句失败或事务回滚时缓存中和已写入的索引记录都不能留下
+    void testIndexBuffer() throws Exception {
+        stmt.executeUpdate("CREATE TABLE IF NOT EXISTS IndexTest4 (f1 int NOT NULL, f2 int, f3 varchar)");
+        stmt.executeUpdate("CREATE PRIMARY KEY HASH IF NOT EXISTS IndexTest4_idx0 ON IndexTest4(f1)");
+        stmt.executeUpdate("CREATE UNIQUE HASH INDEX IF NOT EXISTS IndexTest4_idx1 ON IndexTest4(f2)");
+        stmt.executeUpdate("DELETE FROM IndexTest4");
+
+        assertEquals(3, stmt.executeUpdate("INSERT INTO IndexTest4(f1, f2, f3) VALUES(1, 10, 'a'), (2, 20, 'b'), (3, 30, 'c')"));
+        sql = "SELECT f1 FROM IndexTest4 WHERE f2 = 20";
+        assertEquals(2, getIntValue(1, true));
+
+        //和已有的记录重复
+        try {
+            stmt.executeUpdate("INSERT INTO IndexTest4(f1, f2, f3) VALUES(4, 40, 'd'), (5, 20, 'e')");
+            Assert.fail("insert duplicate key: 20");
+        } catch (SQLException e) {
+            //e.printStackTrace();
+        }
+        assertEquals(0, countByF2(40));
+        stmt.executeUpdate("INSERT INTO IndexTest4(f1, f2, f3) VALUES(4, 40, 'd')");
+        assertEquals(1, countByF2(40));
+
+        //同一语句中的记录之间重复
+        try {
+            stmt.executeUpdate("INSERT INTO IndexTest4(f1, f2, f3) VALUES(6, 60, 'f'), (7, 60, 'g')");
+            Assert.fail("insert duplicate key: 60");
+        } catch (SQLException e) {
+            //e.printStackTrace();
+        }
+        assertEquals(0, countByF2(60));
+
+        try {
+            conn.setAutoCommit(false);
+            stmt.executeUpdate("INSERT INTO IndexTest4(f1, f2, f3) VALUES(8, 80, 'h')");
+            assertEquals(1, countByF2(80));
+            conn.rollback();
+        } finally {
+            conn.setAutoCommit(true);
+        }
+        assertEquals(0, countByF2(80));
+        stmt.executeUpdate("INSERT INTO IndexTest4(f1, f2, f3) VALUES(8, 80, 'h')");
+        assertEquals(1, countByF2(80));
+
+        try {
+            stmt.executeUpdate("UPDATE IndexTest4 SET f2 = 30 WHERE f1 = 2");
+            Assert.fail("update duplicate key: 30");
+        } catch (SQLException e) {
+            //e.printStackTrace();
+        }
+        assertEquals(1, countByF2(20));
+
+        assertEquals(1, stmt.executeUpdate("UPDATE IndexTest4 SET f2 = 21 WHERE f1 = 2"));
+        assertEquals(0, countByF2(20));
+        assertEquals(1, countByF2(21));
+
+        sql = "SELECT count(*) FROM IndexTest4";
+        assertEquals(5, getIntValue(1, true));
+    }
+
+    private int countByF2(int f2) throws Exception {
+        sql = "SELECT count(*) FROM IndexTest4 WHERE f2 = " + f2;
+        return getIntValue(1, true);
+    }
 }
@@ -19,6 +19,8 @@
  */
 package com.codefollower.lealone.test.jdbc.misc;
 
+import static junit.framework.Assert.assertEquals;
+
 import java.util.Map;
 
 import org.apache.hadoop.hbase.HBaseConfiguration;
@@ -30,7 +32,9 @@ import org.apache.hadoop.hbase.util.Bytes;
 import org.junit.Test;
 
 import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.hbase.util.RowKeyCodec;
 import com.codefollower.lealone.test.jdbc.TestBase;
+import com.codefollower.lealone.value.ValueInt;
 
 public class RegionSplitTest extends TestBase {
 
@@ -70,6 +74,76 @@ public class RegionSplitTest extends TestBase {
         printResultSet();
     }
 
+    //数据表分裂后，二级索引回表时region位置缓存中的旧region已不存在，要清除缓存后重新定位
+    @Test
+    public void testIndexLookupAfterSplit() throws Exception {
+        stmt.executeUpdate("DROP TABLE IF EXISTS RegionSplitTest2");
+        stmt.executeUpdate("CREATE TABLE IF NOT EXISTS RegionSplitTest2 (id int primary key, f2 int, name varchar(500))");
+        stmt.executeUpdate("CREATE INDEX IF NOT EXISTS RegionSplitTest2_idx1 ON RegionSplitTest2(f2)");
+
+        int size = 50;
+        for (int i = 1; i < size; i++)
+            stmt.executeUpdate("INSERT INTO RegionSplitTest2(id, f2, name) VALUES(" + i + ", " + i * 10 + ", 'a1')");
+
+        sql = "SELECT count(*), sum(id) FROM RegionSplitTest2 WHERE f2 >= 100 AND f2 < 300";
+        executeQuery();
+        assertEquals(20, getIntValue(1));
+        assertEquals(390, getIntValue(2, true));
+
+        HBaseAdmin admin = HBaseUtils.getHBaseAdmin();
+        admin.split(Bytes.toBytes("RegionSplitTest2".toUpperCase()), RowKeyCodec.encode(ValueInt.get(20)));
+        Thread.sleep(1000);
+
+        executeQuery();
+        assertEquals(20, getIntValue(1));
+        assertEquals(390, getIntValue(2, true));
+
+        sql = "SELECT name FROM RegionSplitTest2 WHERE f2 = 250";
+        assertEquals("a1", getStringValue(1, true));
+    }
+
+    //分裂后region边界缓存中的旧region已不存在，按主键路由的语句要重新定位到分裂出来的两个region
+    @Test
+    public void testRoutingAfterSplit() throws Exception {
+        stmt.executeUpdate("DROP TABLE IF EXISTS RegionSplitTest3");
+        stmt.executeUpdate("CREATE TABLE IF NOT EXISTS RegionSplitTest3 (id int primary key, name varchar(500))");
+
+        int size = 50;
+        for (int i = 1; i < size; i++)
+            stmt.executeUpdate("INSERT INTO RegionSplitTest3(id, name) VALUES(" + i + ", 'a" + i + "')");
+
+        //先查一次，让region边界进入缓存
+        sql = "SELECT name FROM RegionSplitTest3 WHERE id = 30";
+        assertEquals("a30", getStringValue(1, true));
+
+        HBaseAdmin admin = HBaseUtils.getHBaseAdmin();
+        admin.split(Bytes.toBytes("RegionSplitTest3".toUpperCase()), RowKeyCodec.encode(ValueInt.get(25)));
+        Thread.sleep(1000);
+
+        sql = "SELECT name FROM RegionSplitTest3 WHERE id = 30";
+        assertEquals("a30", getStringValue(1, true));
+        sql = "SELECT name FROM RegionSplitTest3 WHERE id = 10";
+        assertEquals("a10", getStringValue(1, true));
+
+        assertEquals(1, stmt.executeUpdate("UPDATE RegionSplitTest3 SET name = 'b40' WHERE id = 40"));
+        assertEquals(1, stmt.executeUpdate("UPDATE RegionSplitTest3 SET name = 'b5' WHERE id = 5"));
+        assertEquals(1, stmt.executeUpdate("DELETE FROM RegionSplitTest3 WHERE id = 41"));
+        stmt.executeUpdate("INSERT INTO RegionSplitTest3(id, name) VALUES(60, 'a60')");
+        stmt.executeUpdate("INSERT INTO RegionSplitTest3(id, name) VALUES(0, 'a0')");
+
+        sql = "SELECT name FROM RegionSplitTest3 WHERE id = 40";
+        assertEquals("b40", getStringValue(1, true));
+        sql = "SELECT name FROM RegionSplitTest3 WHERE id = 5";
+        assertEquals("b5", getStringValue(1, true));
+
+        sql = "SELECT count(*) FROM RegionSplitTest3";
+        assertEquals(size, getIntValue(1, true));
+        sql = "SELECT count(*) FROM RegionSplitTest3 WHERE id >= 20 AND id < 30";
+        assertEquals(10, getIntValue(1, true));
+        sql = "SELECT count(*) FROM RegionSplitTest3 WHERE id >= 25";
+        assertEquals(size - 25, getIntValue(1, true));
+    }
+
     void closeRegionWithEncodedRegionName(String tableName) throws Exception {
         printRegions(tableName);
 
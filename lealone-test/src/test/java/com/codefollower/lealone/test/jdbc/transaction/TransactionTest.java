@@ -20,10 +20,18 @@
 package com.codefollower.lealone.test.jdbc.transaction;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
@@ -54,6 +62,11 @@ public class TransactionTest extends TestBase {
 
         testCommit();
         testRollback();
+        testReadPastUncommittedVersions();
+        testSavepoint();
+        testWriteWriteConflict();
+        testConcurrentCommits();
+        testManyTransactionsInOneBatch();
         //delete();
     }
 
@@ -151,6 +164,216 @@ public class TransactionTest extends TestBase {
 
     }
 
+    //同一行的不同列上有多个事务写入的未提交版本，读者要越过它们读到已提交的版本
+    void testReadPastUncommittedVersions() throws Exception {
+        stmt.executeUpdate("DELETE FROM TransactionTest");
+        stmt.executeUpdate("INSERT INTO TransactionTest(_rowkey_, f1, cf1.f2, cf2.f3) VALUES('10', 'a0', 'b0', 10)");
+
+        Connection conn1 = DriverManager.getConnection(getURL(), "sa", "");
+        Connection conn2 = DriverManager.getConnection(getURL(), "sa", "");
+        try {
+            conn1.setAutoCommit(false);
+            conn2.setAutoCommit(false);
+            Statement stmt1 = conn1.createStatement();
+            Statement stmt2 = conn2.createStatement();
+            stmt1.executeUpdate("UPDATE TransactionTest SET f1 = 'a1' WHERE _rowkey_ = '10'");
+            stmt2.executeUpdate("UPDATE TransactionTest SET f1 = 'a2', cf2.f3 = 20 WHERE _rowkey_ = '10'");
+            stmt1.executeUpdate("UPDATE TransactionTest SET cf1.f2 = 'b1' WHERE _rowkey_ = '10'");
+
+            sql = "SELECT f1, cf1.f2, cf2.f3 FROM TransactionTest WHERE _rowkey_ = '10'";
+            assertEquals("a0", getStringValue(1));
+            assertEquals("b0", getStringValue(2));
+            assertEquals(10, getIntValue(3, true));
+
+            sql = "SELECT f1, cf1.f2, cf2.f3 FROM TransactionTest";
+            assertEquals("a0", getStringValue(1));
+            assertEquals("b0", getStringValue(2));
+            assertEquals(10, getIntValue(3, true));
+
+            conn1.rollback();
+            conn2.commit();
+
+            sql = "SELECT f1, cf1.f2, cf2.f3 FROM TransactionTest WHERE _rowkey_ = '10'";
+            assertEquals("a2", getStringValue(1));
+            assertEquals("b0", getStringValue(2));
+            assertEquals(20, getIntValue(3, true));
+        } finally {
+            conn1.close();
+            conn2.close();
+        }
+        stmt.executeUpdate("DELETE FROM TransactionTest");
+    }
+
+    void testSavepoint() throws Exception {
+        stmt.executeUpdate("DELETE FROM TransactionTest");
+        try {
+            conn.setAutoCommit(false);
+            stmt.executeUpdate("INSERT INTO TransactionTest(_rowkey_, f1, cf1.f2, cf2.f3) VALUES('01', 'a1', 'b', 51)");
+            Savepoint sp1 = conn.setSavepoint("sp1");
+            stmt.executeUpdate("INSERT INTO TransactionTest(_rowkey_, f1, cf1.f2, cf2.f3) VALUES('26', 'a2', 'b', 61)");
+            Savepoint sp2 = conn.setSavepoint("sp2");
+            stmt.executeUpdate("INSERT INTO TransactionTest(_rowkey_, f1, cf1.f2, cf2.f3) VALUES('51', 'a2', 'b', 12)");
+
+            conn.rollback(sp1);
+            sql = "SELECT count(*) FROM TransactionTest";
+            assertEquals(1, getIntValue(1, true));
+
+            //sp2在sp1之后建立，已经失效
+            try {
+                conn.rollback(sp2);
+                fail("savepoint sp2 should be invalid");
+            } catch (SQLException e) {
+                //ignore
+            }
+
+            //sp1本身还可以再用
+            stmt.executeUpdate("INSERT INTO TransactionTest(_rowkey_, f1, cf1.f2, cf2.f3) VALUES('76', 'a2', 'b', 12)");
+            conn.rollback(sp1);
+            conn.commit();
+        } finally {
+            conn.setAutoCommit(true);
+        }
+
+        sql = "SELECT count(*) FROM TransactionTest";
+        assertEquals(1, getIntValue(1, true));
+        sql = "SELECT f1 FROM TransactionTest WHERE _rowkey_ = '01'";
+        assertEquals("a1", getStringValue(1, true));
+        stmt.executeUpdate("DELETE FROM TransactionTest");
+    }
+
+    //两个事务修改同一行时后提交的那个失败，修改不同的行(包括同一个region中的行)时都能提交
+    void testWriteWriteConflict() throws Exception {
+        stmt.executeUpdate("DELETE FROM TransactionTest");
+        insert();
+
+        Connection conn1 = DriverManager.getConnection(getURL(), "sa", "");
+        Connection conn2 = DriverManager.getConnection(getURL(), "sa", "");
+        try {
+            conn1.setAutoCommit(false);
+            conn2.setAutoCommit(false);
+            Statement stmt1 = conn1.createStatement();
+            Statement stmt2 = conn2.createStatement();
+
+            stmt1.executeUpdate("UPDATE TransactionTest SET f1 = 't1' WHERE _rowkey_ = '01'");
+            stmt1.executeUpdate("UPDATE TransactionTest SET f1 = 't1' WHERE _rowkey_ = '02'");
+            stmt2.executeUpdate("UPDATE TransactionTest SET cf1.f2 = 't2' WHERE _rowkey_ = '01'");
+            conn1.commit();
+            try {
+                conn2.commit();
+                fail("write-write conflict expected");
+            } catch (SQLException e) {
+                //事务已被回滚
+            }
+
+            stmt1.executeUpdate("UPDATE TransactionTest SET f1 = 't3' WHERE _rowkey_ = '03'");
+            stmt2.executeUpdate("UPDATE TransactionTest SET f1 = 't4' WHERE _rowkey_ = '25'");
+            stmt2.executeUpdate("UPDATE TransactionTest SET f1 = 't4' WHERE _rowkey_ = '26'");
+            conn2.commit();
+            conn1.commit();
+        } finally {
+            conn1.close();
+            conn2.close();
+        }
+
+        sql = "SELECT f1, cf1.f2 FROM TransactionTest WHERE _rowkey_ = '01'";
+        assertEquals("t1", getStringValue(1));
+        assertEquals("b", getStringValue(2, true));
+        sql = "SELECT count(*) FROM TransactionTest WHERE f1 = 't3'";
+        assertEquals(1, getIntValue(1, true));
+        sql = "SELECT count(*) FROM TransactionTest WHERE f1 = 't4'";
+        assertEquals(2, getIntValue(1, true));
+        stmt.executeUpdate("DELETE FROM TransactionTest");
+    }
+
+    //多个连接同时提交写不同行的事务，冲突检测按行分段加锁，互不影响，所有事务都要成功
+    void testConcurrentCommits() throws Exception {
+        stmt.executeUpdate("DELETE FROM TransactionTest");
+        final int threadCount = 8;
+        final int rows = 10;
+        final AtomicLong failures = new AtomicLong();
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int id = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        Connection c = DriverManager.getConnection(getURL(), "sa", "");
+                        try {
+                            c.setAutoCommit(false);
+                            Statement s = c.createStatement();
+                            for (int j = 0; j < rows; j++) {
+                                //rowKey分布在4个region中
+                                String rowKey = (10 + j * 9) + "-" + id;
+                                s.executeUpdate("INSERT INTO TransactionTest(_rowkey_, f1, cf2.f3) VALUES('" + rowKey
+                                        + "', 'c" + id + "', " + j + ")");
+                            }
+                            c.commit();
+                        } finally {
+                            c.close();
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+
+        assertEquals(0, failures.get());
+        sql = "SELECT count(*) FROM TransactionTest";
+        assertEquals(threadCount * rows, getIntValue(1, true));
+        sql = "SELECT count(*) FROM TransactionTest WHERE f1 = 'c3'";
+        assertEquals(rows, getIntValue(1, true));
+        stmt.executeUpdate("DELETE FROM TransactionTest");
+    }
+
+    //一批scan结果中的记录由很多不同的事务写入，其中一部分已回滚，
+    //批量查询这些事务的状态后，只有已提交的记录可见
+    void testManyTransactionsInOneBatch() throws Exception {
+        stmt.executeUpdate("DELETE FROM TransactionTest");
+        int count = 40;
+        Connection conn1 = DriverManager.getConnection(getURL(), "sa", "");
+        try {
+            conn1.setAutoCommit(false);
+            Statement stmt1 = conn1.createStatement();
+            for (int i = 0; i < count; i++) {
+                String rowKey = (i < 10 ? "0" : "") + i;
+                stmt1.executeUpdate("INSERT INTO TransactionTest(_rowkey_, f1, cf2.f3) VALUES('" + rowKey + "', 'm', "
+                        + i + ")");
+                if (i % 4 == 3)
+                    conn1.rollback();
+                else
+                    conn1.commit();
+            }
+        } finally {
+            conn1.close();
+        }
+
+        stmt.setFetchSize(count * 2);
+        try {
+            sql = "SELECT count(*) FROM TransactionTest WHERE f1 = 'm'";
+            assertEquals(count - count / 4, getIntValue(1, true));
+
+            sql = "SELECT _rowkey_, cf2.f3 FROM TransactionTest";
+            rs = stmt.executeQuery(sql);
+            int rows = 0;
+            while (rs.next()) {
+                assertEquals(Integer.parseInt(rs.getString(1)), rs.getInt(2));
+                assertTrue(rs.getInt(2) % 4 != 3);
+                rows++;
+            }
+            closeResultSet();
+            assertEquals(count - count / 4, rows);
+        } finally {
+            stmt.setFetchSize(0);
+        }
+        stmt.executeUpdate("DELETE FROM TransactionTest");
+    }
+
     void scan() throws Exception {
         HTable t = new HTable(conf, "TRANSACTIONTEST");
         for (Result r : t.getScanner(new Scan())) {
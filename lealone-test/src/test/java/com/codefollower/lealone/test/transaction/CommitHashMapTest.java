@@ -0,0 +1,167 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.transaction;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.codefollower.lealone.hbase.transaction.CommitHashMap;
+
+public class CommitHashMapTest {
+    @Test
+    public void run() throws Exception {
+        putAndGet();
+        tooOldPerSet();
+        lockStripes();
+        disjointStripesDoNotBlock();
+        resize();
+        concurrentCommits();
+    }
+
+    //低位相同的两个fingerprint落在同一个set中，高位不同也不能混淆
+    void putAndGet() {
+        CommitHashMap map = new CommitHashMap(16, 2, 4);
+        long h1 = 5;
+        long h2 = 5 | (1L << 40);
+        map.putLatestWriteForRow(h1, 10);
+        assertEquals(10, map.getLatestWriteForRow(h1));
+        assertEquals(0, map.getLatestWriteForRow(h2));
+        map.putLatestWriteForRow(h2, 20);
+        assertEquals(10, map.getLatestWriteForRow(h1));
+        assertEquals(20, map.getLatestWriteForRow(h2));
+        assertEquals(0, map.getLargestDeletedTimestamp());
+    }
+
+    //只有写集合所在的set淘汰过更新的提交记录时才算too old，其他set的淘汰不影响
+    void tooOldPerSet() {
+        CommitHashMap map = new CommitHashMap(4, 1, 4); //4个set，每个set一个槽位
+        map.putLatestWriteForRow(1, 10);
+        map.putLatestWriteForRow(1 + 4, 20); //同一个set，淘汰了10
+        assertEquals(10, map.getLargestDeletedTimestamp());
+        assertEquals(0, map.getLatestWriteForRow(1));
+
+        assertTrue(map.isTooOld(new long[] { 1 }, 5));
+        assertFalse(map.isTooOld(new long[] { 1 }, 10));
+        assertFalse(map.isTooOld(new long[] { 2, 3 }, 5));
+        assertTrue(map.isTooOld(new long[] { 2, 9 }, 5));
+    }
+
+    void lockStripes() {
+        CommitHashMap map = new CommitHashMap(64, 2, 4);
+        assertEquals(4, map.getStripeCount());
+        int[] stripes = map.lockStripes(new long[] { 7, 1, 5, 3, 9 });
+        try {
+            //按下标排好序并去掉重复的
+            assertEquals(2, stripes.length);
+            assertEquals(1, stripes[0]);
+            assertEquals(3, stripes[1]);
+        } finally {
+            map.unlockStripes(stripes);
+        }
+
+        //stripe的个数不超过set的个数
+        assertEquals(2, new CommitHashMap(2, 1, 16).getStripeCount());
+    }
+
+    //写集合落在不同stripe的两个提交可以同时进行
+    void disjointStripesDoNotBlock() throws Exception {
+        final CommitHashMap map = new CommitHashMap(64, 2, 4);
+        int[] stripes = map.lockStripes(new long[] { 0 });
+        try {
+            final CountDownLatch done = new CountDownLatch(1);
+            Thread t = new Thread() {
+                public void run() {
+                    int[] stripes = map.lockStripes(new long[] { 1 });
+                    map.putLatestWriteForRow(1, 11);
+                    map.unlockStripes(stripes);
+                    done.countDown();
+                }
+            };
+            t.start();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(11, map.getLatestWriteForRow(1));
+        } finally {
+            map.unlockStripes(stripes);
+        }
+    }
+
+    //too old的比率超过目标值时容量翻倍，已有的记录和淘汰记录都要保留
+    void resize() {
+        CommitHashMap map = new CommitHashMap(4, 1, 2, 16, 0.01);
+        map.putLatestWriteForRow(1, 10);
+        map.putLatestWriteForRow(1 + 4, 20);
+        map.putLatestWriteForRow(2, 30);
+
+        for (int i = 0; i < 1024; i++)
+            map.isTooOld(new long[] { 1 }, 5);
+        map.resizeIfNeeded();
+
+        assertEquals(8, map.getSize());
+        assertEquals(1, map.getResizeCount());
+        assertEquals(20, map.getLatestWriteForRow(1 + 4));
+        assertEquals(30, map.getLatestWriteForRow(2));
+        assertTrue(map.isTooOld(new long[] { 1 }, 5));
+        assertTrue(map.isTooOld(new long[] { 1 + 4 }, 5));
+
+        //没有再请求扩容时什么都不做
+        map.resizeIfNeeded();
+        assertEquals(8, map.getSize());
+    }
+
+    //多个线程按CommitHashMap要求的方式加锁后读写，容量足够时每一行读到的都是最后一次写入的提交时间
+    void concurrentCommits() throws Exception {
+        final CommitHashMap map = new CommitHashMap(1 << 16, 4, 16);
+        final AtomicLong wrong = new AtomicLong();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final long base = (i + 1) * 1000L;
+            threads[i] = new Thread() {
+                public void run() {
+                    for (long ts = 1; ts <= 2000; ts++) {
+                        long[] hashes = { base + ts % 100, base + (ts + 1) % 100 };
+                        int[] stripes = map.lockStripes(hashes);
+                        try {
+                            for (long h : hashes) {
+                                if (map.getLatestWriteForRow(h) >= ts)
+                                    wrong.incrementAndGet();
+                                map.putLatestWriteForRow(h, ts);
+                            }
+                        } finally {
+                            map.unlockStripes(stripes);
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        assertEquals(0, wrong.get());
+        assertEquals(0, map.getLargestDeletedTimestamp());
+    }
+}
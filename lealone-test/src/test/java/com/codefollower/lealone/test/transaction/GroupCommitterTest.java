@@ -0,0 +1,167 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.transaction;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import com.codefollower.lealone.hbase.metadata.GroupCommitter;
+
+public class GroupCommitterTest {
+    private static final int THREADS = 10;
+
+    //第一批写入时阻塞，让其他线程的记录都排队，放行后它们应该合并成一次写入
+    @Test
+    public void batch() throws Exception {
+        TestCommitter committer = new TestCommitter(false);
+        committer.start();
+
+        Thread first = commit(committer, 0, new AtomicReferenceArray<Throwable>(1));
+        assertTrue(committer.writing.await(10, TimeUnit.SECONDS));
+
+        AtomicReferenceArray<Throwable> errors = new AtomicReferenceArray<Throwable>(THREADS);
+        List<Thread> threads = commitAll(committer, errors);
+        waitQueued(committer, THREADS);
+        committer.release.countDown();
+
+        first.join();
+        for (Thread t : threads)
+            t.join();
+
+        for (int i = 0; i < THREADS; i++)
+            assertNull(errors.get(i));
+        assertEquals(2, committer.batchSizes.size());
+        assertEquals(1, (int) committer.batchSizes.get(0));
+        assertEquals(THREADS, (int) committer.batchSizes.get(1));
+        assertEquals(0, committer.discards.get());
+    }
+
+    //一批写入失败时，这一批中的每个线程都要收到异常，并且之后的commit还能正常写入
+    @Test
+    public void failure() throws Exception {
+        TestCommitter committer = new TestCommitter(true);
+        committer.start();
+
+        Thread first = commit(committer, 0, new AtomicReferenceArray<Throwable>(1));
+        assertTrue(committer.writing.await(10, TimeUnit.SECONDS));
+
+        AtomicReferenceArray<Throwable> errors = new AtomicReferenceArray<Throwable>(THREADS);
+        List<Thread> threads = commitAll(committer, errors);
+        waitQueued(committer, THREADS);
+        committer.release.countDown();
+
+        first.join();
+        for (Thread t : threads)
+            t.join();
+
+        for (int i = 0; i < THREADS; i++)
+            assertTrue(String.valueOf(errors.get(i)), errors.get(i) instanceof IOException);
+        assertEquals(1, committer.discards.get());
+
+        //组提交线程没有因为失败而退出
+        committer.commit(Collections.singletonList(put(THREADS)));
+        assertEquals(3, committer.batchSizes.size());
+        assertEquals(1, (int) committer.batchSizes.get(2));
+    }
+
+    private static List<Thread> commitAll(GroupCommitter committer, AtomicReferenceArray<Throwable> errors) {
+        List<Thread> threads = new ArrayList<Thread>(THREADS);
+        for (int i = 0; i < THREADS; i++)
+            threads.add(commit(committer, i, errors));
+        return threads;
+    }
+
+    private static Thread commit(final GroupCommitter committer, final int index,
+            final AtomicReferenceArray<Throwable> errors) {
+        Thread t = new Thread("GroupCommitterTest-" + index) {
+            public void run() {
+                try {
+                    committer.commit(Collections.singletonList(put(index)));
+                } catch (Throwable e) {
+                    errors.set(index, e);
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    private static void waitQueued(GroupCommitter committer, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (committer.getQueueSize() < count) {
+            assertTrue("queued: " + committer.getQueueSize(), System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static Put put(int i) {
+        Put put = new Put(Bytes.toBytes(i));
+        put.add(Bytes.toBytes("CF"), Bytes.toBytes("c"), Bytes.toBytes(i));
+        return put;
+    }
+
+    //记录每一批的大小，第一批写入时等待release，fail为true时第二批写入失败
+    private static class TestCommitter extends GroupCommitter {
+        private final boolean fail;
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger discards = new AtomicInteger();
+
+        TestCommitter(boolean fail) {
+            super("GroupCommitterTest", 256, 0);
+            this.fail = fail;
+        }
+
+        @Override
+        protected void write(List<Put> puts) throws IOException {
+            batchSizes.add(puts.size());
+            if (batchSizes.size() == 1) {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            } else if (fail && batchSizes.size() == 2) {
+                throw new IOException("write failed");
+            }
+        }
+
+        @Override
+        protected void discard() {
+            discards.incrementAndGet();
+        }
+    }
+}
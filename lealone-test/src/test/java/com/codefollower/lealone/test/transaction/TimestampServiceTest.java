@@ -0,0 +1,99 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.transaction;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.codefollower.lealone.hbase.transaction.TimestampService;
+
+public class TimestampServiceTest {
+    private static final String HOST_AND_PORT = "TimestampServiceTest:0";
+    private static final int THREADS = 8;
+    //8个线程一共分配16万个时间戳，远大于测试配置(hbase-site.xml)中的TIMESTAMP_BATCH=1000，保证会多次预留
+    private static final int COUNT = 20000;
+
+    @Test
+    public void run() throws Exception {
+        final TimestampService ts = new TimestampService(HOST_AND_PORT);
+        ts.reset();
+
+        final long[][] results = new long[THREADS][COUNT];
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch end = new CountDownLatch(THREADS);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        for (int i = 0; i < THREADS; i++) {
+            final int index = i;
+            new Thread("TimestampServiceTest-" + i) {
+                public void run() {
+                    try {
+                        start.await();
+                        long[] r = results[index];
+                        for (int j = 0; j < COUNT; j++) {
+                            //奇数线程和偶数线程交替分配
+                            if ((index + j) % 2 == 0)
+                                r[j] = ts.nextOdd();
+                            else
+                                r[j] = ts.nextEven();
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    } finally {
+                        end.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        end.await();
+        if (error.get() != null)
+            throw new AssertionError(error.get());
+
+        Set<Long> all = new HashSet<Long>(THREADS * COUNT);
+        long max = 0;
+        for (int i = 0; i < THREADS; i++) {
+            long[] r = results[i];
+            for (int j = 0; j < COUNT; j++) {
+                assertEquals((i + j) % 2 == 0, r[j] % 2 != 0);
+                if (j > 0)
+                    assertTrue("not monotonic: " + r[j - 1] + " >= " + r[j], r[j - 1] < r[j]);
+                all.add(r[j]);
+                max = Math.max(max, r[j]);
+            }
+        }
+        assertEquals(THREADS * COUNT, all.size());
+
+        assertEquals(THREADS * COUNT, ts.getAllocationCount());
+        assertTrue(ts.toString(), ts.getBackgroundRefillCount() + ts.getBlockingRefillCount() > 100);
+
+        //重启后分配的时间戳不能和之前的重复
+        TimestampService restarted = new TimestampService(HOST_AND_PORT);
+        assertTrue(restarted.first() >= max);
+        assertTrue(restarted.nextOdd() > max);
+        assertTrue(restarted.nextEven() > max);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.transaction;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.codefollower.lealone.hbase.transaction.TransactionStatusCache;
+
+public class TransactionStatusCacheTest {
+    @Test
+    public void run() throws Exception {
+        setAndGet();
+        evictOldest();
+        concurrentReadWrite();
+    }
+
+    void setAndGet() {
+        TransactionStatusCache cache = new TransactionStatusCache(1024);
+        assertEquals(-1, cache.get(1));
+        cache.set(1, 10);
+        cache.set(3, -2);
+        assertEquals(10, cache.get(1));
+        assertEquals(-2, cache.get(3));
+        assertEquals(-1, cache.get(5));
+    }
+
+    void evictOldest() {
+        //容量最小是8，只有8个槽位，放入第9个事务时最老的那个被淘汰
+        TransactionStatusCache cache = new TransactionStatusCache(8);
+        assertEquals(8, cache.getCapacity());
+        for (long tid = 1; tid <= 17; tid += 2)
+            cache.set(tid, tid + 100);
+        assertEquals(-1, cache.get(1));
+        for (long tid = 3; tid <= 17; tid += 2)
+            assertEquals(tid + 100, cache.get(tid));
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    //很小的缓存加上大量并发写入，让同一个槽位被反复换成不同的事务，
+    //读者读到的状态必须始终属于它要找的那个事务
+    void concurrentReadWrite() throws Exception {
+        final TransactionStatusCache cache = new TransactionStatusCache(64);
+        final AtomicLong wrong = new AtomicLong();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final int seed = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    Random random = new Random(seed);
+                    for (int j = 0; j < 500000; j++) {
+                        long tid = 2 * random.nextInt(500) + 1;
+                        if (random.nextBoolean()) {
+                            cache.set(tid, tid * 10);
+                        } else {
+                            long timestamp = cache.get(tid);
+                            if (timestamp != -1 && timestamp != tid * 10)
+                                wrong.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertEquals(0, wrong.get());
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.transaction;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.filter.Filter.ReturnCode;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import com.codefollower.lealone.hbase.transaction.ValidityFilter;
+
+public class ValidityFilterTest {
+    private static final byte[] ROW = Bytes.toBytes("r1");
+    private static final byte[] CF = Bytes.toBytes("CF");
+
+    @Test
+    public void run() throws Exception {
+        //只用偶数(非事务)时间戳，这样不需要访问TransactionStatusTable
+        ValidityFilter filter = deserialize("localhost:60020", 100);
+
+        //f1: 最新版本在开始时间戳之后，不可见；下一个版本可见，再往后的版本都跳过
+        assertEquals(ReturnCode.SKIP, filter.filterKeyValue(kv("f1", 102, "v3")));
+        assertEquals(ReturnCode.INCLUDE, filter.filterKeyValue(kv("f1", 98, "v2")));
+        assertEquals(ReturnCode.NEXT_COL, filter.filterKeyValue(kv("f1", 96, "v1")));
+
+        //f2: 可见版本是删除标记，这一列不返回
+        assertEquals(ReturnCode.NEXT_COL, filter.filterKeyValue(kv("f2", 90, "")));
+
+        //f3: 和开始时间戳相同的偶数版本也不可见
+        assertEquals(ReturnCode.SKIP, filter.filterKeyValue(kv("f3", 100, "v2")));
+        assertEquals(ReturnCode.INCLUDE, filter.filterKeyValue(kv("f3", 2, "v1")));
+
+        //换行后重新开始
+        filter.reset();
+        assertEquals(ReturnCode.INCLUDE, filter.filterKeyValue(kv("f1", 4, "v1")));
+    }
+
+    @Test
+    public void deferUnresolved() throws Exception {
+        ValidityFilter filter = deserialize("localhost:60020", 100);
+
+        //f1: 事务99的状态不在TransactionStatusCache中，不在region内部查询，这一列剩下的版本都原样返回
+        assertEquals(ReturnCode.INCLUDE, filter.filterKeyValue(kv("f1", 99, "v3")));
+        assertEquals(ReturnCode.INCLUDE, filter.filterKeyValue(kv("f1", 102, "")));
+        assertEquals(ReturnCode.INCLUDE, filter.filterKeyValue(kv("f1", 96, "v1")));
+
+        //f2: 其他列照常过滤
+        assertEquals(ReturnCode.SKIP, filter.filterKeyValue(kv("f2", 102, "v2")));
+        assertEquals(ReturnCode.INCLUDE, filter.filterKeyValue(kv("f2", 98, "v1")));
+        assertEquals(ReturnCode.NEXT_COL, filter.filterKeyValue(kv("f2", 96, "v0")));
+
+        //换行后不再推迟
+        filter.reset();
+        assertEquals(ReturnCode.INCLUDE, filter.filterKeyValue(kv("f1", 98, "v1")));
+        assertEquals(ReturnCode.NEXT_COL, filter.filterKeyValue(kv("f1", 96, "v0")));
+    }
+
+    private static KeyValue kv(String qualifier, long timestamp, String value) {
+        return new KeyValue(ROW, CF, Bytes.toBytes(qualifier), timestamp, Bytes.toBytes(value));
+    }
+
+    //模拟region server端收到的过滤器
+    private static ValidityFilter deserialize(String hostAndPort, long startTimestamp) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Bytes.writeByteArray(out, Bytes.toBytes(hostAndPort));
+        out.writeLong(startTimestamp);
+        out.writeBoolean(false); //没有rowFilter
+        out.close();
+
+        ValidityFilter filter = new ValidityFilter();
+        filter.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        return filter;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.util;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.TimeZone;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import com.codefollower.lealone.hbase.util.RowKeyCodec;
+import com.codefollower.lealone.util.DateTimeUtils;
+import com.codefollower.lealone.value.CompareMode;
+import com.codefollower.lealone.value.Value;
+import com.codefollower.lealone.value.ValueBytes;
+import com.codefollower.lealone.value.ValueDate;
+import com.codefollower.lealone.value.ValueDecimal;
+import com.codefollower.lealone.value.ValueDouble;
+import com.codefollower.lealone.value.ValueFloat;
+import com.codefollower.lealone.value.ValueInt;
+import com.codefollower.lealone.value.ValueLong;
+import com.codefollower.lealone.value.ValueNull;
+import com.codefollower.lealone.value.ValueString;
+import com.codefollower.lealone.value.ValueTime;
+import com.codefollower.lealone.value.ValueTimestamp;
+
+//编码后按字节比较的结果必须与Value.compareTypeSave一致，并且能解码回原来的值
+public class RowKeyCodecTest {
+    private final CompareMode compareMode = CompareMode.getInstance(null, 0, true);
+
+    @Test
+    public void run() throws Exception {
+        testLong();
+        testDouble();
+        testDecimal();
+        testTimestamp();
+        testTimeZone();
+        testString();
+        testBytes();
+        testComposite();
+        testSuccessor();
+    }
+
+    void testLong() {
+        assertOrder(Value.INT, ValueNull.INSTANCE, ValueInt.get(Integer.MIN_VALUE), ValueInt.get(-100),
+                ValueInt.get(-1), ValueInt.get(0), ValueInt.get(1), ValueInt.get(100), ValueInt.get(Integer.MAX_VALUE));
+
+        assertOrder(Value.LONG, ValueLong.get(Long.MIN_VALUE), ValueLong.get(-256), ValueLong.get(-255),
+                ValueLong.get(0), ValueLong.get(255), ValueLong.get(256), ValueLong.get(Long.MAX_VALUE));
+    }
+
+    void testDouble() {
+        assertOrder(Value.DOUBLE, ValueDouble.get(Double.NEGATIVE_INFINITY), ValueDouble.get(-1e10),
+                ValueDouble.get(-1.5), ValueDouble.get(-Double.MIN_VALUE), ValueDouble.get(-0.0), ValueDouble.get(0.0),
+                ValueDouble.get(Double.MIN_VALUE), ValueDouble.get(1e-10), ValueDouble.get(1.5),
+                ValueDouble.get(Double.POSITIVE_INFINITY));
+
+        assertOrder(Value.FLOAT, ValueFloat.get(-2.5f), ValueFloat.get(-0.0f), ValueFloat.get(0.0f),
+                ValueFloat.get(2.5f));
+    }
+
+    //符号、指数和有效数字都要参与比较，小数位数不同但值相等的编码要相同
+    void testDecimal() {
+        assertOrder(Value.DECIMAL, decimal("-1E+20"), decimal("-1000"), decimal("-10.5"), decimal("-10.25"),
+                decimal("-9.99"), decimal("-1"), decimal("-0.01"), decimal("-0.001"), decimal("0"), decimal("0.001"),
+                decimal("0.01"), decimal("0.1"), decimal("1"), decimal("9.99"), decimal("10"), decimal("10.25"),
+                decimal("10.5"), decimal("100"), decimal("1E+20"));
+
+        assertEquals(0, Bytes.compareTo(RowKeyCodec.encode(decimal("1")), RowKeyCodec.encode(decimal("1.000"))));
+        assertEquals(0, Bytes.compareTo(RowKeyCodec.encode(decimal("-0.50")), RowKeyCodec.encode(decimal("-0.5"))));
+        assertEquals(0, Bytes.compareTo(RowKeyCodec.encode(decimal("0")), RowKeyCodec.encode(decimal("0.00"))));
+    }
+
+    //不足1毫秒的纳秒也要参与比较，1970年之前的时间戳是负数
+    void testTimestamp() {
+        assertOrder(Value.TIMESTAMP, timestamp(-86400000L, 0), timestamp(-86400000L, 1), timestamp(-1000L, 999999999),
+                timestamp(0L, 0), timestamp(0L, 1), timestamp(0L, 999999), timestamp(0L, 1000000),
+                timestamp(1000L, 1), timestamp(1000L, 500000001), timestamp(1000000000000L, 123456789));
+    }
+
+    //编码与JVM默认时区无关；纽约2013-03-10的02:00到03:00因夏令时被跳过，
+    //02:30按毫秒数会和03:30相同，按dateValue和纳秒数编码时是两个不同的rowKey
+    void testTimeZone() {
+        String[] dates = { "1969-12-31", "2013-03-10", "2013-03-11" };
+        String[] times = { "00:00:00", "02:30:00", "03:30:00", "23:59:59.999999999" };
+        String[] timestamps = { "1969-12-31 23:59:59.999", "2013-03-10 02:00:00", "2013-03-10 02:30:00",
+                "2013-03-10 03:00:00", "2013-03-10 03:30:00", "2013-03-10 03:30:00.000000001" };
+        byte[][] utc = encodeAll(dates, times, timestamps);
+
+        TimeZone old = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+        DateTimeUtils.resetCalendar();
+        try {
+            byte[][] local = encodeAll(dates, times, timestamps);
+            for (int i = 0; i < utc.length; i++)
+                assertTrue(Bytes.equals(utc[i], local[i]));
+
+            Value[] values = new Value[timestamps.length];
+            for (int i = 0; i < values.length; i++)
+                values[i] = ValueTimestamp.parse(timestamps[i]);
+            assertOrder(Value.TIMESTAMP, values);
+
+            values = new Value[dates.length];
+            for (int i = 0; i < values.length; i++)
+                values[i] = ValueDate.parse(dates[i]);
+            assertOrder(Value.DATE, values);
+
+            values = new Value[times.length];
+            for (int i = 0; i < values.length; i++)
+                values[i] = ValueTime.parse(times[i]);
+            assertOrder(Value.TIME, values);
+        } finally {
+            TimeZone.setDefault(old);
+            DateTimeUtils.resetCalendar();
+        }
+    }
+
+    private static byte[][] encodeAll(String[] dates, String[] times, String[] timestamps) {
+        byte[][] keys = new byte[dates.length + times.length + timestamps.length][];
+        int i = 0;
+        for (String s : dates)
+            keys[i++] = RowKeyCodec.encode(ValueDate.parse(s));
+        for (String s : times)
+            keys[i++] = RowKeyCodec.encode(ValueTime.parse(s));
+        for (String s : timestamps)
+            keys[i++] = RowKeyCodec.encode(ValueTimestamp.parse(s));
+        return keys;
+    }
+
+    //字符串中的0x00要转义，并且较短的前缀排在前面
+    void testString() {
+        assertOrder(Value.STRING, ValueNull.INSTANCE, ValueString.get(""), ValueString.get("\u0000"),
+                ValueString.get("a"), ValueString.get("a\u0000"), ValueString.get("a\u0000\u0000"),
+                ValueString.get("a\u0000b"), ValueString.get("a\u0001"), ValueString.get("ab"),
+                ValueString.get("b"));
+    }
+
+    void testBytes() {
+        assertOrder(Value.BYTES, bytes(), bytes(0), bytes(0, 0), bytes(0, 1), bytes(1), bytes(1, 0), bytes(1, 0xFF),
+                bytes(0x7F), bytes(0x80), bytes(0xFF), bytes(0xFF, 0));
+    }
+
+    //复合主键: 按列依次比较，前几列的编码是完整编码的前缀
+    void testComposite() {
+        Value[][] keys = { //
+        { ValueInt.get(-1), ValueString.get("z") }, //
+                { ValueInt.get(1), ValueString.get("") }, //
+                { ValueInt.get(1), ValueString.get("a") }, //
+                { ValueInt.get(1), ValueString.get("a\u0000") }, //
+                { ValueInt.get(1), ValueString.get("b") }, //
+                { ValueInt.get(2), ValueNull.INSTANCE }, //
+                { ValueInt.get(2), ValueString.get("a") } };
+        int[] types = { Value.INT, Value.STRING };
+
+        for (int i = 0; i < keys.length; i++) {
+            byte[] key = RowKeyCodec.encode(keys[i]);
+            for (int j = 0; j < keys.length; j++)
+                assertEquals(Integer.signum(i - j), Integer.signum(Bytes.compareTo(key, RowKeyCodec.encode(keys[j]))));
+
+            byte[] prefix = RowKeyCodec.encode(keys[i][0]);
+            assertTrue(Bytes.startsWith(key, prefix));
+            //遇到null时停止，得到的也是前缀
+            assertTrue(Bytes.equals(prefix, RowKeyCodec.encode(new Value[] { keys[i][0], null })));
+
+            Value[] decoded = RowKeyCodec.decode(key, types);
+            assertEquals(keys[i][0], decoded[0]);
+            assertEquals(keys[i][1], decoded[1]);
+        }
+    }
+
+    void testSuccessor() {
+        byte[] prefix = RowKeyCodec.encode(new Value[] { ValueInt.get(1) });
+        byte[] successor = RowKeyCodec.getSuccessor(prefix);
+        assertTrue(Bytes.compareTo(successor, RowKeyCodec.encode(new Value[] { ValueInt.get(1), bytes(0xFF, 0xFF) })) > 0);
+        assertTrue(Bytes.compareTo(successor, RowKeyCodec.encode(new Value[] { ValueInt.get(2), ValueNull.INSTANCE })) <= 0);
+
+        assertTrue(Bytes.equals(new byte[] { 1, 3 }, RowKeyCodec.getSuccessor(new byte[] { 1, 2, (byte) 0xFF })));
+        assertNull(RowKeyCodec.getSuccessor(new byte[] { (byte) 0xFF, (byte) 0xFF }));
+    }
+
+    //values已经按从小到大排好序，每两个值编码后的字节顺序都要与compareTypeSave一致
+    private void assertOrder(int type, Value... values) {
+        for (int i = 0; i < values.length; i++) {
+            byte[] a = RowKeyCodec.encode(values[i]);
+            for (int j = 0; j < values.length; j++) {
+                byte[] b = RowKeyCodec.encode(values[j]);
+                int expected = Integer.signum(values[i].compareTypeSave(values[j], compareMode));
+                assertEquals(values[i] + " vs " + values[j], expected, Integer.signum(Bytes.compareTo(a, b)));
+                if (i < j)
+                    assertTrue(values[i] + " vs " + values[j], expected < 0);
+            }
+
+            Value decoded = RowKeyCodec.decode(a, type);
+            assertEquals(values[i].toString(), 0, values[i].compareTypeSave(decoded, compareMode));
+        }
+    }
+
+    private static Value decimal(String s) {
+        return ValueDecimal.get(new BigDecimal(s));
+    }
+
+    private static Value timestamp(long millis, int nanos) {
+        Timestamp t = new Timestamp(millis);
+        t.setNanos(nanos);
+        return ValueTimestamp.get(t);
+    }
+
+    private static Value bytes(int... bytes) {
+        byte[] b = new byte[bytes.length];
+        for (int i = 0; i < b.length; i++)
+            b[i] = (byte) bytes[i];
+        return ValueBytes.get(b);
+    }
+}